@@ -0,0 +1,118 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Table;
+
+/**
+ * Where the offsets of consumer groups are kept. The offsets are those of Kafka 0.7, so they are identified by the
+ * consumer group, the topic and the {@link Partition#getBrokerPartition() broker partition}.
+ * 
+ * <p/>
+ * An offset is either set right away, or {@link #setLastCommit(String, Partition, long, boolean) temporarily}, in
+ * which case it only takes effect once the temporary offsets of its topic are {@link #commit(Multimap) committed},
+ * which a job does once all of its tasks have succeeded.
+ * 
+ * @see com.conductor.kafka.zk.ZkUtils
+ * @see com.conductor.kafka.hadoop.HdfsOffsetStore
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public interface OffsetStore extends Closeable {
+
+    /**
+     * Gets the last commit made by the {@code group} on the {@code topic-partition}.
+     * 
+     * @param group
+     *            the consumer group.
+     * @param partition
+     *            the partition.
+     * @return the last offset, {@code -1} if the {@code group} has never committed an offset.
+     * @throws IOException
+     *             if the offset can't be read.
+     */
+    long getLastCommit(String group, Partition partition) throws IOException;
+
+    /**
+     * Gets the last commits made by the {@code group} on each of the {@code partitions}.
+     * 
+     * @param group
+     *            the consumer group.
+     * @param partitions
+     *            the partitions.
+     * @return the last offset of each partition, {@code -1} for the partitions that the {@code group} has never
+     *         committed an offset for.
+     * @throws IOException
+     *             if the offsets can't be read.
+     */
+    Map<Partition, Long> getLastCommits(String group, List<Partition> partitions) throws IOException;
+
+    /**
+     * Sets the last offset to {@code commit} of the {@code group} for the given {@code topic-partition}.
+     * 
+     * @param group
+     *            the consumer group.
+     * @param partition
+     *            the partition.
+     * @param commit
+     *            the commit offset.
+     * @param temp
+     *            If {@code temp == true}, the offset only takes effect once it is {@link #commit(Multimap)
+     *            committed}.
+     * @throws IOException
+     *             if the offset can't be written.
+     */
+    void setLastCommit(String group, Partition partition, long commit, boolean temp) throws IOException;
+
+    /**
+     * Deletes any temporary offsets of the {@code group} for the {@code partitions}, so that they aren't committed.
+     * 
+     * @param group
+     *            the consumer group.
+     * @param partitions
+     *            the partitions.
+     * @throws IOException
+     *             if the offsets can't be deleted.
+     */
+    void clearTempOffsets(String group, List<Partition> partitions) throws IOException;
+
+    /**
+     * Sets the last offsets of many consumer groups and partitions at once.
+     * 
+     * @param commits
+     *            the offsets to commit, keyed by consumer group and partition.
+     * @return true if the commit was successful, false otherwise.
+     * @throws IOException
+     *             if the offsets can't be written.
+     */
+    boolean setLastCommits(Table<String, Partition, Long> commits) throws IOException;
+
+    /**
+     * Commits any temporary offsets of every consumer group for each of its topics.
+     * 
+     * @param groupTopics
+     *            the topics to commit, keyed by consumer group.
+     * @return true if the commit was successful, false otherwise.
+     * @throws IOException
+     *             if the offsets can't be read or written.
+     */
+    boolean commit(Multimap<String, String> groupTopics) throws IOException;
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import com.conductor.kafka.Broker;
+
+/**
+ * Maps a Kafka {@link Broker} to the hosts that the {@link KafkaInputSplit}s of its partitions should be scheduled on,
+ * e.g. the NodeManager running on the broker's machine, if its host name differs from the one the broker registered
+ * in Zookeeper.
+ * 
+ * <p/>
+ * Implementations need a no-argument constructor, and get the job conf if they implement
+ * {@link org.apache.hadoop.conf.Configurable}.
+ * 
+ * @see KafkaInputFormat#setBrokerLocationResolver(org.apache.hadoop.mapreduce.Job, Class)
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public interface BrokerLocationResolver {
+
+    /**
+     * @param broker
+     *            the broker.
+     * @return the hosts that splits of {@code broker}'s partitions are local to, possibly none.
+     */
+    String[] getLocations(Broker broker);
+}
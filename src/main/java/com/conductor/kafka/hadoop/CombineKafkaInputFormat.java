@@ -0,0 +1,211 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.conductor.kafka.Broker;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A {@link KafkaInputFormat} that packs the offset ranges of a topic into {@link CombinedKafkaInputSplit}s of up to
+ * {@link #setCombineSplitSizeBytes(Job, long) a target size}, so that topics with lots of partitions, each with little
+ * new data, don't pay the start-up cost of a task for every few kilobytes of input.
+ * 
+ * <p/>
+ * Ranges are only combined with ranges on the same {@link Broker}, and each one is read by its own
+ * {@link KafkaRecordReader}, so the offsets of each partition are committed exactly as they would be by the
+ * {@link KafkaInputFormat}.
+ * 
+ * @see CombinedKafkaInputSplit
+ * @see CombinedKafkaRecordReader
+ * @see MultiFetchKafkaRecordReader
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class CombineKafkaInputFormat extends KafkaInputFormat {
+    private static final Logger LOG = LoggerFactory.getLogger(CombineKafkaInputFormat.class);
+
+    /**
+     * Default target size of a combined split, 128MB.
+     */
+    public static final long DEFAULT_COMBINE_SPLIT_SIZE_BYTES = 128 * 1024 * 1024; // 128MB
+    /**
+     * Default maximum number of partitions fetched by a single multi-fetch request.
+     */
+    public static final int DEFAULT_MAX_PARTITIONS_PER_MULTI_FETCH = 16;
+
+    @Override
+    public RecordReader<LongWritable, BytesWritable> createRecordReader(final InputSplit inputSplit,
+            final TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
+        if (isUseMultiFetch(taskAttemptContext.getConfiguration())) {
+            return new MultiFetchKafkaRecordReader();
+        }
+        return new CombinedKafkaRecordReader();
+    }
+
+    @Override
+    public List<InputSplit> getSplits(final JobContext context) throws IOException, InterruptedException {
+        // checkpoints are kept per task, which only works if each task reads a single split
+        checkState(getCheckpointDir(context.getConfiguration()) == null,
+                "Checkpointing is not supported for combined splits");
+        final List<InputSplit> combined = combine(super.getSplits(context),
+                getCombineSplitSizeBytes(context.getConfiguration()));
+        return orderSplits(context.getConfiguration(), combined);
+    }
+
+    /**
+     * Packs {@code splits} into {@link CombinedKafkaInputSplit}s of up to {@code maxSize} bytes, grouping them by
+     * {@link Broker}. A split that is larger than {@code maxSize} on its own gets a combined split to itself.
+     * 
+     * @param splits
+     *            the {@link KafkaInputSplit}s to combine.
+     * @param maxSize
+     *            the target size of each combined split.
+     * @return the combined splits.
+     */
+    @VisibleForTesting
+    static List<InputSplit> combine(final List<InputSplit> splits, final long maxSize) throws IOException,
+            InterruptedException {
+        // preserve the order in which we've first seen each broker, so planning is deterministic
+        final Map<Broker, List<KafkaInputSplit>> brokerSplits = Maps.newLinkedHashMap();
+        for (final InputSplit split : splits) {
+            final KafkaInputSplit kafkaSplit = (KafkaInputSplit) split;
+            final Broker broker = kafkaSplit.getPartition().getBroker();
+            if (!brokerSplits.containsKey(broker)) {
+                brokerSplits.put(broker, Lists.<KafkaInputSplit> newArrayList());
+            }
+            brokerSplits.get(broker).add(kafkaSplit);
+        }
+
+        final List<InputSplit> result = Lists.newArrayList();
+        for (final List<KafkaInputSplit> toCombine : brokerSplits.values()) {
+            List<KafkaInputSplit> current = Lists.newArrayList();
+            long currentSize = 0;
+            for (final KafkaInputSplit split : toCombine) {
+                if (!current.isEmpty() && currentSize + split.getLength() > maxSize) {
+                    result.add(new CombinedKafkaInputSplit(current));
+                    current = Lists.newArrayList();
+                    currentSize = 0;
+                }
+                current.add(split);
+                currentSize += split.getLength();
+            }
+            if (!current.isEmpty()) {
+                result.add(new CombinedKafkaInputSplit(current));
+            }
+        }
+        LOG.info(String.format("Combined %d Kafka splits into %d splits", splits.size(), result.size()));
+        return result;
+    }
+
+    /**
+     * Sets the target size of each {@link CombinedKafkaInputSplit}. Offset ranges on the same broker are packed into a
+     * single split until adding the next range would exceed this size.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param combineSize
+     *            the target number of bytes per combined split.
+     */
+    public static void setCombineSplitSizeBytes(final Job job, final long combineSize) {
+        checkArgument(combineSize > 0, "combineSize must be positive: %s", combineSize);
+        job.getConfiguration().setLong("kafka.combine.split.size.bytes", combineSize);
+    }
+
+    /**
+     * Gets the target combined split size set by {@link #setCombineSplitSizeBytes(Job, long)}, defaulting to
+     * {@link #DEFAULT_COMBINE_SPLIT_SIZE_BYTES} if it has not been set.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the target number of bytes per combined split.
+     */
+    public static long getCombineSplitSizeBytes(final Configuration conf) {
+        return conf.getLong("kafka.combine.split.size.bytes", DEFAULT_COMBINE_SPLIT_SIZE_BYTES);
+    }
+
+    /**
+     * Reads combined splits with a {@link MultiFetchKafkaRecordReader}, which fetches from all of the partitions of a
+     * split with batched multi-fetch requests, rather than with a {@link CombinedKafkaRecordReader}, which reads one
+     * partition after the other.
+     * <p/>
+     * This cuts the number of requests to each broker considerably when the combined splits are made up of many
+     * small ranges, but it holds a fetch-size buffer for each partition of a request in memory. The fetch size is
+     * fixed; neither adaptive fetch sizing nor prefetching applies to multi-fetch requests.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param useMultiFetch
+     *            whether to read combined splits with multi-fetch requests.
+     * @see #setMaxPartitionsPerMultiFetch(Job, int)
+     */
+    public static void setUseMultiFetch(final Job job, final boolean useMultiFetch) {
+        job.getConfiguration().setBoolean("kafka.combine.multifetch", useMultiFetch);
+    }
+
+    /**
+     * Gets whether combined splits are read with multi-fetch requests, as set by
+     * {@link #setUseMultiFetch(Job, boolean)}, {@code false} by default.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return {@code true} if combined splits are read with multi-fetch requests.
+     */
+    public static boolean isUseMultiFetch(final Configuration conf) {
+        return conf.getBoolean("kafka.combine.multifetch", false);
+    }
+
+    /**
+     * Limits the number of partitions fetched by a single multi-fetch request. Each fetched partition may return up to
+     * {@link KafkaInputFormat#getKafkaFetchSizeBytes(Configuration) the fetch size}, so this also bounds the memory
+     * used by each request.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param maxPartitions
+     *            the maximum number of partitions per multi-fetch request.
+     */
+    public static void setMaxPartitionsPerMultiFetch(final Job job, final int maxPartitions) {
+        checkArgument(maxPartitions > 0, "maxPartitions must be positive: %s", maxPartitions);
+        job.getConfiguration().setInt("kafka.multifetch.max.partitions", maxPartitions);
+    }
+
+    /**
+     * Gets the maximum number of partitions per multi-fetch request set by
+     * {@link #setMaxPartitionsPerMultiFetch(Job, int)}, defaulting to {@link #DEFAULT_MAX_PARTITIONS_PER_MULTI_FETCH}.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the maximum number of partitions per multi-fetch request.
+     */
+    public static int getMaxPartitionsPerMultiFetch(final Configuration conf) {
+        return conf.getInt("kafka.multifetch.max.partitions", DEFAULT_MAX_PARTITIONS_PER_MULTI_FETCH);
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+import com.conductor.kafka.Broker;
+import com.google.common.collect.Lists;
+
+/**
+ * An {@link InputSplit} made up of several {@link KafkaInputSplit}s, all of which are read from the same
+ * {@link Broker}.
+ * 
+ * @see CombineKafkaInputFormat
+ * @see CombinedKafkaRecordReader
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class CombinedKafkaInputSplit extends InputSplit implements Writable {
+
+    private List<KafkaInputSplit> splits = Lists.newArrayList();
+
+    /**
+     * The {@link Writable} constructor; use {@link #CombinedKafkaInputSplit(List)}.
+     */
+    public CombinedKafkaInputSplit() {
+    }
+
+    public CombinedKafkaInputSplit(final List<KafkaInputSplit> splits) {
+        this.splits = Lists.newArrayList(splits);
+    }
+
+    @Override
+    public void readFields(final DataInput in) throws IOException {
+        final int size = in.readInt();
+        this.splits = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; ++i) {
+            final KafkaInputSplit split = new KafkaInputSplit();
+            split.readFields(in);
+            this.splits.add(split);
+        }
+    }
+
+    @Override
+    public void write(final DataOutput out) throws IOException {
+        out.writeInt(splits.size());
+        for (final KafkaInputSplit split : splits) {
+            split.write(out);
+        }
+    }
+
+    @Override
+    public long getLength() throws IOException, InterruptedException {
+        long length = 0;
+        for (final KafkaInputSplit split : splits) {
+            length += split.getLength();
+        }
+        return length;
+    }
+
+    /**
+     * Returns the locations of the {@link Broker} that all of the combined splits are read from.
+     * 
+     * <p/>
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getLocations() throws IOException, InterruptedException {
+        if (splits.isEmpty()) {
+            return new String[0];
+        }
+        // the splits all share a broker
+        return splits.get(0).getLocations();
+    }
+
+    /**
+     * @return the {@link Broker} that all of the combined splits are read from.
+     */
+    public Broker getBroker() {
+        return splits.get(0).getPartition().getBroker();
+    }
+
+    /**
+     * @return the combined splits, in the order they will be read.
+     */
+    public List<KafkaInputSplit> getSplits() {
+        return Collections.unmodifiableList(splits);
+    }
+
+    @Override
+    public String toString() {
+        return splits.toString();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof CombinedKafkaInputSplit))
+            return false;
+
+        final CombinedKafkaInputSplit that = (CombinedKafkaInputSplit) o;
+
+        return splits.equals(that.splits);
+    }
+
+    @Override
+    public int hashCode() {
+        return splits.hashCode();
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * A record reader that reads each {@link KafkaInputSplit} of a {@link CombinedKafkaInputSplit} in turn, with a
+ * {@link KafkaRecordReader} per split.
+ * 
+ * <p/>
+ * Each {@link KafkaRecordReader} is closed as soon as its split is exhausted, so partition committers commit their
+ * offsets exactly as they would if they had been read in separate tasks.
+ * 
+ * @see CombineKafkaInputFormat
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class CombinedKafkaRecordReader extends RecordReader<LongWritable, BytesWritable> {
+
+    private TaskAttemptContext context;
+    private List<KafkaInputSplit> splits;
+    private long totalLength;
+    private long completedLength;
+    private int splitIndex;
+    private KafkaRecordReader currentReader;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void initialize(final InputSplit split, final TaskAttemptContext context) throws IOException,
+            InterruptedException {
+        if (!(split instanceof CombinedKafkaInputSplit)) {
+            throw new IllegalArgumentException("Expected an InputSplit of type CombinedKafkaInputSplit but got "
+                    + split.getClass());
+        }
+        this.context = context;
+        this.splits = ((CombinedKafkaInputSplit) split).getSplits();
+        this.totalLength = split.getLength();
+        this.completedLength = 0;
+        this.splitIndex = 0;
+        this.currentReader = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+        while (true) {
+            if (currentReader != null) {
+                if (currentReader.nextKeyValue()) {
+                    return true;
+                }
+                // done with this split, so let it commit before moving on to the next one
+                closeCurrentReader();
+            }
+            if (splitIndex >= splits.size()) {
+                return false;
+            }
+            final KafkaInputSplit split = splits.get(splitIndex++);
+            currentReader = getRecordReader();
+            currentReader.initialize(split, context);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LongWritable getCurrentKey() throws IOException, InterruptedException {
+        return currentReader != null ? currentReader.getCurrentKey() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BytesWritable getCurrentValue() throws IOException, InterruptedException {
+        return currentReader != null ? currentReader.getCurrentValue() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+        if (totalLength == 0) {
+            return splitIndex >= splits.size() && currentReader == null ? 1.0f : 0.0f;
+        }
+        float currentLength = 0;
+        if (currentReader != null) {
+            currentLength = currentReader.getProgress() * length(currentReader.getSplit());
+        }
+        return Math.min(1.0f, (completedLength + currentLength) / totalLength);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        closeCurrentReader();
+    }
+
+    private void closeCurrentReader() throws IOException {
+        if (currentReader != null) {
+            completedLength += length(currentReader.getSplit());
+            currentReader.close();
+            currentReader = null;
+        }
+    }
+
+    private static long length(final KafkaInputSplit split) {
+        return split.getEndOffset() - split.getStartOffset();
+    }
+
+    /*
+     * We make the following methods visible for testing so that we can mock these components out in unit tests
+     */
+
+    @VisibleForTesting
+    KafkaRecordReader getRecordReader() {
+        return new KafkaRecordReader();
+    }
+
+    @VisibleForTesting
+    KafkaRecordReader getCurrentReader() {
+        return currentReader;
+    }
+}
@@ -0,0 +1,326 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.conductor.kafka.OffsetStore;
+import com.conductor.kafka.Partition;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.*;
+
+/**
+ * An {@link OffsetStore} that keeps all of the offsets of a consumer group in a single snapshot file on a
+ * {@link FileSystem}, usually HDFS, in the {@link KafkaInputFormat#setOffsetStoreDir(org.apache.hadoop.mapreduce.Job,
+ * Path) offset store directory}. Planning a job then reads one file per group, rather than a znode per partition.
+ * 
+ * <p/>
+ * The snapshots of a group are numbered, {@code <dir>/<group>/<version>}. Every change writes the next version to a
+ * temporary file and renames it into place, which either succeeds as a whole or fails because another writer got
+ * there first, so readers always see a complete snapshot, and concurrent writers don't overwrite each other. The
+ * previous snapshot is kept in case the latest one has to be rolled back by hand.
+ * 
+ * <p/>
+ * Temporary offsets are small files of their own, {@code <dir>/<group>/_temp/<topic>/<broker partition>}, which
+ * {@link #commit(Multimap) committing} merges into a new snapshot. Jobs that commit their offsets with the
+ * {@link KafkaOffsetOutputCommitter} skip those, and write a single snapshot per group.
+ * 
+ * <p/>
+ * The offsets of a group that has been using Zookeeper can be {@link #copyFrom(OffsetStore, String, List) copied}
+ * over before switching.
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class HdfsOffsetStore implements OffsetStore {
+    private static final Logger LOG = LoggerFactory.getLogger(HdfsOffsetStore.class);
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String TEMP_DIR = "_temp";
+    private static final int SNAPSHOTS_TO_KEEP = 2;
+
+    private final FileSystem fs;
+    private final Path dir;
+
+    @VisibleForTesting
+    HdfsOffsetStore(final FileSystem fs, final Path dir) {
+        this.fs = fs;
+        this.dir = dir;
+    }
+
+    /**
+     * Gets the offset store of the job configured by {@code conf}.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the offset store, or {@code null} if the job keeps its offsets in Zookeeper.
+     * @throws IOException
+     *             if the file system of the offset store directory can't be resolved.
+     */
+    public static HdfsOffsetStore get(final Configuration conf) throws IOException {
+        final Path dir = KafkaInputFormat.getOffsetStoreDir(conf);
+        return dir != null ? new HdfsOffsetStore(dir.getFileSystem(conf), dir) : null;
+    }
+
+    @Override
+    public long getLastCommit(final String group, final Partition partition) throws IOException {
+        return getLastCommits(group, ImmutableList.of(partition)).get(partition);
+    }
+
+    /**
+     * Reads the latest snapshot of the {@code group}.
+     * 
+     * <p/>
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<Partition, Long> getLastCommits(final String group, final List<Partition> partitions)
+            throws IOException {
+        final long version = getLatestVersion(group);
+        final Table<String, String, Long> snapshot = version >= 0 ? readSnapshot(group, version) : null;
+        final Map<Partition, Long> commits = Maps.newLinkedHashMap();
+        for (final Partition partition : partitions) {
+            final Long offset = snapshot != null ? snapshot.get(partition.getTopic(), partition.getBrokerPartition())
+                    : null;
+            commits.put(partition, offset != null ? offset : -1L);
+        }
+        return commits;
+    }
+
+    @Override
+    public void setLastCommit(final String group, final Partition partition, final long commit, final boolean temp)
+            throws IOException {
+        if (temp) {
+            final FSDataOutputStream out = fs.create(getTempOffsetPath(group, partition), true);
+            try {
+                out.writeLong(commit);
+            } finally {
+                out.close();
+            }
+        } else {
+            final Table<String, String, Long> offsets = HashBasedTable.create();
+            offsets.put(partition.getTopic(), partition.getBrokerPartition(), commit);
+            if (!update(group, offsets)) {
+                throw new IOException(String.format("Could not commit offset %d of %s for %s", commit, partition,
+                        group));
+            }
+        }
+    }
+
+    @Override
+    public void clearTempOffsets(final String group, final List<Partition> partitions) throws IOException {
+        for (final Partition partition : partitions) {
+            fs.delete(getTempOffsetPath(group, partition), false);
+        }
+    }
+
+    /**
+     * Writes a single snapshot per group. The offsets of each group are set atomically, but not those of different
+     * groups.
+     * 
+     * <p/>
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean setLastCommits(final Table<String, Partition, Long> commits) throws IOException {
+        boolean success = true;
+        for (final Map.Entry<String, Map<Partition, Long>> group : commits.rowMap().entrySet()) {
+            final Table<String, String, Long> offsets = HashBasedTable.create();
+            for (final Map.Entry<Partition, Long> commit : group.getValue().entrySet()) {
+                offsets.put(commit.getKey().getTopic(), commit.getKey().getBrokerPartition(), commit.getValue());
+            }
+            success &= update(group.getKey(), offsets);
+        }
+        return success;
+    }
+
+    /**
+     * Merges the temporary offsets of each group into a single new snapshot of the group, and then deletes them. The
+     * offsets of each group are committed atomically, but not those of different groups.
+     * 
+     * <p/>
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean commit(final Multimap<String, String> groupTopics) throws IOException {
+        boolean success = true;
+        for (final Map.Entry<String, Collection<String>> group : groupTopics.asMap().entrySet()) {
+            final Table<String, String, Long> offsets = HashBasedTable.create();
+            final List<Path> tempOffsets = Lists.newArrayList();
+            for (final String topic : group.getValue()) {
+                final Path topicDir = new Path(new Path(new Path(dir, group.getKey()), TEMP_DIR), topic);
+                if (!fs.exists(topicDir)) {
+                    continue;
+                }
+                for (final FileStatus status : fs.listStatus(topicDir)) {
+                    final FSDataInputStream in = fs.open(status.getPath());
+                    try {
+                        offsets.put(topic, status.getPath().getName(), in.readLong());
+                    } finally {
+                        in.close();
+                    }
+                    tempOffsets.add(status.getPath());
+                }
+            }
+            if (offsets.isEmpty()) {
+                continue;
+            }
+            if (update(group.getKey(), offsets)) {
+                for (final Path tempOffset : tempOffsets) {
+                    fs.delete(tempOffset, false);
+                }
+            } else {
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Copies the offsets of the {@code group} from another store, e.g. from Zookeeper before switching a group over to
+     * this store. Partitions that the {@code group} has never committed are left out.
+     * 
+     * @param source
+     *            the store to copy the offsets from.
+     * @param group
+     *            the consumer group.
+     * @param partitions
+     *            the partitions to copy the offsets of.
+     * @return true if the copy was successful, false otherwise.
+     * @throws IOException
+     *             if the offsets can't be read or written.
+     */
+    public boolean copyFrom(final OffsetStore source, final String group, final List<Partition> partitions)
+            throws IOException {
+        final Table<String, Partition, Long> commits = HashBasedTable.create();
+        for (final Map.Entry<Partition, Long> commit : source.getLastCommits(group, partitions).entrySet()) {
+            if (commit.getValue() >= 0) {
+                commits.put(group, commit.getKey(), commit.getValue());
+            }
+        }
+        return setLastCommits(commits);
+    }
+
+    /**
+     * Nothing to close; the {@link FileSystem} is shared.
+     */
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Writes a new snapshot of the {@code group} with {@code offsets} merged into the latest one.
+     * 
+     * @return true if the new snapshot is in place, false if another writer has written a snapshot in the meantime.
+     */
+    private boolean update(final String group, final Table<String, String, Long> offsets) throws IOException {
+        final long version = getLatestVersion(group);
+        final Table<String, String, Long> snapshot = version >= 0 ? readSnapshot(group, version) : TreeBasedTable
+                .<String, String, Long> create();
+        snapshot.putAll(offsets);
+
+        final Path groupDir = new Path(dir, group);
+        final Path snapshotPath = new Path(groupDir, Long.toString(version + 1));
+        final Path tempPath = new Path(groupDir, "_" + (version + 1) + "." + System.nanoTime());
+        final FSDataOutputStream out = fs.create(tempPath, false);
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(snapshot.rowKeySet().size());
+            for (final Map.Entry<String, Map<String, Long>> topic : snapshot.rowMap().entrySet()) {
+                out.writeUTF(topic.getKey());
+                out.writeInt(topic.getValue().size());
+                for (final Map.Entry<String, Long> offset : topic.getValue().entrySet()) {
+                    out.writeUTF(offset.getKey());
+                    out.writeLong(offset.getValue());
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (fs.exists(snapshotPath) || !fs.rename(tempPath, snapshotPath)) {
+            fs.delete(tempPath, false);
+            LOG.error(String.format("Could not write snapshot %s, another writer got there first", snapshotPath));
+            return false;
+        }
+        LOG.debug(String.format("Wrote %d offsets to %s", snapshot.size(), snapshotPath));
+        for (final long old : getVersions(group)) {
+            if (old <= version + 1 - SNAPSHOTS_TO_KEEP) {
+                fs.delete(new Path(groupDir, Long.toString(old)), false);
+            }
+        }
+        return true;
+    }
+
+    @VisibleForTesting
+    Table<String, String, Long> readSnapshot(final String group, final long version) throws IOException {
+        final Path path = new Path(new Path(dir, group), Long.toString(version));
+        final Table<String, String, Long> snapshot = TreeBasedTable.create();
+        final FSDataInputStream in = fs.open(path);
+        try {
+            final int format = in.readInt();
+            if (format != FORMAT_VERSION) {
+                throw new IOException(String.format("Unknown format %d of %s", format, path));
+            }
+            for (int topics = in.readInt(); topics > 0; --topics) {
+                final String topic = in.readUTF();
+                for (int offsets = in.readInt(); offsets > 0; --offsets) {
+                    snapshot.put(topic, in.readUTF(), in.readLong());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return snapshot;
+    }
+
+    @VisibleForTesting
+    long getLatestVersion(final String group) throws IOException {
+        final List<Long> versions = getVersions(group);
+        return versions.isEmpty() ? -1 : Ordering.natural().max(versions);
+    }
+
+    private List<Long> getVersions(final String group) throws IOException {
+        final Path groupDir = new Path(dir, group);
+        final List<Long> versions = Lists.newArrayList();
+        if (!fs.exists(groupDir)) {
+            return versions;
+        }
+        for (final FileStatus status : fs.listStatus(groupDir)) {
+            final String name = status.getPath().getName();
+            // skip the temporary offsets and snapshots
+            if (!status.isDirectory() && !name.startsWith("_")) {
+                versions.add(Long.parseLong(name));
+            }
+        }
+        return versions;
+    }
+
+    @VisibleForTesting
+    Path getTempOffsetPath(final String group, final Partition partition) {
+        return new Path(new Path(new Path(new Path(dir, group), TEMP_DIR), partition.getTopic()),
+                partition.getBrokerPartition());
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.*;
+
+/**
+ * An {@link InputFormat} that creates the same splits as the {@link KafkaInputFormat}, but reads them with a
+ * {@link KafkaBatchRecordReader}, which hands the mapper whole message sets. Use it with a {@link KafkaBatchMapper}.
+ * 
+ * <p/>
+ * All of the {@link KafkaInputFormat} settings apply to this input format as well.
+ * 
+ * @see KafkaBatchMapper
+ * @see KafkaMessageBatch
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class KafkaBatchInputFormat extends InputFormat<LongWritable, KafkaMessageBatch> {
+
+    @Override
+    public List<InputSplit> getSplits(final JobContext context) throws IOException, InterruptedException {
+        return new KafkaInputFormat().getSplits(context);
+    }
+
+    @Override
+    public RecordReader<LongWritable, KafkaMessageBatch> createRecordReader(final InputSplit inputSplit,
+            final TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
+        return new KafkaBatchRecordReader();
+    }
+}
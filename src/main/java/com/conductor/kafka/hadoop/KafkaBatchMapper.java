@@ -0,0 +1,61 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.Mapper;
+
+/**
+ * A {@link Mapper} that consumes Kafka messages a fetched message set at a time, rather than a message at a time. For
+ * topics with small messages, this saves the per-message dispatch and copy of the {@link KafkaInputFormat}.
+ * 
+ * <p/>
+ * Use it with the {@link KafkaBatchInputFormat}. The {@link MultipleKafkaInputFormat} and the {@link KafkaJobBuilder}
+ * pick the batch input format for you whenever a topic is mapped by a {@link KafkaBatchMapper}.
+ * 
+ * @see KafkaMessageBatch
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public abstract class KafkaBatchMapper<KEYOUT, VALUEOUT> extends
+        Mapper<LongWritable, KafkaMessageBatch, KEYOUT, VALUEOUT> {
+
+    /**
+     * Maps a batch of messages. Note that the batch is reused for the next call, see {@link KafkaMessageBatch}.
+     * 
+     * @param batch
+     *            the messages.
+     * @param context
+     *            the task context.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected abstract void mapBatch(final KafkaMessageBatch batch, final Context context) throws IOException,
+            InterruptedException;
+
+    /**
+     * Delegates to {@link #mapBatch(KafkaMessageBatch, Context)}.
+     * 
+     * <p/>
+     * {@inheritDoc}
+     */
+    @Override
+    protected final void map(final LongWritable key, final KafkaMessageBatch value, final Context context)
+            throws IOException, InterruptedException {
+        mapBatch(value, context);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.io.IOException;
+
+import kafka.message.MessageAndOffset;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * A record reader that hands out the messages of a {@link KafkaInputSplit} one fetched message set at a time, as a
+ * {@link KafkaMessageBatch}, rather than one message at a time.
+ * 
+ * <p/>
+ * The key is the offset of the last message of the batch, i.e. the offset of the first message of the next batch.
+ * Fetching, prefetching and offset commits work exactly as they do for the {@link KafkaRecordReader}.
+ * 
+ * @see KafkaBatchInputFormat
+ * @see KafkaBatchMapper
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class KafkaBatchRecordReader extends RecordReader<LongWritable, KafkaMessageBatch> {
+
+    private final KafkaRecordReader reader;
+    private final LongWritable key = new LongWritable();
+    private final KafkaMessageBatch batch = new KafkaMessageBatch();
+
+    public KafkaBatchRecordReader() {
+        this(new KafkaRecordReader());
+    }
+
+    @VisibleForTesting
+    KafkaBatchRecordReader(final KafkaRecordReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void initialize(final InputSplit split, final TaskAttemptContext context) throws IOException,
+            InterruptedException {
+        reader.initialize(split, context);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+        batch.clear(reader.getSplit().getPartition());
+        MessageAndOffset msg = reader.nextMessage();
+        while (msg != null) {
+            batch.add(msg.offset(), msg.message().payload());
+            if (!reader.canCallNext()) {
+                // that's it for the current message set, the next call fetches
+                break;
+            }
+            msg = reader.nextMessage();
+        }
+        if (batch.isEmpty()) {
+            return false;
+        }
+        key.set(batch.getOffset(batch.size() - 1));
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LongWritable getCurrentKey() throws IOException, InterruptedException {
+        return key;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public KafkaMessageBatch getCurrentValue() throws IOException, InterruptedException {
+        return batch;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+        return reader.getProgress();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
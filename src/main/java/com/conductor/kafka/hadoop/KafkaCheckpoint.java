@@ -0,0 +1,131 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * The progress of a map task through its {@link KafkaInputSplit}, kept in the
+ * {@link KafkaInputFormat#setCheckpointDir(org.apache.hadoop.mapreduce.Job, Path) checkpoint directory} so that a
+ * retried attempt of the task resumes where the failed attempt left off, rather than re-reading the whole split.
+ * 
+ * <p/>
+ * Only the mapper knows which of its output is safe, so it's up to the mapper to {@link #commit(long) commit} an offset
+ * once it has <em>flushed</em> the output of every message before that offset to its final destination (output that
+ * is written through the job's {@link org.apache.hadoop.mapreduce.OutputFormat} is discarded along with the failed
+ * attempt, so it doesn't count). For example, a mapper that writes files of 100,000 messages straight to HDFS would,
+ * after closing each file:
+ * 
+ * <pre>
+ * KafkaCheckpoint.get(context).commit(key.get());
+ * </pre>
+ * 
+ * where {@code key} is the key of the last message in the file, i.e. the offset of the next message. A new attempt of
+ * the task then starts reading at that offset, so no message is read twice or skipped, as long as the mapper commits
+ * right after each flush (and flushes idempotently, in case an attempt dies in between).
+ * 
+ * <p/>
+ * Checkpoints are kept per task, so they work for splits that are read by a single {@link KafkaRecordReader}, which
+ * rules out the {@link CombineKafkaInputFormat}.
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class KafkaCheckpoint {
+    private static final Logger LOG = LoggerFactory.getLogger(KafkaCheckpoint.class);
+
+    private final FileSystem fs;
+    private final Path dir;
+
+    @VisibleForTesting
+    KafkaCheckpoint(final FileSystem fs, final Path dir) {
+        this.fs = fs;
+        this.dir = dir;
+    }
+
+    /**
+     * Gets the checkpoint of the task that {@code context} belongs to.
+     * 
+     * @param context
+     *            the context of the map task.
+     * @return the checkpoint of the task.
+     * @throws IOException
+     *             if the checkpoint directory can't be resolved.
+     * @throws IllegalStateException
+     *             if checkpointing is not enabled for the job.
+     */
+    public static KafkaCheckpoint get(final TaskAttemptContext context) throws IOException {
+        final Configuration conf = context.getConfiguration();
+        final Path checkpointDir = KafkaInputFormat.getCheckpointDir(conf);
+        if (checkpointDir == null) {
+            throw new IllegalStateException("Checkpointing is not enabled; see KafkaInputFormat.setCheckpointDir()");
+        }
+        final Path dir = new Path(checkpointDir, context.getTaskAttemptID().getTaskID().toString());
+        return new KafkaCheckpoint(dir.getFileSystem(conf), dir);
+    }
+
+    /**
+     * Gets the offset that the last attempt of the task has committed.
+     * 
+     * @return the committed offset, or {@code -1} if nothing has been committed.
+     * @throws IOException
+     *             if the checkpoint can't be read.
+     */
+    public long getOffset() throws IOException {
+        if (!fs.exists(dir)) {
+            return -1;
+        }
+        long offset = -1;
+        for (final FileStatus status : fs.listStatus(dir)) {
+            offset = Math.max(offset, Long.parseLong(status.getPath().getName()));
+        }
+        return offset;
+    }
+
+    /**
+     * Commits {@code offset}, so that a retried attempt of the task starts reading at {@code offset}. Each checkpoint
+     * is an empty file named after its offset, which is created atomically, so an attempt that dies while committing
+     * leaves the previous checkpoint in place.
+     * 
+     * @param offset
+     *            the offset of the first message whose output has not been flushed.
+     * @throws IOException
+     *             if the checkpoint can't be written.
+     */
+    public void commit(final long offset) throws IOException {
+        final long previous = getOffset();
+        if (offset <= previous) {
+            return;
+        }
+        fs.create(new Path(dir, Long.toString(offset)), false).close();
+        if (previous >= 0) {
+            fs.delete(new Path(dir, Long.toString(previous)), false);
+        }
+        LOG.debug(String.format("Committed offset %d to %s", offset, dir));
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+/**
+ * Hadoop counters maintained by the {@link KafkaRecordReader} and the {@link MultiFetchKafkaRecordReader}.
+ * 
+ * <p/>
+ * Comparing {@link #FETCH_WAIT_MS} to {@link #MAPPER_MS} tells whether a job is held up by the brokers or by the
+ * mappers.
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public enum KafkaCounter {
+    /**
+     * Number of times a fetch was retried with a larger fetch size because it didn't hold a single complete message.
+     */
+    FETCH_SIZE_ESCALATIONS,
+    /**
+     * Number of times the adaptive fetch size was raised because a fetch came back full.
+     */
+    FETCH_SIZE_INCREASES,
+    /**
+     * Number of times the adaptive fetch size was lowered because a fetch came back sparse.
+     */
+    FETCH_SIZE_DECREASES,
+    /**
+     * Number of times a failed fetch was retried after reconnecting to the broker.
+     */
+    FETCH_RETRIES,
+    /**
+     * Number of fetch requests sent to the brokers.
+     */
+    FETCHES,
+    /**
+     * Number of fetches that came back without any data.
+     */
+    EMPTY_FETCHES,
+    /**
+     * Number of fetches that came back with an offset out of range error.
+     */
+    OFFSETS_OUT_OF_RANGE,
+    /**
+     * Number of bytes fetched from the brokers.
+     */
+    BYTES_FETCHED,
+    /**
+     * Number of messages handed to the mapper.
+     */
+    MESSAGES_READ,
+    /**
+     * Milliseconds the mapper spent waiting on the reader for data to arrive from the brokers.
+     */
+    FETCH_WAIT_MS,
+    /**
+     * Milliseconds spent outside of the reader, i.e. in the mapper, between reading one message and the next.
+     */
+    MAPPER_MS;
+
+    /**
+     * @return whether the counter is also rolled up per topic, if the job
+     *         {@link MultipleKafkaInputFormat#setTopicCounters(org.apache.hadoop.mapreduce.Job, boolean) asks for it}.
+     */
+    public boolean isRolledUpPerTopic() {
+        return this == BYTES_FETCHED || this == MESSAGES_READ;
+    }
+
+    /**
+     * The {@link #isRolledUpPerTopic() rolled up} counters of each topic go to a counter group of their own, which
+     * tells the topics of a {@link MultipleKafkaInputFormat} job apart.
+     * 
+     * @param topic
+     *            the topic.
+     * @return the name of the counter group of {@code topic}.
+     */
+    public static String getTopicGroup(final String topic) {
+        return "Kafka topic " + topic;
+    }
+}
@@ -14,27 +14,42 @@
 
 package com.conductor.kafka.hadoop;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import kafka.api.OffsetRequest;
 import kafka.consumer.SimpleConsumer;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.conductor.hadoop.TaggedInputSplit;
 import com.conductor.kafka.Broker;
+import com.conductor.kafka.OffsetStore;
 import com.conductor.kafka.Partition;
+import com.conductor.kafka.hadoop.MultipleKafkaInputFormat.TopicConf;
 import com.conductor.kafka.zk.ZkUtils;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Doubles;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * An {@link InputFormat} that splits up Kafka {@link Broker}-{@link Partition}s further into a set of offsets.
@@ -84,6 +99,10 @@ public class KafkaInputFormat extends InputFormat<LongWritable, BytesWritable> {
      * Default Zookeeper root, '/'.
      */
     public static final String DEFAULT_ZK_ROOT = "/";
+    /**
+     * Default time that broker and topic metadata read from Zookeeper are cached for, 1 minute.
+     */
+    public static final long DEFAULT_ZK_METADATA_CACHE_TTL_MS = TimeUnit.MINUTES.toMillis(1);
     /**
      * Default maximum number of partitions per split.
      */
@@ -92,6 +111,54 @@ public class KafkaInputFormat extends InputFormat<LongWritable, BytesWritable> {
      * Default timestamp to include
      */
     public static final long DEFAULT_INCLUDE_OFFSETS_AFTER_TIMESTAMP = 0;
+    /**
+     * Default maximum number of bytes read from a partition per run, {@link Long#MAX_VALUE} (no limit).
+     */
+    public static final long DEFAULT_MAX_BYTES_PER_PARTITION = Long.MAX_VALUE;
+    /**
+     * Default maximum number of bytes read by a job, {@link Long#MAX_VALUE} (no limit).
+     */
+    public static final long DEFAULT_MAX_BYTES_PER_RUN = Long.MAX_VALUE;
+    /**
+     * Default prefetch queue depth, {@code 0} (prefetching disabled).
+     */
+    public static final int DEFAULT_PREFETCH_QUEUE_DEPTH = 0;
+    /**
+     * Default maximum number of prefetched bytes held in memory, 64MB.
+     */
+    public static final long DEFAULT_PREFETCH_MAX_BYTES = 64 * 1024 * 1024; // 64MB
+    /**
+     * Default maximum split size, {@link Long#MAX_VALUE} (splits are only cut at log segment boundaries).
+     */
+    public static final long DEFAULT_MAX_SPLIT_SIZE_BYTES = Long.MAX_VALUE;
+    /**
+     * Default minimum size of a split sized by {@link #setTargetTaskDurationMs(Job, long) duration}, 16MB.
+     */
+    public static final long DEFAULT_MIN_SPLIT_SIZE_BYTES = 16 * 1024 * 1024; // 16MB
+    /**
+     * Default lower bound of an adaptive fetch size, 64KB.
+     */
+    public static final int DEFAULT_MIN_FETCH_SIZE_BYTES = 64 * 1024; // 64KB
+    /**
+     * Default upper bound of an adaptive fetch size, 32MB.
+     */
+    public static final int DEFAULT_MAX_FETCH_SIZE_BYTES = 32 * 1024 * 1024; // 32MB
+    /**
+     * Default number of times a failed fetch is retried, 3.
+     */
+    public static final int DEFAULT_FETCH_MAX_RETRIES = 3;
+    /**
+     * Default backoff before the first retry of a failed fetch, 1 second.
+     */
+    public static final long DEFAULT_FETCH_RETRY_BACKOFF_MS = TimeUnit.SECONDS.toMillis(1);
+    /**
+     * Default maximum number of threads that query the brokers while planning the splits of a job, 16.
+     */
+    public static final int DEFAULT_PLANNING_THREADS = 16;
+    /**
+     * Default time the brokers get to answer the offset requests of the split planning, 2 minutes.
+     */
+    public static final long DEFAULT_PLANNING_BROKER_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
 
     @Override
     public RecordReader<LongWritable, BytesWritable> createRecordReader(final InputSplit inputSplit,
@@ -104,7 +171,7 @@ public class KafkaInputFormat extends InputFormat<LongWritable, BytesWritable> {
         final Configuration conf = context.getConfiguration();
         final String topic = getTopic(conf);
         final String group = getConsumerGroup(conf);
-        return getInputSplits(conf, topic, group);
+        return orderSplits(conf, getInputSplits(conf, topic, group));
     }
 
     /**
@@ -164,41 +231,650 @@ public class KafkaInputFormat extends InputFormat<LongWritable, BytesWritable> {
      */
     List<InputSplit> getInputSplits(final Configuration conf, final String topic, final String group)
             throws IOException {
-        final List<InputSplit> splits = Lists.newArrayList();
+        return getInputSplits(conf, Collections.singletonList(topic), Collections.singletonList(group)).get(0);
+    }
+
+    /**
+     * Gets the input splits of several topics in a single pass, filtering out any {@link InputSplit}s already consumed
+     * by the consumer group of each topic. All of the topics share one Zookeeper client, and one connection to each
+     * broker, which queries the partitions of all topics on that broker.
+     * 
+     * @param conf
+     *            the job configuration.
+     * @param topics
+     *            the topics.
+     * @param groups
+     *            the consumer group of each topic.
+     * @return the input splits of each topic, in the same order as {@code topics}.
+     * @throws IOException
+     */
+    List<List<InputSplit>> getInputSplits(final Configuration conf, final List<String> topics,
+            final List<String> groups) throws IOException {
+        return getInputSplits(conf, topics, groups, Collections.nCopies(topics.size(), 1.0));
+    }
+
+    /**
+     * Gets the input splits of several topics in a single pass, like
+     * {@link #getInputSplits(Configuration, List, List)}, sharing the {@link #getMaxBytesPerRun(Configuration) byte
+     * budget of the run} between the topics by their {@code weights}.
+     * 
+     * @param conf
+     *            the job configuration.
+     * @param topics
+     *            the topics.
+     * @param groups
+     *            the consumer group of each topic.
+     * @param weights
+     *            the weight of each topic.
+     * @return the input splits of each topic, in the same order as {@code topics}.
+     * @throws IOException
+     */
+    List<List<InputSplit>> getInputSplits(final Configuration conf, final List<String> topics,
+            final List<String> groups, final List<Double> weights) throws IOException {
         final ZkUtils zk = getZk(conf);
-        final Map<Broker, SimpleConsumer> consumers = Maps.newHashMap();
         try {
-            for (final Partition partition : zk.getPartitions(topic)) {
+            return getInputSplits(zk, conf, topics, groups, weights);
+        } finally {
+            IOUtils.closeQuietly(zk);
+        }
+    }
 
-                // cache the consumer connections - each partition will make use of each broker consumer
-                final Broker broker = partition.getBroker();
-                if (!consumers.containsKey(broker)) {
-                    consumers.put(broker, getConsumer(broker));
-                }
+    /**
+     * Like {@link #getInputSplits(Configuration, List, List, List)}, with a Zookeeper client that the caller owns.
+     * 
+     * @param zk
+     *            the Zookeeper client to read the partitions and offsets with.
+     * @param conf
+     *            the job configuration.
+     * @param topics
+     *            the topics.
+     * @param groups
+     *            the consumer group of each topic.
+     * @param weights
+     *            the weight of each topic.
+     * @return the input splits of each topic, in the same order as {@code topics}.
+     * @throws IOException
+     */
+    List<List<InputSplit>> getInputSplits(final ZkUtils zk, final Configuration conf, final List<String> topics,
+            final List<String> groups, final List<Double> weights) throws IOException {
+        checkArgument(topics.size() == groups.size(), "Expected a group for each of the %s topics, got %s",
+                topics.size(), groups.size());
+        checkArgument(topics.size() == weights.size(), "Expected a weight for each of the %s topics, got %s",
+                topics.size(), weights.size());
+        final List<List<Partition>> partitions = Lists.newArrayList();
+        final Map<String, List<Partition>> topicPartitions = zk.getPartitions(topics);
+        for (final String topic : topics) {
+            partitions.add(topicPartitions.get(topic));
+        }
+        final OffsetStore offsetStore = getOffsetStore(conf, zk);
+        final List<Map<Partition, List<Long>>> partitionOffsets = getPartitionOffsets(conf, partitions,
+                getLastCommits(offsetStore, groups, partitions));
+        clearSkippedPartitions(conf, offsetStore, groups, partitions, partitionOffsets);
 
-                // grab all valid offsets
-                final List<Long> offsets = getOffsets(consumers.get(broker), topic, partition.getPartId(),
-                        zk.getLastCommit(group, partition), getIncludeOffsetsAfterTimestamp(conf),
-                        getMaxSplitsPerPartition(conf));
-                for (int i = 0; i < offsets.size() - 1; i++) {
+        final List<Map<Partition, Long>> budgets = getByteBudgets(conf, topics, partitions, partitionOffsets, weights);
+        clearUnbudgetedPartitions(offsetStore, groups, partitions, partitionOffsets, budgets);
+        final Map<String, Map<Integer, Double>> throughput = getThroughput(conf, topics);
+        final BrokerLocationResolver resolver = getBrokerLocationResolver(conf);
+        final Map<Broker, String[]> brokerLocations = Maps.newHashMap();
+        final List<List<InputSplit>> result = Lists.newArrayList();
+        for (int i = 0; i < topics.size(); ++i) {
+            final List<InputSplit> splits = Lists.newArrayList();
+            final Map<Integer, Double> topicThroughput = throughput.get(topics.get(i));
+            for (final Partition partition : partitions.get(i)) {
+                final List<Long> offsets = partitionOffsets.get(i).get(partition);
+                if (offsets == null) {
+                    // its broker didn't answer in time (see setPartialPlanning); the next run picks it up
+                    continue;
+                }
+                final long maxSplitSize = getMaxSplitSize(conf, topicThroughput, partition.getBroker());
+                // the oldest data comes first, anything past the byte budget of the partition is left for the next run
+                final long budgetEnd = offsets.get(offsets.size() - 1) + budgets.get(i).get(partition);
+                for (int j = 0; j < offsets.size() - 1; j++) {
                     // ( offsets in descending order )
-                    final long start = offsets.get(i + 1);
-                    final long end = offsets.get(i);
-                    // since the offsets are in descending order, the first offset in the list is the largest offset for
-                    // the current partition. This split will be in charge of committing the offset for this partition.
-                    final boolean partitionCommitter = (i == 0);
-                    final InputSplit split = new KafkaInputSplit(partition, start, end, partitionCommitter);
-                    LOG.debug("Created input split: " + split);
-                    splits.add(split);
+                    final long start = offsets.get(j + 1);
+                    if (start >= budgetEnd) {
+                        continue;
+                    }
+                    final long end = Math.min(offsets.get(j), budgetEnd);
+                    // since the offsets are in descending order, the first offset in the list is the largest offset
+                    // for the current partition. This split (or the one the budget ends in) will be in charge of
+                    // committing the offset for this partition.
+                    final boolean partitionCommitter = (end == budgetEnd);
+                    // a budget that ends mid-segment most likely ends mid-message too
+                    final boolean aligned = (end == offsets.get(j));
+                    for (final KafkaInputSplit split : createSplits(partition, start, end, partitionCommitter,
+                            maxSplitSize, aligned)) {
+                        if (resolver != null) {
+                            if (!brokerLocations.containsKey(partition.getBroker())) {
+                                brokerLocations.put(partition.getBroker(),
+                                        resolver.getLocations(partition.getBroker()));
+                            }
+                            split.setLocations(brokerLocations.get(partition.getBroker()));
+                        }
+                        LOG.debug("Created input split: " + split);
+                        splits.add(split);
+                    }
+                }
+            }
+            result.add(splits);
+        }
+        return result;
+    }
+
+    /**
+     * Loads the {@link KafkaThroughputStats throughput} of the brokers of each topic, if the job sizes its splits by
+     * {@link #getTargetTaskDurationMs(Configuration) duration}. The stats only guide the split sizes, so if they can't
+     * be loaded the splits are planned without them.
+     * 
+     * @param conf
+     *            the job conf.
+     * @param topics
+     *            the topics.
+     * @return the throughput (in bytes per millisecond) of each broker ID, per topic.
+     */
+    private Map<String, Map<Integer, Double>> getThroughput(final Configuration conf, final List<String> topics) {
+        final Map<String, Map<Integer, Double>> result = Maps.newHashMap();
+        for (final String topic : topics) {
+            result.put(topic, Collections.<Integer, Double> emptyMap());
+        }
+        if (getTargetTaskDurationMs(conf) <= 0 || getThroughputStatsDir(conf) == null) {
+            return result;
+        }
+        try {
+            final KafkaThroughputStats stats = getThroughputStats(conf);
+            for (final String topic : Sets.newHashSet(topics)) {
+                result.put(topic, stats.load(topic));
+            }
+        } catch (final IOException e) {
+            LOG.warn("Failed to load the throughput stats, splits are sized without them", e);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the maximum size of the splits of a {@code broker}'s partitions, which is the number of bytes a task reads
+     * from the broker in the {@link #getTargetTaskDurationMs(Configuration) target task duration}, as far as the
+     * {@code throughput} of previous runs tells. Brokers that haven't been read from before are assumed to be as fast
+     * as the average of the others. The size never exceeds {@link #getMaxSplitSizeBytes(Configuration)}, and unless
+     * that is smaller, it is never less than {@link #getMinSplitSizeBytes(Configuration)} or the fetch size.
+     * 
+     * @param conf
+     *            the job conf.
+     * @param throughput
+     *            the throughput (in bytes per millisecond) of each broker ID of the topic.
+     * @param broker
+     *            the broker.
+     * @return the maximum split size, in bytes.
+     */
+    @VisibleForTesting
+    static long getMaxSplitSize(final Configuration conf, final Map<Integer, Double> throughput, final Broker broker) {
+        final long maxSplitSize = getMaxSplitSizeBytes(conf);
+        if (throughput.isEmpty()) {
+            return maxSplitSize;
+        }
+        Double bytesPerMs = throughput.get(broker.getId());
+        if (bytesPerMs == null) {
+            double sum = 0;
+            for (final double value : throughput.values()) {
+                sum += value;
+            }
+            bytesPerMs = sum / throughput.size();
+        }
+        final long minSplitSize = Math.max(getMinSplitSizeBytes(conf), getKafkaFetchSizeBytes(conf));
+        return Math.min(maxSplitSize, Math.max(minSplitSize, (long) (bytesPerMs * getTargetTaskDurationMs(conf))));
+    }
+
+    /**
+     * Hands out the byte budgets of a run to the partitions of each topic. Every partition gets at most
+     * {@link #getMaxBytesPerPartition(Configuration)} bytes, and the {@link #getMaxBytesPerRun(Configuration) budget of
+     * the run} is shared fairly: first between the topics, by their {@code weights}, and then evenly between the
+     * partitions of each topic. Whatever a topic (or partition) doesn't need of its share goes to the others.
+     * 
+     * @param conf
+     *            the job conf.
+     * @param topics
+     *            the topics.
+     * @param partitions
+     *            the partitions of each topic.
+     * @param partitionOffsets
+     *            the offsets of the partitions of each topic, in descending order.
+     * @param weights
+     *            the weight of each topic.
+     * @return the number of bytes to read from each partition of each topic, starting at its oldest offset.
+     */
+    @VisibleForTesting
+    static List<Map<Partition, Long>> getByteBudgets(final Configuration conf, final List<String> topics,
+            final List<List<Partition>> partitions, final List<Map<Partition, List<Long>>> partitionOffsets,
+            final List<Double> weights) {
+        final long maxBytesPerPartition = getMaxBytesPerPartition(conf);
+        final long[] topicDemands = new long[partitions.size()];
+        final List<long[]> partitionDemands = Lists.newArrayList();
+        for (int i = 0; i < partitions.size(); ++i) {
+            final long[] demands = new long[partitions.get(i).size()];
+            for (int j = 0; j < demands.length; ++j) {
+                final List<Long> offsets = partitionOffsets.get(i).get(partitions.get(i).get(j));
+                if (offsets != null && offsets.size() > 1) {
+                    demands[j] = Math.min(maxBytesPerPartition, offsets.get(0) - offsets.get(offsets.size() - 1));
+                }
+                topicDemands[i] += demands[j];
+            }
+            partitionDemands.add(demands);
+        }
+
+        final long[] topicShares = fairShares(topicDemands, Doubles.toArray(weights), getMaxBytesPerRun(conf));
+        final List<Map<Partition, Long>> result = Lists.newArrayList();
+        for (int i = 0; i < partitions.size(); ++i) {
+            final double[] evenWeights = new double[partitions.get(i).size()];
+            Arrays.fill(evenWeights, 1);
+            final long[] shares = fairShares(partitionDemands.get(i), evenWeights, topicShares[i]);
+            final Map<Partition, Long> budgets = Maps.newHashMap();
+            for (int j = 0; j < shares.length; ++j) {
+                budgets.put(partitions.get(i).get(j), shares[j]);
+            }
+            if (topicShares[i] < topicDemands[i]) {
+                LOG.info(String.format("Budget allows reading %d of the %d bytes of topic %s, leaving the rest for "
+                        + "the next run", topicShares[i], topicDemands[i], topics.get(i)));
+            }
+            result.add(budgets);
+        }
+        return result;
+    }
+
+    /**
+     * Shares a {@code budget} between consumers with the given {@code demands}, such that no consumer gets more than
+     * it needs, and the rest of the budget is split in proportion to the {@code weights} (i.e. a weighted max-min fair
+     * share).
+     * 
+     * @param demands
+     *            the amount each consumer needs.
+     * @param weights
+     *            the (positive) weight of each consumer.
+     * @param budget
+     *            the budget to share.
+     * @return the share of each consumer.
+     */
+    @VisibleForTesting
+    static long[] fairShares(final long[] demands, final double[] weights, final long budget) {
+        final Integer[] order = new Integer[demands.length];
+        double totalWeight = 0;
+        for (int i = 0; i < demands.length; ++i) {
+            order[i] = i;
+            totalWeight += weights[i];
+        }
+        // consumers that need the least for their weight are satisfied first, and leave the rest to the others
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                return Double.compare(demands[a] / weights[a], demands[b] / weights[b]);
+            }
+        });
+        final long[] shares = new long[demands.length];
+        long remaining = budget;
+        for (final int i : order) {
+            final long share = Math.min(remaining, (long) (remaining * (weights[i] / totalWeight)));
+            shares[i] = Math.min(demands[i], share);
+            remaining -= shares[i];
+            totalWeight -= weights[i];
+        }
+        return shares;
+    }
+
+    /**
+     * Deals with the partitions that {@link #getPartitionOffsets(Configuration, List, List)} skipped because their
+     * broker didn't answer in time: unless the job allows {@link #setPartialPlanning(Job, boolean) partial planning},
+     * the job fails. Otherwise, any temporary offsets of the skipped partitions are left over from an earlier run that
+     * failed, and are deleted, so that committing the offsets of this run doesn't commit them along with its own.
+     * 
+     * @param conf
+     *            the job conf.
+     * @param offsets
+     *            the offset store of the job.
+     * @param groups
+     *            the consumer group of each topic.
+     * @param partitions
+     *            the partitions of each topic.
+     * @param partitionOffsets
+     *            the offsets of every partition (of each topic) whose broker answered in time.
+     * @throws IOException
+     *             if partitions were skipped and partial planning isn't allowed, or if the offset store fails.
+     */
+    static void clearSkippedPartitions(final Configuration conf, final OffsetStore offsets, final List<String> groups,
+            final List<List<Partition>> partitions, final List<Map<Partition, List<Long>>> partitionOffsets)
+            throws IOException {
+        final Multimap<String, Partition> skipped = LinkedHashMultimap.create();
+        for (int i = 0; i < groups.size(); ++i) {
+            for (final Partition partition : partitions.get(i)) {
+                if (!partitionOffsets.get(i).containsKey(partition)) {
+                    skipped.put(groups.get(i), partition);
+                }
+            }
+        }
+        if (skipped.isEmpty()) {
+            return;
+        }
+        if (!isPartialPlanning(conf)) {
+            throw new IOException(String.format("The brokers of partitions %s didn't answer within %d ms",
+                    skipped.values(), getPlanningBrokerTimeoutMs(conf)));
+        }
+        for (final String group : skipped.keySet()) {
+            offsets.clearTempOffsets(group, Lists.newArrayList(skipped.get(group)));
+        }
+    }
+
+    /**
+     * Deletes any temporary offsets of the partitions that have data to read, but no
+     * {@link #getByteBudgets(Configuration, List, List, List, List) budget} in this run. Such partitions get no split
+     * in charge of committing their offset, so, like those of
+     * {@link #clearSkippedPartitions(Configuration, OffsetStore, List, List, List) skipped partitions}, their temporary
+     * offsets are left over from an earlier run that failed, and committing the offsets of this run would commit them
+     * along with its own.
+     * 
+     * @param offsets
+     *            the offset store of the job.
+     * @param groups
+     *            the consumer group of each topic.
+     * @param partitions
+     *            the partitions of each topic.
+     * @param partitionOffsets
+     *            the offsets of every partition (of each topic) whose broker answered in time.
+     * @param budgets
+     *            the byte budget of each partition of each topic.
+     * @throws IOException
+     *             if the offset store fails.
+     */
+    static void clearUnbudgetedPartitions(final OffsetStore offsets, final List<String> groups,
+            final List<List<Partition>> partitions, final List<Map<Partition, List<Long>>> partitionOffsets,
+            final List<Map<Partition, Long>> budgets) throws IOException {
+        final Multimap<String, Partition> unbudgeted = LinkedHashMultimap.create();
+        for (int i = 0; i < groups.size(); ++i) {
+            for (final Partition partition : partitions.get(i)) {
+                final List<Long> partitionOffset = partitionOffsets.get(i).get(partition);
+                if (partitionOffset != null && partitionOffset.get(0) > partitionOffset.get(partitionOffset.size() - 1)
+                        && budgets.get(i).get(partition) == 0) {
+                    unbudgeted.put(groups.get(i), partition);
+                }
+            }
+        }
+        for (final String group : unbudgeted.keySet()) {
+            offsets.clearTempOffsets(group, Lists.newArrayList(unbudgeted.get(group)));
+        }
+    }
+
+    /**
+     * Gets the last commits of the partitions of each topic, reading those of all the topics of a consumer group at
+     * once.
+     * 
+     * @param offsets
+     *            the offset store.
+     * @param groups
+     *            the consumer group of each topic.
+     * @param partitions
+     *            the partitions of each topic.
+     * @return the last commit of each partition of each topic.
+     * @throws IOException
+     *             if the offset store fails.
+     */
+    static List<Map<Partition, Long>> getLastCommits(final OffsetStore offsets, final List<String> groups,
+            final List<List<Partition>> partitions) throws IOException {
+        final Multimap<String, Partition> groupPartitions = LinkedHashMultimap.create();
+        for (int i = 0; i < groups.size(); ++i) {
+            groupPartitions.putAll(groups.get(i), partitions.get(i));
+        }
+        final Map<String, Map<Partition, Long>> groupCommits = Maps.newHashMap();
+        for (final String group : groupPartitions.keySet()) {
+            groupCommits.put(group, offsets.getLastCommits(group, Lists.newArrayList(groupPartitions.get(group))));
+        }
+        final List<Map<Partition, Long>> lastCommits = Lists.newArrayList();
+        for (int i = 0; i < groups.size(); ++i) {
+            final Map<Partition, Long> groupCommit = groupCommits.get(groups.get(i));
+            final Map<Partition, Long> commits = Maps.newLinkedHashMap();
+            for (final Partition partition : partitions.get(i)) {
+                if (groupCommit.containsKey(partition)) {
+                    commits.put(partition, groupCommit.get(partition));
+                }
+            }
+            lastCommits.add(commits);
+        }
+        return lastCommits;
+    }
+
+    /**
+     * Gets the offsets of the partitions of each topic, querying the brokers in parallel. Each broker is queried by a
+     * single worker (so no broker sees more than one request of ours at a time), and the workers share a pool of at
+     * most {@link #getPlanningThreads(Configuration)} threads.
+     * <p/>
+     * A broker that doesn't answer for all of its partitions within
+     * {@link #getPlanningBrokerTimeoutMs(Configuration)} of its worker starting is given up on, and its partitions are
+     * left out of the result. Brokers waiting for a thread aren't on the clock yet.
+     * 
+     * @param conf
+     *            the job conf.
+     * @param partitions
+     *            the partitions of each topic.
+     * @param lastCommits
+     *            the last commit of each partition of each topic.
+     * @return the offsets of every partition (of each topic) whose broker answered in time.
+     * @throws IOException
+     *             if a broker fails.
+     */
+    List<Map<Partition, List<Long>>> getPartitionOffsets(final Configuration conf,
+            final List<List<Partition>> partitions, final List<Map<Partition, Long>> lastCommits) throws IOException {
+        // the partitions (of all topics) on each broker, as [topic index, partition index] pairs
+        final Map<Broker, List<int[]>> brokerPartitions = Maps.newLinkedHashMap();
+        final List<Map<Partition, List<Long>>> result = Lists.newArrayList();
+        for (int i = 0; i < partitions.size(); ++i) {
+            for (int j = 0; j < partitions.get(i).size(); ++j) {
+                final Broker broker = partitions.get(i).get(j).getBroker();
+                List<int[]> list = brokerPartitions.get(broker);
+                if (list == null) {
+                    list = Lists.newArrayList();
+                    brokerPartitions.put(broker, list);
+                }
+                list.add(new int[] { i, j });
+            }
+            result.add(Maps.<Partition, List<Long>> newHashMap());
+        }
+        if (brokerPartitions.isEmpty()) {
+            return result;
+        }
+
+        final long asOfTime = getIncludeOffsetsAfterTimestamp(conf);
+        final int maxSplitsPerPartition = getMaxSplitsPerPartition(conf);
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(brokerPartitions.size(), getPlanningThreads(conf)), new ThreadFactoryBuilder()
+                        .setNameFormat("kafka-split-planner-%d").setDaemon(true).build());
+        try {
+            final Map<Broker, Future<List<List<Long>>>> futures = Maps.newLinkedHashMap();
+            // when each worker started, 0 until it has
+            final Map<Broker, AtomicLong> startedMs = Maps.newHashMap();
+            for (final Map.Entry<Broker, List<int[]>> entry : brokerPartitions.entrySet()) {
+                final AtomicLong started = new AtomicLong();
+                startedMs.put(entry.getKey(), started);
+                futures.put(entry.getKey(), executor.submit(new Callable<List<List<Long>>>() {
+                    @Override
+                    public List<List<Long>> call() throws Exception {
+                        started.set(System.currentTimeMillis());
+                        final List<List<Long>> offsets = Lists.newArrayList();
+                        final SimpleConsumer consumer = getConsumer(entry.getKey());
+                        try {
+                            for (final int[] index : entry.getValue()) {
+                                final Partition partition = partitions.get(index[0]).get(index[1]);
+                                final Long lastCommit = lastCommits.get(index[0]).get(partition);
+                                offsets.add(getOffsets(consumer, partition.getTopic(), partition.getPartId(),
+                                        lastCommit != null ? lastCommit : -1, asOfTime, maxSplitsPerPartition));
+                            }
+                        } finally {
+                            consumer.close();
+                        }
+                        return offsets;
+                    }
+                }));
+            }
+
+            final long timeoutMs = getPlanningBrokerTimeoutMs(conf);
+            for (final Map.Entry<Broker, Future<List<List<Long>>>> entry : futures.entrySet()) {
+                final List<int[]> indexes = brokerPartitions.get(entry.getKey());
+                try {
+                    final List<List<Long>> offsets = getInTime(entry.getValue(), startedMs.get(entry.getKey()),
+                            timeoutMs);
+                    for (int k = 0; k < indexes.size(); ++k) {
+                        final int[] index = indexes.get(k);
+                        result.get(index[0]).put(partitions.get(index[0]).get(index[1]), offsets.get(k));
+                    }
+                } catch (final TimeoutException e) {
+                    LOG.warn(String.format("Skipping %d partitions of broker %s, which didn't answer in time",
+                            indexes.size(), entry.getKey()));
+                    entry.getValue().cancel(true);
+                } catch (final ExecutionException e) {
+                    Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                    throw Throwables.propagate(e.getCause());
                 }
             }
+            return result;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while getting partition offsets");
         } finally {
-            // close resources
-            IOUtils.closeQuietly(zk);
-            for (final SimpleConsumer consumer : consumers.values()) {
-                consumer.close();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the offsets of a broker until {@code timeoutMs} after its worker started. There are fewer threads than
+     * brokers if {@link #getPlanningThreads(Configuration)} says so, in which case a worker may still be waiting for a
+     * thread, which it gets as soon as the workers ahead of it are done or given up on.
+     * 
+     * @throws TimeoutException
+     *             if the worker has run for {@code timeoutMs} without an answer.
+     */
+    private static List<List<Long>> getInTime(final Future<List<List<Long>>> future, final AtomicLong startedMs,
+            final long timeoutMs) throws InterruptedException, ExecutionException, TimeoutException {
+        while (true) {
+            final long started = startedMs.get();
+            final long waitMs = started == 0 ? timeoutMs : started + timeoutMs - System.currentTimeMillis();
+            try {
+                return future.get(Math.max(0, waitMs), TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                if (started != 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Orders the splits of a job as configured by {@link #setInterleaveBrokers(Job, boolean)}.
+     * 
+     * @param conf
+     *            the job conf.
+     * @param splits
+     *            the splits of the job.
+     * @return the splits, in the order they should be scheduled in.
+     */
+    static List<InputSplit> orderSplits(final Configuration conf, final List<InputSplit> splits) {
+        return isInterleaveBrokers(conf) ? interleaveByBroker(splits) : splits;
+    }
+
+    /**
+     * Reorders {@code splits} so that consecutive splits are read from different brokers (as long as there are splits
+     * of more than one broker left), which spreads the load of the first tasks evenly across the brokers, rather than
+     * having them all hit the broker of the first topic partitions. While {@code k} brokers have splits left, any
+     * {@code n} consecutive splits hold at most {@code ceil(n / k)} splits of a broker.
+     * <p/>
+     * Hadoop's {@code JobSubmitter} (stably) sorts the splits by size before they're scheduled, which undoes this order
+     * unless the splits are the same size.
+     * 
+     * @param splits
+     *            {@link KafkaInputSplit}s, {@link CombinedKafkaInputSplit}s, or {@link TaggedInputSplit}s of either.
+     * @return the splits, taking one split of each broker in turn, in the order the brokers first appear in
+     *         {@code splits}.
+     */
+    @VisibleForTesting
+    static List<InputSplit> interleaveByBroker(final List<InputSplit> splits) {
+        final Map<Broker, Queue<InputSplit>> brokerSplits = Maps.newLinkedHashMap();
+        for (final InputSplit split : splits) {
+            final Broker broker = getBroker(split);
+            Queue<InputSplit> queue = brokerSplits.get(broker);
+            if (queue == null) {
+                queue = Lists.newLinkedList();
+                brokerSplits.put(broker, queue);
+            }
+            queue.add(split);
+        }
+        final List<InputSplit> result = Lists.newArrayListWithCapacity(splits.size());
+        while (result.size() < splits.size()) {
+            for (final Queue<InputSplit> queue : brokerSplits.values()) {
+                if (!queue.isEmpty()) {
+                    result.add(queue.remove());
+                }
             }
         }
+        return result;
+    }
+
+    private static Broker getBroker(final InputSplit split) {
+        if (split instanceof TaggedInputSplit) {
+            return getBroker(((TaggedInputSplit) split).getInputSplit());
+        } else if (split instanceof CombinedKafkaInputSplit) {
+            return ((CombinedKafkaInputSplit) split).getBroker();
+        }
+        return ((KafkaInputSplit) split).getPartition().getBroker();
+    }
+
+    /**
+     * Cuts the offset range [{@code start}, {@code end}) of a log segment into splits of at most {@code maxSplitSize}
+     * bytes. Sub-splits are not aligned to message boundaries, so the {@link KafkaRecordReader} has to resync to the
+     * first message of each one, and finish the message that straddles its end. If the range is split, only the last
+     * sub-split commits for the partition.
+     * 
+     * @param partition
+     *            the partition.
+     * @param start
+     *            the start offset of the segment, a message boundary.
+     * @param end
+     *            the end offset of the segment, a message boundary.
+     * @param partitionCommitter
+     *            whether the segment is the last one of the partition.
+     * @param maxSplitSize
+     *            the maximum number of bytes per split.
+     * @return the splits, in offset order.
+     */
+    @VisibleForTesting
+    static List<KafkaInputSplit> createSplits(final Partition partition, final long start, final long end,
+            final boolean partitionCommitter, final long maxSplitSize) {
+        return createSplits(partition, start, end, partitionCommitter, maxSplitSize, true);
+    }
+
+    /**
+     * Cuts the offset range [{@code start}, {@code end}) into splits, like
+     * {@link #createSplits(Partition, long, long, boolean, long)}, where {@code end} may not be a message boundary.
+     * 
+     * @param partition
+     *            the partition.
+     * @param start
+     *            the start offset of the range, a message boundary.
+     * @param end
+     *            the end offset of the range.
+     * @param partitionCommitter
+     *            whether the range is the last one of the partition.
+     * @param maxSplitSize
+     *            the maximum number of bytes per split.
+     * @param aligned
+     *            whether {@code end} is a message boundary.
+     * @return the splits, in offset order.
+     */
+    @VisibleForTesting
+    static List<KafkaInputSplit> createSplits(final Partition partition, final long start, final long end,
+            final boolean partitionCommitter, final long maxSplitSize, final boolean aligned) {
+        if (end - start <= maxSplitSize) {
+            return Lists.newArrayList(new KafkaInputSplit(partition, start, end, partitionCommitter, aligned));
+        }
+        final List<KafkaInputSplit> splits = Lists.newArrayList();
+        for (long splitStart = start; splitStart < end; splitStart += maxSplitSize) {
+            final long splitEnd = Math.min(end, splitStart + maxSplitSize);
+            splits.add(new KafkaInputSplit(partition, splitStart, splitEnd, partitionCommitter && splitEnd == end,
+                    false));
+        }
         return splits;
     }
 
@@ -235,6 +911,73 @@ public class KafkaInputFormat extends InputFormat<LongWritable, BytesWritable> {
         return result;
     }
 
+    /**
+     * Commits the temporary offsets that the {@link KafkaRecordReader}s of a job have written, for every topic of the
+     * job, whether it reads a single topic or uses the {@link MultipleKafkaInputFormat} (whose topic patterns are
+     * resolved again with {@code zk}). Call this once the job has succeeded.
+     * <p/>
+     * All topics are committed together, see {@link ZkUtils#commit(Multimap)}, unless the job keeps its offsets in an
+     * {@link #setOffsetStoreDir(Job, Path) offset store directory}. Jobs that commit their offsets with the
+     * {@link KafkaOffsetOutputCommitter} have nothing left to commit.
+     * 
+     * @param zk
+     *            the Zookeeper client to commit with.
+     * @param conf
+     *            the job conf.
+     * @return true if the commit was successful, false otherwise.
+     * @throws IOException
+     *             if the offsets can't be committed.
+     */
+    public static boolean commitOffsets(final ZkUtils zk, final Configuration conf) throws IOException {
+        if (KafkaOffsetOutputCommitter.isEnabled(conf)) {
+            return true;
+        }
+        return getOffsetStore(conf, zk).commit(getGroupTopics(zk, conf));
+    }
+
+    /**
+     * Gets the committed offsets of every topic of a job, see {@link #commitOffsets(ZkUtils, Configuration)}.
+     * 
+     * @param zk
+     *            the Zookeeper client to read with.
+     * @param conf
+     *            the job conf.
+     * @return the last commit of each partition that has one, by consumer group.
+     * @throws IOException
+     *             if the offset store fails.
+     */
+    static Map<String, Map<Partition, Long>> getCommittedOffsets(final ZkUtils zk, final Configuration conf)
+            throws IOException {
+        final Multimap<String, String> groupTopics = getGroupTopics(zk, conf);
+        final Map<String, List<Partition>> topicPartitions = zk.getPartitions(Sets.newLinkedHashSet(groupTopics
+                .values()));
+        final OffsetStore offsets = getOffsetStore(conf, zk);
+        final Map<String, Map<Partition, Long>> result = Maps.newLinkedHashMap();
+        for (final String group : groupTopics.keySet()) {
+            final List<Partition> partitions = Lists.newArrayList();
+            for (final String topic : groupTopics.get(group)) {
+                partitions.addAll(topicPartitions.get(topic));
+            }
+            result.put(group, offsets.getLastCommits(group, partitions));
+        }
+        return result;
+    }
+
+    /**
+     * @return the topics of each consumer group of a job, whose topic patterns are resolved with {@code zk}.
+     */
+    static Multimap<String, String> getGroupTopics(final ZkUtils zk, final Configuration conf) {
+        final Multimap<String, String> groupTopics = LinkedHashMultimap.create();
+        if (MultipleKafkaInputFormat.hasTopics(conf)) {
+            for (final TopicConf topicConf : MultipleKafkaInputFormat.getTopics(conf, zk)) {
+                groupTopics.put(topicConf.getConsumerGroup(), topicConf.getTopic());
+            }
+        } else {
+            groupTopics.put(getConsumerGroup(conf), getTopic(conf));
+        }
+        return groupTopics;
+    }
+
     /*
      * We make the following two methods visible for testing so that we can mock these components out in unit tests
      */
@@ -245,6 +988,11 @@ public class KafkaInputFormat extends InputFormat<LongWritable, BytesWritable> {
                 DEFAULT_BUFFER_SIZE_BYTES);
     }
 
+    @VisibleForTesting
+    KafkaThroughputStats getThroughputStats(final Configuration conf) throws IOException {
+        return KafkaThroughputStats.get(conf);
+    }
+
     @VisibleForTesting
     ZkUtils getZk(final Configuration conf) {
         return new ZkUtils(conf);
@@ -345,6 +1093,34 @@ public class KafkaInputFormat extends InputFormat<LongWritable, BytesWritable> {
         return conf.get("kafka.zk.root", DEFAULT_ZK_ROOT);
     }
 
+    /**
+     * Sets how long the brokers and topic partitions read from Zookeeper are cached for, by every {@link ZkUtils} of
+     * the same Zookeeper cluster in the JVM, so that planning and committing several topics don't read the same znodes
+     * over and over. Drivers that keep running can also have the cache invalidated as soon as brokers or topics change,
+     * see {@link ZkUtils#watchMetadata()}. Set it to {@code 0} to always read the metadata from Zookeeper.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param ttlMs
+     *            the time to cache the metadata for, in milliseconds.
+     */
+    public static void setZkMetadataCacheTtlMs(final Job job, final long ttlMs) {
+        checkArgument(ttlMs >= 0, "ttlMs must not be negative: %s", ttlMs);
+        job.getConfiguration().setLong("kafka.zk.metadata.cache.ttl.ms", ttlMs);
+    }
+
+    /**
+     * Gets the time that Zookeeper metadata are cached for, set by {@link #setZkMetadataCacheTtlMs(Job, long)},
+     * defaulting to {@link #DEFAULT_ZK_METADATA_CACHE_TTL_MS} if it has not been set.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the time to cache the metadata for, in milliseconds.
+     */
+    public static long getZkMetadataCacheTtlMs(final Configuration conf) {
+        return conf.getLong("kafka.zk.metadata.cache.ttl.ms", DEFAULT_ZK_METADATA_CACHE_TTL_MS);
+    }
+
     /**
      * Sets the input topic (required).
      * 
@@ -447,12 +1223,68 @@ public class KafkaInputFormat extends InputFormat<LongWritable, BytesWritable> {
     }
 
     /**
-     * Sets the fetch size of the {@link RecordReader}. Note that your mapper should have enough memory allocation to
-     * handle the specified size, or else you will likely throw {@link OutOfMemoryError}s.
+     * Limits the number of bytes read from each partition per run. The input format takes the <em>oldest</em> data of
+     * a partition first, and leaves the rest for the next run. Unlike {@link #setMaxSplitsPerPartition(Job, int)},
+     * this bounds the amount of data regardless of the size of the log segments.
      * 
      * @param job
-     *            the job being configured.
-     * @param fetchSize
+     *            the job to configure.
+     * @param maxBytes
+     *            the maximum number of bytes to read from each Kafka partition.
+     */
+    public static void setMaxBytesPerPartition(final Job job, final long maxBytes) {
+        checkArgument(maxBytes > 0, "maxBytes must be positive: %s", maxBytes);
+        job.getConfiguration().setLong("kafka.max.bytes.per.partition", maxBytes);
+    }
+
+    /**
+     * Gets the maximum number of bytes per partition set by {@link #setMaxBytesPerPartition(Job, long)}, returning
+     * {@link Long#MAX_VALUE} by default.
+     * 
+     * @param conf
+     *            the job conf
+     * @return the maximum number of bytes per partition.
+     */
+    public static long getMaxBytesPerPartition(final Configuration conf) {
+        return conf.getLong("kafka.max.bytes.per.partition", DEFAULT_MAX_BYTES_PER_PARTITION);
+    }
+
+    /**
+     * Limits the total number of bytes read by the job, so that a run catching up on a large backlog (e.g. after an
+     * outage) takes a predictable amount of time. The budget is shared fairly between the partitions, and, with the
+     * {@link MultipleKafkaInputFormat}, between the topics by their
+     * {@link MultipleKafkaInputFormat#setTopicWeight(Job, String, double) weights}. Each partition is read from its
+     * oldest data on, and whatever doesn't fit the budget is left for the next run.
+     * 
+     * @param job
+     *            the job to configure.
+     * @param maxBytes
+     *            the maximum number of bytes to read.
+     */
+    public static void setMaxBytesPerRun(final Job job, final long maxBytes) {
+        checkArgument(maxBytes > 0, "maxBytes must be positive: %s", maxBytes);
+        job.getConfiguration().setLong("kafka.max.bytes.per.run", maxBytes);
+    }
+
+    /**
+     * Gets the maximum number of bytes per run set by {@link #setMaxBytesPerRun(Job, long)}, returning
+     * {@link Long#MAX_VALUE} by default.
+     * 
+     * @param conf
+     *            the job conf
+     * @return the maximum number of bytes per run.
+     */
+    public static long getMaxBytesPerRun(final Configuration conf) {
+        return conf.getLong("kafka.max.bytes.per.run", DEFAULT_MAX_BYTES_PER_RUN);
+    }
+
+    /**
+     * Sets the fetch size of the {@link RecordReader}. Note that your mapper should have enough memory allocation to
+     * handle the specified size, or else you will likely throw {@link OutOfMemoryError}s.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param fetchSize
      *            the fetch size (bytes).
      */
     public static void setKafkaFetchSizeBytes(final Job job, final int fetchSize) {
@@ -518,4 +1350,551 @@ public class KafkaInputFormat extends InputFormat<LongWritable, BytesWritable> {
     public static int getKafkaSocketTimeoutMs(final Configuration conf) {
         return conf.getInt("kafka.socket.timeout.ms", DEFAULT_SOCKET_TIMEOUT_MS);
     }
+
+    /**
+     * Enables background prefetching in the {@link KafkaRecordReader}: while the mapper consumes one fetched message
+     * set, a background thread fetches the next ones, buffering at most {@code queueDepth} message sets. A depth of
+     * {@code 0} (the default) disables prefetching.
+     * 
+     * <p/>
+     * Note that your mapper needs enough memory for the prefetched data, see
+     * {@link #setKafkaPrefetchMaxBytes(Job, long)}.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param queueDepth
+     *            the maximum number of prefetched message sets.
+     */
+    public static void setKafkaPrefetchQueueDepth(final Job job, final int queueDepth) {
+        job.getConfiguration().setInt("kafka.prefetch.queue.depth", queueDepth);
+    }
+
+    /**
+     * Gets the prefetch queue depth set by {@link #setKafkaPrefetchQueueDepth(Job, int)}, defaulting to
+     * {@link #DEFAULT_PREFETCH_QUEUE_DEPTH} if it has not been set.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the prefetch queue depth.
+     */
+    public static int getKafkaPrefetchQueueDepth(final Configuration conf) {
+        return conf.getInt("kafka.prefetch.queue.depth", DEFAULT_PREFETCH_QUEUE_DEPTH);
+    }
+
+    /**
+     * Caps the number of bytes the {@link KafkaRecordReader} prefetches ahead of the mapper. The prefetcher will not
+     * issue another fetch while the buffered message sets plus one fetch would exceed this amount, but it always
+     * allows at least one buffered message set.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param maxBytes
+     *            the maximum number of prefetched bytes.
+     */
+    public static void setKafkaPrefetchMaxBytes(final Job job, final long maxBytes) {
+        job.getConfiguration().setLong("kafka.prefetch.max.bytes", maxBytes);
+    }
+
+    /**
+     * Gets the prefetch memory cap set by {@link #setKafkaPrefetchMaxBytes(Job, long)}, defaulting to
+     * {@link #DEFAULT_PREFETCH_MAX_BYTES} if it has not been set.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the maximum number of prefetched bytes.
+     */
+    public static long getKafkaPrefetchMaxBytes(final Configuration conf) {
+        return conf.getLong("kafka.prefetch.max.bytes", DEFAULT_PREFETCH_MAX_BYTES);
+    }
+
+    /**
+     * Makes the {@link KafkaRecordReader} hand out {@link KafkaPayloadWritable}s that wrap the payload in the fetched
+     * buffer, instead of copying every payload into a {@link BytesWritable}. This saves a copy of all of the input
+     * for mappers that only parse and filter messages.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param zeroCopy
+     *            whether to wrap payloads rather than copy them.
+     * @see KafkaPayloadWritable
+     */
+    public static void setKafkaZeroCopyValues(final Job job, final boolean zeroCopy) {
+        job.getConfiguration().setBoolean("kafka.value.zero.copy", zeroCopy);
+    }
+
+    /**
+     * Gets whether payloads are wrapped in {@link KafkaPayloadWritable}s, as set by
+     * {@link #setKafkaZeroCopyValues(Job, boolean)}, {@code false} by default.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return {@code true} if payloads are wrapped rather than copied.
+     */
+    public static boolean isKafkaZeroCopyValues(final Configuration conf) {
+        return conf.getBoolean("kafka.value.zero.copy", false);
+    }
+
+    /**
+     * Lets the {@link KafkaRecordReader} adapt its fetch size, starting from
+     * {@link #setKafkaFetchSizeBytes(Job, int) the fetch size}:
+     * <ul>
+     * <li>if a fetch doesn't hold a single complete message, the fetch size is raised to fit the message (at least
+     * doubling it), and the fetch is retried,</li>
+     * <li>if a fetch comes back full, the fetch size is doubled,</li>
+     * <li>if a fetch comes back less than a quarter full, the fetch size is halved.</li>
+     * </ul>
+     * The fetch size always stays within {@link #setKafkaMinFetchSizeBytes(Job, int)} and
+     * {@link #setKafkaMaxFetchSizeBytes(Job, int)}. A message that doesn't fit into the maximum fetch size fails the
+     * task. See {@link KafkaCounter} for the counters of each adjustment.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param adaptive
+     *            whether to adapt the fetch size.
+     */
+    public static void setKafkaAdaptiveFetchSize(final Job job, final boolean adaptive) {
+        job.getConfiguration().setBoolean("kafka.fetch.size.adaptive", adaptive);
+    }
+
+    /**
+     * Gets whether the fetch size is adaptive, as set by {@link #setKafkaAdaptiveFetchSize(Job, boolean)},
+     * {@code false} by default.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return {@code true} if the fetch size is adaptive.
+     */
+    public static boolean isKafkaAdaptiveFetchSize(final Configuration conf) {
+        return conf.getBoolean("kafka.fetch.size.adaptive", false);
+    }
+
+    /**
+     * Sets the lower bound of an {@link #setKafkaAdaptiveFetchSize(Job, boolean) adaptive} fetch size.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param minFetchSize
+     *            the minimum fetch size (bytes).
+     */
+    public static void setKafkaMinFetchSizeBytes(final Job job, final int minFetchSize) {
+        job.getConfiguration().setInt("kafka.fetch.size.min", minFetchSize);
+    }
+
+    /**
+     * Gets the minimum adaptive fetch size set by {@link #setKafkaMinFetchSizeBytes(Job, int)}, defaulting to
+     * {@link #DEFAULT_MIN_FETCH_SIZE_BYTES} if it has not been set.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the minimum fetch size.
+     */
+    public static int getKafkaMinFetchSizeBytes(final Configuration conf) {
+        return conf.getInt("kafka.fetch.size.min", DEFAULT_MIN_FETCH_SIZE_BYTES);
+    }
+
+    /**
+     * Sets the upper bound of an {@link #setKafkaAdaptiveFetchSize(Job, boolean) adaptive} fetch size. Note that your
+     * mapper should have enough memory allocation to handle this size.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param maxFetchSize
+     *            the maximum fetch size (bytes).
+     */
+    public static void setKafkaMaxFetchSizeBytes(final Job job, final int maxFetchSize) {
+        job.getConfiguration().setInt("kafka.fetch.size.max", maxFetchSize);
+    }
+
+    /**
+     * Gets the maximum adaptive fetch size set by {@link #setKafkaMaxFetchSizeBytes(Job, int)}, defaulting to
+     * {@link #DEFAULT_MAX_FETCH_SIZE_BYTES} if it has not been set.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the maximum fetch size.
+     */
+    public static int getKafkaMaxFetchSizeBytes(final Configuration conf) {
+        return conf.getInt("kafka.fetch.size.max", DEFAULT_MAX_FETCH_SIZE_BYTES);
+    }
+
+    /**
+     * Limits the size of each split to {@code maxSplitSize} bytes. Log segments larger than this are cut into byte
+     * ranges of (at most) {@code maxSplitSize} bytes, which lets a large backlog in a few big segments spread across
+     * more mappers.
+     * <p/>
+     * Since Kafka offsets are byte positions, these ranges don't fall on message boundaries: each
+     * {@link KafkaRecordReader} skips ahead to the first valid message of its range, and reads past the end of the
+     * range to finish the last message that starts inside it.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param maxSplitSize
+     *            the maximum number of bytes per split.
+     */
+    public static void setMaxSplitSizeBytes(final Job job, final long maxSplitSize) {
+        checkArgument(maxSplitSize > 0, "maxSplitSize must be positive: %s", maxSplitSize);
+        job.getConfiguration().setLong("kafka.max.split.size.bytes", maxSplitSize);
+    }
+
+    /**
+     * Gets the maximum split size set by {@link #setMaxSplitSizeBytes(Job, long)}, defaulting to
+     * {@link #DEFAULT_MAX_SPLIT_SIZE_BYTES} if it has not been set.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the maximum number of bytes per split.
+     */
+    public static long getMaxSplitSizeBytes(final Configuration conf) {
+        return conf.getLong("kafka.max.split.size.bytes", DEFAULT_MAX_SPLIT_SIZE_BYTES);
+    }
+
+    /**
+     * Keeps the splits sized by {@link #setTargetTaskDurationMs(Job, long) duration} from getting smaller than
+     * {@code minSplitSize} bytes (or the fetch size, whichever is larger). A task spends some of its time connecting
+     * and resyncing no matter how little it reads, so the throughput of small tasks understates that of the brokers;
+     * tasks that read less than {@code minSplitSize} bytes don't record their throughput at all.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param minSplitSize
+     *            the minimum number of bytes per split.
+     */
+    public static void setMinSplitSizeBytes(final Job job, final long minSplitSize) {
+        checkArgument(minSplitSize > 0, "minSplitSize must be positive: %s", minSplitSize);
+        job.getConfiguration().setLong("kafka.min.split.size.bytes", minSplitSize);
+    }
+
+    /**
+     * Gets the minimum split size set by {@link #setMinSplitSizeBytes(Job, long)}, defaulting to
+     * {@link #DEFAULT_MIN_SPLIT_SIZE_BYTES} if it has not been set.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the minimum number of bytes per split.
+     */
+    public static long getMinSplitSizeBytes(final Configuration conf) {
+        return conf.getLong("kafka.min.split.size.bytes", DEFAULT_MIN_SPLIT_SIZE_BYTES);
+    }
+
+    /**
+     * Sets the number of times the {@link KafkaRecordReader} retries a fetch that failed because of a socket error or
+     * a broker error. Before each retry the reader looks the broker up in Zookeeper again (in case it moved) and
+     * reconnects, then fetches from where it left off, so a flaky broker doesn't cost the task attempt and a re-read of
+     * the whole split. {@code 0} disables retries.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param maxRetries
+     *            the maximum number of retries per fetch.
+     * @see #setKafkaFetchRetryBackoffMs(Job, long)
+     */
+    public static void setKafkaFetchMaxRetries(final Job job, final int maxRetries) {
+        checkArgument(maxRetries >= 0, "maxRetries must not be negative: %s", maxRetries);
+        job.getConfiguration().setInt("kafka.fetch.max.retries", maxRetries);
+    }
+
+    /**
+     * Gets the number of fetch retries set by {@link #setKafkaFetchMaxRetries(Job, int)}, defaulting to
+     * {@link #DEFAULT_FETCH_MAX_RETRIES} if it has not been set.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the maximum number of retries per fetch.
+     */
+    public static int getKafkaFetchMaxRetries(final Configuration conf) {
+        return conf.getInt("kafka.fetch.max.retries", DEFAULT_FETCH_MAX_RETRIES);
+    }
+
+    /**
+     * Sets how long the {@link KafkaRecordReader} waits before retrying a failed fetch. The backoff doubles with every
+     * further retry of the same fetch.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param backoffMs
+     *            the backoff before the first retry, in milliseconds.
+     */
+    public static void setKafkaFetchRetryBackoffMs(final Job job, final long backoffMs) {
+        checkArgument(backoffMs >= 0, "backoffMs must not be negative: %s", backoffMs);
+        job.getConfiguration().setLong("kafka.fetch.retry.backoff.ms", backoffMs);
+    }
+
+    /**
+     * Gets the retry backoff set by {@link #setKafkaFetchRetryBackoffMs(Job, long)}, defaulting to
+     * {@link #DEFAULT_FETCH_RETRY_BACKOFF_MS} if it has not been set.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the backoff before the first retry, in milliseconds.
+     */
+    public static long getKafkaFetchRetryBackoffMs(final Configuration conf) {
+        return conf.getLong("kafka.fetch.retry.backoff.ms", DEFAULT_FETCH_RETRY_BACKOFF_MS);
+    }
+
+    /**
+     * Enables checkpointing: mappers can {@link KafkaCheckpoint#commit(long) commit} their progress through their
+     * split to {@code dir}, and a retried attempt of a map task resumes at the offset the previous attempt committed.
+     * <p/>
+     * Use a new directory for every run of the job (checkpoints are kept per task ID), and delete it once the job has
+     * succeeded. You'll also want to turn off speculative execution of maps, since two attempts of the same task would
+     * commit to the same checkpoint.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param dir
+     *            the directory to keep the checkpoints of this run in.
+     * @see KafkaCheckpoint
+     */
+    public static void setCheckpointDir(final Job job, final Path dir) {
+        job.getConfiguration().set("kafka.checkpoint.dir", dir.toString());
+    }
+
+    /**
+     * Gets the checkpoint directory set by {@link #setCheckpointDir(Job, Path)}.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the checkpoint directory, or {@code null} if checkpointing is disabled.
+     */
+    public static Path getCheckpointDir(final Configuration conf) {
+        final String dir = conf.get("kafka.checkpoint.dir");
+        return dir == null ? null : new Path(dir);
+    }
+
+    /**
+     * Keeps the offsets of the consumer groups of the job in {@code dir} on HDFS (or any other file system),
+     * rather than in Zookeeper; see {@link HdfsOffsetStore}. Every job that reads with the same consumer groups has to
+     * use the same directory.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param dir
+     *            the directory to keep the offsets in.
+     */
+    public static void setOffsetStoreDir(final Job job, final Path dir) {
+        job.getConfiguration().set("kafka.offset.store.dir", dir.toString());
+    }
+
+    /**
+     * Gets the offset store directory set by {@link #setOffsetStoreDir(Job, Path)}.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the offset store directory, or {@code null} if the job keeps its offsets in Zookeeper.
+     */
+    public static Path getOffsetStoreDir(final Configuration conf) {
+        final String dir = conf.get("kafka.offset.store.dir");
+        return dir != null ? new Path(dir) : null;
+    }
+
+    /**
+     * Gets the {@link OffsetStore} of the job configured by {@code conf}: the {@link HdfsOffsetStore} if the job has an
+     * {@link #setOffsetStoreDir(Job, Path) offset store directory}, {@code zk} otherwise.
+     * 
+     * @param conf
+     *            the job conf.
+     * @param zk
+     *            the Zookeeper client of the job.
+     * @return the offset store of the job.
+     * @throws IOException
+     *             if the file system of the offset store directory can't be resolved.
+     */
+    public static OffsetStore getOffsetStore(final Configuration conf, final ZkUtils zk) throws IOException {
+        final OffsetStore store = HdfsOffsetStore.get(conf);
+        return store != null ? store : zk;
+    }
+
+    /**
+     * Keeps {@link KafkaThroughputStats throughput stats} in {@code dir}: every map task records how fast it read its
+     * topic from its broker, so that later runs can size their splits to a
+     * {@link #setTargetTaskDurationMs(Job, long) target task duration}. Use the same directory for every run of the job
+     * (but not for different jobs, whose mappers may be faster or slower).
+     * 
+     * @param job
+     *            the job being configured.
+     * @param dir
+     *            the directory to keep the throughput stats of the job in.
+     */
+    public static void setThroughputStatsDir(final Job job, final Path dir) {
+        job.getConfiguration().set("kafka.throughput.stats.dir", dir.toString());
+    }
+
+    /**
+     * Gets the throughput stats directory set by {@link #setThroughputStatsDir(Job, Path)}.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the throughput stats directory, or {@code null} if the job doesn't keep throughput stats.
+     */
+    public static Path getThroughputStatsDir(final Configuration conf) {
+        final String dir = conf.get("kafka.throughput.stats.dir");
+        return dir != null ? new Path(dir) : null;
+    }
+
+    /**
+     * Sizes the splits so that each map task takes about {@code targetMs}, based on the throughput that the tasks of
+     * previous runs have observed per topic and broker (see {@link #setThroughputStatsDir(Job, Path)}). Log segments
+     * that would take longer are cut into several splits, like {@link #setMaxSplitSizeBytes(Job, long)} does, which
+     * remains the upper bound of the split size; {@link #setMinSplitSizeBytes(Job, long)} sets the lower bound. Until
+     * a broker has stats of its own, the splits of its partitions are sized by the average throughput of the other
+     * brokers of the topic.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param targetMs
+     *            the target duration of a map task, in milliseconds.
+     */
+    public static void setTargetTaskDurationMs(final Job job, final long targetMs) {
+        checkArgument(targetMs > 0, "targetMs must be positive: %s", targetMs);
+        job.getConfiguration().setLong("kafka.target.task.duration.ms", targetMs);
+    }
+
+    /**
+     * Gets the target task duration set by {@link #setTargetTaskDurationMs(Job, long)}.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the target duration of a map task, in milliseconds, or {@code 0} if splits aren't sized by duration.
+     */
+    public static long getTargetTaskDurationMs(final Configuration conf) {
+        return conf.getLong("kafka.target.task.duration.ms", 0);
+    }
+
+    /**
+     * Sets the maximum number of threads that query the brokers for offsets while planning the splits of the job. Each
+     * broker is queried by one thread at a time.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param threads
+     *            the maximum number of planning threads.
+     */
+    public static void setPlanningThreads(final Job job, final int threads) {
+        checkArgument(threads > 0, "threads must be positive: %s", threads);
+        job.getConfiguration().setInt("kafka.planning.threads", threads);
+    }
+
+    /**
+     * Gets the maximum number of planning threads set by {@link #setPlanningThreads(Job, int)}, defaulting to
+     * {@link #DEFAULT_PLANNING_THREADS} if it has not been set.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the maximum number of planning threads.
+     */
+    public static int getPlanningThreads(final Configuration conf) {
+        return conf.getInt("kafka.planning.threads", DEFAULT_PLANNING_THREADS);
+    }
+
+    /**
+     * Sets how long the brokers get to answer the offset requests for all of their partitions while planning the
+     * splits of the job, counting from when a planning thread starts on the broker. If a broker doesn't answer in
+     * time, planning fails, unless the job allows {@link #setPartialPlanning(Job, boolean) partial planning}. Note that
+     * each request is also bounded by the {@link #DEFAULT_SOCKET_TIMEOUT_MS socket timeout}.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param timeoutMs
+     *            the timeout, in milliseconds.
+     */
+    public static void setPlanningBrokerTimeoutMs(final Job job, final long timeoutMs) {
+        checkArgument(timeoutMs > 0, "timeoutMs must be positive: %s", timeoutMs);
+        job.getConfiguration().setLong("kafka.planning.broker.timeout.ms", timeoutMs);
+    }
+
+    /**
+     * Gets the planning timeout set by {@link #setPlanningBrokerTimeoutMs(Job, long)}, defaulting to
+     * {@link #DEFAULT_PLANNING_BROKER_TIMEOUT_MS} if it has not been set.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the timeout, in milliseconds.
+     */
+    public static long getPlanningBrokerTimeoutMs(final Configuration conf) {
+        return conf.getLong("kafka.planning.broker.timeout.ms", DEFAULT_PLANNING_BROKER_TIMEOUT_MS);
+    }
+
+    /**
+     * Sets whether the job is planned without the partitions of brokers that don't answer within
+     * {@link #setPlanningBrokerTimeoutMs(Job, long)}, rather than failing. Those partitions are left for the next run;
+     * any temporary offsets they have from an earlier, failed run are deleted while planning, so don't plan a job this
+     * way while another job of the same consumer groups is running.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param partial
+     *            whether to plan the job without the partitions of slow brokers.
+     */
+    public static void setPartialPlanning(final Job job, final boolean partial) {
+        job.getConfiguration().setBoolean("kafka.planning.partial", partial);
+    }
+
+    /**
+     * Gets whether the job is planned without the partitions of slow brokers, as set by
+     * {@link #setPartialPlanning(Job, boolean)}, {@code false} by default.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return {@code true} if the job is planned without the partitions of slow brokers.
+     */
+    public static boolean isPartialPlanning(final Configuration conf) {
+        return conf.getBoolean("kafka.planning.partial", false);
+    }
+
+    /**
+     * Sets the {@link BrokerLocationResolver} that maps brokers to the hosts their splits are local to. By default,
+     * splits are local to the host of their broker, which is all you need if your brokers run alongside NodeManagers
+     * and register with the same host names.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param resolver
+     *            the resolver class.
+     */
+    public static void setBrokerLocationResolver(final Job job,
+            final Class<? extends BrokerLocationResolver> resolver) {
+        job.getConfiguration().setClass("kafka.broker.location.resolver", resolver, BrokerLocationResolver.class);
+    }
+
+    /**
+     * Creates the {@link BrokerLocationResolver} set by {@link #setBrokerLocationResolver(Job, Class)}.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the resolver, or {@code null} if none has been set.
+     */
+    public static BrokerLocationResolver getBrokerLocationResolver(final Configuration conf) {
+        final Class<? extends BrokerLocationResolver> resolver = conf.getClass("kafka.broker.location.resolver", null,
+                BrokerLocationResolver.class);
+        return resolver != null ? ReflectionUtils.newInstance(resolver, conf) : null;
+    }
+
+    /**
+     * Orders the splits of the job so that consecutive splits are read from different brokers, rather than grouped by
+     * topic and partition. Since tasks are started in the order of their splits, this spreads the load of the first
+     * wave of tasks evenly across the brokers.
+     * <p/>
+     * Note that Hadoop (stably) sorts splits by size before scheduling them, so this only affects splits of the same
+     * size, e.g. the ones cut by {@link #setMaxSplitSizeBytes(Job, long)}.
+     * 
+     * @param job
+     *            the job being configured.
+     * @param interleave
+     *            whether to interleave the splits of the brokers.
+     */
+    public static void setInterleaveBrokers(final Job job, final boolean interleave) {
+        job.getConfiguration().setBoolean("kafka.planning.interleave.brokers", interleave);
+    }
+
+    /**
+     * Gets whether the splits of the brokers are interleaved, as set by {@link #setInterleaveBrokers(Job, boolean)},
+     * {@code false} by default.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return {@code true} if the splits of the brokers are interleaved.
+     */
+    public static boolean isInterleaveBrokers(final Configuration conf) {
+        return conf.getBoolean("kafka.planning.interleave.brokers", false);
+    }
 }
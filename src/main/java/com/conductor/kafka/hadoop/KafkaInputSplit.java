@@ -36,6 +36,9 @@ public class KafkaInputSplit extends InputSplit implements Writable {
     private long startOffset;
     private long endOffset;
     private boolean partitionCommitter;
+    private boolean aligned = true;
+    // only needed while the job is submitted, so this isn't serialized
+    private String[] locations;
 
     /**
      * The {@link Writable} constructor; use {@link #KafkaInputSplit(Partition, long, long, boolean)}.
@@ -45,10 +48,30 @@ public class KafkaInputSplit extends InputSplit implements Writable {
 
     public KafkaInputSplit(final Partition partition, final long startOffset, final long endOffset,
             final boolean partitionCommitter) {
+        this(partition, startOffset, endOffset, partitionCommitter, true);
+    }
+
+    /**
+     * @param partition
+     *            the partition.
+     * @param startOffset
+     *            the start offset (inclusive).
+     * @param endOffset
+     *            the end offset (exclusive).
+     * @param partitionCommitter
+     *            whether this split commits the offset of the partition.
+     * @param aligned
+     *            {@code false} if {@code startOffset} and {@code endOffset} are arbitrary byte positions that may fall
+     *            in the middle of a message, in which case the {@link KafkaRecordReader} reads every message that
+     *            <em>starts</em> in {@code [startOffset, endOffset)}.
+     */
+    public KafkaInputSplit(final Partition partition, final long startOffset, final long endOffset,
+            final boolean partitionCommitter, final boolean aligned) {
         this.partition = partition;
         this.startOffset = startOffset;
         this.endOffset = endOffset;
         this.partitionCommitter = partitionCommitter;
+        this.aligned = aligned;
     }
 
     @Override
@@ -58,6 +81,7 @@ public class KafkaInputSplit extends InputSplit implements Writable {
         this.startOffset = in.readLong();
         this.endOffset = in.readLong();
         this.partitionCommitter = in.readBoolean();
+        this.aligned = in.readBoolean();
     }
 
     @Override
@@ -66,6 +90,7 @@ public class KafkaInputSplit extends InputSplit implements Writable {
         out.writeLong(startOffset);
         out.writeLong(endOffset);
         out.writeBoolean(partitionCommitter);
+        out.writeBoolean(aligned);
     }
 
     @Override
@@ -73,9 +98,28 @@ public class KafkaInputSplit extends InputSplit implements Writable {
         return endOffset - startOffset;
     }
 
+    /**
+     * The split is local to the host of its partition's broker, unless the planner has {@link #setLocations(String[])
+     * set} other locations.
+     * 
+     * <p/>
+     * {@inheritDoc}
+     */
     @Override
     public String[] getLocations() throws IOException, InterruptedException {
-        return new String[] { toString() };
+        if (locations != null) {
+            return locations;
+        }
+        return new String[] { partition.getBroker().getHost() };
+    }
+
+    /**
+     * @param locations
+     *            the hosts this split is local to.
+     * @see BrokerLocationResolver
+     */
+    public void setLocations(final String[] locations) {
+        this.locations = locations;
     }
 
     public Partition getPartition() {
@@ -110,6 +154,14 @@ public class KafkaInputSplit extends InputSplit implements Writable {
         this.partitionCommitter = partitionCommitter;
     }
 
+    public boolean isAligned() {
+        return aligned;
+    }
+
+    public void setAligned(final boolean aligned) {
+        this.aligned = aligned;
+    }
+
     @Override
     public String toString() {
         return String.format("%s:%d:%s_%d[%d, %d]", partition.getBroker().getHost(), partition.getBroker().getPort(),
@@ -129,6 +181,8 @@ public class KafkaInputSplit extends InputSplit implements Writable {
             return false;
         if (partitionCommitter != that.partitionCommitter)
             return false;
+        if (aligned != that.aligned)
+            return false;
         if (startOffset != that.startOffset)
             return false;
         if (partition != null ? !partition.equals(that.partition) : that.partition != null)
@@ -143,6 +197,7 @@ public class KafkaInputSplit extends InputSplit implements Writable {
         result = 31 * result + (int) (startOffset ^ (startOffset >>> 32));
         result = 31 * result + (int) (endOffset ^ (endOffset >>> 32));
         result = 31 * result + (partitionCommitter ? 1 : 0);
+        result = 31 * result + (aligned ? 1 : 0);
         return result;
     }
 }
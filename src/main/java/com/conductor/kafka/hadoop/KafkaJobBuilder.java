@@ -19,6 +19,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Date;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
@@ -54,7 +55,8 @@ import com.google.common.collect.Lists;
  * The following are required settings:
  * <ol>
  * <li>The Zookeeper connection string: {@link #setZkConnect(String)}</li>
- * <li>At least one queue input: {@link #addQueueInput(String, String, Class)}</li>
+ * <li>At least one queue input: {@link #addQueueInput(String, String, Class)} or
+ * {@link #addQueuePatternInput(String, String, Class)}</li>
  * <li>One output format: {@link #setNullOutputFormat()}, {@link #setTextFileOutputFormat()}, or
  * {@link #setSequenceFileOutputFormat()}. If the output path is not specified, one will be generated for you.</li>
  * <li>If your output path is S3, you must also specify your S3 credentials using {@link #useS3(String, String, String)}
@@ -82,6 +84,7 @@ public final class KafkaJobBuilder {
 
     private String jobName;
     private List<TopicConf> queueMappers = Lists.newArrayList();
+    private List<TopicConf> queuePatternMappers = Lists.newArrayList();
     private Class<?> mapOutputKeyClass;
     private Class<?> mapOutputValueClass;
     private Class<? extends Partitioner> partitionerClass;
@@ -90,6 +93,7 @@ public final class KafkaJobBuilder {
     private Class<?> outputKeyClass;
     private Class<?> outputValueClass;
     private boolean lazyOutputFormat;
+    private boolean commitOffsetsWithOutput;
     private SupportedOutputFormat outputFormat;
     private String zkConnect;
     private String taskMemorySettings;
@@ -100,6 +104,8 @@ public final class KafkaJobBuilder {
     private String s3AccessKey;
     private String s3SecretyKey;
     private String outputFormatPath;
+    private long localExecutionMaxBytes;
+    private int localExecutionThreads;
 
     // enforce use of the builder
     private KafkaJobBuilder() {
@@ -121,9 +127,9 @@ public final class KafkaJobBuilder {
         final Job job = Job.getInstance(conf, getDefaultedJobName());
 
         // set queue inputs
-        if (getQueueMappers().size() == 1) {
-            job.setInputFormatClass(KafkaInputFormat.class);
+        if (getQueueMappers().size() == 1 && getQueuePatternMappers().isEmpty()) {
             final TopicConf topicConf = Iterables.getOnlyElement(getQueueMappers());
+            job.setInputFormatClass(MultipleKafkaInputFormat.getInputFormatClass(topicConf.getMapper()));
             KafkaInputFormat.setTopic(job, topicConf.getTopic());
             KafkaInputFormat.setConsumerGroup(job, topicConf.getConsumerGroup());
             job.setMapperClass(topicConf.getMapper());
@@ -133,6 +139,10 @@ public final class KafkaJobBuilder {
                 MultipleKafkaInputFormat.addTopic(job, topicConf.getTopic(), topicConf.getConsumerGroup(),
                         topicConf.getMapper());
             }
+            for (final TopicConf patternConf : getQueuePatternMappers()) {
+                MultipleKafkaInputFormat.addTopicPattern(job, patternConf.getTopic(), patternConf.getConsumerGroup(),
+                        patternConf.getMapper());
+            }
         }
 
         if (getMapOutputKeyClass() != null) {
@@ -175,6 +185,10 @@ public final class KafkaJobBuilder {
             LazyOutputFormat.setOutputFormatClass(job, getOutputFormatClass());
         }
 
+        if (isCommitOffsetsWithOutput()) {
+            KafkaOffsetOutputFormat.setOutputFormatClass(job, job.getOutputFormatClass());
+        }
+
         // setup kafka input format specifics
         KafkaInputFormat.setZkConnect(job, getZkConnect());
         KafkaInputFormat.setKafkaFetchSizeBytes(job, getKafkaFetchSizeBytes());
@@ -187,6 +201,14 @@ public final class KafkaJobBuilder {
             job.getConfiguration().set("mapred.child.java.opts", getTaskMemorySettings());
         }
 
+        // run small batches inside this JVM, unless they need more reducers than the local job runner runs
+        if (getLocalExecutionMaxBytes() > 0 && job.getNumReduceTasks() <= 1) {
+            final LocalKafkaJobRunner runner = new LocalKafkaJobRunner(getLocalExecutionThreads());
+            if (runner.estimateInputBytes(job.getConfiguration()) <= getLocalExecutionMaxBytes()) {
+                runner.configure(job);
+            }
+        }
+
         return job;
     }
 
@@ -256,6 +278,27 @@ public final class KafkaJobBuilder {
         return this;
     }
 
+    /**
+     * Adds every queue whose name matches {@code queueRegex} as an input to the job, resolved each time a job is
+     * planned; see {@link MultipleKafkaInputFormat#addTopicPattern(Job, String, String, Class)}.
+     * 
+     * @param queueRegex
+     *            the regular expression that the names of the queues to consume match.
+     * @param consumerGroup
+     *            the consumer group reading these queues.
+     * @param mapper
+     *            the mapper used to read the queues.
+     * @return {@code this}
+     */
+    public KafkaJobBuilder addQueuePatternInput(final String queueRegex, final String consumerGroup,
+            final Class<? extends Mapper> mapper) {
+        checkArgument(!Strings.isNullOrEmpty(queueRegex), "queueRegex is blank or null.");
+        checkArgument(!Strings.isNullOrEmpty(consumerGroup), "consumerGroup is blank or null.");
+        Pattern.compile(queueRegex);
+        getQueuePatternMappers().add(new TopicConf(queueRegex, consumerGroup, mapper));
+        return this;
+    }
+
     /**
      * Sets the map output key of the job (optional).
      * 
@@ -357,6 +400,29 @@ public final class KafkaJobBuilder {
         return this;
     }
 
+    /**
+     * Runs the job inside the JVM that submits it (optional), if it reads no more than {@code maxInputBytes}, which
+     * saves the startup time of a job on the cluster when there's little new data.
+     * <p/>
+     * Note that this makes {@link #configureJob(Configuration)} plan the splits of the job to estimate its input, and
+     * that the job plans them again when it's submitted. Since the local job runner runs at most one reduce task, a
+     * job with more {@link #setNumReduceTasks(int) reducers} always runs on the cluster, so that its output is
+     * partitioned the same way wherever it runs.
+     * 
+     * @param maxInputBytes
+     *            the maximum number of input bytes of a job that runs locally.
+     * @param threads
+     *            the number of map tasks to run at once when running locally.
+     * @return {@code this}
+     * @see LocalKafkaJobRunner
+     */
+    public KafkaJobBuilder setLocalExecution(final long maxInputBytes, final int threads) {
+        checkArgument(threads > 0, "threads must be positive: %s", threads);
+        this.localExecutionMaxBytes = maxInputBytes;
+        this.localExecutionThreads = threads;
+        return this;
+    }
+
     /**
      * Job will use {@link NullOutputFormat}.
      * 
@@ -447,6 +513,18 @@ public final class KafkaJobBuilder {
         return this;
     }
 
+    /**
+     * Job will commit its Kafka offsets when it commits its output, so there's no need to commit them once the job has
+     * finished.
+     * 
+     * @return {@code this}
+     * @see KafkaOffsetOutputFormat
+     */
+    public KafkaJobBuilder setCommitOffsetsWithOutput() {
+        this.commitOffsetsWithOutput = true;
+        return this;
+    }
+
     /**
      * Indicates that you intend to use S3 as a target for your output.
      * <p/>
@@ -473,7 +551,8 @@ public final class KafkaJobBuilder {
 
     private void validateSettings() {
         checkArgument(!Strings.isNullOrEmpty(getZkConnect()), "Did not specify a Zookeeper connection string");
-        checkArgument(!getQueueMappers().isEmpty(), "Did not specify input queue+mapper.");
+        checkArgument(!getQueueMappers().isEmpty() || !getQueuePatternMappers().isEmpty(),
+                "Did not specify input queue+mapper.");
         checkArgument(getOutputFormat() != null, "Did not specify an output format.");
         // if no output dir specified, must at least specify a bucket.
         if (usingS3() && Strings.isNullOrEmpty(getOutputFormatPath())) {
@@ -494,6 +573,13 @@ public final class KafkaJobBuilder {
             }
             jobName.append(String.format("queue %s mapped by %s", map.getTopic(), map.getMapper().getSimpleName()));
         }
+        for (final TopicConf map : getQueuePatternMappers()) {
+            if (jobName.length() > 0) {
+                jobName.append(" + ");
+            }
+            jobName.append(String.format("queues matching %s mapped by %s", map.getTopic(), map.getMapper()
+                    .getSimpleName()));
+        }
         if (getReducerClass() != null) {
             jobName.append(String.format(" -> reduced by %s", getReducerClass().getSimpleName()));
         }
@@ -508,6 +594,10 @@ public final class KafkaJobBuilder {
         return queueMappers;
     }
 
+    public List<TopicConf> getQueuePatternMappers() {
+        return queuePatternMappers;
+    }
+
     public Class<?> getMapOutputKeyClass() {
         return mapOutputKeyClass;
     }
@@ -532,6 +622,14 @@ public final class KafkaJobBuilder {
         return numReduceTasks;
     }
 
+    public long getLocalExecutionMaxBytes() {
+        return localExecutionMaxBytes;
+    }
+
+    public int getLocalExecutionThreads() {
+        return localExecutionThreads;
+    }
+
     public int getKafkaFetchSizeBytes() {
         return kafkaFetchSizeBytes;
     }
@@ -572,6 +670,10 @@ public final class KafkaJobBuilder {
         return lazyOutputFormat;
     }
 
+    public boolean isCommitOffsetsWithOutput() {
+        return commitOffsetsWithOutput;
+    }
+
     public String getS3AccessKey() {
         return s3AccessKey;
     }
@@ -0,0 +1,247 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import com.conductor.kafka.Partition;
+import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+
+/**
+ * Reports how many bytes consumer groups are behind on their topics, per partition, without planning a job.
+ * 
+ * <p/>
+ * The lag of a partition is the number of bytes between the last offset its group has committed and the latest offset
+ * of the partition, i.e. the bytes a {@link KafkaInputFormat} job would read (with the same
+ * {@link KafkaInputFormat#setIncludeOffsetsAfterTimestamp(org.apache.hadoop.mapreduce.Job, long) timestamp} setting,
+ * but without any limits). The brokers are queried in parallel, just as when planning splits.
+ * 
+ * <p/>
+ * From the command line, the reporter prints a tab-separated line per partition ({@code topic, group, broker ID,
+ * partition ID, latest offset, committed offset, lag}), and exits with {@link #NO_NEW_DATA} if none of the groups has
+ * anything to read, so a driver can skip submitting an empty job:
+ * 
+ * <pre>
+ * hadoop jar kangaroo.jar com.conductor.kafka.hadoop.KafkaLagReporter -D kafka.zk.connect=zk-1:2181 \
+ *     my_topic my_consumer_group [my_other_topic my_other_consumer_group ...]
+ * </pre>
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class KafkaLagReporter extends Configured implements Tool {
+
+    /**
+     * The exit code of the command line tool if there is no new data for any of the groups.
+     */
+    public static final int NO_NEW_DATA = 2;
+
+    /**
+     * Gets the lag of each group on the partitions of its topic.
+     * 
+     * @param topics
+     *            the topics.
+     * @param groups
+     *            the consumer group of each topic.
+     * @return the lag of every partition of each topic, in the order of {@code topics}.
+     * @throws IOException
+     *             if a broker fails.
+     */
+    public List<PartitionLag> getLag(final List<String> topics, final List<String> groups) throws IOException {
+        final ZkUtils zk = getZk(getConf());
+        try {
+            return getLag(zk, topics, groups);
+        } finally {
+            IOUtils.closeQuietly(zk);
+        }
+    }
+
+    /**
+     * Gets the lag of each group on the partitions of its topic, like {@link #getLag(List, List)}, but reads the
+     * partitions and committed offsets with {@code zk} rather than with a client of its own.
+     * 
+     * @param zk
+     *            the Zookeeper client to read with.
+     * @param topics
+     *            the topics.
+     * @param groups
+     *            the consumer group of each topic.
+     * @return the lag of every partition of each topic, in the order of {@code topics}.
+     * @throws IOException
+     *             if a broker fails.
+     */
+    public List<PartitionLag> getLag(final ZkUtils zk, final List<String> topics, final List<String> groups)
+            throws IOException {
+        checkArgument(topics.size() == groups.size(), "Expected a group for each of the %s topics, got %s",
+                topics.size(), groups.size());
+        final Configuration conf = getConf();
+        final List<List<Partition>> partitions = Lists.newArrayList();
+        final Map<String, List<Partition>> topicPartitions = zk.getPartitions(topics);
+        for (final String topic : topics) {
+            partitions.add(topicPartitions.get(topic));
+        }
+        final List<Map<Partition, Long>> lastCommits = KafkaInputFormat.getLastCommits(KafkaInputFormat
+                .getOffsetStore(conf, zk), groups, partitions);
+
+        // without any limits, the planner's offsets span from the last commit to the latest offset
+        final Configuration unlimited = new Configuration(conf);
+        unlimited.setInt("kafka.max.splits.per.partition", Integer.MAX_VALUE);
+        final List<Map<Partition, List<Long>>> partitionOffsets = getInputFormat().getPartitionOffsets(unlimited,
+                partitions, lastCommits);
+        final List<PartitionLag> result = Lists.newArrayList();
+        for (int i = 0; i < topics.size(); ++i) {
+            for (final Partition partition : partitions.get(i)) {
+                final Long lastCommit = lastCommits.get(i).get(partition);
+                final long committed = lastCommit != null ? lastCommit : -1;
+                final List<Long> offsets = partitionOffsets.get(i).get(partition);
+                if (offsets == null) {
+                    // its broker didn't answer in time
+                    result.add(new PartitionLag(groups.get(i), partition, -1, committed, -1));
+                } else if (offsets.isEmpty()) {
+                    result.add(new PartitionLag(groups.get(i), partition, committed, committed, 0));
+                } else {
+                    result.add(new PartitionLag(groups.get(i), partition, offsets.get(0), committed, offsets.get(0)
+                            - offsets.get(offsets.size() - 1)));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Prints the lag of each topic-group pair in {@code args}.
+     * 
+     * @param args
+     *            pairs of topics and consumer groups.
+     * @return {@code 0} if there is new data (or the lag of some partition is unknown), {@link #NO_NEW_DATA}
+     *         otherwise.
+     * @throws Exception
+     */
+    @Override
+    public int run(final String[] args) throws Exception {
+        if (args.length == 0 || args.length % 2 != 0) {
+            System.err.println("Usage: KafkaLagReporter <topic> <group> [<topic> <group> ...]");
+            ToolRunner.printGenericCommandUsage(System.err);
+            return -1;
+        }
+        final List<String> topics = Lists.newArrayList();
+        final List<String> groups = Lists.newArrayList();
+        for (int i = 0; i < args.length; i += 2) {
+            topics.add(args[i]);
+            groups.add(args[i + 1]);
+        }
+        boolean newData = false;
+        final PrintStream out = getOut();
+        for (final PartitionLag lag : getLag(topics, groups)) {
+            out.println(lag);
+            newData |= lag.getLag() != 0;
+        }
+        out.flush();
+        return newData ? 0 : NO_NEW_DATA;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        System.exit(ToolRunner.run(new KafkaLagReporter(), args));
+    }
+
+    /*
+     * We make the following methods visible for testing so that we can mock these components out in unit tests
+     */
+
+    @VisibleForTesting
+    KafkaInputFormat getInputFormat() {
+        return new KafkaInputFormat();
+    }
+
+    @VisibleForTesting
+    ZkUtils getZk(final Configuration conf) {
+        return new ZkUtils(conf);
+    }
+
+    @VisibleForTesting
+    PrintStream getOut() {
+        return System.out;
+    }
+
+    /**
+     * The lag of a consumer group on a partition.
+     */
+    public static class PartitionLag {
+        private final String group;
+        private final Partition partition;
+        private final long latestOffset;
+        private final long committedOffset;
+        private final long lag;
+
+        public PartitionLag(final String group, final Partition partition, final long latestOffset,
+                final long committedOffset, final long lag) {
+            this.group = group;
+            this.partition = partition;
+            this.latestOffset = latestOffset;
+            this.committedOffset = committedOffset;
+            this.lag = lag;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public Partition getPartition() {
+            return partition;
+        }
+
+        /**
+         * @return the latest offset of the partition, {@code -1} if unknown.
+         */
+        public long getLatestOffset() {
+            return latestOffset;
+        }
+
+        /**
+         * @return the last offset the group has committed, {@code -1} if it never has.
+         */
+        public long getCommittedOffset() {
+            return committedOffset;
+        }
+
+        /**
+         * @return the number of bytes the group is behind, {@code -1} if unknown.
+         */
+        public long getLag() {
+            return lag;
+        }
+
+        /**
+         * @return the tab-separated topic, group, broker ID, partition ID, latest offset, committed offset, and lag.
+         */
+        @Override
+        public String toString() {
+            return String.format("%s\t%s\t%d\t%d\t%d\t%d\t%d", partition.getTopic(), group, partition.getBroker()
+                    .getId(), partition.getPartId(), latestOffset, committedOffset, lag);
+        }
+    }
+}
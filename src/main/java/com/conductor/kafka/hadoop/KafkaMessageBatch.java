@@ -0,0 +1,116 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.conductor.kafka.Partition;
+
+/**
+ * A view of the messages of (part of) a fetched Kafka message set, handed to a {@link KafkaBatchMapper} by the
+ * {@link KafkaBatchRecordReader}.
+ * 
+ * <p/>
+ * The payloads are slices of the fetched buffer, so no message is copied. Like any other Hadoop input value, a batch
+ * (and its payloads) is reused by the record reader, so don't hold on to it after {@code mapBatch} returns: copy what
+ * you need to keep.
+ * 
+ * @see KafkaBatchMapper
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class KafkaMessageBatch {
+
+    private Partition partition;
+    private long[] offsets = new long[16];
+    private ByteBuffer[] payloads = new ByteBuffer[16];
+    private int size;
+
+    /**
+     * @return the partition the messages were read from.
+     */
+    public Partition getPartition() {
+        return partition;
+    }
+
+    /**
+     * @return the number of messages in the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return {@code true} if the batch has no messages.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets the offset of the {@code i}th message. Like the key that a {@link org.apache.hadoop.mapreduce.Mapper} of the
+     * {@link KafkaInputFormat} gets, this is the offset of the <em>next</em> message in the partition.
+     * 
+     * @param i
+     *            the index of the message in the batch.
+     * @return the offset of the message.
+     */
+    public long getOffset(final int i) {
+        checkIndex(i);
+        return offsets[i];
+    }
+
+    /**
+     * Gets the payload of the {@code i}th message, from its position to its limit. The buffer is a view of the fetched
+     * data: you may move its position and limit, but don't write to it.
+     * 
+     * @param i
+     *            the index of the message in the batch.
+     * @return the payload of the message.
+     */
+    public ByteBuffer getPayload(final int i) {
+        checkIndex(i);
+        return payloads[i];
+    }
+
+    void clear(final Partition partition) {
+        this.partition = partition;
+        // let go of the payloads, so we don't keep old fetch buffers alive
+        Arrays.fill(payloads, 0, size, null);
+        size = 0;
+    }
+
+    void add(final long offset, final ByteBuffer payload) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * size);
+            payloads = Arrays.copyOf(payloads, 2 * size);
+        }
+        offsets[size] = offset;
+        payloads[size] = payload;
+        ++size;
+    }
+
+    private void checkIndex(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(String.format("Index %d, size %d", i, size));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d messages from %s", size, partition);
+    }
+}
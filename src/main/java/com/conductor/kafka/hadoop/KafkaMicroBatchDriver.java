@@ -0,0 +1,453 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.conductor.kafka.Partition;
+import com.conductor.kafka.hadoop.KafkaLagReporter.PartitionLag;
+import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A long-running driver that runs the jobs of a {@link KafkaJobBuilder} back to back, so that the output stays within
+ * a minute or so of the Kafka queues, without the idle gaps of jobs that are started by cron.
+ * 
+ * <p/>
+ * Each batch is a job that reads (at most) the {@link KafkaInputFormat#setMaxBytesPerRun(Job, long) byte budget} that
+ * the driver picks from the lag of the consumer groups: the whole lag, unless that exceeds
+ * {@link #setMaxBatchBytes(long)}, or what the observed throughput of the previous batches reads in
+ * {@link #setTargetBatchDurationMs(long)}. While a batch runs, the driver measures the lag that the next batch will
+ * face, so that it can start as soon as the current batch has succeeded and its offsets are committed. When there's
+ * nothing to read, the driver sleeps {@link #setIdleSleepMs(long)} rather than running empty jobs.
+ * 
+ * <p/>
+ * Usage:
+ * 
+ * <pre>
+ * final KafkaMicroBatchDriver driver = new KafkaMicroBatchDriver(builder, conf).setMaxBatchBytes(1024 * 1024 * 1024);
+ * // runs until stop() is called, e.g. by a shutdown hook
+ * driver.run();
+ * driver.close();
+ * </pre>
+ * 
+ * The driver's getters expose its lag, throughput, and batch metrics, e.g. for a monitoring endpoint.
+ * 
+ * @see KafkaJobBuilder
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class KafkaMicroBatchDriver implements Runnable, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(KafkaMicroBatchDriver.class);
+
+    /**
+     * Default time to sleep when there's nothing to read, or after a failed batch, 10 seconds.
+     */
+    public static final long DEFAULT_IDLE_SLEEP_MS = TimeUnit.SECONDS.toMillis(10);
+
+    // the weight of the latest batch in the throughput estimate
+    private static final double THROUGHPUT_SMOOTHING = 0.5;
+    private static final long UNKNOWN = -1;
+
+    private final KafkaJobBuilder builder;
+    private final Configuration conf;
+    private final ExecutorService lagExecutor;
+    private long maxBatchBytes = Long.MAX_VALUE;
+    private long targetBatchDurationMs;
+    private long idleSleepMs = DEFAULT_IDLE_SLEEP_MS;
+    private volatile boolean stopped;
+    // stays open across batches, so that the cached metadata of the cluster is invalidated as soon as it changes
+    private ZkUtils zk;
+
+    // metrics, written by the driver's thread only
+    private volatile long lag = UNKNOWN;
+    private volatile double bytesPerMs;
+    private volatile long batches;
+    private volatile long failedBatches;
+    private volatile long bytesRead;
+    private volatile long lastBatchMs;
+
+    /**
+     * @param builder
+     *            configures the job of each batch.
+     * @param conf
+     *            the base conf of each job.
+     */
+    public KafkaMicroBatchDriver(final KafkaJobBuilder builder, final Configuration conf) {
+        this.builder = checkNotNull(builder, "builder");
+        this.conf = checkNotNull(conf, "conf");
+        this.lagExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("kafka-lag-monitor-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Runs batches until {@link #stop()} is called. A batch that fails is retried (from the same offsets, since they
+     * weren't committed) after {@link #getIdleSleepMs()}.
+     */
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                runBatch();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.info("Interrupted, stopping");
+                return;
+            } catch (final Exception e) {
+                ++failedBatches;
+                LOG.error("Batch failed", e);
+                try {
+                    sleep(idleSleepMs);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a single batch, or sleeps if there's nothing to read.
+     * 
+     * @return {@code true} if a job was run.
+     * @throws Exception
+     *             if the job couldn't be configured, submitted, or committed.
+     */
+    @VisibleForTesting
+    boolean runBatch() throws Exception {
+        final Job job = createJob();
+        watchMetadata(job.getConfiguration());
+        if (lag == UNKNOWN) {
+            lag = measureLagQuietly(job.getConfiguration());
+        }
+        final long batchBytes = chooseBatchBytes(lag == UNKNOWN ? Long.MAX_VALUE : lag, bytesPerMs,
+                targetBatchDurationMs, maxBatchBytes);
+        if (batchBytes <= 0) {
+            LOG.debug("Nothing to read, sleeping");
+            lag = UNKNOWN;
+            sleep(idleSleepMs);
+            return false;
+        }
+        if (batchBytes < Long.MAX_VALUE) {
+            KafkaInputFormat.setMaxBytesPerRun(job, batchBytes);
+        }
+        // what the batch read is the difference between these offsets and the ones it commits
+        final Map<String, Map<Partition, Long>> startOffsets = getCommittedOffsetsQuietly(job.getConfiguration());
+
+        final long startMs = System.currentTimeMillis();
+        job.submit();
+        // the offsets of this batch are only committed once it's done, so the lag measured meanwhile still includes it
+        final Future<Long> backlog = lagExecutor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return measureLag(job.getConfiguration());
+            }
+        });
+        final boolean success = job.waitForCompletion(false);
+        final long elapsedMs = System.currentTimeMillis() - startMs;
+        final long measured = getQuietly(backlog);
+        if (!success) {
+            ++failedBatches;
+            lag = measured;
+            LOG.warn(String.format("Batch of job %s failed after %d ms, retrying", job.getJobName(), elapsedMs));
+            sleep(idleSleepMs);
+            return true;
+        }
+
+        if (!commitOffsets(job.getConfiguration())) {
+            // the next batch reads the same data again
+            ++failedBatches;
+            lag = measured;
+            LOG.warn(String.format("Failed to commit the offsets of job %s, retrying", job.getJobName()));
+            sleep(idleSleepMs);
+            return true;
+        }
+        final Map<String, Map<Partition, Long>> endOffsets = getCommittedOffsetsQuietly(job.getConfiguration());
+        final long bytes = startOffsets == null || endOffsets == null ? UNKNOWN : getCommittedBytes(startOffsets,
+                endOffsets);
+        ++batches;
+        lastBatchMs = elapsedMs;
+        if (bytes != UNKNOWN) {
+            bytesRead += bytes;
+        }
+        if (bytes > 0 && elapsedMs > 0) {
+            final double batchBytesPerMs = bytes / (double) elapsedMs;
+            bytesPerMs = bytesPerMs == 0 ? batchBytesPerMs : THROUGHPUT_SMOOTHING * batchBytesPerMs
+                    + (1 - THROUGHPUT_SMOOTHING) * bytesPerMs;
+        }
+        lag = measured == UNKNOWN || bytes == UNKNOWN ? UNKNOWN : Math.max(0, measured - bytes);
+        LOG.info(String.format("Batch %d read %d bytes in %d ms (%.2f MB/s), %d bytes behind", batches, bytes,
+                elapsedMs, getBytesPerSecond() / (1024 * 1024), lag));
+        return true;
+    }
+
+    /**
+     * Picks the number of bytes the next batch reads.
+     * 
+     * @param lag
+     *            the number of bytes the consumer groups are behind.
+     * @param bytesPerMs
+     *            the throughput of the previous batches, {@code 0} if unknown.
+     * @param targetBatchDurationMs
+     *            the target duration of a batch, {@code 0} if none.
+     * @param maxBatchBytes
+     *            the maximum number of bytes per batch.
+     * @return the byte budget of the next batch, {@code 0} if there's nothing to read.
+     */
+    @VisibleForTesting
+    static long chooseBatchBytes(final long lag, final double bytesPerMs, final long targetBatchDurationMs,
+            final long maxBatchBytes) {
+        long cap = maxBatchBytes;
+        if (targetBatchDurationMs > 0 && bytesPerMs > 0) {
+            cap = Math.min(cap, Math.max(1, (long) (bytesPerMs * targetBatchDurationMs)));
+        }
+        return Math.min(lag, cap);
+    }
+
+    /**
+     * Counts the bytes between two commits of the partitions of a job; Kafka offsets are byte positions. Partitions
+     * that weren't committed at the start aren't counted, since the offset their first batch started at is unknown.
+     * 
+     * @param startOffsets
+     *            the committed offsets before the batch, by consumer group.
+     * @param endOffsets
+     *            the committed offsets after the batch, by consumer group.
+     * @return the number of bytes the batch read.
+     */
+    @VisibleForTesting
+    static long getCommittedBytes(final Map<String, Map<Partition, Long>> startOffsets,
+            final Map<String, Map<Partition, Long>> endOffsets) {
+        long bytes = 0;
+        for (final Map.Entry<String, Map<Partition, Long>> group : endOffsets.entrySet()) {
+            final Map<Partition, Long> start = startOffsets.get(group.getKey());
+            for (final Map.Entry<Partition, Long> end : group.getValue().entrySet()) {
+                final Long startOffset = start != null ? start.get(end.getKey()) : null;
+                if (startOffset != null) {
+                    // an offset that was reset backwards read nothing
+                    bytes += Math.max(0, end.getValue() - startOffset);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private Map<String, Map<Partition, Long>> getCommittedOffsetsQuietly(final Configuration jobConf) {
+        try {
+            return getCommittedOffsets(jobConf);
+        } catch (final IOException e) {
+            LOG.warn("Failed to read the committed offsets", e);
+            return null;
+        }
+    }
+
+    private long measureLagQuietly(final Configuration jobConf) {
+        try {
+            return measureLag(jobConf);
+        } catch (final IOException e) {
+            LOG.warn("Failed to measure the lag", e);
+            return UNKNOWN;
+        }
+    }
+
+    private long getQuietly(final Future<Long> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            LOG.warn("Failed to measure the lag", e.getCause());
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Stops {@link #run()} once the current batch is done.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void close() {
+        stop();
+        lagExecutor.shutdownNow();
+        synchronized (this) {
+            IOUtils.closeQuietly(zk);
+            zk = null;
+        }
+    }
+
+    /**
+     * Caps the number of bytes per batch (optional, unlimited by default), e.g. so that catching up after an outage
+     * doesn't take one huge batch.
+     * 
+     * @param maxBatchBytes
+     *            the maximum number of bytes per batch.
+     * @return {@code this}
+     */
+    public KafkaMicroBatchDriver setMaxBatchBytes(final long maxBatchBytes) {
+        checkArgument(maxBatchBytes > 0, "maxBatchBytes must be positive: %s", maxBatchBytes);
+        this.maxBatchBytes = maxBatchBytes;
+        return this;
+    }
+
+    /**
+     * Caps the number of bytes per batch at what the previous batches read in {@code targetBatchDurationMs}
+     * (optional), which keeps batches short when the driver is catching up.
+     * 
+     * @param targetBatchDurationMs
+     *            the target duration of a batch.
+     * @return {@code this}
+     */
+    public KafkaMicroBatchDriver setTargetBatchDurationMs(final long targetBatchDurationMs) {
+        checkArgument(targetBatchDurationMs > 0, "targetBatchDurationMs must be positive: %s", targetBatchDurationMs);
+        this.targetBatchDurationMs = targetBatchDurationMs;
+        return this;
+    }
+
+    /**
+     * Sets the time to sleep when there's nothing to read, or after a failed batch (optional, defaults to
+     * {@link #DEFAULT_IDLE_SLEEP_MS}).
+     * 
+     * @param idleSleepMs
+     *            the time to sleep.
+     * @return {@code this}
+     */
+    public KafkaMicroBatchDriver setIdleSleepMs(final long idleSleepMs) {
+        checkArgument(idleSleepMs >= 0, "idleSleepMs must not be negative: %s", idleSleepMs);
+        this.idleSleepMs = idleSleepMs;
+        return this;
+    }
+
+    public long getIdleSleepMs() {
+        return idleSleepMs;
+    }
+
+    /**
+     * @return the number of bytes the consumer groups are behind, as of the last batch, or {@code -1} if unknown.
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    /**
+     * @return the (smoothed) throughput of the batches, in bytes per second, including the overhead of each job.
+     */
+    public double getBytesPerSecond() {
+        return bytesPerMs * 1000;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getFailedBatches() {
+        return failedBatches;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getLastBatchMs() {
+        return lastBatchMs;
+    }
+
+    /*
+     * We make the following methods visible for testing so that we can mock these components out in unit tests
+     */
+
+    @VisibleForTesting
+    Job createJob() throws Exception {
+        return builder.configureJob(conf);
+    }
+
+    /**
+     * Measures how many bytes the consumer groups of a job are behind from the committed and latest offsets of their
+     * partitions (see {@link KafkaLagReporter}), which is much cheaper than planning the job's splits.
+     */
+    @VisibleForTesting
+    long measureLag(final Configuration jobConf) throws IOException {
+        final ZkUtils zk = watchMetadata(jobConf);
+        final List<String> topics = Lists.newArrayList();
+        final List<String> groups = Lists.newArrayList();
+        for (final Map.Entry<String, String> groupTopic : KafkaInputFormat.getGroupTopics(zk, jobConf).entries()) {
+            groups.add(groupTopic.getKey());
+            topics.add(groupTopic.getValue());
+        }
+        long lag = 0;
+        for (final PartitionLag partitionLag : getLagReporter(jobConf).getLag(zk, topics, groups)) {
+            if (partitionLag.getLag() < 0) {
+                throw new IOException(String.format("The broker of %s didn't report its latest offset in time",
+                        partitionLag.getPartition()));
+            }
+            lag += partitionLag.getLag();
+        }
+        return lag;
+    }
+
+    @VisibleForTesting
+    KafkaLagReporter getLagReporter(final Configuration jobConf) {
+        final KafkaLagReporter reporter = new KafkaLagReporter();
+        reporter.setConf(jobConf);
+        return reporter;
+    }
+
+    @VisibleForTesting
+    Map<String, Map<Partition, Long>> getCommittedOffsets(final Configuration jobConf) throws IOException {
+        return KafkaInputFormat.getCommittedOffsets(watchMetadata(jobConf), jobConf);
+    }
+
+    @VisibleForTesting
+    boolean commitOffsets(final Configuration jobConf) throws IOException {
+        return KafkaInputFormat.commitOffsets(watchMetadata(jobConf), jobConf);
+    }
+
+    /**
+     * Opens the client that watches the metadata of the cluster the first time it's needed; every job of the driver
+     * reads from the same cluster.
+     */
+    @VisibleForTesting
+    synchronized ZkUtils watchMetadata(final Configuration jobConf) {
+        if (zk == null) {
+            zk = getZk(jobConf);
+            zk.watchMetadata();
+        }
+        return zk;
+    }
+
+    @VisibleForTesting
+    ZkUtils getZk(final Configuration jobConf) {
+        return new ZkUtils(jobConf);
+    }
+
+    @VisibleForTesting
+    void sleep(final long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.io.IOException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.mapreduce.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.conductor.kafka.OffsetStore;
+import com.conductor.kafka.Partition;
+import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+
+/**
+ * An {@link OutputCommitter} that commits the Kafka offsets of a job along with its output, which another
+ * {@link OutputCommitter} commits. See {@link KafkaOffsetOutputFormat} for how to set it up.
+ * 
+ * <p/>
+ * Rather than each {@link KafkaInputSplit#isPartitionCommitter() partition committer} opening a Zookeeper session of
+ * its own to write a temporary offset, the record readers {@link #reportOffset(TaskAttemptContext, String, Partition,
+ * long) report} their offsets as files in the directory of their task attempt, under the job's staging directory, one
+ * directory per consumer group.
+ * Committing the task moves the offsets of the attempt into the directory of the task, so the offsets of failed and
+ * speculative attempts are left out, and committing the job writes the offsets of every task to Zookeeper in a single
+ * {@link OffsetStore#setLastCommits(Table) batch}, <em>after</em> the output of the job has been committed.
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class KafkaOffsetOutputCommitter extends OutputCommitter {
+    private static final Logger LOG = LoggerFactory.getLogger(KafkaOffsetOutputCommitter.class);
+
+    private static final String OFFSETS_DIR = "kafka-offsets";
+    private static final String TEMP_DIR = "_temporary";
+
+    private final OutputCommitter committer;
+
+    /**
+     * @param committer
+     *            the committer of the output of the job.
+     */
+    public KafkaOffsetOutputCommitter(final OutputCommitter committer) {
+        this.committer = committer;
+    }
+
+    /**
+     * Returns {@code true} if the offsets of the job configured by {@code conf} are committed by the
+     * {@link KafkaOffsetOutputCommitter}, rather than by hand, once the job has finished.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return whether the job commits its offsets when it commits its output.
+     */
+    public static boolean isEnabled(final Configuration conf) {
+        return KafkaOffsetOutputFormat.getOutputFormatClass(conf) != null;
+    }
+
+    /**
+     * Reports the offset that the next reader of {@code partition} should start at, to be committed along with the
+     * output of the task attempt that {@code context} belongs to.
+     * 
+     * @param context
+     *            the context of the task attempt.
+     * @param group
+     *            the consumer group.
+     * @param partition
+     *            the partition.
+     * @param offset
+     *            the offset to commit.
+     * @throws IOException
+     *             if the offset can't be written.
+     */
+    public static void reportOffset(final TaskAttemptContext context, final String group, final Partition partition,
+            final long offset) throws IOException {
+        final Configuration conf = context.getConfiguration();
+        // a task of the CombineKafkaInputFormat may read several partitions, and a task of the
+        // MultipleKafkaInputFormat may read the same partition for several groups
+        final Path file = new Path(new Path(getAttemptDir(context), group), partition.getTopic() + "-"
+                + partition.getBrokerPartition());
+        final FSDataOutputStream out = file.getFileSystem(conf).create(file, true);
+        try {
+            out.writeUTF(group);
+            partition.write(out);
+            out.writeLong(offset);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public void setupJob(final JobContext jobContext) throws IOException {
+        committer.setupJob(jobContext);
+    }
+
+    @Override
+    public void setupTask(final TaskAttemptContext taskContext) throws IOException {
+        committer.setupTask(taskContext);
+    }
+
+    @Override
+    public boolean needsTaskCommit(final TaskAttemptContext taskContext) throws IOException {
+        final Path attemptDir = getAttemptDir(taskContext);
+        return committer.needsTaskCommit(taskContext)
+                || attemptDir.getFileSystem(taskContext.getConfiguration()).exists(attemptDir);
+    }
+
+    @Override
+    public void commitTask(final TaskAttemptContext taskContext) throws IOException {
+        committer.commitTask(taskContext);
+        final Path attemptDir = getAttemptDir(taskContext);
+        final FileSystem fs = attemptDir.getFileSystem(taskContext.getConfiguration());
+        if (fs.exists(attemptDir)) {
+            final Path taskDir = getTaskDir(taskContext);
+            fs.delete(taskDir, true);
+            if (!fs.rename(attemptDir, taskDir)) {
+                throw new IOException(String.format("Could not rename %s to %s", attemptDir, taskDir));
+            }
+        }
+    }
+
+    @Override
+    public void abortTask(final TaskAttemptContext taskContext) throws IOException {
+        try {
+            committer.abortTask(taskContext);
+        } finally {
+            final Path attemptDir = getAttemptDir(taskContext);
+            attemptDir.getFileSystem(taskContext.getConfiguration()).delete(attemptDir, true);
+        }
+    }
+
+    /**
+     * Commits the output of the job, and then the offsets that its tasks have reported.
+     * 
+     * <p/>
+     * {@inheritDoc}
+     */
+    @Override
+    public void commitJob(final JobContext jobContext) throws IOException {
+        committer.commitJob(jobContext);
+        final Configuration conf = jobContext.getConfiguration();
+        final Path offsetsDir = getOffsetsDir(conf);
+        final FileSystem fs = offsetsDir.getFileSystem(conf);
+        final Table<String, Partition, Long> offsets = readOffsets(fs, offsetsDir);
+        if (!offsets.isEmpty()) {
+            final OffsetStore store = getOffsetStore(conf);
+            try {
+                if (!store.setLastCommits(offsets)) {
+                    throw new IOException(String.format("Could not commit the offsets of %d partitions",
+                            offsets.size()));
+                }
+            } finally {
+                IOUtils.closeQuietly(store);
+            }
+        }
+        LOG.info(String.format("Committed the offsets of %d partitions", offsets.size()));
+        fs.delete(offsetsDir, true);
+    }
+
+    @Override
+    public void abortJob(final JobContext jobContext, final JobStatus.State state) throws IOException {
+        try {
+            committer.abortJob(jobContext, state);
+        } finally {
+            final Path offsetsDir = getOffsetsDir(jobContext.getConfiguration());
+            offsetsDir.getFileSystem(jobContext.getConfiguration()).delete(offsetsDir, true);
+        }
+    }
+
+    /**
+     * The offsets of a task are kept in a directory of the task rather than of the application attempt, so they
+     * survive a restart of the application master as they are.
+     * 
+     * <p/>
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRecoverySupported() {
+        return committer.isRecoverySupported();
+    }
+
+    @Override
+    public void recoverTask(final TaskAttemptContext taskContext) throws IOException {
+        committer.recoverTask(taskContext);
+    }
+
+    @VisibleForTesting
+    static Table<String, Partition, Long> readOffsets(final FileSystem fs, final Path offsetsDir) throws IOException {
+        final Table<String, Partition, Long> offsets = HashBasedTable.create();
+        if (!fs.exists(offsetsDir)) {
+            return offsets;
+        }
+        for (final FileStatus taskDir : fs.listStatus(offsetsDir)) {
+            if (!taskDir.isDirectory() || taskDir.getPath().getName().equals(TEMP_DIR)) {
+                continue;
+            }
+            for (final FileStatus groupDir : fs.listStatus(taskDir.getPath())) {
+                for (final FileStatus file : fs.listStatus(groupDir.getPath())) {
+                    final FSDataInputStream in = fs.open(file.getPath());
+                    try {
+                        final String group = in.readUTF();
+                        final Partition partition = new Partition();
+                        partition.readFields(in);
+                        offsets.put(group, partition, in.readLong());
+                    } finally {
+                        IOUtils.closeQuietly(in);
+                    }
+                }
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * The directory of the reported offsets, {@code <job staging dir>/kafka-offsets}.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the directory of the reported offsets.
+     */
+    @VisibleForTesting
+    static Path getOffsetsDir(final Configuration conf) {
+        final String jobDir = conf.get(MRJobConfig.MAPREDUCE_JOB_DIR);
+        if (jobDir == null) {
+            throw new IllegalStateException("No " + MRJobConfig.MAPREDUCE_JOB_DIR + "; has the job been submitted?");
+        }
+        return new Path(jobDir, OFFSETS_DIR);
+    }
+
+    private static Path getAttemptDir(final TaskAttemptContext context) {
+        return new Path(new Path(getOffsetsDir(context.getConfiguration()), TEMP_DIR), context.getTaskAttemptID()
+                .toString());
+    }
+
+    private static Path getTaskDir(final TaskAttemptContext context) {
+        return new Path(getOffsetsDir(context.getConfiguration()), context.getTaskAttemptID().getTaskID().toString());
+    }
+
+    @VisibleForTesting
+    OffsetStore getOffsetStore(final Configuration conf) throws IOException {
+        final OffsetStore store = HdfsOffsetStore.get(conf);
+        return store != null ? store : new ZkUtils(conf);
+    }
+
+    public OutputCommitter getCommitter() {
+        return committer;
+    }
+}
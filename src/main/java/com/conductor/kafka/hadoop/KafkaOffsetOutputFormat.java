@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * An {@link OutputFormat} that writes through another output format, and wraps its {@link OutputCommitter} in a
+ * {@link KafkaOffsetOutputCommitter}, so that the Kafka offsets of the job are committed as part of committing the
+ * job, right after its output has been committed. Use it like the
+ * {@link org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat}:
+ * 
+ * <pre>
+ * job.setOutputFormatClass(TextOutputFormat.class);
+ * TextOutputFormat.setOutputPath(job, outputPath);
+ * ...
+ * KafkaOffsetOutputFormat.setOutputFormatClass(job, job.getOutputFormatClass());
+ * </pre>
+ * 
+ * There is then no need to commit the offsets once the job has finished, with
+ * {@link KafkaInputFormat#commitOffsets(com.conductor.kafka.zk.ZkUtils, Configuration)}.
+ * 
+ * @param <K>
+ *            the output key type.
+ * @param <V>
+ *            the output value type.
+ * @see KafkaOffsetOutputCommitter
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class KafkaOffsetOutputFormat<K, V> extends OutputFormat<K, V> {
+
+    static final String OUTPUT_FORMAT_CONF = "kafka.offsets.output.format.class";
+
+    private OutputFormat<K, V> outputFormat;
+
+    /**
+     * Makes the job commit its Kafka offsets when it commits its output, which {@code outputFormat} writes.
+     * 
+     * @param job
+     *            the job.
+     * @param outputFormat
+     *            the output format that writes the output of the job.
+     */
+    public static void setOutputFormatClass(final Job job, final Class<? extends OutputFormat> outputFormat) {
+        job.setOutputFormatClass(KafkaOffsetOutputFormat.class);
+        job.getConfiguration().setClass(OUTPUT_FORMAT_CONF, outputFormat, OutputFormat.class);
+    }
+
+    /**
+     * Gets the output format that writes the output of the job.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the output format, or {@code null} if the job doesn't use the {@link KafkaOffsetOutputFormat}.
+     */
+    public static Class<? extends OutputFormat> getOutputFormatClass(final Configuration conf) {
+        return conf.getClass(OUTPUT_FORMAT_CONF, null, OutputFormat.class);
+    }
+
+    @Override
+    public RecordWriter<K, V> getRecordWriter(final TaskAttemptContext context) throws IOException,
+            InterruptedException {
+        return getOutputFormat(context).getRecordWriter(context);
+    }
+
+    @Override
+    public void checkOutputSpecs(final JobContext context) throws IOException, InterruptedException {
+        getOutputFormat(context).checkOutputSpecs(context);
+    }
+
+    @Override
+    public OutputCommitter getOutputCommitter(final TaskAttemptContext context) throws IOException,
+            InterruptedException {
+        return new KafkaOffsetOutputCommitter(getOutputFormat(context).getOutputCommitter(context));
+    }
+
+    @SuppressWarnings("unchecked")
+    private OutputFormat<K, V> getOutputFormat(final JobContext context) {
+        if (outputFormat == null) {
+            final Configuration conf = context.getConfiguration();
+            final Class<? extends OutputFormat> outputFormatClass = getOutputFormatClass(conf);
+            if (outputFormatClass == null) {
+                throw new IllegalStateException(
+                        "No output format; see KafkaOffsetOutputFormat.setOutputFormatClass(Job, Class)");
+            }
+            outputFormat = ReflectionUtils.newInstance(outputFormatClass, conf);
+        }
+        return outputFormat;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.io.BytesWritable;
+
+/**
+ * A {@link BytesWritable} that wraps the payload of a Kafka message in the fetched buffer, rather than copying it.
+ * 
+ * <p/>
+ * Use {@link #getPayload()} to read the payload without copying it. The {@link BytesWritable} methods work as usual,
+ * but the first call to {@link #getBytes()} (or anything that needs the backing array) copies the payload, as
+ * {@link BytesWritable#getBytes()} must return an array that starts with the data.
+ * 
+ * <p/>
+ * The serialized form is identical to that of a {@link BytesWritable}. Note that Hadoop checks the exact value class
+ * of map output and of {@link org.apache.hadoop.io.SequenceFile}s, so declare {@code KafkaPayloadWritable} as the
+ * (map) output value class if you emit it as-is. Also note that {@link BytesWritable#set(BytesWritable)} reads the
+ * fields of its argument directly, so call {@link #getBytes()} before passing this to it.
+ * 
+ * @see KafkaInputFormat#setKafkaZeroCopyValues(org.apache.hadoop.mapreduce.Job, boolean)
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class KafkaPayloadWritable extends BytesWritable {
+
+    // the wrapped payload, or null if the value is held by the BytesWritable
+    private ByteBuffer payload;
+
+    public KafkaPayloadWritable() {
+    }
+
+    public KafkaPayloadWritable(final ByteBuffer payload) {
+        set(payload);
+    }
+
+    /**
+     * Wraps {@code payload}, from its position to its limit, without copying it.
+     * 
+     * @param payload
+     *            the payload.
+     */
+    public void set(final ByteBuffer payload) {
+        this.payload = payload;
+    }
+
+    /**
+     * @return a view of the value, from its position to its limit.
+     */
+    public ByteBuffer getPayload() {
+        if (payload != null) {
+            return payload.duplicate();
+        }
+        return ByteBuffer.wrap(super.getBytes(), 0, super.getLength());
+    }
+
+    /**
+     * Copies the wrapped payload (if any) into the backing array of the {@link BytesWritable}.
+     */
+    private void materialize() {
+        if (payload != null) {
+            final ByteBuffer toCopy = payload;
+            payload = null;
+            super.setSize(0);
+            if (toCopy.hasArray()) {
+                super.set(toCopy.array(), toCopy.arrayOffset() + toCopy.position(), toCopy.remaining());
+            } else {
+                final byte[] bytes = new byte[toCopy.remaining()];
+                toCopy.duplicate().get(bytes);
+                super.set(bytes, 0, bytes.length);
+            }
+        }
+    }
+
+    @Override
+    public byte[] getBytes() {
+        materialize();
+        return super.getBytes();
+    }
+
+    @Override
+    public byte[] copyBytes() {
+        if (payload != null) {
+            final byte[] bytes = new byte[payload.remaining()];
+            payload.duplicate().get(bytes);
+            return bytes;
+        }
+        return super.copyBytes();
+    }
+
+    @Override
+    public int getLength() {
+        return payload != null ? payload.remaining() : super.getLength();
+    }
+
+    @Override
+    public void setSize(final int size) {
+        materialize();
+        super.setSize(size);
+    }
+
+    @Override
+    public int getCapacity() {
+        materialize();
+        return super.getCapacity();
+    }
+
+    @Override
+    public void setCapacity(final int capacity) {
+        materialize();
+        super.setCapacity(capacity);
+    }
+
+    @Override
+    public void set(final BytesWritable newData) {
+        payload = null;
+        super.set(newData.getBytes(), 0, newData.getLength());
+    }
+
+    @Override
+    public void set(final byte[] newData, final int offset, final int length) {
+        payload = null;
+        super.set(newData, offset, length);
+    }
+
+    @Override
+    public void readFields(final DataInput in) throws IOException {
+        payload = null;
+        super.readFields(in);
+    }
+
+    @Override
+    public void write(final DataOutput out) throws IOException {
+        if (payload == null || !payload.hasArray()) {
+            materialize();
+            super.write(out);
+        } else {
+            out.writeInt(payload.remaining());
+            out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        }
+    }
+
+    @Override
+    public String toString() {
+        materialize();
+        return super.toString();
+    }
+}
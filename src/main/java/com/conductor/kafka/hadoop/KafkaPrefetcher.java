@@ -0,0 +1,226 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import kafka.message.ByteBufferMessageSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+
+/**
+ * Fetches the message sets of a {@link KafkaRecordReader}'s split on a background thread, so that the next offset range
+ * is (most likely) already in memory by the time the mapper has consumed the current one.
+ *
+ * <p/>
+ * At most {@code queueDepth} message sets are buffered at a time, and no new fetch is issued while the buffered message
+ * sets plus one more fetch would exceed {@code maxBufferedBytes}. A single message set is always allowed, so a memory
+ * cap smaller than the fetch size degrades to plain double-buffering instead of a deadlock.
+ *
+ * <p/>
+ * The prefetcher thread is the only user of the reader's consumer while it runs, so it closes the consumer once it has
+ * stopped.
+ *
+ * @see KafkaInputFormat#setKafkaPrefetchQueueDepth(org.apache.hadoop.mapreduce.Job, int)
+ * @see KafkaInputFormat#setKafkaPrefetchMaxBytes(org.apache.hadoop.mapreduce.Job, long)
+ *
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+class KafkaPrefetcher implements Closeable, Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(KafkaPrefetcher.class);
+
+    private final KafkaRecordReader reader;
+    private final long endOffset;
+    private final int queueDepth;
+    private final long maxBufferedBytes;
+    private final Thread thread;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Deque<ByteBufferMessageSet> queue = new ArrayDeque<ByteBufferMessageSet>();
+    private long bufferedBytes;
+    private boolean done;
+    private Throwable failure;
+    private volatile boolean closed;
+    private long nextOffset;
+
+    KafkaPrefetcher(final KafkaRecordReader reader, final long startOffset, final long endOffset,
+            final int queueDepth, final long maxBufferedBytes) {
+        this.reader = reader;
+        this.nextOffset = startOffset;
+        this.endOffset = endOffset;
+        this.queueDepth = queueDepth;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.thread = new Thread(this, "kafka-prefetcher-" + reader.getSplit());
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts fetching in the background.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Blocks until the next message set is available.
+     *
+     * @return the next message set of the split, or {@code null} if there is nothing left to read.
+     * @throws IOException
+     *             if fetching failed.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    ByteBufferMessageSet take() throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !done) {
+                notEmpty.await();
+            }
+            if (!queue.isEmpty()) {
+                final ByteBufferMessageSet messages = queue.poll();
+                bufferedBytes -= messages.sizeInBytes();
+                notFull.signal();
+                return messages;
+            }
+            if (failure != null) {
+                Throwables.propagateIfInstanceOf(failure, IOException.class);
+                throw Throwables.propagate(failure);
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The fetch loop, run on the prefetcher thread.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!closed && nextOffset < endOffset && awaitCapacity()) {
+                final ByteBufferMessageSet messages = reader.fetch(nextOffset, endOffset - nextOffset);
+                if (messages == null) {
+                    // offset out of range
+                    break;
+                }
+                final long validBytes = messages.validBytes();
+                offer(messages);
+                if (validBytes == 0) {
+                    // we can't make any progress from here; the reader will treat this like the end of the split
+                    break;
+                }
+                nextOffset += validBytes;
+            }
+        } catch (final Throwable t) {
+            if (!closed) {
+                LOG.error("Failed prefetching " + reader.getSplit(), t);
+                lock.lock();
+                try {
+                    failure = t;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            reader.closeConsumer();
+            lock.lock();
+            try {
+                done = true;
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Stops the prefetcher thread, discarding anything that was buffered but not consumed. A fetch in progress may
+     * outlast the socket timeout we wait for, in which case the thread closes the consumer after we return.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        lock.lock();
+        try {
+            queue.clear();
+            bufferedBytes = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        thread.interrupt();
+        try {
+            thread.join(KafkaInputFormat.getKafkaSocketTimeoutMs(reader.getConf()));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean awaitCapacity() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && !queue.isEmpty()
+                    && (queue.size() >= queueDepth || bufferedBytes + reader.getFetchSize() > maxBufferedBytes)) {
+                notFull.await();
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void offer(final ByteBufferMessageSet messages) {
+        lock.lock();
+        try {
+            queue.add(messages);
+            bufferedBytes += messages.sizeInBytes();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @VisibleForTesting
+    int getBufferedMessageSets() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @VisibleForTesting
+    long getBufferedBytes() {
+        lock.lock();
+        try {
+            return bufferedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
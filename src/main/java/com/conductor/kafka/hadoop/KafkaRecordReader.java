@@ -17,7 +17,9 @@ package com.conductor.kafka.hadoop;
 import static com.conductor.kafka.hadoop.KafkaInputFormat.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 import kafka.api.FetchRequest;
 import kafka.common.ErrorMapping;
@@ -34,12 +36,25 @@ import org.slf4j.LoggerFactory;
 
 import scala.collection.Iterator;
 
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.OffsetStore;
+import com.conductor.kafka.Partition;
 import com.conductor.kafka.zk.ZkUtils;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 
 /**
  * A record reader that reads a subsection, [{@link #getStart()}, {@link #getEnd()}), of a Kafka queue
- * {@link com.conductor.kafka.Partition}.
+ * {@link Partition}.
+ * 
+ * <p/>
+ * If the split is not {@link KafkaInputSplit#isAligned() aligned} to message boundaries, the reader first resyncs to
+ * the first valid message at or after {@link #getStart()}, and reads every message that starts before
+ * {@link #getEnd()}, including the one that straddles it.
+ * 
+ * <p/>
+ * If {@link KafkaInputFormat#setCheckpointDir(Job, org.apache.hadoop.fs.Path) checkpointing} is enabled, the reader
+ * starts at the offset that a previous attempt of the task has {@link KafkaCheckpoint#commit(long) committed}, if any.
  * 
  * <p/>
  * Thanks to <a href="https://github.com/miniway">Dongmin Yu</a> for providing the inspiration for this code.
@@ -57,7 +72,16 @@ import com.google.common.annotations.VisibleForTesting;
 public class KafkaRecordReader extends RecordReader<LongWritable, BytesWritable> {
     private static final Logger LOG = LoggerFactory.getLogger(KafkaInputFormat.class);
 
+    private static final int BOUNDARY_VALID = 0;
+    private static final int BOUNDARY_INVALID = 1;
+    private static final int BOUNDARY_INCOMPLETE = 2;
+    // the size prefix covers magic (1 byte) + attributes (1 byte, magic 1 only) + crc (4 bytes) + payload
+    private static final int MIN_MAGIC_0_MESSAGE_SIZE = 5;
+    private static final int MIN_MAGIC_1_MESSAGE_SIZE = 6;
+    private static final long STATUS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
     private Configuration conf;
+    private TaskAttemptContext context;
     private KafkaInputSplit split;
     private SimpleConsumer consumer;
     private Iterator<MessageAndOffset> currentMessageItr;
@@ -67,7 +91,26 @@ public class KafkaRecordReader extends RecordReader<LongWritable, BytesWritable>
     private long end;
     private long pos;
     private int fetchSize;
+    private boolean adaptiveFetchSize;
+    private boolean topicCounters;
+    private int minFetchSize;
+    private int maxFetchSize;
+    private int maxRetries;
+    private long retryBackoffMs;
     private long currentOffset;
+    private KafkaPrefetcher prefetcher;
+
+    // read path stats, kept by the mapper's thread and flushed to the counters once per message set
+    private long startNanos;
+    private long lastStatusNanos;
+    private long lastReturnNanos;
+    private long bytesRead;
+    private long messagesRead;
+    private long waitNanos;
+    private long mapperNanos;
+    private long reportedMessages;
+    private long reportedWaitMs;
+    private long reportedMapperMs;
 
     /**
      * {@inheritDoc}
@@ -82,13 +125,51 @@ public class KafkaRecordReader extends RecordReader<LongWritable, BytesWritable>
 
         final KafkaInputSplit inputSplit = (KafkaInputSplit) split;
         this.conf = context.getConfiguration();
+        this.context = context;
         this.split = inputSplit;
         this.start = inputSplit.getStartOffset();
         this.pos = inputSplit.getStartOffset();
         this.currentOffset = inputSplit.getStartOffset();
         this.end = inputSplit.getEndOffset();
         this.fetchSize = KafkaInputFormat.getKafkaFetchSizeBytes(conf);
+        this.adaptiveFetchSize = KafkaInputFormat.isKafkaAdaptiveFetchSize(conf);
+        this.topicCounters = MultipleKafkaInputFormat.isTopicCounters(conf);
+        if (adaptiveFetchSize) {
+            this.minFetchSize = KafkaInputFormat.getKafkaMinFetchSizeBytes(conf);
+            this.maxFetchSize = Math.max(minFetchSize, KafkaInputFormat.getKafkaMaxFetchSizeBytes(conf));
+            this.fetchSize = Math.min(maxFetchSize, Math.max(minFetchSize, fetchSize));
+        }
+        this.maxRetries = KafkaInputFormat.getKafkaFetchMaxRetries(conf);
+        this.retryBackoffMs = KafkaInputFormat.getKafkaFetchRetryBackoffMs(conf);
         this.consumer = getConsumer(inputSplit, conf);
+        final long checkpoint = getCheckpointDir(conf) != null ? getCheckpoint(context).getOffset() : -1;
+        if (checkpoint > start) {
+            // a previous attempt has flushed the output of everything before the checkpoint, and the checkpoint is
+            // the offset of a message, so there's no need to resync
+            LOG.info(String.format("%s resuming at checkpoint %d", inputSplit, checkpoint));
+            this.currentOffset = checkpoint;
+            this.pos = checkpoint;
+        } else if (!inputSplit.isAligned()) {
+            this.currentOffset = resync(start);
+            this.pos = currentOffset;
+        }
+        this.startNanos = System.nanoTime();
+        this.lastStatusNanos = startNanos;
+        this.lastReturnNanos = -1;
+        this.bytesRead = 0;
+        this.messagesRead = 0;
+        this.waitNanos = 0;
+        this.mapperNanos = 0;
+        this.reportedMessages = 0;
+        this.reportedWaitMs = 0;
+        this.reportedMapperMs = 0;
+        final int prefetchQueueDepth = KafkaInputFormat.getKafkaPrefetchQueueDepth(conf);
+        if (prefetchQueueDepth > 0) {
+            this.prefetcher = getPrefetcher(prefetchQueueDepth, KafkaInputFormat.getKafkaPrefetchMaxBytes(conf));
+            this.prefetcher.start();
+        } else {
+            this.prefetcher = null;
+        }
     }
 
     /**
@@ -96,7 +177,15 @@ public class KafkaRecordReader extends RecordReader<LongWritable, BytesWritable>
      */
     @Override
     public void close() throws IOException {
-        consumer.close();
+        if (prefetcher != null) {
+            // the prefetcher's thread closes the consumer once it has stopped, since it may still be fetching
+            prefetcher.close();
+        } else {
+            consumer.close();
+        }
+        reportStats();
+        LOG.info(getStatus());
+        recordThroughput();
         if (split.isPartitionCommitter()) {
             commitOffset();
         }
@@ -138,49 +227,454 @@ public class KafkaRecordReader extends RecordReader<LongWritable, BytesWritable>
             key = new LongWritable();
         }
         if (value == null) {
-            value = new BytesWritable();
+            value = isKafkaZeroCopyValues(conf) ? new KafkaPayloadWritable() : new BytesWritable();
         }
-        if (continueItr()) {
-            final MessageAndOffset msg = getCurrentMessageItr().next();
-            final long msgOffset = msg.offset();
+        final MessageAndOffset msg = nextMessage();
+        if (msg != null) {
             final Message message = msg.message();
             final ByteBuffer buffer = message.payload();
-            value.set(buffer.array(), buffer.arrayOffset(), message.payloadSize());
-            key.set(msgOffset);
-            pos = msgOffset;
+            if (value instanceof KafkaPayloadWritable) {
+                ((KafkaPayloadWritable) value).set(buffer);
+            } else {
+                value.set(buffer.array(), buffer.arrayOffset(), message.payloadSize());
+            }
+            key.set(msg.offset());
             return true;
         }
         return false;
     }
 
+    /**
+     * Advances to the next message of the split, without copying it.
+     * 
+     * @return the next message, or {@code null} if there are no messages left in the split.
+     * @throws IOException
+     *             if the next message is too large to fetch.
+     * @throws InterruptedException
+     *             if interrupted while waiting on the prefetcher.
+     * @see KafkaBatchRecordReader
+     */
+    MessageAndOffset nextMessage() throws IOException, InterruptedException {
+        if (lastReturnNanos >= 0) {
+            mapperNanos += System.nanoTime() - lastReturnNanos;
+        }
+        try {
+            if (!split.isAligned() && pos >= end) {
+                // the next message starts in the next split
+                return null;
+            }
+            if (continueItr()) {
+                final MessageAndOffset msg = getCurrentMessageItr().next();
+                pos = msg.offset();
+                ++messagesRead;
+                return msg;
+            }
+            return null;
+        } finally {
+            lastReturnNanos = System.nanoTime();
+        }
+    }
+
     /**
      * THIS METHOD HAS SIDE EFFECTS - it will update {@code currentMessageItr} (if necessary) and then return true iff
      * the iterator still has elements to be read. If you call {@link scala.collection.Iterator#next()} when this method
      * returns false, you risk a {@link NullPointerException} OR a no-more-elements exception.
      * 
      * @return true if you can call {@link scala.collection.Iterator#next()} on {@code currentMessageItr}.
+     * @throws IOException
+     *             if the next message is too large to fetch.
+     * @throws InterruptedException
+     *             if interrupted while waiting on the prefetcher.
      */
     @VisibleForTesting
-    boolean continueItr() {
+    boolean continueItr() throws IOException, InterruptedException {
         final long remaining = end - currentOffset;
         if (!canCallNext() && remaining > 0) {
-            final int theFetchSize = (fetchSize > remaining) ? (int) remaining : fetchSize;
+            final long waitStart = System.nanoTime();
+            final ByteBufferMessageSet msg = prefetcher != null ? prefetcher.take() : fetch(currentOffset, remaining);
+            waitNanos += System.nanoTime() - waitStart;
+            if (msg == null) {
+                // offset out of range
+                return false;
+            }
+            currentMessageItr = msg.iterator();
+            currentOffset += msg.validBytes();
+            bytesRead += msg.validBytes();
+            reportStats();
+        }
+        return canCallNext();
+    }
+
+    /**
+     * Fetches at most {@code remaining} bytes (capped by the fetch size) of messages starting at {@code offset}.
+     * <p/>
+     * Fetches that fail because of a socket or broker error are retried after reconnecting to the broker, see
+     * {@link KafkaInputFormat#setKafkaFetchMaxRetries(Job, int)}.
+     * <p/>
+     * If the fetch size is {@link KafkaInputFormat#setKafkaAdaptiveFetchSize(Job, boolean) adaptive}, it is adjusted
+     * after the fetch, and the fetch is retried with a larger fetch size if it didn't return a complete message.
+     * <p/>
+     * Note that this is called from the {@link KafkaPrefetcher} thread when prefetching is enabled, in which case the
+     * prefetcher is the only caller.
+     * 
+     * @param offset
+     *            the offset to fetch from.
+     * @param remaining
+     *            the number of bytes left in the split, starting at {@code offset}.
+     * @return the fetched messages, or {@code null} if {@code offset} is out of range.
+     * @throws IOException
+     *             if the message at {@code offset} doesn't fit into the maximum adaptive fetch size.
+     */
+    @VisibleForTesting
+    ByteBufferMessageSet fetch(final long offset, final long remaining) throws IOException {
+        return fetch(offset, remaining, true);
+    }
+
+    /**
+     * Fetches like {@link #fetch(long, long)}, but if {@code aligned} is {@code false}, {@code offset} is an arbitrary
+     * byte offset (see {@link #resync(long)}), so the fetched bytes don't start with a message size, and the fetch size
+     * is left alone.
+     */
+    private ByteBufferMessageSet fetch(final long offset, final long remaining, final boolean aligned)
+            throws IOException {
+        while (true) {
+            // unaligned splits have to be able to read past the end of the split to finish the last message
+            final int theFetchSize = (split.isAligned() && fetchSize > remaining) ? (int) remaining : fetchSize;
             LOG.debug(String.format("%s fetching %d bytes starting at offset %d", split.toString(), theFetchSize,
-                    currentOffset));
+                    offset));
             final FetchRequest request = new FetchRequest(split.getPartition().getTopic(), split.getPartition()
-                    .getPartId(), currentOffset, theFetchSize);
-            final ByteBufferMessageSet msg = consumer.fetch(request);
+                    .getPartId(), offset, theFetchSize);
+            final ByteBufferMessageSet msg = fetchWithRetries(request);
+            incrementCounter(KafkaCounter.FETCHES);
             final int errorCode = msg.getErrorCode();
             if (errorCode == ErrorMapping.OffsetOutOfRangeCode()) {
-                return false;
+                incrementCounter(KafkaCounter.OFFSETS_OUT_OF_RANGE);
+                return null;
             }
             if (errorCode != ErrorMapping.NoError()) {
                 ErrorMapping.maybeThrowException(errorCode);
-            } // --> else we try to grab the next iterator
-            currentMessageItr = msg.iterator();
-            currentOffset += msg.validBytes();
+            }
+            final long fetchedBytes = msg.sizeInBytes();
+            incrementCounter(KafkaCounter.BYTES_FETCHED, fetchedBytes);
+            if (fetchedBytes == 0) {
+                incrementCounter(KafkaCounter.EMPTY_FETCHES);
+            }
+            if (!adaptiveFetchSize || !aligned || theFetchSize < fetchSize) {
+                // a fetch capped by the end of the split (or not starting at a message) tells us nothing about the
+                // fetch size
+                return msg;
+            }
+            final int firstMessageSize = getFirstMessageSize(msg.getBuffer());
+            if (firstMessageSize > theFetchSize) {
+                if (firstMessageSize > maxFetchSize) {
+                    throw new IOException(String.format(
+                            "%s message at offset %d is %d bytes, larger than the maximum fetch size %d", split,
+                            offset, firstMessageSize, maxFetchSize));
+                }
+                fetchSize = (int) Math.min(maxFetchSize, Math.max(2 * (long) fetchSize, firstMessageSize));
+                LOG.info(String.format("%s escalated fetch size to %d bytes for the message at offset %d", split,
+                        fetchSize, offset));
+                incrementCounter(KafkaCounter.FETCH_SIZE_ESCALATIONS);
+                continue;
+            }
+            adaptFetchSize(msg.sizeInBytes());
+            return msg;
         }
-        return canCallNext();
+    }
+
+    private ByteBufferMessageSet fetchWithRetries(final FetchRequest request) throws IOException {
+        for (int retries = 0;; ++retries) {
+            try {
+                final ByteBufferMessageSet msg = consumer.fetch(request);
+                final int errorCode = msg.getErrorCode();
+                if (retries >= maxRetries || !isRetriable(errorCode)) {
+                    return msg;
+                }
+                LOG.warn(String.format("%s fetch at offset %d failed with error code %d, retrying", split,
+                        request.offset(), errorCode));
+            } catch (final Exception e) {
+                if (retries >= maxRetries) {
+                    Throwables.propagateIfInstanceOf(e, IOException.class);
+                    throw Throwables.propagate(e);
+                }
+                LOG.warn(String.format("%s fetch at offset %d failed, retrying", split, request.offset()), e);
+            }
+            try {
+                sleep(getRetryBackoffMs(retryBackoffMs, retries));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while retrying fetch of " + split);
+            }
+            reconnect();
+            incrementCounter(KafkaCounter.FETCH_RETRIES);
+        }
+    }
+
+    /**
+     * Replaces the consumer with one connected to the broker's current address in Zookeeper.
+     */
+    /**
+     * @return whether a fetch that failed with {@code errorCode} is worth retrying; the other errors (bad offset,
+     *         corrupt message, fetch size) would just happen again.
+     */
+    static boolean isRetriable(final int errorCode) {
+        return errorCode == ErrorMapping.UnknownCode() || errorCode == ErrorMapping.WrongPartitionCode();
+    }
+
+    /**
+     * @return how long to back off before retry number {@code retries} (starting at 0), which doubles each time.
+     */
+    static long getRetryBackoffMs(final long backoffMs, final int retries) {
+        return backoffMs * (1L << Math.min(retries, 16));
+    }
+
+    private void reconnect() {
+        consumer.close();
+        final Partition partition = split.getPartition();
+        ZkUtils zk = null;
+        try {
+            zk = getZk();
+            final Broker broker = zk.getBroker(partition.getBroker().getId());
+            if (broker != null && !broker.equals(partition.getBroker())) {
+                LOG.info(String.format("%s broker moved to %s:%d", split, broker.getHost(), broker.getPort()));
+                partition.setBroker(broker);
+            }
+        } catch (final Exception e) {
+            LOG.warn(String.format("%s could not look up broker %d, reconnecting to the same address", split,
+                    partition.getBroker().getId()), e);
+        } finally {
+            IOUtils.closeQuietly(zk);
+        }
+        consumer = getConsumer(split, conf);
+    }
+
+    /**
+     * Closes the consumer; called by the {@link KafkaPrefetcher} thread, which owns the consumer while it runs.
+     */
+    void closeConsumer() {
+        consumer.close();
+    }
+
+    private void adaptFetchSize(final long fetchedBytes) {
+        if (fetchedBytes >= fetchSize && fetchSize < maxFetchSize) {
+            fetchSize = (int) Math.min(maxFetchSize, 2 * (long) fetchSize);
+            LOG.debug(String.format("%s increased fetch size to %d bytes", split, fetchSize));
+            incrementCounter(KafkaCounter.FETCH_SIZE_INCREASES);
+        } else if (fetchedBytes < fetchSize / 4 && fetchSize > minFetchSize) {
+            fetchSize = Math.max(minFetchSize, fetchSize / 2);
+            LOG.debug(String.format("%s decreased fetch size to %d bytes", split, fetchSize));
+            incrementCounter(KafkaCounter.FETCH_SIZE_DECREASES);
+        }
+    }
+
+    /**
+     * @return the size (including the size prefix) of the first message in {@code buffer}, which is larger than the
+     *         buffer if the message is truncated, or {@code 0} if the buffer doesn't hold a size prefix.
+     */
+    @VisibleForTesting
+    static int getFirstMessageSize(final ByteBuffer buffer) {
+        return buffer.remaining() < 4 ? 0 : 4 + buffer.getInt(buffer.position());
+    }
+
+    private void incrementCounter(final KafkaCounter counter) {
+        incrementCounter(counter, 1);
+    }
+
+    private void incrementCounter(final KafkaCounter counter, final long amount) {
+        incrementCounter(context, counter, amount, topicCounters ? split.getPartition().getTopic() : null);
+    }
+
+    /**
+     * Increments {@code counter} by {@code amount}, and if {@code topic} isn't {@code null}, rolls it up into the
+     * counter group of the topic as well (see {@link KafkaCounter#isRolledUpPerTopic()}).
+     * 
+     * @param context
+     *            the task context.
+     * @param counter
+     *            the counter.
+     * @param amount
+     *            the amount to increment the counter by.
+     * @param topic
+     *            the topic read, or {@code null} if the job doesn't keep per-topic counters.
+     */
+    static void incrementCounter(final TaskAttemptContext context, final KafkaCounter counter, final long amount,
+            final String topic) {
+        if (amount == 0) {
+            return;
+        }
+        // the readers count with the context they're initialized with, which is the task's own even when reading a
+        // split of the MultipleKafkaInputFormat (its context clone only creates the reader), but a context made without
+        // a reporter, e.g. a TaskAttemptContextImpl built by hand, has no counters
+        final Counter c = context.getCounter(counter);
+        if (c != null) {
+            c.increment(amount);
+        }
+        if (topic != null && counter.isRolledUpPerTopic()) {
+            final Counter topicCounter = context.getCounter(KafkaCounter.getTopicGroup(topic), counter.name());
+            if (topicCounter != null) {
+                topicCounter.increment(amount);
+            }
+        }
+    }
+
+    /**
+     * Flushes the stats kept by the mapper's thread to the counters, and updates the task status every
+     * {@link #STATUS_INTERVAL_NANOS}.
+     */
+    private void reportStats() {
+        incrementCounter(KafkaCounter.MESSAGES_READ, messagesRead - reportedMessages);
+        reportedMessages = messagesRead;
+        final long waitMs = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        incrementCounter(KafkaCounter.FETCH_WAIT_MS, waitMs - reportedWaitMs);
+        reportedWaitMs = waitMs;
+        final long mapperMs = TimeUnit.NANOSECONDS.toMillis(mapperNanos);
+        incrementCounter(KafkaCounter.MAPPER_MS, mapperMs - reportedMapperMs);
+        reportedMapperMs = mapperMs;
+
+        final long now = System.nanoTime();
+        if (now - lastStatusNanos >= STATUS_INTERVAL_NANOS) {
+            lastStatusNanos = now;
+            context.setStatus(getStatus());
+        }
+    }
+
+    /**
+     * Records the throughput of this reader in the {@link KafkaThroughputStats}, if the job keeps any and the reader
+     * has read at least {@link KafkaInputFormat#getMinSplitSizeBytes(Configuration) a minimum split}. The stats only
+     * guide the split sizes of later runs, so failing to record them doesn't fail the task.
+     */
+    private void recordThroughput() {
+        if (getThroughputStatsDir(conf) == null || bytesRead < Math.max(1, getMinSplitSizeBytes(conf))) {
+            return;
+        }
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        final Partition partition = split.getPartition();
+        // a task of the CombineKafkaInputFormat reads several splits, which all need a file of their own
+        final String name = String.format("%s_%d_%d", context.getTaskAttemptID(), partition.getPartId(), start);
+        try {
+            getThroughputStats().record(partition.getTopic(), partition.getBroker().getId(), name, bytesRead, millis);
+        } catch (final IOException e) {
+            LOG.warn("Failed to record the throughput of " + split, e);
+        }
+    }
+
+    /**
+     * @return a summary of the throughput of this reader, and of where its time went.
+     */
+    @VisibleForTesting
+    String getStatus() {
+        final double seconds = Math.max(1, System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        return String.format("%s read %d messages (%.1f MB) at %.2f MB/s, waited %d ms on Kafka, mapped for %d ms",
+                split, messagesRead, bytesRead / (1024.0 * 1024), bytesRead / (1024.0 * 1024) / seconds,
+                TimeUnit.NANOSECONDS.toMillis(waitNanos), TimeUnit.NANOSECONDS.toMillis(mapperNanos));
+    }
+
+    /**
+     * Finds the first message boundary at or after {@code offset}, reading as far past the end of the split as it takes
+     * to find one.
+     * 
+     * @param offset
+     *            an arbitrary byte offset in the partition.
+     * @return the offset of the first message at or after {@code offset}, or the end of the readable log if there is no
+     *         such message.
+     * @throws IOException
+     *             if fetching fails.
+     */
+    @VisibleForTesting
+    long resync(final long offset) throws IOException {
+        long scanFrom = offset;
+        while (true) {
+            final ByteBufferMessageSet msg = fetch(scanFrom, end - scanFrom, false);
+            if (msg == null || !msg.getBuffer().hasRemaining()) {
+                // we've hit the end of the partition
+                return scanFrom;
+            }
+            // a message we can't fetch in one piece can't be read anyway, so it can't be a boundary either
+            final int boundary = findMessageBoundary(msg.getBuffer(), fetchSize - 4);
+            if (boundary >= 0) {
+                LOG.debug(String.format("%s resynced offset %d to %d", split, offset, scanFrom + boundary));
+                return scanFrom + boundary;
+            }
+            if (msg.getBuffer().remaining() < fetchSize) {
+                // we've read up to the end of the log, which is always a message boundary
+                return scanFrom + msg.getBuffer().remaining();
+            }
+            // a full fetch always holds a complete candidate at index 0, so this moves forward
+            scanFrom += Math.max(1, -(boundary + 1));
+        }
+    }
+
+    /**
+     * Scans {@code buffer} (from its position) for the first byte at which a complete, valid message starts.
+     * <p/>
+     * A position counts as a message boundary if the size, magic and attribute bytes are plausible, the checksum of
+     * the message matches, and the bytes after the message (if any) look like the header of another message.
+     * 
+     * @param buffer
+     *            raw bytes of a partition, starting at an arbitrary offset.
+     * @param maxMessageSize
+     *            the largest plausible message size; candidates claiming to be larger are skipped.
+     * @return the index (relative to the buffer's position) of the first message boundary, or
+     *         {@code -(index + 1)} if there is no boundary before {@code index}, but the bytes from {@code index} on
+     *         can't be verified without reading further.
+     */
+    @VisibleForTesting
+    static int findMessageBoundary(final ByteBuffer buffer, final int maxMessageSize) {
+        final int remaining = buffer.remaining();
+        for (int i = 0; i < remaining; ++i) {
+            final int candidate = checkMessageBoundary(buffer, buffer.position() + i, maxMessageSize);
+            if (candidate == BOUNDARY_VALID) {
+                return i;
+            } else if (candidate == BOUNDARY_INCOMPLETE) {
+                return -(i + 1);
+            }
+        }
+        return -(remaining + 1);
+    }
+
+    private static int checkMessageBoundary(final ByteBuffer buffer, final int index, final int maxMessageSize) {
+        final int header = checkMessageHeader(buffer, index, maxMessageSize);
+        if (header != BOUNDARY_VALID) {
+            return header;
+        }
+        final int size = buffer.getInt(index);
+        if (buffer.limit() - index - 4 < size) {
+            return BOUNDARY_INCOMPLETE;
+        }
+        final ByteBuffer messageBuffer = buffer.duplicate();
+        messageBuffer.position(index + 4);
+        final ByteBuffer message = messageBuffer.slice();
+        message.limit(size);
+        if (!new Message(message).isValid()) {
+            return BOUNDARY_INVALID;
+        }
+        // a matching checksum is convincing, but make sure the next message (if we have it) looks sane as well
+        final int next = index + 4 + size;
+        return checkMessageHeader(buffer, next, maxMessageSize) == BOUNDARY_INVALID ? BOUNDARY_INVALID : BOUNDARY_VALID;
+    }
+
+    private static int checkMessageHeader(final ByteBuffer buffer, final int index, final int maxMessageSize) {
+        final int available = buffer.limit() - index;
+        if (available < 5) {
+            return BOUNDARY_INCOMPLETE;
+        }
+        final int size = buffer.getInt(index);
+        final byte magic = buffer.get(index + 4);
+        if (size > maxMessageSize) {
+            return BOUNDARY_INVALID;
+        }
+        if (magic == 0) {
+            return size >= MIN_MAGIC_0_MESSAGE_SIZE ? BOUNDARY_VALID : BOUNDARY_INVALID;
+        }
+        if (magic != 1 || size < MIN_MAGIC_1_MESSAGE_SIZE) {
+            return BOUNDARY_INVALID;
+        }
+        if (available < 6) {
+            return BOUNDARY_INCOMPLETE;
+        }
+        // the attributes of a magic 1 message only hold the compression codec (none, gzip or snappy)
+        final int attributes = buffer.get(index + 5);
+        return attributes >= 0 && attributes <= 2 ? BOUNDARY_VALID : BOUNDARY_INVALID;
     }
 
     @VisibleForTesting
@@ -190,21 +684,38 @@ public class KafkaRecordReader extends RecordReader<LongWritable, BytesWritable>
 
     @VisibleForTesting
     void commitOffset() throws IOException {
-        ZkUtils zk = null;
+        if (KafkaOffsetOutputCommitter.isEnabled(conf)) {
+            // committed along with the output of the job
+            KafkaOffsetOutputCommitter.reportOffset(context, getConsumerGroup(conf), split.getPartition(),
+                    getCommitOffset());
+            return;
+        }
+        OffsetStore offsets = null;
         try {
-            zk = getZk();
+            offsets = getOffsetStore();
             /**
              * Note: last parameter (temp) MUST be true. It is up to the ToolRunner to commit offsets upon successful
              * job execution. Reason: since there are multiple input splits per partition, the consumer group could get
              * into a bad state if this split finished successfully and committed the offset while another input split
              * from the same partition didn't finish successfully.
              */
-            zk.setLastCommit(getConsumerGroup(conf), split.getPartition(), currentOffset, true);
+            offsets.setLastCommit(getConsumerGroup(conf), split.getPartition(), getCommitOffset(), true);
         } finally {
-            IOUtils.closeQuietly(zk);
+            IOUtils.closeQuietly(offsets);
         }
     }
 
+    /**
+     * The offset that the next reader of this partition should start at. For unaligned splits this is the start of the
+     * first message that has not been read, which may lie past {@link #getEnd()}.
+     * 
+     * @return the offset to commit.
+     */
+    @VisibleForTesting
+    long getCommitOffset() {
+        return split.isAligned() ? currentOffset : pos;
+    }
+
     /*
      * We make the following methods visible for testing so that we can mock these components out in unit tests
      */
@@ -215,11 +726,37 @@ public class KafkaRecordReader extends RecordReader<LongWritable, BytesWritable>
                 .getPort(), getKafkaSocketTimeoutMs(conf), getKafkaBufferSizeBytes(conf));
     }
 
+    @VisibleForTesting
+    KafkaPrefetcher getPrefetcher(final int queueDepth, final long maxBufferedBytes) {
+        return new KafkaPrefetcher(this, currentOffset, end, queueDepth, maxBufferedBytes);
+    }
+
+    @VisibleForTesting
+    KafkaCheckpoint getCheckpoint(final TaskAttemptContext context) throws IOException {
+        return KafkaCheckpoint.get(context);
+    }
+
+    @VisibleForTesting
+    KafkaThroughputStats getThroughputStats() throws IOException {
+        return KafkaThroughputStats.get(conf);
+    }
+
     @VisibleForTesting
     ZkUtils getZk() {
         return new ZkUtils(conf);
     }
 
+    @VisibleForTesting
+    OffsetStore getOffsetStore() throws IOException {
+        final OffsetStore store = HdfsOffsetStore.get(conf);
+        return store != null ? store : getZk();
+    }
+
+    @VisibleForTesting
+    void sleep(final long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
     public Configuration getConf() {
         return conf;
     }
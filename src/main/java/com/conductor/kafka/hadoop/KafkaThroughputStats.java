@@ -0,0 +1,226 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+/**
+ * The read throughput that map tasks have observed per topic and {@link com.conductor.kafka.Broker}, kept in the
+ * {@link KafkaInputFormat#setThroughputStatsDir(org.apache.hadoop.mapreduce.Job, Path) throughput stats directory}, so
+ * that later runs of a job can size their splits to {@link KafkaInputFormat#getTargetTaskDurationMs(Configuration)
+ * take about the same time}.
+ * 
+ * <p/>
+ * Each {@link KafkaRecordReader} {@link #record(String, int, String, long, long) records} how many bytes it read in how
+ * much time as a file of its own, {@code <dir>/<topic>/<broker id>-<task attempt id>}, so tasks never write to the same
+ * file. The planner of the next run {@link #load(String) loads} these observations, and merges them into a single
+ * summary file per broker, {@code <dir>/<topic>/<broker id>}, in which the runs before count for half as much each
+ * time. The new summary is written to {@code <dir>/<topic>/_<broker id>} first, and renamed into place once the
+ * merged observations and the old summary are gone, so a merge that crashes before the rename is finished by the next
+ * one.
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class KafkaThroughputStats {
+    private static final Logger LOG = LoggerFactory.getLogger(KafkaThroughputStats.class);
+
+    // the weight of the summary of the previous runs when merging in the observations of a new run
+    private static final double DECAY = 0.5;
+
+    private final FileSystem fs;
+    private final Path dir;
+
+    @VisibleForTesting
+    KafkaThroughputStats(final FileSystem fs, final Path dir) {
+        this.fs = fs;
+        this.dir = dir;
+    }
+
+    /**
+     * Gets the throughput stats of the job configured by {@code conf}.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the throughput stats, or {@code null} if the job doesn't keep any.
+     * @throws IOException
+     *             if the stats directory can't be resolved.
+     */
+    public static KafkaThroughputStats get(final Configuration conf) throws IOException {
+        final Path dir = KafkaInputFormat.getThroughputStatsDir(conf);
+        return dir != null ? new KafkaThroughputStats(dir.getFileSystem(conf), dir) : null;
+    }
+
+    /**
+     * Records that a task read {@code bytes} bytes of {@code topic} from broker {@code brokerId} in {@code millis}
+     * milliseconds.
+     * 
+     * @param topic
+     *            the topic.
+     * @param brokerId
+     *            the ID of the broker.
+     * @param name
+     *            a name that is unique to the reader, e.g. its task attempt ID.
+     * @param bytes
+     *            the number of bytes read.
+     * @param millis
+     *            the time it took to read (and map) them.
+     * @throws IOException
+     *             if the observation can't be written.
+     */
+    public void record(final String topic, final int brokerId, final String name, final long bytes,
+            final long millis) throws IOException {
+        write(new Path(new Path(dir, topic), brokerId + "-" + name), bytes, millis);
+    }
+
+    /**
+     * Loads the throughput of each broker of {@code topic}, merging the observations recorded since the last time into
+     * the summary of each broker.
+     * 
+     * @param topic
+     *            the topic.
+     * @return the throughput (in bytes per millisecond) of each broker ID that tasks have read {@code topic} from.
+     * @throws IOException
+     *             if the stats can't be read or merged.
+     */
+    public Map<Integer, Double> load(final String topic) throws IOException {
+        final Path topicDir = new Path(dir, topic);
+        if (!fs.exists(topicDir)) {
+            return Maps.newHashMap();
+        }
+        recover(topicDir);
+        final Map<Integer, double[]> summaries = Maps.newHashMap();
+        final Map<Integer, double[]> observations = Maps.newHashMap();
+        // tasks may record new observations while we merge, which are left for the next time
+        final Multimap<Integer, Path> loaded = ArrayListMultimap.create();
+        for (final FileStatus status : fs.listStatus(topicDir)) {
+            final String name = status.getPath().getName();
+            if (name.startsWith("_")) {
+                // the new summary of a merge that is still running
+                continue;
+            }
+            final int dash = name.indexOf('-');
+            final Integer brokerId = Integer.valueOf(dash < 0 ? name : name.substring(0, dash));
+            final Map<Integer, double[]> totals = dash < 0 ? summaries : observations;
+            final double[] total = totals.containsKey(brokerId) ? totals.get(brokerId) : new double[2];
+            final double[] read = read(status.getPath());
+            total[0] += read[0];
+            total[1] += read[1];
+            totals.put(brokerId, total);
+            loaded.put(brokerId, status.getPath());
+        }
+
+        final Map<Integer, Double> result = Maps.newHashMap();
+        for (final Integer brokerId : Sets.union(summaries.keySet(), observations.keySet())) {
+            final double[] total = summaries.containsKey(brokerId) ? summaries.get(brokerId) : new double[2];
+            if (observations.containsKey(brokerId)) {
+                total[0] = total[0] * DECAY + observations.get(brokerId)[0];
+                total[1] = total[1] * DECAY + observations.get(brokerId)[1];
+                merge(topicDir, brokerId, total, loaded.get(brokerId));
+            }
+            if (total[0] > 0 && total[1] > 0) {
+                result.put(brokerId, total[0] / total[1]);
+            }
+        }
+        LOG.debug(String.format("Throughput of %s in bytes/ms per broker: %s", topic, result));
+        return result;
+    }
+
+    private void merge(final Path topicDir, final int brokerId, final double[] total, final Collection<Path> merged)
+            throws IOException {
+        // write the new summary next to the old one, and only then drop the merged observations and the old summary,
+        // in that order, so that the new summary is complete whenever the old one is missing (see recover())
+        final Path summary = new Path(topicDir, Integer.toString(brokerId));
+        final Path tmp = new Path(topicDir, "_" + brokerId);
+        write(tmp, (long) total[0], (long) total[1]);
+        for (final Path path : merged) {
+            if (!path.equals(summary)) {
+                fs.delete(path, false);
+            }
+        }
+        fs.delete(summary, false);
+        if (!fs.rename(tmp, summary)) {
+            throw new IOException(String.format("Failed to rename %s to %s", tmp, summary));
+        }
+    }
+
+    /**
+     * Cleans up after the merges of {@code topicDir} that didn't finish. A new summary whose old summary is gone was
+     * written in full before the merge crashed (unless there was no old summary to begin with), so it is renamed into
+     * place; the others are dropped, since the old summary is still there (along with the observations the merge may
+     * not have deleted yet).
+     */
+    private void recover(final Path topicDir) throws IOException {
+        for (final FileStatus status : fs.listStatus(topicDir)) {
+            final String name = status.getPath().getName();
+            if (!name.startsWith("_")) {
+                continue;
+            }
+            final Path summary = new Path(topicDir, name.substring(1));
+            if (fs.exists(summary) || !isReadable(status.getPath())) {
+                fs.delete(status.getPath(), false);
+            } else if (fs.rename(status.getPath(), summary)) {
+                LOG.info(String.format("Recovered the throughput summary %s of a merge that didn't finish", summary));
+            } else {
+                throw new IOException(String.format("Failed to rename %s to %s", status.getPath(), summary));
+            }
+        }
+    }
+
+    private void write(final Path path, final long bytes, final long millis) throws IOException {
+        final FSDataOutputStream out = fs.create(path, true);
+        try {
+            out.writeLong(bytes);
+            out.writeLong(millis);
+        } finally {
+            out.close();
+        }
+    }
+
+    private boolean isReadable(final Path path) {
+        try {
+            read(path);
+            return true;
+        } catch (final IOException e) {
+            LOG.warn("Dropping the incomplete throughput summary " + path, e);
+            return false;
+        }
+    }
+
+    private double[] read(final Path path) throws IOException {
+        final FSDataInputStream in = fs.open(path);
+        try {
+            return new double[] { in.readLong(), in.readLong() };
+        } finally {
+            in.close();
+        }
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Runs a Kafka {@link Job} inside the JVM of the driver, rather than submitting it to the cluster, which saves the
+ * startup time of a YARN application on jobs that only have a few MB of new data to read.
+ * 
+ * <p/>
+ * The job is run by Hadoop's local job runner, so splits, record readers, mappers, counters, output committers, and
+ * reducer all work exactly as they do on the cluster, as long as the job has at most one reducer; the map tasks just
+ * run on a pool of threads. The {@link KafkaRecordReader}s write their temporary offsets as usual, and
+ * {@link #run(Job)} commits them once the job has succeeded.
+ * 
+ * <p/>
+ * Usage:
+ * 
+ * <pre>
+ * final Job job = builder.configureJob(conf);
+ * final LocalKafkaJobRunner runner = new LocalKafkaJobRunner(4);
+ * if (runner.estimateInputBytes(job.getConfiguration()) &lt; 64 * 1024 * 1024) {
+ *     runner.run(job);
+ * } else if (job.waitForCompletion(true)) {
+ *     // commit offsets
+ * }
+ * </pre>
+ * 
+ * {@link KafkaJobBuilder#setLocalExecution(long, int)} makes this choice for you.
+ * 
+ * @see KafkaJobBuilder
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class LocalKafkaJobRunner {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalKafkaJobRunner.class);
+
+    // the number of map tasks that Hadoop's LocalJobRunner runs at once
+    private static final String LOCAL_MAX_MAPS = "mapreduce.local.map.tasks.maximum";
+
+    private final int threads;
+
+    /**
+     * @param threads
+     *            the number of map tasks to run at once.
+     */
+    public LocalKafkaJobRunner(final int threads) {
+        checkArgument(threads > 0, "threads must be positive: %s", threads);
+        this.threads = threads;
+    }
+
+    /**
+     * Configures {@code job} to run inside this JVM.
+     * 
+     * @param job
+     *            the job.
+     * @throws IllegalArgumentException
+     *             if the job has more than one reducer, since the local job runner runs at most one reduce task, and
+     *             a single reducer would change how the output of the job is partitioned.
+     */
+    public void configure(final Job job) {
+        checkArgument(job.getNumReduceTasks() <= 1, "A job that runs locally has at most one reducer, not %s",
+                job.getNumReduceTasks());
+        job.getConfiguration().set(MRConfig.FRAMEWORK_NAME, MRConfig.LOCAL_FRAMEWORK_NAME);
+        job.getConfiguration().setInt(LOCAL_MAX_MAPS, threads);
+    }
+
+    /**
+     * Runs {@code job} inside this JVM, and commits the offsets of all of its topics if it succeeds.
+     * 
+     * @param job
+     *            the job.
+     * @return {@code true} if the job succeeded and its offsets were committed.
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ClassNotFoundException
+     */
+    public boolean run(final Job job) throws IOException, InterruptedException, ClassNotFoundException {
+        configure(job);
+        if (!job.waitForCompletion(true)) {
+            return false;
+        }
+        if (!commitOffsets(job.getConfiguration())) {
+            LOG.warn(String.format("Failed to commit the offsets of job %s", job.getJobName()));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Estimates how many bytes a job configured by {@code conf} would read, by planning its splits. The job plans its
+     * splits again when it runs, so this costs as many Zookeeper and broker round trips as planning the job.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return the total length of the splits of the job.
+     * @throws IOException
+     */
+    public long estimateInputBytes(final Configuration conf) throws IOException {
+        long bytes = 0;
+        try {
+            for (final InputSplit split : getInputSplits(conf)) {
+                bytes += split.getLength();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while estimating the input of the job", e);
+        }
+        LOG.info(String.format("Estimated %d input bytes", bytes));
+        return bytes;
+    }
+
+    /**
+     * Commits the temporary offsets of every topic of the job configured by {@code conf}.
+     * 
+     * @param conf
+     *            the job conf.
+     * @return true if the commit was successful, false otherwise.
+     */
+    @VisibleForTesting
+    boolean commitOffsets(final Configuration conf) throws IOException {
+        final ZkUtils zk = getZk(conf);
+        try {
+            return KafkaInputFormat.commitOffsets(zk, conf);
+        } finally {
+            IOUtils.closeQuietly(zk);
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /*
+     * We make the following methods visible for testing so that we can mock these components out in unit tests
+     */
+
+    @VisibleForTesting
+    List<InputSplit> getInputSplits(final Configuration conf) throws IOException, InterruptedException {
+        if (MultipleKafkaInputFormat.hasTopics(conf)) {
+            return new MultipleKafkaInputFormat().getSplits(Job.getInstance(conf));
+        }
+        return KafkaInputFormat.getSplits(conf, KafkaInputFormat.getTopic(conf),
+                KafkaInputFormat.getConsumerGroup(conf));
+    }
+
+    @VisibleForTesting
+    ZkUtils getZk(final Configuration conf) {
+        return new ZkUtils(conf);
+    }
+}
@@ -0,0 +1,585 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static com.conductor.kafka.hadoop.KafkaInputFormat.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import kafka.api.FetchRequest;
+import kafka.api.MultiFetchResponse;
+import kafka.common.ErrorMapping;
+import kafka.consumer.SimpleConsumer;
+import kafka.message.ByteBufferMessageSet;
+import kafka.message.Message;
+import kafka.message.MessageAndOffset;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.OffsetStore;
+import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A record reader that reads all of the {@link KafkaInputSplit}s of a {@link CombinedKafkaInputSplit} at once, fetching
+ * the next message set of every unfinished split with a single {@link SimpleConsumer#multifetch} request (or a few of
+ * them, see {@link CombineKafkaInputFormat#setMaxPartitionsPerMultiFetch(org.apache.hadoop.mapreduce.Job, int)}).
+ * 
+ * <p/>
+ * The messages of each round of fetches are handed out split by split, so the partitions are interleaved in chunks of
+ * one message set. Unaligned splits are resynced from the first message set fetched for them, exactly like the
+ * {@link KafkaRecordReader} does.
+ * 
+ * <p/>
+ * Failed requests are retried, and the {@link KafkaCounter}s and
+ * {@link KafkaInputFormat#setThroughputStatsDir(org.apache.hadoop.mapreduce.Job, org.apache.hadoop.fs.Path)
+ * throughput stats} are kept, like the {@link KafkaRecordReader} does. The throughput of each topic is recorded once
+ * for the whole task, since its splits are read at the same time.
+ * 
+ * <p/>
+ * Partition committers commit their offsets when the reader is closed.
+ * 
+ * @see CombineKafkaInputFormat#setUseMultiFetch(org.apache.hadoop.mapreduce.Job, boolean)
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+public class MultiFetchKafkaRecordReader extends RecordReader<LongWritable, BytesWritable> {
+    private static final Logger LOG = LoggerFactory.getLogger(MultiFetchKafkaRecordReader.class);
+
+    private Configuration conf;
+    private TaskAttemptContext context;
+    private CombinedKafkaInputSplit split;
+    private Broker broker;
+    private SimpleConsumer consumer;
+    private List<SplitState> splits;
+    private final Deque<SplitState> fetched = new ArrayDeque<SplitState>();
+    private SplitState current;
+    private LongWritable key;
+    private BytesWritable value;
+    private int fetchSize;
+    private int maxPartitionsPerFetch;
+    private int maxRetries;
+    private long retryBackoffMs;
+    private boolean topicCounters;
+    private long totalLength;
+
+    // read path stats, see KafkaRecordReader
+    private long startNanos;
+    private long lastReturnNanos;
+    private long waitNanos;
+    private long mapperNanos;
+    private long reportedWaitMs;
+    private long reportedMapperMs;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void initialize(final InputSplit split, final TaskAttemptContext context) throws IOException,
+            InterruptedException {
+        if (!(split instanceof CombinedKafkaInputSplit)) {
+            throw new IllegalArgumentException("Expected an InputSplit of type CombinedKafkaInputSplit but got "
+                    + split.getClass());
+        }
+        this.conf = context.getConfiguration();
+        this.context = context;
+        this.split = (CombinedKafkaInputSplit) split;
+        this.totalLength = split.getLength();
+        this.fetchSize = getKafkaFetchSizeBytes(conf);
+        this.maxPartitionsPerFetch = CombineKafkaInputFormat.getMaxPartitionsPerMultiFetch(conf);
+        this.maxRetries = getKafkaFetchMaxRetries(conf);
+        this.retryBackoffMs = getKafkaFetchRetryBackoffMs(conf);
+        this.topicCounters = MultipleKafkaInputFormat.isTopicCounters(conf);
+        this.splits = Lists.newArrayList();
+        for (final KafkaInputSplit kafkaSplit : this.split.getSplits()) {
+            this.splits.add(new SplitState(kafkaSplit));
+        }
+        this.fetched.clear();
+        this.current = null;
+        this.broker = this.split.getBroker();
+        this.consumer = getConsumer(broker, conf);
+        this.startNanos = System.nanoTime();
+        this.lastReturnNanos = -1;
+        this.waitNanos = 0;
+        this.mapperNanos = 0;
+        this.reportedWaitMs = 0;
+        this.reportedMapperMs = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+        if (key == null) {
+            key = new LongWritable();
+        }
+        if (value == null) {
+            value = isKafkaZeroCopyValues(conf) ? new KafkaPayloadWritable() : new BytesWritable();
+        }
+        if (lastReturnNanos >= 0) {
+            mapperNanos += System.nanoTime() - lastReturnNanos;
+        }
+        try {
+            while (true) {
+                if (current != null && current.hasNext()) {
+                    final MessageAndOffset msg = current.itr.next();
+                    final Message message = msg.message();
+                    final ByteBuffer buffer = message.payload();
+                    if (value instanceof KafkaPayloadWritable) {
+                        ((KafkaPayloadWritable) value).set(buffer);
+                    } else {
+                        value.set(buffer.array(), buffer.arrayOffset(), message.payloadSize());
+                    }
+                    key.set(msg.offset());
+                    current.pos = msg.offset();
+                    ++current.messagesRead;
+                    return true;
+                }
+                current = fetched.poll();
+                if (current == null) {
+                    final long waitStart = System.nanoTime();
+                    final boolean more = fetchNext();
+                    waitNanos += System.nanoTime() - waitStart;
+                    reportStats();
+                    if (!more) {
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            lastReturnNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Fetches the next message set of every unfinished split.
+     * 
+     * @return {@code true} if there are any splits left to read.
+     * @throws IOException
+     *             if the fetch fails after all of its retries, or if the next message of a split is too large to
+     *             fetch.
+     */
+    @VisibleForTesting
+    boolean fetchNext() throws IOException {
+        final List<SplitState> toFetch = Lists.newArrayList();
+        for (final SplitState state : splits) {
+            if (!state.isDone()) {
+                toFetch.add(state);
+            }
+        }
+        if (toFetch.isEmpty()) {
+            return false;
+        }
+        for (final List<SplitState> batch : Lists.partition(toFetch, maxPartitionsPerFetch)) {
+            final List<FetchRequest> requests = Lists.newArrayListWithCapacity(batch.size());
+            for (final SplitState state : batch) {
+                requests.add(state.createFetchRequest());
+            }
+            LOG.debug(String.format("Fetching %d partitions from %s", requests.size(), broker));
+            final List<ByteBufferMessageSet> responses = multifetchWithRetries(requests);
+            incrementCounter(KafkaCounter.FETCHES, requests.size(), null);
+            for (int i = 0; i < batch.size(); ++i) {
+                if (batch.get(i).handle(responses.get(i))) {
+                    fetched.add(batch.get(i));
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends a multi-fetch request, and retries it after reconnecting to the broker if it fails because of a socket or
+     * broker error, see {@link KafkaInputFormat#setKafkaFetchMaxRetries(org.apache.hadoop.mapreduce.Job, int)}.
+     */
+    private List<ByteBufferMessageSet> multifetchWithRetries(final List<FetchRequest> requests) throws IOException {
+        for (int retries = 0;; ++retries) {
+            try {
+                final List<ByteBufferMessageSet> responses = Lists.newArrayListWithCapacity(requests.size());
+                final Iterator<ByteBufferMessageSet> itr = multifetch(requests).iterator();
+                boolean retriable = false;
+                while (itr.hasNext()) {
+                    final ByteBufferMessageSet msg = itr.next();
+                    retriable |= KafkaRecordReader.isRetriable(msg.getErrorCode());
+                    responses.add(msg);
+                }
+                if (retries >= maxRetries || !retriable) {
+                    return responses;
+                }
+                LOG.warn(String.format("Fetch of %d partitions from %s failed with an error code, retrying",
+                        requests.size(), broker));
+            } catch (final Exception e) {
+                if (retries >= maxRetries) {
+                    Throwables.propagateIfInstanceOf(e, IOException.class);
+                    throw Throwables.propagate(e);
+                }
+                LOG.warn(String.format("Fetch of %d partitions from %s failed, retrying", requests.size(), broker), e);
+            }
+            try {
+                sleep(KafkaRecordReader.getRetryBackoffMs(retryBackoffMs, retries));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while retrying fetch from " + broker);
+            }
+            reconnect();
+            incrementCounter(KafkaCounter.FETCH_RETRIES, 1, null);
+        }
+    }
+
+    /**
+     * Replaces the consumer with one connected to the broker's current address in Zookeeper.
+     */
+    private void reconnect() {
+        consumer.close();
+        ZkUtils zk = null;
+        try {
+            zk = getZk();
+            final Broker moved = zk.getBroker(broker.getId());
+            if (moved != null && !moved.equals(broker)) {
+                LOG.info(String.format("Broker %d moved to %s:%d", broker.getId(), moved.getHost(), moved.getPort()));
+                broker = moved;
+                for (final SplitState state : splits) {
+                    state.split.getPartition().setBroker(moved);
+                }
+            }
+        } catch (final Exception e) {
+            LOG.warn(String.format("Could not look up broker %d, reconnecting to the same address", broker.getId()),
+                    e);
+        } finally {
+            IOUtils.closeQuietly(zk);
+        }
+        consumer = getConsumer(broker, conf);
+    }
+
+    private void incrementCounter(final KafkaCounter counter, final long amount, final String topic) {
+        KafkaRecordReader.incrementCounter(context, counter, amount, topicCounters ? topic : null);
+    }
+
+    /**
+     * Flushes the read path stats to the counters.
+     */
+    private void reportStats() {
+        for (final SplitState state : splits) {
+            incrementCounter(KafkaCounter.MESSAGES_READ, state.messagesRead - state.reportedMessages,
+                    state.split.getPartition().getTopic());
+            state.reportedMessages = state.messagesRead;
+        }
+        final long waitMs = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        incrementCounter(KafkaCounter.FETCH_WAIT_MS, waitMs - reportedWaitMs, null);
+        reportedWaitMs = waitMs;
+        final long mapperMs = TimeUnit.NANOSECONDS.toMillis(mapperNanos);
+        incrementCounter(KafkaCounter.MAPPER_MS, mapperMs - reportedMapperMs, null);
+        reportedMapperMs = mapperMs;
+    }
+
+    /**
+     * Records the throughput of each topic in the {@link KafkaThroughputStats}, if the job keeps any. The splits are
+     * read at the same time, so each topic counts the bytes of all of its splits against the time of the whole task.
+     * Topics of which less than {@link KafkaInputFormat#getMinSplitSizeBytes(Configuration) a minimum split} was read
+     * aren't recorded.
+     */
+    private void recordThroughput() {
+        if (getThroughputStatsDir(conf) == null) {
+            return;
+        }
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        final Map<String, Long> bytesRead = Maps.newHashMap();
+        for (final SplitState state : splits) {
+            final String topic = state.split.getPartition().getTopic();
+            final Long read = bytesRead.get(topic);
+            bytesRead.put(topic, (read != null ? read : 0) + state.bytesRead);
+        }
+        for (final Map.Entry<String, Long> entry : bytesRead.entrySet()) {
+            if (entry.getValue() < Math.max(1, getMinSplitSizeBytes(conf))) {
+                continue;
+            }
+            try {
+                getThroughputStats().record(entry.getKey(), broker.getId(), context.getTaskAttemptID().toString(),
+                        entry.getValue(), millis);
+            } catch (final IOException e) {
+                LOG.warn(String.format("Failed to record the throughput of %s from %s", entry.getKey(), broker), e);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LongWritable getCurrentKey() throws IOException, InterruptedException {
+        return key;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BytesWritable getCurrentValue() throws IOException, InterruptedException {
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+        if (totalLength == 0) {
+            return 1.0f;
+        }
+        long read = 0;
+        for (final SplitState state : splits) {
+            read += state.getBytesRead();
+        }
+        return Math.min(1.0f, read / (float) totalLength);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        if (consumer == null) {
+            // initialize() failed, so there's nothing to close, and nothing was read
+            return;
+        }
+        consumer.close();
+        reportStats();
+        recordThroughput();
+        OffsetStore offsets = null;
+        try {
+            for (final SplitState state : splits) {
+                if (state.split.isPartitionCommitter() && KafkaOffsetOutputCommitter.isEnabled(conf)) {
+                    KafkaOffsetOutputCommitter.reportOffset(context, getConsumerGroup(conf), state.split.getPartition(),
+                            state.getCommitOffset());
+                } else if (state.split.isPartitionCommitter()) {
+                    if (offsets == null) {
+                        offsets = getOffsetStore();
+                    }
+                    // temp commit, see KafkaRecordReader#commitOffset()
+                    offsets.setLastCommit(getConsumerGroup(conf), state.split.getPartition(), state.getCommitOffset(),
+                            true);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(offsets);
+        }
+    }
+
+    /**
+     * The read state of a single {@link KafkaInputSplit}.
+     */
+    private class SplitState {
+        private final KafkaInputSplit split;
+        // the next offset to fetch
+        private long offset;
+        // the offset of the next message to be read
+        private long pos;
+        private boolean synced;
+        private boolean done;
+        private Iterator<MessageAndOffset> itr;
+        private long bytesRead;
+        private long messagesRead;
+        private long reportedMessages;
+
+        SplitState(final KafkaInputSplit split) {
+            this.split = split;
+            this.offset = split.getStartOffset();
+            this.pos = split.getStartOffset();
+            this.synced = split.isAligned();
+        }
+
+        FetchRequest createFetchRequest() {
+            final long remaining = split.getEndOffset() - offset;
+            // unaligned splits have to be able to read past the end of the split to finish the last message
+            final int theFetchSize = (split.isAligned() && fetchSize > remaining) ? (int) remaining : fetchSize;
+            return new FetchRequest(split.getPartition().getTopic(), split.getPartition().getPartId(), offset,
+                    theFetchSize);
+        }
+
+        /**
+         * @return {@code true} if there are messages to read from {@code messages}.
+         * @throws IOException
+         *             if the next message is too large to fetch.
+         */
+        boolean handle(final ByteBufferMessageSet messages) throws IOException {
+            final String topic = split.getPartition().getTopic();
+            final int errorCode = messages.getErrorCode();
+            if (errorCode == ErrorMapping.OffsetOutOfRangeCode()) {
+                incrementCounter(KafkaCounter.OFFSETS_OUT_OF_RANGE, 1, topic);
+                done = true;
+                return false;
+            }
+            if (errorCode != ErrorMapping.NoError()) {
+                ErrorMapping.maybeThrowException(errorCode);
+            }
+            final long fetchedBytes = messages.sizeInBytes();
+            incrementCounter(KafkaCounter.BYTES_FETCHED, fetchedBytes, topic);
+            if (fetchedBytes == 0) {
+                incrementCounter(KafkaCounter.EMPTY_FETCHES, 1, topic);
+            }
+            ByteBufferMessageSet toRead = messages;
+            if (!synced) {
+                toRead = resync(messages);
+                if (toRead == null) {
+                    return false;
+                }
+            }
+            final ByteBuffer buffer = toRead.getBuffer();
+            if (!buffer.hasRemaining()) {
+                // we've hit the end of the partition
+                done = true;
+                return false;
+            }
+            final int firstMessageSize = KafkaRecordReader.getFirstMessageSize(buffer);
+            if (firstMessageSize == 0 || firstMessageSize > buffer.remaining()) {
+                // committing the offset would leave every later run stuck at this message
+                throw new IOException(String.format("%s message at offset %d is larger than the fetch size %d",
+                        split, offset, fetchSize));
+            }
+            final long validBytes = toRead.validBytes();
+            offset += validBytes;
+            bytesRead += validBytes;
+            itr = toRead.iterator();
+            return true;
+        }
+
+        /**
+         * Looks for the first message boundary in {@code messages}, which were fetched from {@code offset}. See
+         * {@link KafkaRecordReader#resync(long)}.
+         * 
+         * @return the messages starting at the boundary, or {@code null} if there is no boundary in {@code messages}.
+         */
+        private ByteBufferMessageSet resync(final ByteBufferMessageSet messages) {
+            final ByteBuffer buffer = messages.getBuffer();
+            if (!buffer.hasRemaining()) {
+                // we've hit the end of the partition
+                pos = offset;
+                done = true;
+                return null;
+            }
+            final int boundary = KafkaRecordReader.findMessageBoundary(buffer, fetchSize - 4);
+            if (boundary < 0) {
+                if (buffer.remaining() < fetchSize) {
+                    // we've read up to the end of the log, which is always a message boundary
+                    offset += buffer.remaining();
+                    pos = offset;
+                    synced = true;
+                } else {
+                    offset += Math.max(1, -(boundary + 1));
+                }
+                return null;
+            }
+            offset += boundary;
+            pos = offset;
+            synced = true;
+            if (pos >= split.getEndOffset()) {
+                return null;
+            }
+            final ByteBuffer slice = buffer.duplicate();
+            slice.position(buffer.position() + boundary);
+            return new ByteBufferMessageSet(slice.slice(), offset, ErrorMapping.NoError());
+        }
+
+        boolean hasNext() {
+            if (!split.isAligned() && pos >= split.getEndOffset()) {
+                // the next message starts in the next split
+                itr = null;
+                return false;
+            }
+            return itr != null && itr.hasNext();
+        }
+
+        boolean isDone() {
+            if (done) {
+                return true;
+            }
+            return split.isAligned() ? offset >= split.getEndOffset() : synced && pos >= split.getEndOffset();
+        }
+
+        long getCommitOffset() {
+            return split.isAligned() ? offset : pos;
+        }
+
+        long getBytesRead() {
+            return Math.max(0, Math.min(pos, split.getEndOffset()) - split.getStartOffset());
+        }
+    }
+
+    /*
+     * We make the following methods visible for testing so that we can mock these components out in unit tests
+     */
+
+    @VisibleForTesting
+    MultiFetchResponse multifetch(final List<FetchRequest> requests) {
+        return consumer.multifetch(JavaConversions.asBuffer(requests));
+    }
+
+    @VisibleForTesting
+    SimpleConsumer getConsumer(final Broker broker, final Configuration conf) {
+        return new SimpleConsumer(broker.getHost(), broker.getPort(), getKafkaSocketTimeoutMs(conf),
+                getKafkaBufferSizeBytes(conf));
+    }
+
+    @VisibleForTesting
+    KafkaThroughputStats getThroughputStats() throws IOException {
+        return KafkaThroughputStats.get(conf);
+    }
+
+    @VisibleForTesting
+    ZkUtils getZk() {
+        return new ZkUtils(conf);
+    }
+
+    @VisibleForTesting
+    OffsetStore getOffsetStore() throws IOException {
+        final OffsetStore store = HdfsOffsetStore.get(conf);
+        return store != null ? store : getZk();
+    }
+
+    @VisibleForTesting
+    void sleep(final long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
+    public Configuration getConf() {
+        return conf;
+    }
+
+    public CombinedKafkaInputSplit getSplit() {
+        return split;
+    }
+}
@@ -14,12 +14,15 @@
 
 package com.conductor.kafka.hadoop;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static java.lang.String.format;
 
 import java.io.IOException;
 import java.util.List;
 import java.util.Set;
+import java.util.regex.Pattern;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.LongWritable;
@@ -29,9 +32,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.conductor.hadoop.*;
+import com.conductor.kafka.zk.ZkUtils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 
 /**
@@ -43,6 +48,10 @@ import com.google.common.collect.Sets;
  * be sure not to override it!
  * 
  * <p/>
+ * Topics mapped by a {@link KafkaBatchMapper} are read with the {@link KafkaBatchInputFormat}, so their mappers get
+ * {@link KafkaMessageBatch}es rather than {@link BytesWritable}s.
+ * 
+ * <p/>
  * This class may be used safely in combination with {@link org.apache.hadoop.mapreduce.lib.input.MultipleInputs}.
  * 
  * @see KafkaInputFormat
@@ -55,10 +64,12 @@ public class MultipleKafkaInputFormat extends InputFormat<LongWritable, BytesWri
 
     static final Logger LOG = LoggerFactory.getLogger(KafkaInputFormat.class);
 
-    private static final String TOPICS_CONF = "kafka.topics";
+    static final String TOPICS_CONF = "kafka.topics";
+    static final String TOPIC_PATTERNS_CONF = "kafka.topic.patterns";
 
     /**
-     * Creates input splits for each {@link TopicConf} set up by {@link #addTopic(Job, String, String, Class)}.
+     * Creates input splits for each {@link TopicConf} set up by {@link #addTopic(Job, String, String, Class)}, and for
+     * each topic that currently matches a pattern added by {@link #addTopicPattern(Job, String, String, Class)}.
      * 
      * <p/>
      * {@inheritDoc}
@@ -67,23 +78,54 @@ public class MultipleKafkaInputFormat extends InputFormat<LongWritable, BytesWri
     public List<InputSplit> getSplits(final JobContext context) throws IOException, InterruptedException {
         final Configuration conf = context.getConfiguration();
         final List<InputSplit> splits = Lists.newArrayList();
-        final List<TopicConf> topicConfs = getTopics(conf);
-        warnOnDuplicateTopicConsumers(topicConfs);
-        for (final TopicConf topicConf : topicConfs) {
-            final String topic = topicConf.getTopic();
-            final String group = topicConf.getConsumerGroup();
-            final Class<? extends Mapper> delegateMapper = topicConf.getMapper();
-            for (final InputSplit inputSplit : getInputSplits(conf, group, topic)) {
-                splits.add(new TaggedInputSplit(inputSplit, conf, KafkaInputFormat.class, delegateMapper));
+        final List<TopicConf> topicConfs;
+        final List<List<InputSplit>> topicSplits;
+        // the topic patterns are resolved with the same Zookeeper client that plans the splits
+        final ZkUtils zk = getZk(conf);
+        try {
+            topicConfs = getTopics(conf, zk);
+            warnOnDuplicateTopicConsumers(topicConfs);
+            topicSplits = getInputSplits(zk, conf, topicConfs);
+        } finally {
+            IOUtils.closeQuietly(zk);
+        }
+        for (int i = 0; i < topicConfs.size(); ++i) {
+            final Class<? extends Mapper> delegateMapper = topicConfs.get(i).getMapper();
+            final Class<? extends InputFormat> inputFormat = getInputFormatClass(delegateMapper);
+            for (final InputSplit inputSplit : topicSplits.get(i)) {
+                splits.add(new TaggedInputSplit(inputSplit, conf, inputFormat, delegateMapper));
             }
         }
-        return splits;
+        return KafkaInputFormat.orderSplits(conf, splits);
+    }
+
+    /**
+     * Gets the {@link InputFormat} that reads the input of {@code mapper}, the {@link KafkaBatchInputFormat} for
+     * {@link KafkaBatchMapper}s and the {@link KafkaInputFormat} for everything else.
+     * 
+     * @param mapper
+     *            the mapper.
+     * @return the input format that reads the input of {@code mapper}.
+     */
+    public static Class<? extends InputFormat> getInputFormatClass(final Class<? extends Mapper> mapper) {
+        return KafkaBatchMapper.class.isAssignableFrom(mapper) ? KafkaBatchInputFormat.class : KafkaInputFormat.class;
     }
 
+    /**
+     * Plans the splits of all topics at once, so that they share a Zookeeper client and a connection to each broker.
+     */
     @VisibleForTesting
-    List<InputSplit> getInputSplits(final Configuration conf, final String group, final String topic)
+    List<List<InputSplit>> getInputSplits(final ZkUtils zk, final Configuration conf, final List<TopicConf> topicConfs)
             throws IOException {
-        return new KafkaInputFormat().getInputSplits(conf, topic, group);
+        final List<String> topics = Lists.newArrayList();
+        final List<String> groups = Lists.newArrayList();
+        final List<Double> weights = Lists.newArrayList();
+        for (final TopicConf topicConf : topicConfs) {
+            topics.add(topicConf.getTopic());
+            groups.add(topicConf.getConsumerGroup());
+            weights.add(getTopicWeight(conf, topicConf.getTopic()));
+        }
+        return new KafkaInputFormat().getInputSplits(zk, conf, topics, groups, weights);
     }
 
     private void warnOnDuplicateTopicConsumers(final List<TopicConf> topicConfs) {
@@ -121,24 +163,94 @@ public class MultipleKafkaInputFormat extends InputFormat<LongWritable, BytesWri
      *            the conf for this job.
      * @return all of the configured {@link TopicConf}s
      */
-    @SuppressWarnings("unchecked")
     public static List<TopicConf> getTopics(final Configuration conf) {
         final List<TopicConf> result = Lists.newArrayList();
+        if (Strings.isNullOrEmpty(conf.get(TOPICS_CONF))) {
+            return result;
+        }
         for (final String topicConf : conf.get(TOPICS_CONF).split(";")) {
             final String[] topicConfTokens = topicConf.split(",");
-            final String topic = topicConfTokens[0];
-            final String group = topicConfTokens[1];
-            final Class<? extends Mapper> mapper;
-            try {
-                mapper = (Class<? extends Mapper>) conf.getClassByName(topicConfTokens[2]);
-            } catch (final ClassNotFoundException e) {
-                throw new RuntimeException(e);
+            result.add(new TopicConf(topicConfTokens[0], topicConfTokens[1], getMapper(conf, topicConfTokens[2])));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a {@link List} containing <em>all</em> of the topic-group-{@link Mapper} combinations of the job, those
+     * added via {@link #addTopic(Job, String, String, Class)} followed by one for each topic in Zookeeper that matches
+     * a pattern added via {@link #addTopicPattern(Job, String, String, Class)}, which all of the patterns share a
+     * single read of. A topic that a consumer group already reads isn't matched again for the same group.
+     * 
+     * @param conf
+     *            the conf for this job.
+     * @param zk
+     *            the Zookeeper client to list the topics with.
+     * @return all of the configured {@link TopicConf}s, with the patterns resolved to the topics that currently exist.
+     */
+    public static List<TopicConf> getTopics(final Configuration conf, final ZkUtils zk) {
+        final List<TopicConf> result = getTopics(conf);
+        final List<TopicConf> patterns = getTopicPatterns(conf);
+        if (patterns.isEmpty()) {
+            return result;
+        }
+        final Set<String> topicConsumers = Sets.newHashSet();
+        for (final TopicConf topicConf : result) {
+            topicConsumers.add(format("%s,%s", topicConf.getTopic(), topicConf.getConsumerGroup()));
+        }
+        final List<String> topics = Ordering.natural().sortedCopy(zk.getTopics());
+        for (final TopicConf pattern : patterns) {
+            final Pattern regex = Pattern.compile(pattern.getTopic());
+            int matches = 0;
+            for (final String topic : topics) {
+                if (regex.matcher(topic).matches()
+                        && topicConsumers.add(format("%s,%s", topic, pattern.getConsumerGroup()))) {
+                    result.add(new TopicConf(topic, pattern.getConsumerGroup(), pattern.getMapper()));
+                    ++matches;
+                }
             }
-            result.add(new TopicConf(topic, group, mapper));
+            LOG.info(format("Pattern '%s' of group %s matched %d topics", pattern.getTopic(),
+                    pattern.getConsumerGroup(), matches));
         }
         return result;
     }
 
+    /**
+     * Returns the topic patterns added via {@link #addTopicPattern(Job, String, String, Class)}, as {@link TopicConf}s
+     * whose {@link TopicConf#getTopic() topic} is the regular expression.
+     * 
+     * @param conf
+     *            the conf for this job.
+     * @return the topic patterns of the job.
+     */
+    public static List<TopicConf> getTopicPatterns(final Configuration conf) {
+        final List<TopicConf> result = Lists.newArrayList();
+        for (int i = 0; i < conf.getInt(TOPIC_PATTERNS_CONF, 0); ++i) {
+            // the regex comes last, since it may contain commas
+            final String[] patternConfTokens = conf.get(format("%s.%d", TOPIC_PATTERNS_CONF, i)).split(",", 3);
+            result.add(new TopicConf(patternConfTokens[2], patternConfTokens[0], getMapper(conf,
+                    patternConfTokens[1])));
+        }
+        return result;
+    }
+
+    /**
+     * @param conf
+     *            the conf for this job.
+     * @return whether topics or topic patterns have been added to the job.
+     */
+    public static boolean hasTopics(final Configuration conf) {
+        return !Strings.isNullOrEmpty(conf.get(TOPICS_CONF)) || conf.getInt(TOPIC_PATTERNS_CONF, 0) > 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Mapper> getMapper(final Configuration conf, final String className) {
+        try {
+            return (Class<? extends Mapper>) conf.getClassByName(className);
+        } catch (final ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Adds a topic input that will be read with the provided {@code mapperClass}. This method also sets the job-level
      * mapper ({@link Job#setMapperClass(Class)}) to {@link DelegatingMapper}, which is required for this input format
@@ -168,6 +280,98 @@ public class MultipleKafkaInputFormat extends InputFormat<LongWritable, BytesWri
         }
     }
 
+    /**
+     * Adds every topic whose name matches {@code topicRegex} as an input that will be read with the provided
+     * {@code mapperClass}, like {@link #addTopic(Job, String, String, Class)} does for a single topic. The pattern is
+     * resolved each time the job is planned (and its offsets committed), so topics created since the last run are
+     * picked up by the next one, and the configuration doesn't grow with the number of topics. Since a pattern may
+     * match many topics, leave the {@link #setTopicCounters(Job, boolean) per-topic counters} off for such jobs.
+     * 
+     * @param job
+     *            the job
+     * @param topicRegex
+     *            the {@link Pattern regular expression} that the (whole) names of the topics to read match.
+     * @param consumerGroup
+     *            the consumer group for this particular input configuration.
+     * @param mapperClass
+     *            the mapper class that will read the topics
+     * @throws java.util.regex.PatternSyntaxException
+     *             if {@code topicRegex} isn't a valid regular expression.
+     */
+    public static void addTopicPattern(final Job job, final String topicRegex, final String consumerGroup,
+            final Class<? extends Mapper> mapperClass) {
+        Pattern.compile(topicRegex);
+        job.setMapperClass(DelegatingMapper.class);
+        final Configuration conf = job.getConfiguration();
+        final int patterns = conf.getInt(TOPIC_PATTERNS_CONF, 0);
+        conf.set(format("%s.%d", TOPIC_PATTERNS_CONF, patterns),
+                format("%s,%s,%s", consumerGroup, mapperClass.getName(), topicRegex));
+        conf.setInt(TOPIC_PATTERNS_CONF, patterns + 1);
+    }
+
+    /**
+     * Sets whether the {@link KafkaCounter#BYTES_FETCHED bytes} and {@link KafkaCounter#MESSAGES_READ messages} read
+     * are also counted per topic (off by default), in a counter group per topic. Mind that Hadoop limits the number of
+     * counters and counter groups of a job ({@code mapreduce.job.counters.max} and
+     * {@code mapreduce.job.counters.groups.max}), and fails jobs that exceed them, so only turn this on for jobs that
+     * read a few dozen topics at most.
+     * 
+     * @param job
+     *            the job
+     * @param topicCounters
+     *            whether to count per topic.
+     */
+    public static void setTopicCounters(final Job job, final boolean topicCounters) {
+        job.getConfiguration().setBoolean("kafka.topic.counters", topicCounters);
+    }
+
+    /**
+     * Gets whether the reads are counted per topic, as set by {@link #setTopicCounters(Job, boolean)}, {@code false}
+     * by default.
+     * 
+     * @param conf
+     *            the job conf
+     * @return {@code true} if the reads are counted per topic.
+     */
+    public static boolean isTopicCounters(final Configuration conf) {
+        return conf.getBoolean("kafka.topic.counters", false);
+    }
+
+    /**
+     * Sets the weight of {@code topic} in the {@link KafkaInputFormat#setMaxBytesPerRun(Job, long) byte budget} of a
+     * run. A topic with twice the weight of another gets twice its share of the budget, as long as it has the backlog
+     * to use it.
+     * 
+     * @param job
+     *            the job
+     * @param topic
+     *            the topic
+     * @param weight
+     *            the (positive) weight of the topic, {@code 1} by default.
+     */
+    public static void setTopicWeight(final Job job, final String topic, final double weight) {
+        checkArgument(weight > 0, "weight must be positive: %s", weight);
+        job.getConfiguration().set("kafka.topic.weight." + topic, Double.toString(weight));
+    }
+
+    /**
+     * Gets the weight of {@code topic} set by {@link #setTopicWeight(Job, String, double)}, {@code 1} by default.
+     * 
+     * @param conf
+     *            the job conf
+     * @param topic
+     *            the topic
+     * @return the weight of the topic.
+     */
+    public static double getTopicWeight(final Configuration conf, final String topic) {
+        return Double.parseDouble(conf.get("kafka.topic.weight." + topic, "1"));
+    }
+
+    @VisibleForTesting
+    ZkUtils getZk(final Configuration conf) {
+        return new ZkUtils(conf);
+    }
+
     /**
      * Represents a set of Kafka input to a Map/Reduce job, namely a topic and a {@link Mapper}.
      */
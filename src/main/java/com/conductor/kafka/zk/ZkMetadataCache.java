@@ -0,0 +1,121 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.zk;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.Partition;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The {@link Broker}s and topic {@link Partition}s of a Kafka cluster that {@link ZkUtils} has read from Zookeeper,
+ * kept for a limited time. Every {@link ZkUtils} of the same cluster (and TTL) in the JVM shares the same cache, so
+ * that the planner, the committer and long-running drivers read each znode once per TTL at most.
+ * 
+ * <p/>
+ * Cached values are never handed out themselves, since {@link Partition}s and {@link Broker}s are mutable.
+ * 
+ * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
+ */
+class ZkMetadataCache {
+
+    private static final ConcurrentMap<String, ZkMetadataCache> CACHES = Maps.newConcurrentMap();
+
+    private final Cache<Integer, Broker> brokers;
+    private final Cache<String, List<Partition>> partitions;
+
+    @VisibleForTesting
+    ZkMetadataCache(final long ttlMs) {
+        // a TTL of 0 caches nothing
+        this.brokers = CacheBuilder.newBuilder().expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS).build();
+        this.partitions = CacheBuilder.newBuilder().expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS).build();
+    }
+
+    /**
+     * Gets the shared cache of the Kafka cluster registered under {@code zkRoot} in {@code zkConnect}.
+     * 
+     * @param zkConnect
+     *            the Zookeeper connection string.
+     * @param zkRoot
+     *            the Zookeeper root of Kafka.
+     * @param ttlMs
+     *            the time to cache metadata for, in milliseconds.
+     * @return the cache.
+     */
+    static ZkMetadataCache get(final String zkConnect, final String zkRoot, final long ttlMs) {
+        final String key = String.format("%s%s@%d", zkConnect, zkRoot, ttlMs);
+        final ZkMetadataCache cache = CACHES.get(key);
+        if (cache != null) {
+            return cache;
+        }
+        final ZkMetadataCache newCache = new ZkMetadataCache(ttlMs);
+        final ZkMetadataCache existing = CACHES.putIfAbsent(key, newCache);
+        return existing != null ? existing : newCache;
+    }
+
+    Broker getBroker(final int id) {
+        final Broker broker = brokers.getIfPresent(id);
+        return broker != null ? copy(broker) : null;
+    }
+
+    void putBroker(final Broker broker) {
+        brokers.put(broker.getId(), copy(broker));
+    }
+
+    List<Partition> getPartitions(final String topic) {
+        final List<Partition> cached = partitions.getIfPresent(topic);
+        return cached != null ? copy(cached) : null;
+    }
+
+    void putPartitions(final String topic, final List<Partition> topicPartitions) {
+        partitions.put(topic, copy(topicPartitions));
+    }
+
+    /**
+     * Forgets everything, since the partitions refer to their brokers.
+     */
+    void invalidateBrokers() {
+        brokers.invalidateAll();
+        partitions.invalidateAll();
+    }
+
+    void invalidateTopics() {
+        partitions.invalidateAll();
+    }
+
+    void invalidateTopic(final String topic) {
+        partitions.invalidate(topic);
+    }
+
+    private static Broker copy(final Broker broker) {
+        return new Broker(broker.getHost(), broker.getPort(), broker.getId());
+    }
+
+    private static List<Partition> copy(final List<Partition> partitions) {
+        final List<Partition> copies = Lists.newArrayListWithCapacity(partitions.size());
+        for (final Partition partition : partitions) {
+            copies.add(new Partition(partition.getTopic(), partition.getPartId(), partition.getBroker() != null ? copy(
+                    partition.getBroker()) : null));
+        }
+        return copies;
+    }
+}
@@ -14,32 +14,59 @@
 
 package com.conductor.kafka.zk;
 
+import static com.google.common.base.Preconditions.checkState;
 import static java.lang.String.format;
 
-import java.io.Closeable;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.I0Itec.zkclient.IZkChildListener;
 import org.I0Itec.zkclient.ZkClient;
+import org.I0Itec.zkclient.ZkConnection;
+import org.I0Itec.zkclient.exception.ZkException;
+import org.I0Itec.zkclient.exception.ZkInterruptedException;
 import org.I0Itec.zkclient.exception.ZkMarshallingError;
 import org.I0Itec.zkclient.exception.ZkNoNodeException;
 import org.I0Itec.zkclient.serialize.ZkSerializer;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.conductor.kafka.Broker;
+import com.conductor.kafka.OffsetStore;
 import com.conductor.kafka.Partition;
 import com.conductor.kafka.hadoop.KafkaInputFormat;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.Ranges;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
 
 /**
  * This class wraps some of the Kafka interactions with Zookeeper, namely {@link Broker} and {@link Partition} queries,
- * as well as consumer group offset operations and queries.
+ * as well as consumer group offset operations and queries, which makes it the default {@link OffsetStore}.
  * 
  * <p/>
  * Thanks to <a href="https://github.com/miniway">Dongmin Yu</a> for providing the inspiration for this code.
@@ -50,17 +77,51 @@ import com.google.common.collect.Ranges;
  * 
  * @author <a href="mailto:cgreen@conductor.com">Casey Green</a>
  */
-public class ZkUtils implements Closeable {
+public class ZkUtils implements OffsetStore {
 
     private static Logger LOG = LoggerFactory.getLogger(ZkUtils.class);
 
+    /**
+     * The most partitions that {@link #commit(Multimap)} commits in a single Zookeeper transaction, which keeps each
+     * transaction well below Zookeeper's maximum request size.
+     */
+    public static final int MAX_PARTITIONS_PER_TRANSACTION = 1000;
+
     private final ZkClient client;
+    private final ZkConnection connection;
     private final String zkRoot;
+    private final ZkMetadataCache metadata;
+    private final IZkChildListener metadataWatcher = new IZkChildListener() {
+        @Override
+        public void handleChildChange(final String parentPath, final List<String> children) {
+            LOG.info("Metadata changed under " + parentPath);
+            if (parentPath.equals(getBrokerIdSubPath())) {
+                metadata.invalidateBrokers();
+            } else if (parentPath.equals(getTopicsSubPath())) {
+                metadata.invalidateTopics();
+            } else {
+                metadata.invalidateTopic(parentPath.substring(parentPath.lastIndexOf('/') + 1));
+            }
+        }
+    };
+    private volatile boolean watchingMetadata;
 
     @VisibleForTesting
     ZkUtils(final ZkClient client, final String zkRoot) {
+        this(client, zkRoot, new ZkMetadataCache(KafkaInputFormat.DEFAULT_ZK_METADATA_CACHE_TTL_MS));
+    }
+
+    @VisibleForTesting
+    ZkUtils(final ZkClient client, final String zkRoot, final ZkMetadataCache metadata) {
+        this(client, null, zkRoot, metadata);
+    }
+
+    private ZkUtils(final ZkClient client, final ZkConnection connection, final String zkRoot,
+            final ZkMetadataCache metadata) {
         this.client = client;
+        this.connection = connection;
         this.zkRoot = zkRoot.endsWith("/") ? zkRoot.substring(0, zkRoot.length() - 1) : zkRoot;
+        this.metadata = metadata;
     }
 
     /**
@@ -77,7 +138,35 @@ public class ZkUtils implements Closeable {
      */
     public ZkUtils(final String zkConnectionString, final String zkRoot, final int sessionTimeout,
             final int connectionTimeout) {
-        this(new ZkClient(zkConnectionString, sessionTimeout, connectionTimeout, new StringSerializer()), zkRoot);
+        this(zkConnectionString, zkRoot, sessionTimeout, connectionTimeout,
+                KafkaInputFormat.DEFAULT_ZK_METADATA_CACHE_TTL_MS);
+    }
+
+    /**
+     * Creates a Zookeeper client.
+     * 
+     * @param zkConnectionString
+     *            the connection string for Zookeeper, e.g. {@code zk-1.com:2181,zk-2.com:2181}.
+     * @param zkRoot
+     *            the Zookeeper root of your Kafka configuration.
+     * @param sessionTimeout
+     *            Zookeeper session timeout for this client.
+     * @param connectionTimeout
+     *            Zookeeper connection timeout for this client.
+     * @param metadataCacheTtlMs
+     *            how long brokers and topic partitions are cached for, shared with the other clients of the same
+     *            Zookeeper cluster and TTL; {@code 0} disables the cache.
+     * @see KafkaInputFormat#setZkMetadataCacheTtlMs(org.apache.hadoop.mapreduce.Job, long)
+     */
+    public ZkUtils(final String zkConnectionString, final String zkRoot, final int sessionTimeout,
+            final int connectionTimeout, final long metadataCacheTtlMs) {
+        this(new ZkConnection(zkConnectionString, sessionTimeout), connectionTimeout, zkRoot, ZkMetadataCache.get(
+                zkConnectionString, zkRoot, metadataCacheTtlMs));
+    }
+
+    private ZkUtils(final ZkConnection connection, final int connectionTimeout, final String zkRoot,
+            final ZkMetadataCache metadata) {
+        this(new ZkClient(connection, connectionTimeout, new StringSerializer()), connection, zkRoot, metadata);
     }
 
     /**
@@ -89,12 +178,26 @@ public class ZkUtils implements Closeable {
      * @see KafkaInputFormat#getZkRoot(org.apache.hadoop.conf.Configuration)
      * @see KafkaInputFormat#getZkSessionTimeoutMs(org.apache.hadoop.conf.Configuration)
      * @see KafkaInputFormat#getZkConnectionTimeoutMs(org.apache.hadoop.conf.Configuration)
+     * @see KafkaInputFormat#getZkMetadataCacheTtlMs(org.apache.hadoop.conf.Configuration)
      */
     public ZkUtils(final Configuration config) {
         this(KafkaInputFormat.getZkConnect(config), // zookeeper connection string
                 KafkaInputFormat.getZkRoot(config), // zookeeper root
                 KafkaInputFormat.getZkSessionTimeoutMs(config), // session timeout
-                KafkaInputFormat.getZkConnectionTimeoutMs(config)); // connection timeout
+                KafkaInputFormat.getZkConnectionTimeoutMs(config), // connection timeout
+                KafkaInputFormat.getZkMetadataCacheTtlMs(config)); // metadata cache TTL
+    }
+
+    /**
+     * Invalidates the cached metadata of the cluster as soon as brokers come or go, or topics are created or move to
+     * other brokers, rather than only once they expire. Meant for clients that stay open, like the one of a driver
+     * that runs job after job; the watches are removed when the client is {@link #close() closed}. Changes to the
+     * number of partitions of a topic on a broker are still only picked up once the cache expires.
+     */
+    public void watchMetadata() {
+        watchingMetadata = true;
+        client.subscribeChildChanges(getBrokerIdSubPath(), metadataWatcher);
+        client.subscribeChildChanges(getTopicsSubPath(), metadataWatcher);
     }
 
     /**
@@ -115,7 +218,14 @@ public class ZkUtils implements Closeable {
      * @return a {@link Broker} if it exists, {@code null} otherwise.
      */
     public Broker getBroker(final Integer id) {
-        String data = client.readData(getBrokerIdPath(id), true);
+        final Broker broker = parseBroker(id, (String) client.readData(getBrokerIdPath(id), true));
+        if (broker != null) {
+            metadata.putBroker(broker);
+        }
+        return broker;
+    }
+
+    private static Broker parseBroker(final int id, final String data) {
         if (!Strings.isNullOrEmpty(data)) {
             LOG.info("Broker " + id + " " + data);
             // broker_ip_address-latest_offset:broker_ip_address:broker_port
@@ -125,6 +235,14 @@ public class ZkUtils implements Closeable {
         return null;
     }
 
+    /**
+     * Gets the {@link Broker} by ID from the metadata cache, reading it from Zookeeper if it isn't cached.
+     */
+    private Broker getCachedBroker(final int id) {
+        final Broker broker = metadata.getBroker(id);
+        return broker != null ? broker : getBroker(id);
+    }
+
     /**
      * Gets all of the {@link Broker}s in this Kafka cluster.
      * 
@@ -134,32 +252,137 @@ public class ZkUtils implements Closeable {
         final List<Broker> brokers = Lists.newArrayList();
         final List<String> ids = getChildrenParentMayNotExist(getBrokerIdSubPath());
         for (final String id : ids) {
-            brokers.add(getBroker(Integer.parseInt(id)));
+            brokers.add(getCachedBroker(Integer.parseInt(id)));
         }
         return brokers;
     }
 
     /**
-     * A {@link List} of all the {@link Partition} for a given {@code topic}.
+     * Gets the names of all of the topics in this Kafka cluster, with a single read from Zookeeper.
+     * 
+     * @return the names of all of the topics.
+     */
+    public List<String> getTopics() {
+        return getChildrenParentMayNotExist(getTopicsSubPath());
+    }
+
+    /**
+     * A {@link List} of all the {@link Partition} for a given {@code topic}, which are cached along with their brokers
+     * (see {@link KafkaInputFormat#setZkMetadataCacheTtlMs(org.apache.hadoop.mapreduce.Job, long)}).
      * 
      * @param topic
      *            the topic.
      * @return all the {@link Partition} for a given {@code topic}.
      */
     public List<Partition> getPartitions(final String topic) {
+        final List<Partition> cached = metadata.getPartitions(topic);
+        if (cached != null) {
+            return cached;
+        }
+        if (watchingMetadata) {
+            client.subscribeChildChanges(getTopicBrokerIdSubPath(topic), metadataWatcher);
+        }
         final List<Partition> partitions = Lists.newArrayList();
         final List<String> brokersHostingTopic = getChildrenParentMayNotExist(getTopicBrokerIdSubPath(topic));
         for (final String brokerId : brokersHostingTopic) {
             final int bId = Integer.parseInt(brokerId);
             final String parts = client.readData(getTopicBrokerIdPath(topic, bId));
-            final Broker brokerInfo = getBroker(bId);
+            final Broker brokerInfo = getCachedBroker(bId);
             for (int i = 0; i < Integer.valueOf(parts); i++) {
                 partitions.add(new Partition(topic, i, brokerInfo));
             }
         }
+        metadata.putPartitions(topic, partitions);
         return partitions;
     }
 
+    /**
+     * Gets all the {@link Partition}s of each of the {@code topics}, like {@link #getPartitions(String)}, but reads the
+     * metadata of all the topics that aren't cached with pipelined asynchronous requests: one round trip to Zookeeper
+     * lists the brokers of every topic, and another one reads the partition counts and the unknown brokers.
+     * 
+     * @param topics
+     *            the topics.
+     * @return the partitions of each topic, in the order of {@code topics}; a topic that doesn't exist has none.
+     */
+    public Map<String, List<Partition>> getPartitions(final Collection<String> topics) {
+        final Map<String, List<Partition>> result = Maps.newLinkedHashMap();
+        final List<String> uncached = Lists.newArrayList();
+        for (final String topic : topics) {
+            if (!result.containsKey(topic)) {
+                final List<Partition> cached = metadata.getPartitions(topic);
+                result.put(topic, cached);
+                if (cached == null) {
+                    uncached.add(topic);
+                }
+            }
+        }
+        if (uncached.isEmpty()) {
+            return result;
+        }
+
+        final List<String> topicPaths = Lists.newArrayListWithCapacity(uncached.size());
+        for (final String topic : uncached) {
+            topicPaths.add(getTopicBrokerIdSubPath(topic));
+            if (watchingMetadata) {
+                client.subscribeChildChanges(getTopicBrokerIdSubPath(topic), metadataWatcher);
+            }
+        }
+        final List<List<String>> topicBrokerIds = readChildren(topicPaths);
+
+        // the partition counts of each topic on each of its brokers, followed by the brokers that aren't cached
+        final List<String> paths = Lists.newArrayList();
+        final Map<Integer, Broker> brokers = Maps.newHashMap();
+        final List<Integer> unknownBrokerIds = Lists.newArrayList();
+        for (int i = 0; i < uncached.size(); ++i) {
+            for (final String brokerId : topicBrokerIds.get(i)) {
+                final int bId = Integer.parseInt(brokerId);
+                paths.add(getTopicBrokerIdPath(uncached.get(i), bId));
+                if (!brokers.containsKey(bId)) {
+                    final Broker broker = metadata.getBroker(bId);
+                    brokers.put(bId, broker);
+                    if (broker == null) {
+                        unknownBrokerIds.add(bId);
+                    }
+                }
+            }
+        }
+        final int partitionCounts = paths.size();
+        for (final int brokerId : unknownBrokerIds) {
+            paths.add(getBrokerIdPath(brokerId));
+        }
+        final List<byte[]> data = readData(paths);
+        for (int i = 0; i < unknownBrokerIds.size(); ++i) {
+            final byte[] brokerData = data.get(partitionCounts + i);
+            final Broker broker = parseBroker(unknownBrokerIds.get(i), brokerData != null ? new String(brokerData)
+                    : null);
+            if (broker != null) {
+                metadata.putBroker(broker);
+            }
+            brokers.put(unknownBrokerIds.get(i), broker);
+        }
+
+        int next = 0;
+        for (int i = 0; i < uncached.size(); ++i) {
+            final String topic = uncached.get(i);
+            final List<Partition> partitions = Lists.newArrayList();
+            for (final String brokerId : topicBrokerIds.get(i)) {
+                final byte[] parts = data.get(next++);
+                if (parts == null) {
+                    // the topic left the broker since its brokers were listed
+                    continue;
+                }
+                final Broker brokerInfo = brokers.get(Integer.parseInt(brokerId));
+                for (int j = 0; j < Integer.parseInt(new String(parts)); j++) {
+                    partitions.add(new Partition(topic, j, brokerInfo));
+                }
+            }
+            metadata.putPartitions(topic, partitions);
+            result.put(topic, partitions);
+        }
+        return result;
+    }
+
     /**
      * Checks whether the provided partition exists on the {@link Broker}.
      * 
@@ -185,6 +408,7 @@ public class ZkUtils implements Closeable {
      *            the partition.
      * @return the last offset, {@code -1} if the {@code group} has never committed an offset.
      */
+    @Override
     public long getLastCommit(String group, Partition partition) {
         final String offsetPath = getOffsetsPath(group, partition);
         final String offset = client.readData(offsetPath, true);
@@ -195,6 +419,57 @@ public class ZkUtils implements Closeable {
         return Long.valueOf(offset);
     }
 
+    /**
+     * Gets the last commits made by the {@code group} on each of the {@code partitions}. Unlike calling
+     * {@link #getLastCommit(String, Partition)} for each partition, this pipelines asynchronous requests to Zookeeper:
+     * one round trip lists the committed partitions of every topic, and another one reads the offsets that exist, no
+     * matter how many partitions there are.
+     * 
+     * @param group
+     *            the consumer group.
+     * @param partitions
+     *            the partitions.
+     * @return the last offset of each partition, {@code -1} for the partitions that the {@code group} has never
+     *         committed an offset for.
+     */
+    @Override
+    public Map<Partition, Long> getLastCommits(final String group, final List<Partition> partitions) {
+        final Map<Partition, Long> commits = Maps.newLinkedHashMap();
+        final Set<String> offsetsSubPaths = Sets.newLinkedHashSet();
+        for (final Partition partition : partitions) {
+            commits.put(partition, -1L);
+            offsetsSubPaths.add(getOffsetsSubPath(group, partition.getTopic()));
+        }
+        if (partitions.isEmpty()) {
+            return commits;
+        }
+
+        final List<String> subPaths = Lists.newArrayList(offsetsSubPaths);
+        final List<List<String>> brokerPartitions = readChildren(subPaths);
+        final Set<String> committed = Sets.newHashSet();
+        for (int i = 0; i < subPaths.size(); ++i) {
+            for (final String brokerPartition : brokerPartitions.get(i)) {
+                committed.add(format("%s/%s", subPaths.get(i), brokerPartition));
+            }
+        }
+        final List<Partition> committedPartitions = Lists.newArrayList();
+        final List<String> offsetPaths = Lists.newArrayList();
+        for (final Partition partition : commits.keySet()) {
+            final String offsetPath = getOffsetsPath(group, partition);
+            if (committed.contains(offsetPath)) {
+                committedPartitions.add(partition);
+                offsetPaths.add(offsetPath);
+            }
+        }
+        final List<byte[]> offsets = readData(offsetPaths);
+        for (int i = 0; i < offsets.size(); ++i) {
+            if (offsets.get(i) != null) {
+                commits.put(committedPartitions.get(i), Long.valueOf(new String(offsets.get(i))));
+            }
+        }
+        return commits;
+    }
+
     /**
      * ` Sets the last offset to {@code commit} of the {@code group} for the given {@code topic-partition}.
      * <p/>
@@ -214,6 +489,7 @@ public class ZkUtils implements Closeable {
      *            topic partition, and then commit it once the user has finished consuming <em>all</em> topic
      *            partitions.
      */
+    @Override
     public void setLastCommit(final String group, final Partition partition, final long commit, final boolean temp) {
         final String path = temp ? getTempOffsetsPath(group, partition) : getOffsetsPath(group, partition);
         if (!client.exists(path)) {
@@ -222,6 +498,13 @@ public class ZkUtils implements Closeable {
         client.writeData(path, commit);
     }
 
+    @Override
+    public void clearTempOffsets(final String group, final List<Partition> partitions) {
+        for (final Partition partition : partitions) {
+            client.delete(getTempOffsetsPath(group, partition));
+        }
+    }
+
     /**
      * Commits any temporary offsets of the {@code group} for a given {@code topic}.
      * 
@@ -230,30 +513,237 @@ public class ZkUtils implements Closeable {
      * @param topic
      *            the topic.
      * @return true if the commit was successful, false otherwise.
+     * @see #commit(Multimap)
      */
     public boolean commit(final String group, final String topic) {
-        for (final Partition partition : getPartitionsWithTempOffsets(topic, group)) {
-            final String path = getTempOffsetsPath(group, partition);
-            final String offset = client.readData(path);
-            setLastCommit(group, partition, Long.valueOf(offset), false);
-            client.delete(path);
+        return commit(ImmutableMultimap.of(group, topic));
+    }
+
+    /**
+     * Commits any temporary offsets of every consumer group for each of its topics.
+     * <p/>
+     * The temporary offsets are read in parallel, and then each offset is written and its temporary offset deleted in
+     * a single Zookeeper {@code multi} transaction, so either all of the offsets are committed or none of them are.
+     * Commits that touch more than {@value #MAX_PARTITIONS_PER_TRANSACTION} partitions are split into several
+     * transactions, each of which is atomic; the temporary offsets of a failed transaction are left in place, so the
+     * commit can simply be retried.
+     * 
+     * @param groupTopics
+     *            the topics to commit, keyed by consumer group.
+     * @return true if the commit was successful, false otherwise.
+     */
+    @Override
+    public boolean commit(final Multimap<String, String> groupTopics) {
+        final List<String> tempPaths = Lists.newArrayList();
+        final List<String> offsetPaths = Lists.newArrayList();
+        final Set<String> existingOffsetPaths = Sets.newHashSet();
+        for (final Map.Entry<String, String> groupTopic : groupTopics.entries()) {
+            final String group = groupTopic.getKey();
+            final String topic = groupTopic.getValue();
+            // the children are named brokerId-partId, the same as the committed offsets, so no broker lookups needed
+            final List<String> brokerPartitions = getChildrenParentMayNotExist(getTempOffsetsSubPath(group, topic));
+            if (brokerPartitions.isEmpty()) {
+                continue;
+            }
+            final String offsetsSubPath = getOffsetsSubPath(group, topic);
+            existingOffsetPaths.addAll(getCommittedOffsetPaths(offsetsSubPath));
+            for (final String brokerPartition : brokerPartitions) {
+                tempPaths.add(format("%s/%s", getTempOffsetsSubPath(group, topic), brokerPartition));
+                offsetPaths.add(format("%s/%s", offsetsSubPath, brokerPartition));
+            }
+        }
+        if (tempPaths.isEmpty()) {
+            return true;
+        }
+
+        final List<byte[]> offsets = readData(tempPaths);
+        final List<Op> ops = Lists.newArrayListWithCapacity(2 * tempPaths.size());
+        for (int i = 0; i < tempPaths.size(); ++i) {
+            final byte[] offset = offsets.get(i);
+            if (offset == null) {
+                // another consumer committed this partition in the meantime
+                continue;
+            }
+            ops.add(writeOffset(offsetPaths.get(i), offset, existingOffsetPaths));
+            ops.add(Op.delete(tempPaths.get(i), -1));
+        }
+        // two ops per partition, so a transaction never separates an offset from the deletion of its temporary offset
+        return multi(ops, 2, groupTopics);
+    }
+
+    /**
+     * Sets the last offsets of many consumer groups and partitions at once, like
+     * {@link #setLastCommit(String, Partition, long, boolean)} does for a single one (with {@code temp == false}), but
+     * in Zookeeper {@code multi} transactions, so that either all of the offsets are set or none of them are (see
+     * {@link #commit(Multimap)} for the limits of that).
+     * 
+     * @param commits
+     *            the offsets to commit, keyed by consumer group and partition.
+     * @return true if the commit was successful, false otherwise.
+     */
+    @Override
+    public boolean setLastCommits(final Table<String, Partition, Long> commits) {
+        final Map<String, Set<String>> existingOffsetPaths = Maps.newHashMap();
+        final List<Op> ops = Lists.newArrayListWithCapacity(commits.size());
+        for (final Table.Cell<String, Partition, Long> commit : commits.cellSet()) {
+            final Partition partition = commit.getColumnKey();
+            final String offsetsSubPath = getOffsetsSubPath(commit.getRowKey(), partition.getTopic());
+            if (!existingOffsetPaths.containsKey(offsetsSubPath)) {
+                existingOffsetPaths.put(offsetsSubPath, getCommittedOffsetPaths(offsetsSubPath));
+            }
+            ops.add(writeOffset(getOffsetsPath(commit.getRowKey(), partition), commit.getValue().toString().getBytes(),
+                    existingOffsetPaths.get(offsetsSubPath)));
+        }
+        return ops.isEmpty() || multi(ops, 1, commits.rowKeySet());
+    }
+
+    /**
+     * Lists the offsets that have been committed under {@code offsetsSubPath}, creating the path if it doesn't exist
+     * yet, so that the offsets under it can be created in a transaction.
+     */
+    private Set<String> getCommittedOffsetPaths(final String offsetsSubPath) {
+        final List<String> committed = getChildrenParentMayNotExist(offsetsSubPath);
+        if (committed.isEmpty() && !client.exists(offsetsSubPath)) {
+            client.createPersistent(offsetsSubPath, true);
+        }
+        final Set<String> paths = Sets.newHashSet();
+        for (final String brokerPartition : committed) {
+            paths.add(format("%s/%s", offsetsSubPath, brokerPartition));
+        }
+        return paths;
+    }
+
+    private static Op writeOffset(final String offsetPath, final byte[] offset, final Set<String> existingOffsetPaths) {
+        return existingOffsetPaths.contains(offsetPath) ? Op.setData(offsetPath, offset, -1) : Op.create(offsetPath,
+                offset, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    /**
+     * Runs {@code ops} in transactions of at most {@value #MAX_PARTITIONS_PER_TRANSACTION} partitions.
+     * <p/>
+     * A transaction is retried if the connection to Zookeeper is lost. If the lost transaction had been applied, its
+     * retry fails, and so does the commit.
+     * 
+     * @param opsPerPartition
+     *            the number of consecutive ops that belong to the same partition, and must not be split.
+     * @param what
+     *            what is being committed, for logging.
+     * @return true if every transaction succeeded, false otherwise.
+     */
+    private boolean multi(final List<Op> ops, final int opsPerPartition, final Object what) {
+        for (final List<Op> transaction : Lists.partition(ops, opsPerPartition * MAX_PARTITIONS_PER_TRANSACTION)) {
+            try {
+                retryUntilConnected(new Callable<List<OpResult>>() {
+                    @Override
+                    public List<OpResult> call() throws KeeperException, InterruptedException {
+                        return getZooKeeper().multi(transaction);
+                    }
+                });
+            } catch (final ZkInterruptedException e) {
+                throw e;
+            } catch (final ZkException e) {
+                LOG.error(format("Could not commit %d offsets of %s", transaction.size() / opsPerPartition, what), e);
+                return false;
+            }
         }
         return true;
     }
 
-    private List<Partition> getPartitionsWithTempOffsets(final String topic, final String group) {
-        final List<String> brokerPartIds = getChildrenParentMayNotExist(getTempOffsetsSubPath(group, topic));
-        return Lists.transform(brokerPartIds, new Function<String, Partition>() {
+    /**
+     * Reads the data of all of the {@code paths} with asynchronous requests, so that the round trips to Zookeeper
+     * overlap instead of adding up. The requests are retried if the connection to Zookeeper is lost.
+     * 
+     * @return the data of each path, {@code null} for the paths that do not exist.
+     */
+    private List<byte[]> readData(final List<String> paths) {
+        return retryUntilConnected(new Callable<List<byte[]>>() {
+            @Override
+            public List<byte[]> call() throws KeeperException, InterruptedException {
+                final ZooKeeper zooKeeper = getZooKeeper();
+                final byte[][] data = new byte[paths.size()][];
+                final AtomicInteger failure = new AtomicInteger(Code.OK.intValue());
+                final CountDownLatch done = new CountDownLatch(paths.size());
+                for (int i = 0; i < paths.size(); ++i) {
+                    zooKeeper.getData(paths.get(i), false, new DataCallback() {
+                        @Override
+                        public void processResult(final int rc, final String path, final Object ctx,
+                                final byte[] bytes, final Stat stat) {
+                            if (rc == Code.OK.intValue()) {
+                                data[(Integer) ctx] = bytes;
+                            } else if (rc != Code.NONODE.intValue()) {
+                                failure.compareAndSet(Code.OK.intValue(), rc);
+                            }
+                            done.countDown();
+                        }
+                    }, i);
+                }
+                await(done, failure);
+                return Arrays.asList(data);
+            }
+        });
+    }
+
+    /**
+     * Lists the children of all of the {@code paths} with asynchronous requests, like {@link #readData(List)}.
+     * 
+     * @return the children of each path, empty for the paths that do not exist.
+     */
+    private List<List<String>> readChildren(final List<String> paths) {
+        return retryUntilConnected(new Callable<List<List<String>>>() {
             @Override
-            public Partition apply(final String brokerPartId) {
-                // brokerPartId = brokerId-partId
-                final String[] brokerIdPartId = brokerPartId.split("-");
-                final Broker broker = getBroker(Integer.parseInt(brokerIdPartId[0]));
-                return new Partition(topic, Integer.parseInt(brokerIdPartId[1]), broker);
+            public List<List<String>> call() throws KeeperException, InterruptedException {
+                final ZooKeeper zooKeeper = getZooKeeper();
+                final List<List<String>> children = Lists.newArrayList(Collections.nCopies(paths.size(),
+                        Collections.<String> emptyList()));
+                final AtomicInteger failure = new AtomicInteger(Code.OK.intValue());
+                final CountDownLatch done = new CountDownLatch(paths.size());
+                for (int i = 0; i < paths.size(); ++i) {
+                    zooKeeper.getChildren(paths.get(i), false, new ChildrenCallback() {
+                        @Override
+                        public void processResult(final int rc, final String path, final Object ctx,
+                                final List<String> names) {
+                            if (rc == Code.OK.intValue()) {
+                                children.set((Integer) ctx, names);
+                            } else if (rc != Code.NONODE.intValue()) {
+                                failure.compareAndSet(Code.OK.intValue(), rc);
+                            }
+                            done.countDown();
+                        }
+                    }, i);
+                }
+                await(done, failure);
+                return children;
             }
         });
     }
 
+    /**
+     * Waits for asynchronous requests, and throws the {@link KeeperException} of the first one that failed, so that
+     * {@link ZkClient#retryUntilConnected(Callable)} can tell a lost connection from other failures.
+     */
+    private static void await(final CountDownLatch done, final AtomicInteger failure) throws KeeperException,
+            InterruptedException {
+        done.await();
+        if (failure.get() != Code.OK.intValue()) {
+            throw KeeperException.create(Code.get(failure.get()));
+        }
+    }
+
+    /**
+     * Runs {@code callable} with {@link ZkClient#retryUntilConnected(Callable)}, which retries it when the connection
+     * to Zookeeper is lost, and wraps its other exceptions in {@link ZkException}s.
+     */
+    @VisibleForTesting
+    <T> T retryUntilConnected(final Callable<T> callable) {
+        return client.retryUntilConnected(callable);
+    }
+
+    @VisibleForTesting
+    ZooKeeper getZooKeeper() {
+        checkState(connection != null, "No Zookeeper connection");
+        return connection.getZookeeper();
+    }
+
     @VisibleForTesting
     List<String> getChildrenParentMayNotExist(String path) {
         try {
@@ -265,8 +755,12 @@ public class ZkUtils implements Closeable {
 
     @VisibleForTesting
     String getOffsetsPath(String group, Partition partition) {
-        return format("%s/consumers/%s/offsets/%s/%s", zkRoot, group, partition.getTopic(),
-                partition.getBrokerPartition());
+        return format("%s/%s", getOffsetsSubPath(group, partition.getTopic()), partition.getBrokerPartition());
+    }
+
+    @VisibleForTesting
+    String getOffsetsSubPath(String group, String topic) {
+        return format("%s/consumers/%s/offsets/%s", zkRoot, group, topic);
     }
 
     @VisibleForTesting
@@ -289,9 +783,14 @@ public class ZkUtils implements Closeable {
         return format("%s/%d", getBrokerIdSubPath(), id);
     }
 
+    @VisibleForTesting
+    String getTopicsSubPath() {
+        return format("%s/brokers/topics", zkRoot);
+    }
+
     @VisibleForTesting
     String getTopicBrokerIdSubPath(final String topic) {
-        return format("%s/brokers/topics/%s", zkRoot, topic);
+        return format("%s/%s", getTopicsSubPath(), topic);
     }
 
     @VisibleForTesting
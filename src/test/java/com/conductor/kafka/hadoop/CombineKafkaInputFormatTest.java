@@ -0,0 +1,87 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.junit.Test;
+
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.Partition;
+import com.google.common.collect.Lists;
+
+/**
+ * @author cgreen
+ */
+public class CombineKafkaInputFormatTest {
+
+    @Test
+    public void testSetGet() throws Exception {
+        final Configuration conf = new Configuration(false);
+        final Job mockJob = mock(Job.class);
+        when(mockJob.getConfiguration()).thenReturn(conf);
+
+        assertEquals(CombineKafkaInputFormat.DEFAULT_COMBINE_SPLIT_SIZE_BYTES,
+                CombineKafkaInputFormat.getCombineSplitSizeBytes(conf));
+        CombineKafkaInputFormat.setCombineSplitSizeBytes(mockJob, 1024l);
+        assertEquals(1024l, CombineKafkaInputFormat.getCombineSplitSizeBytes(conf));
+
+        assertFalse(CombineKafkaInputFormat.isUseMultiFetch(conf));
+        CombineKafkaInputFormat.setUseMultiFetch(mockJob, true);
+        assertTrue(CombineKafkaInputFormat.isUseMultiFetch(conf));
+
+        CombineKafkaInputFormat.setMaxPartitionsPerMultiFetch(mockJob, 4);
+        assertEquals(4, CombineKafkaInputFormat.getMaxPartitionsPerMultiFetch(conf));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGetSplitsWithCheckpoints() throws Exception {
+        final Configuration conf = new Configuration(false);
+        final Job mockJob = mock(Job.class);
+        when(mockJob.getConfiguration()).thenReturn(conf);
+        KafkaInputFormat.setCheckpointDir(mockJob, new Path("/checkpoints"));
+        new CombineKafkaInputFormat().getSplits(mockJob);
+    }
+
+    @Test
+    public void testCombine() throws Exception {
+        final Broker b1 = new Broker("127.0.0.1", 9092, 1);
+        final Broker b2 = new Broker("127.0.0.2", 9092, 2);
+        final KafkaInputSplit s1 = new KafkaInputSplit(new Partition("topic", 0, b1), 0, 10, true);
+        final KafkaInputSplit s2 = new KafkaInputSplit(new Partition("topic", 0, b2), 0, 40, true);
+        final KafkaInputSplit s3 = new KafkaInputSplit(new Partition("topic", 1, b1), 0, 20, true);
+        final KafkaInputSplit s4 = new KafkaInputSplit(new Partition("topic", 2, b1), 0, 15, false);
+        final KafkaInputSplit s5 = new KafkaInputSplit(new Partition("topic", 1, b2), 0, 100, true);
+        final KafkaInputSplit s6 = new KafkaInputSplit(new Partition("topic", 2, b2), 0, 5, true);
+
+        final List<InputSplit> result = CombineKafkaInputFormat.combine(
+                Lists.<InputSplit> newArrayList(s1, s2, s3, s4, s5, s6), 30);
+
+        // splits are grouped by broker, and oversized splits get a split of their own
+        assertEquals(Lists.<InputSplit> newArrayList(new CombinedKafkaInputSplit(Lists.newArrayList(s1, s3)),
+                new CombinedKafkaInputSplit(Lists.newArrayList(s4)),
+                new CombinedKafkaInputSplit(Lists.newArrayList(s2)),
+                new CombinedKafkaInputSplit(Lists.newArrayList(s5)),
+                new CombinedKafkaInputSplit(Lists.newArrayList(s6))), result);
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.Partition;
+import com.google.common.collect.Lists;
+
+/**
+ * @author cgreen
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class CombinedKafkaRecordReaderTest {
+
+    @Mock
+    private TaskAttemptContext context;
+    @Mock
+    private KafkaRecordReader reader1;
+    @Mock
+    private KafkaRecordReader reader2;
+
+    private KafkaInputSplit split1;
+    private KafkaInputSplit split2;
+    private CombinedKafkaRecordReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        final Broker broker = new Broker("localhost", 9092, 1);
+        split1 = new KafkaInputSplit(new Partition("topic", 0, broker), 0, 100, true);
+        split2 = new KafkaInputSplit(new Partition("topic", 1, broker), 0, 300, false);
+        when(reader1.getSplit()).thenReturn(split1);
+        when(reader2.getSplit()).thenReturn(split2);
+
+        reader = spy(new CombinedKafkaRecordReader());
+        when(reader.getRecordReader()).thenReturn(reader1, reader2);
+        reader.initialize(new CombinedKafkaInputSplit(Lists.newArrayList(split1, split2)), context);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInitializeWrongSplit() throws Exception {
+        reader.initialize(split1, context);
+    }
+
+    @Test
+    public void testNextKeyValue() throws Exception {
+        final LongWritable key1 = new LongWritable(10);
+        final LongWritable key2 = new LongWritable(20);
+        final BytesWritable value = new BytesWritable(new byte[] { 1 });
+        when(reader1.nextKeyValue()).thenReturn(true, false);
+        when(reader1.getCurrentKey()).thenReturn(key1);
+        when(reader1.getCurrentValue()).thenReturn(value);
+        when(reader2.nextKeyValue()).thenReturn(true, true, false);
+        when(reader2.getCurrentKey()).thenReturn(key2);
+        when(reader2.getProgress()).thenReturn(0.5f);
+
+        assertEquals(0f, reader.getProgress(), 0f);
+        assertTrue(reader.nextKeyValue());
+        assertSame(key1, reader.getCurrentKey());
+        assertSame(value, reader.getCurrentValue());
+
+        // the first reader is closed (and commits) as soon as the second split starts
+        assertTrue(reader.nextKeyValue());
+        assertSame(key2, reader.getCurrentKey());
+        verify(reader1).close();
+        verify(reader2, never()).close();
+        assertEquals(0.625f, reader.getProgress(), 0f);
+
+        assertTrue(reader.nextKeyValue());
+        assertFalse(reader.nextKeyValue());
+        assertFalse(reader.nextKeyValue());
+        assertEquals(1f, reader.getProgress(), 0f);
+
+        final InOrder inOrder = inOrder(reader1, reader2);
+        inOrder.verify(reader1).initialize(split1, context);
+        inOrder.verify(reader1).close();
+        inOrder.verify(reader2).initialize(split2, context);
+        inOrder.verify(reader2).close();
+
+        reader.close();
+        verify(reader1, times(1)).close();
+        verify(reader2, times(1)).close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        when(reader1.nextKeyValue()).thenReturn(true);
+        assertTrue(reader.nextKeyValue());
+        reader.close();
+        verify(reader1, times(1)).close();
+        verify(reader, times(1)).getRecordReader();
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.OffsetStore;
+import com.conductor.kafka.Partition;
+import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Table;
+
+/**
+ * @author cgreen
+ */
+public class HdfsOffsetStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Configuration conf;
+    private FileSystem fs;
+    private Path dir;
+    private HdfsOffsetStore store;
+    private final Partition partition1 = new Partition("topic", 0, new Broker("localhost", 9092, 1));
+    private final Partition partition2 = new Partition("topic", 1, new Broker("localhost", 9092, 1));
+    private final Partition partition3 = new Partition("other_topic", 0, new Broker("localhost", 9092, 2));
+    private final List<Partition> partitions = Lists.newArrayList(partition1, partition2, partition3);
+
+    @Before
+    public void setUp() throws Exception {
+        conf = new Configuration(false);
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        fs = FileSystem.getLocal(conf);
+        dir = new Path(folder.getRoot().toURI());
+        store = new HdfsOffsetStore(fs, dir);
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        assertNull(HdfsOffsetStore.get(conf));
+        final ZkUtils zk = mock(ZkUtils.class);
+        assertSame(zk, KafkaInputFormat.getOffsetStore(conf, zk));
+
+        final Job job = mock(Job.class);
+        when(job.getConfiguration()).thenReturn(conf);
+        KafkaInputFormat.setOffsetStoreDir(job, dir);
+        assertEquals(new Path(dir.toString()), HdfsOffsetStore.get(conf).getDir());
+        assertTrue(KafkaInputFormat.getOffsetStore(conf, zk) instanceof HdfsOffsetStore);
+    }
+
+    @Test
+    public void testSetLastCommit() throws Exception {
+        // nothing committed yet
+        assertEquals(-1, store.getLatestVersion("group"));
+        assertEquals(-1, store.getLastCommit("group", partition1));
+
+        store.setLastCommit("group", partition1, 100, false);
+        store.setLastCommit("group", partition3, 300, false);
+        assertEquals(1, store.getLatestVersion("group"));
+        assertEquals(ImmutableMap.of(partition1, 100l, partition2, -1l, partition3, 300l),
+                store.getLastCommits("group", partitions));
+
+        // a single snapshot per group, of which the previous one is kept
+        store.setLastCommit("group", partition1, 150, false);
+        assertEquals(2, store.getLatestVersion("group"));
+        assertEquals(2, fs.listStatus(new Path(dir, "group")).length);
+        assertEquals(150, store.getLastCommit("group", partition1));
+        assertEquals(100, (long) store.readSnapshot("group", 1).get("topic", "1-0"));
+
+        // other groups are independent
+        assertEquals(-1, store.getLastCommit("other_group", partition1));
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        store.setLastCommit("group", partition1, 100, false);
+        store.setLastCommit("group", partition1, 200, true);
+        store.setLastCommit("group", partition3, 300, true);
+        store.setLastCommit("other_group", partition2, 400, true);
+
+        // temporary offsets don't count until they're committed
+        assertEquals(100, store.getLastCommit("group", partition1));
+        assertEquals(-1, store.getLastCommit("group", partition3));
+
+        assertTrue(store.commit(ImmutableSetMultimap.of("group", "topic", "group", "other_topic", "other_group",
+                "topic")));
+        assertEquals(ImmutableMap.of(partition1, 200l, partition2, -1l, partition3, 300l),
+                store.getLastCommits("group", partitions));
+        assertEquals(400, store.getLastCommit("other_group", partition2));
+        // one new snapshot per group
+        assertEquals(1, store.getLatestVersion("group"));
+        assertEquals(0, store.getLatestVersion("other_group"));
+        assertFalse(fs.exists(store.getTempOffsetPath("group", partition1)));
+
+        // nothing left to commit
+        assertTrue(store.commit(ImmutableSetMultimap.of("group", "topic")));
+        assertEquals(1, store.getLatestVersion("group"));
+    }
+
+    @Test
+    public void testClearTempOffsets() throws Exception {
+        store.setLastCommit("group", partition1, 100, false);
+        store.setLastCommit("group", partition1, 200, true);
+        store.setLastCommit("group", partition3, 300, true);
+
+        // partition2 has no temporary offset to clear
+        store.clearTempOffsets("group", Lists.newArrayList(partition1, partition2));
+        assertFalse(fs.exists(store.getTempOffsetPath("group", partition1)));
+        assertTrue(store.commit(ImmutableSetMultimap.of("group", "topic", "group", "other_topic")));
+        assertEquals(ImmutableMap.of(partition1, 100l, partition2, -1l, partition3, 300l),
+                store.getLastCommits("group", partitions));
+    }
+
+    @Test
+    public void testSetLastCommits() throws Exception {
+        final Table<String, Partition, Long> commits = HashBasedTable.create();
+        commits.put("group", partition1, 100l);
+        commits.put("group", partition2, 200l);
+        commits.put("other_group", partition3, 300l);
+        assertTrue(store.setLastCommits(commits));
+        assertEquals(0, store.getLatestVersion("group"));
+        assertEquals(ImmutableMap.of(partition1, 100l, partition2, 200l, partition3, -1l),
+                store.getLastCommits("group", partitions));
+        assertEquals(300, store.getLastCommit("other_group", partition3));
+    }
+
+    @Test
+    public void testCopyFrom() throws Exception {
+        final OffsetStore zk = mock(ZkUtils.class);
+        final Map<Partition, Long> zkCommits = ImmutableMap.of(partition1, 100l, partition2, -1l, partition3, 300l);
+        when(zk.getLastCommits("group", partitions)).thenReturn(zkCommits);
+        assertTrue(store.copyFrom(zk, "group", partitions));
+        assertEquals(zkCommits, store.getLastCommits("group", partitions));
+    }
+}
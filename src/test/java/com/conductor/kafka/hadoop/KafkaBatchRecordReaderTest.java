@@ -0,0 +1,112 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.nio.ByteBuffer;
+
+import kafka.message.Message;
+import kafka.message.MessageAndOffset;
+
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.Partition;
+
+/**
+ * @author cgreen
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class KafkaBatchRecordReaderTest {
+
+    @Mock
+    private TaskAttemptContext context;
+    @Mock
+    private KafkaRecordReader reader;
+
+    private Partition partition;
+    private KafkaInputSplit split;
+    private KafkaBatchRecordReader batchReader;
+
+    @Before
+    public void setUp() throws Exception {
+        partition = new Partition("topic", 0, new Broker("localhost", 9092, 1));
+        split = new KafkaInputSplit(partition, 0, 100, true);
+        when(reader.getSplit()).thenReturn(split);
+        batchReader = new KafkaBatchRecordReader(reader);
+        batchReader.initialize(split, context);
+        verify(reader).initialize(split, context);
+    }
+
+    @Test
+    public void testNextKeyValue() throws Exception {
+        // the first message set has 20 messages, the second one 1
+        final MessageAndOffset[] messages = new MessageAndOffset[21];
+        for (int i = 0; i < messages.length; ++i) {
+            messages[i] = new MessageAndOffset(new Message(new byte[] { (byte) i, 2, 3 }), 9 * (i + 1));
+        }
+        final MessageAndOffset[] rest = new MessageAndOffset[messages.length];
+        System.arraycopy(messages, 1, rest, 0, messages.length - 1);
+        when(reader.nextMessage()).thenReturn(messages[0], rest);
+        final Boolean[] canCallNext = new Boolean[20];
+        for (int i = 0; i < canCallNext.length; ++i) {
+            canCallNext[i] = i < 18;
+        }
+        when(reader.canCallNext()).thenReturn(true, canCallNext);
+
+        assertTrue(batchReader.nextKeyValue());
+        KafkaMessageBatch batch = batchReader.getCurrentValue();
+        assertEquals(partition, batch.getPartition());
+        assertEquals(20, batch.size());
+        for (int i = 0; i < 20; ++i) {
+            assertEquals(9 * (i + 1), batch.getOffset(i));
+            final ByteBuffer payload = batch.getPayload(i);
+            assertEquals(3, payload.remaining());
+            assertEquals((byte) i, payload.get(payload.position()));
+        }
+        assertEquals(180, batchReader.getCurrentKey().get());
+
+        assertTrue(batchReader.nextKeyValue());
+        batch = batchReader.getCurrentValue();
+        assertEquals(1, batch.size());
+        assertEquals(189, batch.getOffset(0));
+        assertEquals(189, batchReader.getCurrentKey().get());
+
+        assertFalse(batchReader.nextKeyValue());
+        assertTrue(batchReader.getCurrentValue().isEmpty());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testBatchIndex() throws Exception {
+        when(reader.nextMessage()).thenReturn(new MessageAndOffset(new Message(new byte[] { 1 }), 5), null);
+        assertTrue(batchReader.nextKeyValue());
+        batchReader.getCurrentValue().getPayload(1);
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        when(reader.getProgress()).thenReturn(0.5f);
+        assertEquals(0.5f, batchReader.getProgress(), 0f);
+        batchReader.close();
+        verify(reader).close();
+    }
+}
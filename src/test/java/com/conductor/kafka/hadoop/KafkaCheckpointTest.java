@@ -0,0 +1,89 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author cgreen
+ */
+public class KafkaCheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Configuration conf;
+    private TaskAttemptContext context;
+
+    @Before
+    public void setUp() throws Exception {
+        conf = new Configuration(false);
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        context = mock(TaskAttemptContext.class);
+        when(context.getConfiguration()).thenReturn(conf);
+        when(context.getTaskAttemptID()).thenReturn(new TaskAttemptID("jt", 1, TaskType.MAP, 3, 2));
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        final Job job = mock(Job.class);
+        when(job.getConfiguration()).thenReturn(conf);
+        final Path dir = new Path(folder.getRoot().toURI());
+        KafkaInputFormat.setCheckpointDir(job, dir);
+
+        // every attempt of a task shares its checkpoint
+        final KafkaCheckpoint checkpoint = KafkaCheckpoint.get(context);
+        assertEquals(new Path(dir, "task_jt_0001_m_000003"), checkpoint.getDir());
+        when(context.getTaskAttemptID()).thenReturn(new TaskAttemptID("jt", 1, TaskType.MAP, 3, 3));
+        assertEquals(checkpoint.getDir(), KafkaCheckpoint.get(context).getDir());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGetDisabled() throws Exception {
+        KafkaCheckpoint.get(context);
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        final FileSystem fs = FileSystem.getLocal(conf);
+        final Path dir = new Path(new Path(folder.getRoot().toURI()), "task");
+        final KafkaCheckpoint checkpoint = new KafkaCheckpoint(fs, dir);
+        assertEquals(-1, checkpoint.getOffset());
+
+        checkpoint.commit(100);
+        assertEquals(100, checkpoint.getOffset());
+        checkpoint.commit(250);
+        assertEquals(250, new KafkaCheckpoint(fs, dir).getOffset());
+        // only the latest checkpoint is kept
+        assertEquals(1, fs.listStatus(dir).length);
+
+        // checkpoints never move backwards
+        checkpoint.commit(200);
+        assertEquals(250, checkpoint.getOffset());
+    }
+}
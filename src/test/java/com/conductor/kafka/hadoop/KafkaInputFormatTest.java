@@ -15,25 +15,37 @@
 package com.conductor.kafka.hadoop;
 
 import static java.lang.String.format;
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import kafka.api.OffsetRequest;
 import kafka.consumer.SimpleConsumer;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import com.conductor.hadoop.TaggedInputSplit;
 import com.conductor.kafka.Broker;
 import com.conductor.kafka.Partition;
 import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 /**
  * @author cgreen
@@ -78,6 +90,50 @@ public class KafkaInputFormatTest {
 
         KafkaInputFormat.setKafkaSocketTimeoutMs(mockJob, 655);
         assertEquals(655, KafkaInputFormat.getKafkaSocketTimeoutMs(conf));
+
+        KafkaInputFormat.setKafkaPrefetchQueueDepth(mockJob, 3);
+        assertEquals(3, KafkaInputFormat.getKafkaPrefetchQueueDepth(conf));
+
+        KafkaInputFormat.setKafkaPrefetchMaxBytes(mockJob, 1024l);
+        assertEquals(1024l, KafkaInputFormat.getKafkaPrefetchMaxBytes(conf));
+
+        KafkaInputFormat.setKafkaAdaptiveFetchSize(mockJob, true);
+        assertTrue(KafkaInputFormat.isKafkaAdaptiveFetchSize(conf));
+
+        KafkaInputFormat.setKafkaMinFetchSizeBytes(mockJob, 33);
+        assertEquals(33, KafkaInputFormat.getKafkaMinFetchSizeBytes(conf));
+
+        KafkaInputFormat.setKafkaMaxFetchSizeBytes(mockJob, 99);
+        assertEquals(99, KafkaInputFormat.getKafkaMaxFetchSizeBytes(conf));
+
+        KafkaInputFormat.setMaxSplitSizeBytes(mockJob, 2048l);
+        assertEquals(2048l, KafkaInputFormat.getMaxSplitSizeBytes(conf));
+
+        KafkaInputFormat.setKafkaZeroCopyValues(mockJob, true);
+        assertTrue(KafkaInputFormat.isKafkaZeroCopyValues(conf));
+
+        KafkaInputFormat.setKafkaFetchMaxRetries(mockJob, 5);
+        assertEquals(5, KafkaInputFormat.getKafkaFetchMaxRetries(conf));
+
+        KafkaInputFormat.setKafkaFetchRetryBackoffMs(mockJob, 250l);
+        assertEquals(250l, KafkaInputFormat.getKafkaFetchRetryBackoffMs(conf));
+
+        KafkaInputFormat.setPlanningThreads(mockJob, 4);
+        assertEquals(4, KafkaInputFormat.getPlanningThreads(conf));
+
+        KafkaInputFormat.setPlanningBrokerTimeoutMs(mockJob, 1000l);
+        assertEquals(1000l, KafkaInputFormat.getPlanningBrokerTimeoutMs(conf));
+
+        Assert.assertNull(KafkaInputFormat.getBrokerLocationResolver(conf));
+        KafkaInputFormat.setBrokerLocationResolver(mockJob, TestResolver.class);
+        assertTrue(KafkaInputFormat.getBrokerLocationResolver(conf) instanceof TestResolver);
+
+        KafkaInputFormat.setInterleaveBrokers(mockJob, true);
+        assertTrue(KafkaInputFormat.isInterleaveBrokers(conf));
+
+        Assert.assertNull(KafkaInputFormat.getCheckpointDir(conf));
+        KafkaInputFormat.setCheckpointDir(mockJob, new Path("/checkpoints/run1"));
+        assertEquals(new Path("/checkpoints/run1"), KafkaInputFormat.getCheckpointDir(conf));
     }
 
     @Test
@@ -97,10 +153,13 @@ public class KafkaInputFormatTest {
 
         final Partition p1 = new Partition("topic", 0, broker);
         final Partition p2 = new Partition("topic", 1, broker);
-        when(mockZk.getPartitions("topic")).thenReturn(Lists.newArrayList(p1, p2));
+        when(mockZk.getPartitions(Lists.newArrayList("topic"))).thenReturn(
+                ImmutableMap.<String, List<Partition>> of("topic", Lists.newArrayList(p1, p2)));
         when(mockZk.getBroker(1)).thenReturn(broker);
-        when(mockZk.getLastCommit("group", p1)).thenReturn(-1l);
-        when(mockZk.getLastCommit("group", p2)).thenReturn(10l);
+        final Map<Partition, Long> lastCommits = Maps.newHashMap();
+        lastCommits.put(p1, -1l);
+        lastCommits.put(p2, 10l);
+        when(mockZk.getLastCommits("group", Lists.newArrayList(p1, p2))).thenReturn(lastCommits);
 
         final List<InputSplit> result = inputFormat.getInputSplits(mockConf, "topic", "group");
 
@@ -137,6 +196,462 @@ public class KafkaInputFormatTest {
         verify(mockZk, times(1)).close();
     }
 
+    @Test
+    public void testGetInputSplitsSlowBroker() throws Exception {
+        final KafkaInputFormat inputFormat = spy(new KafkaInputFormat());
+        final ZkUtils mockZk = mock(ZkUtils.class);
+        final Job job = Job.getInstance(new Configuration(false));
+        final Configuration conf = job.getConfiguration();
+        doReturn(mockZk).when(inputFormat).getZk(conf);
+
+        final Partition p1 = new Partition("topic", 0, new Broker("127.0.0.1", 9092, 1));
+        final Partition p2 = new Partition("topic", 0, new Broker("127.0.0.2", 9092, 2));
+        final List<List<Partition>> partitions = Lists.<List<Partition>> newArrayList(Lists.newArrayList(p1, p2));
+        when(mockZk.getPartitions(Lists.newArrayList("topic"))).thenReturn(
+                ImmutableMap.<String, List<Partition>> of("topic", Lists.newArrayList(p1, p2)));
+        final Map<Partition, Long> lastCommits = ImmutableMap.of(p1, -1l, p2, -1l);
+        when(mockZk.getLastCommits("group", Lists.newArrayList(p1, p2))).thenReturn(lastCommits);
+        // the broker of p2 doesn't answer in time
+        final Map<Partition, List<Long>> offsets = Maps.newHashMap();
+        offsets.put(p1, Lists.newArrayList(20l, 10l));
+        doReturn(Lists.newArrayList(offsets)).when(inputFormat).getPartitionOffsets(conf, partitions,
+                Lists.newArrayList(lastCommits));
+
+        // planning fails by default
+        try {
+            inputFormat.getInputSplits(conf, "topic", "group");
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            // expected
+        }
+        verify(mockZk, never()).clearTempOffsets(anyString(), anyListOf(Partition.class));
+        verify(mockZk).close();
+
+        // ... unless it may skip p2, whose temporary offsets are left over from a failed run
+        KafkaInputFormat.setPartialPlanning(job, true);
+        final List<InputSplit> splits = inputFormat.getInputSplits(conf, "topic", "group");
+        assertEquals(Lists.newArrayList(new KafkaInputSplit(p1, 10, 20, true)), splits);
+        verify(mockZk).clearTempOffsets("group", Lists.newArrayList(p2));
+    }
+
+    @Test
+    public void testClearUnbudgetedPartitions() throws Exception {
+        final ZkUtils mockZk = mock(ZkUtils.class);
+        final Broker broker = new Broker("127.0.0.1", 9092, 1);
+        final Partition p1 = new Partition("topic", 0, broker);
+        final Partition p2 = new Partition("topic", 1, broker);
+        final Partition p3 = new Partition("topic", 2, broker);
+        final Partition p4 = new Partition("topic", 3, broker);
+        final List<List<Partition>> partitions = Lists.<List<Partition>> newArrayList(Lists.newArrayList(p1, p2, p3,
+                p4));
+        // p3 has nothing to read, and the broker of p4 didn't answer in time
+        final Map<Partition, List<Long>> offsets = Maps.newHashMap();
+        offsets.put(p1, Lists.newArrayList(20l, 10l));
+        offsets.put(p2, Lists.newArrayList(30l, 10l));
+        offsets.put(p3, Lists.newArrayList(10l));
+        final Map<Partition, Long> budgets = ImmutableMap.of(p1, 10l, p2, 0l, p3, 0l, p4, 0l);
+
+        // only p2 has data, but no budget to read it
+        KafkaInputFormat.clearUnbudgetedPartitions(mockZk, Lists.newArrayList("group"), partitions,
+                Lists.newArrayList(offsets), Lists.newArrayList(budgets));
+        verify(mockZk).clearTempOffsets("group", Lists.newArrayList(p2));
+        verifyNoMoreInteractions(mockZk);
+    }
+
+    @Test
+    public void testGetPartitionOffsetsQueuedBroker() throws Exception {
+        final KafkaInputFormat inputFormat = spy(new KafkaInputFormat());
+        final Job job = Job.getInstance(new Configuration(false));
+        final Configuration conf = job.getConfiguration();
+        KafkaInputFormat.setPlanningThreads(job, 1);
+        KafkaInputFormat.setPlanningBrokerTimeoutMs(job, 500);
+
+        final Broker b1 = new Broker("127.0.0.1", 9092, 1);
+        final Broker b2 = new Broker("127.0.0.2", 9092, 2);
+        final SimpleConsumer c1 = mock(SimpleConsumer.class);
+        final SimpleConsumer c2 = mock(SimpleConsumer.class);
+        doReturn(c1).when(inputFormat).getConsumer(b1);
+        doReturn(c2).when(inputFormat).getConsumer(b2);
+        // each broker takes most of the timeout, so the second one wouldn't make it if its clock started with the first
+        final Answer<List<Long>> slowAnswer = new Answer<List<Long>>() {
+            @Override
+            public List<Long> answer(final InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(300);
+                return Lists.newArrayList(20l, 10l);
+            }
+        };
+        doAnswer(slowAnswer).when(inputFormat).getOffsets(c1, "topic", 0, -1, 0, Integer.MAX_VALUE);
+        doAnswer(slowAnswer).when(inputFormat).getOffsets(c2, "topic", 0, -1, 0, Integer.MAX_VALUE);
+
+        final Partition p1 = new Partition("topic", 0, b1);
+        final Partition p2 = new Partition("topic", 0, b2);
+        final List<Map<Partition, List<Long>>> result = inputFormat.getPartitionOffsets(conf,
+                Lists.<List<Partition>> newArrayList(Lists.newArrayList(p1, p2)),
+                Lists.<Map<Partition, Long>> newArrayList(Maps.<Partition, Long> newHashMap()));
+        assertEquals(Lists.newArrayList(20l, 10l), result.get(0).get(p1));
+        assertEquals(Lists.newArrayList(20l, 10l), result.get(0).get(p2));
+    }
+
+    @Test
+    public void testGetInputSplitsMaxSplitSize() throws Exception {
+        final KafkaInputFormat inputFormat = spy(new KafkaInputFormat());
+        final SimpleConsumer mockConsumer = mock(SimpleConsumer.class);
+        final ZkUtils mockZk = mock(ZkUtils.class);
+        final Configuration mockConf = new Configuration(false);
+        mockConf.setLong("kafka.max.split.size.bytes", 8);
+
+        final Broker broker = new Broker("127.0.0.1", 9092, 1);
+        doReturn(mockConsumer).when(inputFormat).getConsumer(broker);
+        doReturn(mockZk).when(inputFormat).getZk(mockConf);
+        doReturn(Lists.newArrayList(30l, 20l, 0l)).when(inputFormat).getOffsets(mockConsumer, "topic", 0, -1, 0,
+                Integer.MAX_VALUE);
+
+        final Partition p1 = new Partition("topic", 0, broker);
+        when(mockZk.getPartitions(Lists.newArrayList("topic"))).thenReturn(
+                ImmutableMap.<String, List<Partition>> of("topic", Lists.newArrayList(p1)));
+        when(mockZk.getLastCommits("group", Lists.newArrayList(p1))).thenReturn(
+                Collections.singletonMap(p1, -1l));
+
+        final List<InputSplit> result = inputFormat.getInputSplits(mockConf, "topic", "group");
+        assertEquals(Lists.<InputSplit> newArrayList(new KafkaInputSplit(p1, 20, 28, false, false),
+                new KafkaInputSplit(p1, 28, 30, true, false), new KafkaInputSplit(p1, 0, 8, false, false),
+                new KafkaInputSplit(p1, 8, 16, false, false), new KafkaInputSplit(p1, 16, 20, false, false)), result);
+    }
+
+    @Test
+    public void testGetInputSplitsMultipleTopics() throws Exception {
+        final KafkaInputFormat inputFormat = spy(new KafkaInputFormat());
+        final SimpleConsumer mockConsumer = mock(SimpleConsumer.class);
+        final ZkUtils mockZk = mock(ZkUtils.class);
+        final Configuration conf = new Configuration(false);
+
+        final Broker broker = new Broker("127.0.0.1", 9092, 1);
+        doReturn(mockConsumer).when(inputFormat).getConsumer(broker);
+        doReturn(mockZk).when(inputFormat).getZk(conf);
+        final Partition p1 = new Partition("topic_1", 0, broker);
+        final Partition p2 = new Partition("topic_2", 0, broker);
+        final List<String> topics = Lists.newArrayList("topic_1", "topic_1", "topic_2");
+        when(mockZk.getPartitions(topics)).thenReturn(
+                ImmutableMap.<String, List<Partition>> of("topic_1", Lists.newArrayList(p1), "topic_2",
+                        Lists.newArrayList(p2)));
+        when(mockZk.getLastCommits("group_1", Lists.newArrayList(p1, p2))).thenReturn(
+                ImmutableMap.of(p1, 10l, p2, -1l));
+        when(mockZk.getLastCommits("group_2", Lists.newArrayList(p1))).thenReturn(Collections.singletonMap(p1, -1l));
+        doReturn(Lists.newArrayList(20l, 10l)).when(inputFormat).getOffsets(mockConsumer, "topic_1", 0, 10, 0,
+                Integer.MAX_VALUE);
+        doReturn(Lists.newArrayList(20l, 0l)).when(inputFormat).getOffsets(mockConsumer, "topic_1", 0, -1, 0,
+                Integer.MAX_VALUE);
+        doReturn(Lists.newArrayList(5l, 0l)).when(inputFormat).getOffsets(mockConsumer, "topic_2", 0, -1, 0,
+                Integer.MAX_VALUE);
+
+        final List<List<InputSplit>> result = inputFormat.getInputSplits(conf, topics,
+                Lists.newArrayList("group_1", "group_2", "group_1"));
+        assertEquals(Lists.<List<InputSplit>> newArrayList(
+                Lists.<InputSplit> newArrayList(new KafkaInputSplit(p1, 10, 20, true)),
+                Lists.<InputSplit> newArrayList(new KafkaInputSplit(p1, 0, 20, true)),
+                Lists.<InputSplit> newArrayList(new KafkaInputSplit(p2, 0, 5, true))), result);
+
+        // all topics share the Zookeeper client and the connection to the broker, and are read from Zookeeper at once
+        verify(inputFormat, times(1)).getZk(conf);
+        verify(inputFormat, times(1)).getConsumer(any(Broker.class));
+        verify(mockZk, times(1)).getPartitions(topics);
+        verify(mockZk, times(2)).getLastCommits(anyString(), anyListOf(Partition.class));
+        verify(mockConsumer, times(1)).close();
+        verify(mockZk, times(1)).close();
+    }
+
+    @Test
+    public void testGetInputSplitsByteBudget() throws Exception {
+        final KafkaInputFormat inputFormat = spy(new KafkaInputFormat());
+        final SimpleConsumer mockConsumer = mock(SimpleConsumer.class);
+        final ZkUtils mockZk = mock(ZkUtils.class);
+        final Configuration conf = new Configuration(false);
+        final Job mockJob = mock(Job.class);
+        when(mockJob.getConfiguration()).thenReturn(conf);
+
+        final Broker broker = new Broker("127.0.0.1", 9092, 1);
+        doReturn(mockConsumer).when(inputFormat).getConsumer(broker);
+        doReturn(mockZk).when(inputFormat).getZk(conf);
+        final Partition p1 = new Partition("topic", 0, broker);
+        final Partition p2 = new Partition("topic", 1, broker);
+        final Map<Partition, Long> lastCommits = Maps.newLinkedHashMap();
+        lastCommits.put(p1, -1l);
+        lastCommits.put(p2, -1l);
+        when(mockZk.getPartitions(Lists.newArrayList("topic"))).thenReturn(
+                ImmutableMap.<String, List<Partition>> of("topic", Lists.newArrayList(p1, p2)));
+        when(mockZk.getLastCommits("group", Lists.newArrayList(p1, p2))).thenReturn(lastCommits);
+        doReturn(Lists.newArrayList(30l, 20l, 0l)).when(inputFormat).getOffsets(mockConsumer, "topic", 0, -1, 0,
+                Integer.MAX_VALUE);
+        doReturn(Lists.newArrayList(10l, 0l)).when(inputFormat).getOffsets(mockConsumer, "topic", 1, -1, 0,
+                Integer.MAX_VALUE);
+
+        // p2 only needs 10 bytes of its share of 12, so p1 gets the other 15, ending in the middle of a segment
+        KafkaInputFormat.setMaxBytesPerRun(mockJob, 25);
+        assertEquals(Lists.<InputSplit> newArrayList(new KafkaInputSplit(p1, 0, 15, true, false),
+                new KafkaInputSplit(p2, 0, 10, true)), inputFormat.getInputSplits(conf, "topic", "group"));
+
+        // a budget that ends on a segment boundary
+        KafkaInputFormat.setMaxBytesPerRun(mockJob, Long.MAX_VALUE);
+        KafkaInputFormat.setMaxBytesPerPartition(mockJob, 20);
+        assertEquals(Lists.<InputSplit> newArrayList(new KafkaInputSplit(p1, 0, 20, true),
+                new KafkaInputSplit(p2, 0, 10, true)), inputFormat.getInputSplits(conf, "topic", "group"));
+    }
+
+    @Test
+    public void testGetMaxSplitSize() throws Exception {
+        final Job job = Job.getInstance(new Configuration(false));
+        final Configuration conf = job.getConfiguration();
+        final Broker b1 = new Broker("127.0.0.1", 9092, 1);
+        final Broker b2 = new Broker("127.0.0.2", 9092, 2);
+        final Broker b3 = new Broker("127.0.0.3", 9092, 3);
+        final Map<Integer, Double> throughput = Maps.newHashMap();
+        throughput.put(1, 100.0);
+        throughput.put(2, 300.0);
+
+        // no stats, no target duration
+        assertEquals(Long.MAX_VALUE,
+                KafkaInputFormat.getMaxSplitSize(conf, Collections.<Integer, Double> emptyMap(), b1));
+        KafkaInputFormat.setTargetTaskDurationMs(job, 1000);
+        // the minimum split size applies by default
+        assertEquals(KafkaInputFormat.DEFAULT_MIN_SPLIT_SIZE_BYTES,
+                KafkaInputFormat.getMaxSplitSize(conf, throughput, b2));
+        KafkaInputFormat.setMinSplitSizeBytes(job, 1);
+        KafkaInputFormat.setKafkaFetchSizeBytes(job, 1000);
+        assertEquals(100000, KafkaInputFormat.getMaxSplitSize(conf, throughput, b1));
+        assertEquals(300000, KafkaInputFormat.getMaxSplitSize(conf, throughput, b2));
+        // a new broker is assumed to be average
+        assertEquals(200000, KafkaInputFormat.getMaxSplitSize(conf, throughput, b3));
+        // the max split size still applies
+        KafkaInputFormat.setMaxSplitSizeBytes(job, 150000);
+        assertEquals(150000, KafkaInputFormat.getMaxSplitSize(conf, throughput, b2));
+
+        // a slow broker doesn't get splits smaller than the minimum split size, or the fetch size
+        throughput.put(1, 0.01);
+        KafkaInputFormat.setMinSplitSizeBytes(job, 5000);
+        assertEquals(5000, KafkaInputFormat.getMaxSplitSize(conf, throughput, b1));
+        KafkaInputFormat.setKafkaFetchSizeBytes(job, 8000);
+        assertEquals(8000, KafkaInputFormat.getMaxSplitSize(conf, throughput, b1));
+    }
+
+    @Test
+    public void testGetInputSplitsTargetDuration() throws Exception {
+        final KafkaInputFormat inputFormat = spy(new KafkaInputFormat());
+        final SimpleConsumer mockConsumer = mock(SimpleConsumer.class);
+        final ZkUtils mockZk = mock(ZkUtils.class);
+        final KafkaThroughputStats mockStats = mock(KafkaThroughputStats.class);
+        final Configuration conf = new Configuration(false);
+        final Job mockJob = mock(Job.class);
+        when(mockJob.getConfiguration()).thenReturn(conf);
+        KafkaInputFormat.setThroughputStatsDir(mockJob, new Path("/stats"));
+        KafkaInputFormat.setTargetTaskDurationMs(mockJob, 2);
+        KafkaInputFormat.setMinSplitSizeBytes(mockJob, 1);
+        KafkaInputFormat.setKafkaFetchSizeBytes(mockJob, 1);
+
+        final Broker broker = new Broker("127.0.0.1", 9092, 1);
+        doReturn(mockConsumer).when(inputFormat).getConsumer(broker);
+        doReturn(mockZk).when(inputFormat).getZk(conf);
+        doReturn(mockStats).when(inputFormat).getThroughputStats(conf);
+        when(mockStats.load("topic")).thenReturn(Collections.singletonMap(1, 5.0));
+        final Partition p1 = new Partition("topic", 0, broker);
+        when(mockZk.getPartitions(Lists.newArrayList("topic"))).thenReturn(
+                ImmutableMap.<String, List<Partition>> of("topic", Lists.newArrayList(p1)));
+        when(mockZk.getLastCommits("group", Lists.newArrayList(p1))).thenReturn(Collections.singletonMap(p1, -1l));
+        doReturn(Lists.newArrayList(30l, 20l, 0l)).when(inputFormat).getOffsets(mockConsumer, "topic", 0, -1, 0,
+                Integer.MAX_VALUE);
+
+        // the broker reads 10 bytes in 2 ms
+        assertEquals(Lists.<InputSplit> newArrayList(new KafkaInputSplit(p1, 20, 30, true),
+                new KafkaInputSplit(p1, 0, 10, false, false), new KafkaInputSplit(p1, 10, 20, false, false)),
+                inputFormat.getInputSplits(conf, "topic", "group"));
+    }
+
+    @Test
+    public void testFairShares() throws Exception {
+        // the small demand is met, and the rest is split evenly
+        assertArrayEquals(new long[] { 10, 70, 70 },
+                KafkaInputFormat.fairShares(new long[] { 10, 100, 100 }, new double[] { 1, 1, 1 }, 150));
+        // ... or by weight
+        assertArrayEquals(new long[] { 10, 47, 93 },
+                KafkaInputFormat.fairShares(new long[] { 10, 100, 100 }, new double[] { 1, 1, 2 }, 150));
+        // enough budget for everyone
+        assertArrayEquals(new long[] { 10, 100, 0 },
+                KafkaInputFormat.fairShares(new long[] { 10, 100, 0 }, new double[] { 1, 1, 1 }, Long.MAX_VALUE));
+        assertArrayEquals(new long[] {}, KafkaInputFormat.fairShares(new long[] {}, new double[] {}, 10));
+    }
+
+    public static class TestResolver implements BrokerLocationResolver {
+        @Override
+        public String[] getLocations(final Broker broker) {
+            return new String[] { "nm-" + broker.getId() };
+        }
+    }
+
+    @Test
+    public void testGetInputSplitsLocations() throws Exception {
+        final KafkaInputFormat inputFormat = spy(new KafkaInputFormat());
+        final SimpleConsumer mockConsumer = mock(SimpleConsumer.class);
+        final ZkUtils mockZk = mock(ZkUtils.class);
+        final Configuration conf = new Configuration(false);
+        final Job mockJob = mock(Job.class);
+        when(mockJob.getConfiguration()).thenReturn(conf);
+        KafkaInputFormat.setBrokerLocationResolver(mockJob, TestResolver.class);
+
+        final Broker broker = new Broker("127.0.0.1", 9092, 1);
+        doReturn(mockConsumer).when(inputFormat).getConsumer(broker);
+        doReturn(mockZk).when(inputFormat).getZk(conf);
+        final Partition p1 = new Partition("topic", 0, broker);
+        when(mockZk.getPartitions(Lists.newArrayList("topic"))).thenReturn(
+                ImmutableMap.<String, List<Partition>> of("topic", Lists.newArrayList(p1)));
+        when(mockZk.getLastCommits("group", Lists.newArrayList(p1))).thenReturn(Collections.singletonMap(p1, -1l));
+        doReturn(Lists.newArrayList(30l, 20l, 0l)).when(inputFormat).getOffsets(mockConsumer, "topic", 0, -1, 0,
+                Integer.MAX_VALUE);
+
+        final List<InputSplit> result = inputFormat.getInputSplits(conf, "topic", "group");
+        assertEquals(2, result.size());
+        for (final InputSplit split : result) {
+            assertArrayEquals(new String[] { "nm-1" }, split.getLocations());
+        }
+    }
+
+    @Test
+    public void testInterleaveByBroker() throws Exception {
+        final Broker b1 = new Broker("127.0.0.1", 9092, 1);
+        final Broker b2 = new Broker("127.0.0.2", 9092, 2);
+        final Broker b3 = new Broker("127.0.0.3", 9092, 3);
+        final InputSplit s1 = new KafkaInputSplit(new Partition("topic", 0, b1), 0, 10, true);
+        final InputSplit s2 = new KafkaInputSplit(new Partition("topic", 1, b1), 0, 10, true);
+        final InputSplit s3 = new KafkaInputSplit(new Partition("topic", 2, b1), 0, 10, true);
+        final InputSplit s4 = new KafkaInputSplit(new Partition("topic", 0, b2), 0, 10, true);
+        final InputSplit s5 = new CombinedKafkaInputSplit(Lists.newArrayList(new KafkaInputSplit(new Partition(
+                "topic", 0, b3), 0, 10, true)));
+        final InputSplit s6 = new TaggedInputSplit(new KafkaInputSplit(new Partition("topic", 1, b2), 0, 10, true),
+                new Configuration(false), KafkaInputFormat.class, Mapper.class);
+
+        final List<InputSplit> splits = Lists.newArrayList(s1, s2, s3, s4, s5, s6);
+        assertEquals(Lists.newArrayList(s1, s4, s5, s2, s6, s3),
+                KafkaInputFormat.interleaveByBroker(splits));
+        assertEquals(Lists.newArrayList(),
+                KafkaInputFormat.interleaveByBroker(Lists.<InputSplit> newArrayList()));
+
+        // interleaving is off by default
+        final Configuration conf = new Configuration(false);
+        assertSame(splits, KafkaInputFormat.orderSplits(conf, splits));
+        conf.setBoolean("kafka.planning.interleave.brokers", true);
+        assertEquals(Lists.newArrayList(s1, s4, s5, s2, s6, s3), KafkaInputFormat.orderSplits(conf, splits));
+    }
+
+    @Test
+    public void testInterleaveByBrokerUneven() throws Exception {
+        final Broker b1 = new Broker("127.0.0.1", 9092, 1);
+        final Broker b2 = new Broker("127.0.0.2", 9092, 2);
+        final Broker b3 = new Broker("127.0.0.3", 9092, 3);
+        final List<InputSplit> a = Lists.newArrayList();
+        for (int i = 0; i < 5; ++i) {
+            a.add(new KafkaInputSplit(new Partition("topic", i, b1), 0, 10, true));
+        }
+        final List<InputSplit> c = Lists.newArrayList();
+        for (int i = 0; i < 3; ++i) {
+            c.add(new KafkaInputSplit(new Partition("topic", i, b2), 0, 10, true));
+        }
+        final InputSplit d = new KafkaInputSplit(new Partition("topic", 0, b3), 0, 10, true);
+        final List<InputSplit> splits = Lists.newArrayList(a);
+        splits.addAll(c);
+        splits.add(d);
+
+        // b1 only gets consecutive splits once b2 and b3 have none left
+        assertEquals(Lists.newArrayList(a.get(0), c.get(0), d, a.get(1), c.get(1), a.get(2), c.get(2), a.get(3),
+                a.get(4)), KafkaInputFormat.interleaveByBroker(splits));
+    }
+
+    @Test
+    public void testGetPartitionOffsets() throws Exception {
+        final KafkaInputFormat inputFormat = spy(new KafkaInputFormat());
+        final Configuration conf = new Configuration(false);
+        conf.setLong("kafka.planning.broker.timeout.ms", 500);
+        final Broker b1 = new Broker("127.0.0.1", 9092, 1);
+        final Broker b2 = new Broker("127.0.0.2", 9092, 2);
+        final Broker b3 = new Broker("127.0.0.3", 9092, 3);
+        final SimpleConsumer c1 = mock(SimpleConsumer.class);
+        final SimpleConsumer c2 = mock(SimpleConsumer.class);
+        final SimpleConsumer c3 = mock(SimpleConsumer.class);
+        doReturn(c1).when(inputFormat).getConsumer(b1);
+        doReturn(c2).when(inputFormat).getConsumer(b2);
+        doReturn(c3).when(inputFormat).getConsumer(b3);
+        final Partition p1 = new Partition("topic", 0, b1);
+        final Partition p2 = new Partition("topic", 1, b1);
+        final Partition p3 = new Partition("topic", 0, b2);
+        final Partition p4 = new Partition("topic", 0, b3);
+        doReturn(Lists.newArrayList(20l, 10l)).when(inputFormat).getOffsets(c1, "topic", 0, 10, 0, Integer.MAX_VALUE);
+        doReturn(Lists.newArrayList(30l, 0l)).when(inputFormat).getOffsets(c1, "topic", 1, -1, 0, Integer.MAX_VALUE);
+        doReturn(Lists.newArrayList(40l, 0l)).when(inputFormat).getOffsets(c2, "topic", 0, -1, 0, Integer.MAX_VALUE);
+        // broker 3 hangs
+        doAnswer(new Answer<List<Long>>() {
+            @Override
+            public List<Long> answer(final InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                return Lists.newArrayList(50l, 0l);
+            }
+        }).when(inputFormat).getOffsets(c3, "topic", 0, -1, 0, Integer.MAX_VALUE);
+
+        final long start = System.currentTimeMillis();
+        final List<Map<Partition, List<Long>>> results = inputFormat.getPartitionOffsets(conf,
+                Lists.<List<Partition>> newArrayList(Lists.newArrayList(p1, p2, p3, p4)),
+                Lists.<Map<Partition, Long>> newArrayList(Collections.singletonMap(p1, 10l)));
+        assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(30));
+        assertEquals(1, results.size());
+        final Map<Partition, List<Long>> result = results.get(0);
+        assertEquals(3, result.size());
+        assertEquals(Lists.newArrayList(20l, 10l), result.get(p1));
+        assertEquals(Lists.newArrayList(30l, 0l), result.get(p2));
+        assertEquals(Lists.newArrayList(40l, 0l), result.get(p3));
+        assertFalse(result.containsKey(p4));
+
+        // one consumer per broker, which is closed when the broker is done (or given up on)
+        verify(inputFormat, times(3)).getConsumer(any(Broker.class));
+        verify(c1, timeout(1000)).close();
+        verify(c2, timeout(1000)).close();
+        verify(c3, timeout(1000)).close();
+    }
+
+    @Test
+    public void testCreateSplits() throws Exception {
+        final Partition partition = new Partition("topic", 0, new Broker("127.0.0.1", 9092, 1));
+
+        // ranges that fit are left alone
+        assertEquals(Lists.newArrayList(new KafkaInputSplit(partition, 0, 10, true)),
+                KafkaInputFormat.createSplits(partition, 0, 10, true, 10));
+
+        // only the last sub-split of the last segment commits the partition
+        assertEquals(Lists.newArrayList(new KafkaInputSplit(partition, 0, 4, false, false), new KafkaInputSplit(
+                partition, 4, 8, false, false), new KafkaInputSplit(partition, 8, 10, true, false)),
+                KafkaInputFormat.createSplits(partition, 0, 10, true, 4));
+        assertEquals(Lists.newArrayList(new KafkaInputSplit(partition, 0, 5, false, false), new KafkaInputSplit(
+                partition, 5, 10, false, false)), KafkaInputFormat.createSplits(partition, 0, 10, false, 5));
+
+        // a range that doesn't end on a message boundary
+        assertEquals(Lists.newArrayList(new KafkaInputSplit(partition, 0, 10, true, false)),
+                KafkaInputFormat.createSplits(partition, 0, 10, true, 10, false));
+    }
+
+    @Test
+    public void testGetCommittedOffsets() throws Exception {
+        final Broker broker = new Broker("127.0.0.1", 9092, 1);
+        final Partition p1 = new Partition("topic_1", 0, broker);
+        final Partition p2 = new Partition("topic_2", 0, broker);
+        final ZkUtils zk = mock(ZkUtils.class);
+        final Map<String, List<Partition>> partitions = ImmutableMap.<String, List<Partition>> of("topic_1",
+                Lists.newArrayList(p1), "topic_2", Lists.newArrayList(p2));
+        when(zk.getPartitions(ImmutableSet.of("topic_1", "topic_2"))).thenReturn(partitions);
+        when(zk.getLastCommits("group_1", Lists.newArrayList(p1))).thenReturn(ImmutableMap.of(p1, 10l));
+        when(zk.getLastCommits("group_2", Lists.newArrayList(p2))).thenReturn(ImmutableMap.<Partition, Long> of());
+
+        final Job job = Job.getInstance(new Configuration(false));
+        MultipleKafkaInputFormat.addTopic(job, "topic_1", "group_1", Mapper.class);
+        MultipleKafkaInputFormat.addTopic(job, "topic_2", "group_2", Mapper.class);
+        assertEquals(ImmutableMap.of("group_1", ImmutableMap.of(p1, 10l), "group_2", ImmutableMap.of()),
+                KafkaInputFormat.getCommittedOffsets(zk, job.getConfiguration()));
+    }
+
     @Test
     public void testGetOffsets() throws Exception {
         final SimpleConsumer consumer = mock(SimpleConsumer.class);
@@ -14,7 +14,7 @@
 
 package com.conductor.kafka.hadoop;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 import org.junit.Test;
 
@@ -40,5 +40,33 @@ public class KafkaInputSplitTest {
         actual.readFields(ByteStreams.newDataInput(out.toByteArray()));
 
         assertEquals(split, actual);
+
+        final KafkaInputSplit unaligned = new KafkaInputSplit(partition, 3, 17l, true, false);
+        final ByteArrayDataOutput unalignedOut = ByteStreams.newDataOutput();
+        unaligned.write(unalignedOut);
+
+        final KafkaInputSplit actualUnaligned = new KafkaInputSplit();
+        actualUnaligned.readFields(ByteStreams.newDataInput(unalignedOut.toByteArray()));
+
+        assertEquals(unaligned, actualUnaligned);
+        assertFalse(actualUnaligned.isAligned());
+    }
+
+    @Test
+    public void testGetLocations() throws Exception {
+        final Partition partition = new Partition("topic_name", 0, new Broker("127.0.0.1", 9092, 1));
+        final KafkaInputSplit split = new KafkaInputSplit(partition, 0, 10l, false);
+        assertArrayEquals(new String[] { "127.0.0.1" }, split.getLocations());
+
+        split.setLocations(new String[] { "nodemanager-1" });
+        assertArrayEquals(new String[] { "nodemanager-1" }, split.getLocations());
+
+        // the locations are only needed by the job client
+        final ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        split.write(out);
+        final KafkaInputSplit actual = new KafkaInputSplit();
+        actual.readFields(ByteStreams.newDataInput(out.toByteArray()));
+        assertEquals(split, actual);
+        assertArrayEquals(new String[] { "127.0.0.1" }, actual.getLocations());
     }
 }
@@ -15,7 +15,11 @@
 package com.conductor.kafka.hadoop;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.BytesWritable;
@@ -25,6 +29,8 @@ import org.apache.hadoop.mapreduce.lib.output.*;
 import org.junit.Test;
 
 import com.conductor.hadoop.DelegatingMapper;
+import com.conductor.kafka.hadoop.MultipleKafkaInputFormat.TopicConf;
+import com.google.common.collect.Lists;
 
 /**
  * @author cgreen
@@ -148,9 +154,88 @@ public class KafkaJobBuilderTest {
         assertEquals("s3cr3t", job.getConfiguration().get("fs.s3.awsSecretAccessKey"));
     }
 
+    @Test
+    public void testQueuePatternInput() throws Exception {
+        builder.setZkConnect("localhost:2181");
+        builder.addQueuePatternInput("queue_.*", "group_name", MockMapper.class);
+        builder.setNullOutputFormat();
+
+        // a single pattern still needs the multiple input format
+        final Job job = builder.configureJob(conf);
+        assertEquals(MultipleKafkaInputFormat.class, job.getInputFormatClass());
+        assertEquals(DelegatingMapper.class, job.getMapperClass());
+        assertEquals(Lists.newArrayList(new TopicConf("queue_.*", "group_name", MockMapper.class)),
+                MultipleKafkaInputFormat.getTopicPatterns(job.getConfiguration()));
+        assertTrue(MultipleKafkaInputFormat.getTopics(job.getConfiguration()).isEmpty());
+        assertEquals("queues matching queue_.* mapped by MockMapper", job.getJobName());
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void testInvalidQueuePattern() throws Exception {
+        builder.addQueuePatternInput("queue_(", "group_name", MockMapper.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLocalExecutionNoThreads() throws Exception {
+        builder.setLocalExecution(1024, 0);
+    }
+
+    @Test
+    public void testClusterExecutionByDefault() throws Exception {
+        builder.setZkConnect("localhost:2181");
+        builder.addQueueInput("queue_name", "group_name", MockMapper.class);
+        builder.setNullOutputFormat();
+        final Configuration jobConf = builder.configureJob(conf).getConfiguration();
+        assertFalse("local".equals(jobConf.get("mapreduce.framework.name")));
+    }
+
+    @Test
+    public void testClusterExecutionWithReducers() throws Exception {
+        builder.setZkConnect("localhost:2181");
+        builder.addQueueInput("queue_name", "group_name", MockMapper.class);
+        builder.setNullOutputFormat();
+        builder.setReducerClass(MockReducer.class);
+        builder.setNumReduceTasks(2);
+        // the job isn't even planned, since it couldn't run locally
+        builder.setLocalExecution(Long.MAX_VALUE, 4);
+        final Job job = builder.configureJob(conf);
+        assertFalse("local".equals(job.getConfiguration().get("mapreduce.framework.name")));
+        assertEquals(2, job.getNumReduceTasks());
+    }
+
+    @Test
+    public void testCommitOffsetsWithOutput() throws Exception {
+        builder.setZkConnect("localhost:2181");
+        builder.addQueueInput("queue_name", "group_name", MockMapper.class);
+        builder.setSequenceFileOutputFormat();
+        builder.setUseLazyOutput();
+        builder.setCommitOffsetsWithOutput();
+
+        final Job job = builder.configureJob(conf);
+        assertEquals(KafkaOffsetOutputFormat.class, job.getOutputFormatClass());
+        assertEquals(LazyOutputFormat.class, KafkaOffsetOutputFormat.getOutputFormatClass(job.getConfiguration()));
+    }
+
+    @Test
+    public void testConfigureBatchMapper() throws Exception {
+        builder.setZkConnect("localhost:2181");
+        builder.addQueueInput("queue_name", "group_name", MockBatchMapper.class);
+        builder.setTextFileOutputFormat("/a/hdfs/path");
+
+        final Job job = builder.configureJob(conf);
+        assertEquals(KafkaBatchInputFormat.class, job.getInputFormatClass());
+        assertEquals(MockBatchMapper.class, job.getMapperClass());
+    }
+
     private static class MockMapper extends Mapper {
     }
 
+    private static class MockBatchMapper extends KafkaBatchMapper<Text, Text> {
+        @Override
+        protected void mapBatch(final KafkaMessageBatch batch, final Context context) {
+        }
+    }
+
     private static class MockReducer extends Reducer {
     }
 
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.Partition;
+import com.conductor.kafka.hadoop.KafkaLagReporter.PartitionLag;
+import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * @author cgreen
+ */
+public class KafkaLagReporterTest {
+
+    private final Broker broker = new Broker("127.0.0.1", 9092, 1);
+    private final Partition p1 = new Partition("topic", 0, broker);
+    private final Partition p2 = new Partition("topic", 1, broker);
+    private final Partition p3 = new Partition("topic", 2, broker);
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private KafkaLagReporter reporter;
+    private KafkaInputFormat inputFormat;
+    private Map<Partition, List<Long>> offsets;
+
+    @Before
+    public void setUp() throws Exception {
+        final Configuration conf = new Configuration(false);
+        reporter = spy(new KafkaLagReporter());
+        reporter.setConf(conf);
+        inputFormat = mock(KafkaInputFormat.class);
+        final ZkUtils zk = mock(ZkUtils.class);
+        doReturn(inputFormat).when(reporter).getInputFormat();
+        doReturn(zk).when(reporter).getZk(conf);
+        doReturn(new PrintStream(out)).when(reporter).getOut();
+
+        final Map<Partition, Long> lastCommits = Maps.newHashMap();
+        lastCommits.put(p1, 10l);
+        lastCommits.put(p3, 30l);
+        when(zk.getPartitions(Lists.newArrayList("topic"))).thenReturn(
+                ImmutableMap.<String, List<Partition>> of("topic", Lists.newArrayList(p1, p2, p3)));
+        when(zk.getLastCommits("group", Lists.newArrayList(p1, p2, p3))).thenReturn(lastCommits);
+
+        offsets = Maps.newHashMap();
+        offsets.put(p1, Lists.newArrayList(50l, 40l, 10l));
+        offsets.put(p2, Lists.newArrayList(20l, 0l));
+        // p3 has nothing new
+        offsets.put(p3, Lists.newArrayList(30l));
+        when(inputFormat.getPartitionOffsets(any(Configuration.class), eq(Lists.<List<Partition>> newArrayList(
+                Lists.newArrayList(p1, p2, p3))), eq(Lists.newArrayList(lastCommits)))).thenReturn(
+                Lists.newArrayList(offsets));
+    }
+
+    @Test
+    public void testGetLag() throws Exception {
+        final List<PartitionLag> result = reporter.getLag(Lists.newArrayList("topic"), Lists.newArrayList("group"));
+        assertEquals(3, result.size());
+        assertEquals(40, result.get(0).getLag());
+        assertEquals(50, result.get(0).getLatestOffset());
+        assertEquals(10, result.get(0).getCommittedOffset());
+        assertEquals(20, result.get(1).getLag());
+        assertEquals(-1, result.get(1).getCommittedOffset());
+        assertEquals(0, result.get(2).getLag());
+        assertEquals("topic\tgroup\t1\t0\t50\t10\t40", result.get(0).toString());
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        assertEquals(0, reporter.run(new String[] { "topic", "group" }));
+        assertEquals(3, out.toString().split("\n").length);
+        assertTrue(out.toString().startsWith("topic\tgroup\t1\t0\t50\t10\t40\n"));
+
+        // no new data
+        offsets.put(p1, Lists.newArrayList(10l));
+        offsets.put(p2, Collections.<Long> emptyList());
+        assertEquals(KafkaLagReporter.NO_NEW_DATA, reporter.run(new String[] { "topic", "group" }));
+
+        // a broker that doesn't answer may have new data
+        offsets.remove(p2);
+        assertEquals(0, reporter.run(new String[] { "topic", "group" }));
+
+        assertEquals(-1, reporter.run(new String[] { "topic" }));
+    }
+}
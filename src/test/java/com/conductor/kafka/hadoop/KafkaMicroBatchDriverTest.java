@@ -0,0 +1,231 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.Partition;
+import com.conductor.kafka.hadoop.KafkaLagReporter.PartitionLag;
+import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * @author cgreen
+ */
+public class KafkaMicroBatchDriverTest {
+
+    private Configuration conf;
+    private Job job;
+    private ZkUtils zk;
+    private KafkaMicroBatchDriver driver;
+
+    @Before
+    public void setUp() throws Exception {
+        conf = new Configuration(false);
+        job = mock(Job.class);
+        when(job.getConfiguration()).thenReturn(conf);
+        driver = spy(new KafkaMicroBatchDriver(KafkaJobBuilder.newBuilder(), new Configuration(false)));
+        doReturn(job).when(driver).createJob();
+        zk = mock(ZkUtils.class);
+        doReturn(zk).when(driver).getZk(conf);
+        doReturn(true).when(driver).commitOffsets(conf);
+        doReturn(ImmutableMap.of()).when(driver).getCommittedOffsets(conf);
+        doNothing().when(driver).sleep(anyLong());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        driver.close();
+    }
+
+    @Test
+    public void testChooseBatchBytes() throws Exception {
+        // the whole lag
+        assertEquals(100, KafkaMicroBatchDriver.chooseBatchBytes(100, 0, 0, Long.MAX_VALUE));
+        assertEquals(0, KafkaMicroBatchDriver.chooseBatchBytes(0, 0, 0, Long.MAX_VALUE));
+        // ... up to the max
+        assertEquals(50, KafkaMicroBatchDriver.chooseBatchBytes(100, 0, 0, 50));
+        // ... or what the previous batches read in the target duration
+        assertEquals(20, KafkaMicroBatchDriver.chooseBatchBytes(100, 2, 10, 50));
+        assertEquals(50, KafkaMicroBatchDriver.chooseBatchBytes(100, 20, 10, 50));
+    }
+
+    @Test
+    public void testRunBatch() throws Exception {
+        driver.setMaxBatchBytes(50);
+        // lag before the first batch, and while each batch runs
+        doReturn(100l).doReturn(90l).doReturn(40l).when(driver).measureLag(conf);
+        when(job.waitForCompletion(false)).thenReturn(true);
+        // the committed offsets before and after each batch
+        doReturn(commits(0)).doReturn(commits(50)).doReturn(commits(50)).doReturn(commits(90)).when(driver)
+                .getCommittedOffsets(conf);
+
+        assertTrue(driver.runBatch());
+        assertEquals(50, KafkaInputFormat.getMaxBytesPerRun(conf));
+        verify(job).submit();
+        verify(driver).commitOffsets(conf);
+        // the lag measured while the batch ran still included the batch
+        assertEquals(40, driver.getLag());
+        assertEquals(1, driver.getBatches());
+        assertEquals(50, driver.getBytesRead());
+
+        assertTrue(driver.runBatch());
+        assertEquals(40, KafkaInputFormat.getMaxBytesPerRun(conf));
+        assertEquals(0, driver.getLag());
+        assertEquals(2, driver.getBatches());
+        assertEquals(90, driver.getBytesRead());
+        verify(driver, never()).sleep(anyLong());
+
+        // nothing left to read
+        assertFalse(driver.runBatch());
+        verify(job, times(2)).submit();
+        verify(driver).sleep(KafkaMicroBatchDriver.DEFAULT_IDLE_SLEEP_MS);
+        assertEquals(-1, driver.getLag());
+    }
+
+    @Test
+    public void testRunBatchFailure() throws Exception {
+        doReturn(100l).when(driver).measureLag(conf);
+        when(job.waitForCompletion(false)).thenReturn(false);
+
+        assertTrue(driver.runBatch());
+        assertEquals(1, driver.getFailedBatches());
+        assertEquals(0, driver.getBatches());
+        // the offsets of a failed batch aren't committed, so the next batch reads the same data
+        verify(driver, never()).commitOffsets(conf);
+        assertEquals(100, driver.getLag());
+        verify(driver).sleep(KafkaMicroBatchDriver.DEFAULT_IDLE_SLEEP_MS);
+    }
+
+    @Test
+    public void testRunBatchCommitFailure() throws Exception {
+        doReturn(100l).when(driver).measureLag(conf);
+        when(job.waitForCompletion(false)).thenReturn(true);
+        doReturn(false).when(driver).commitOffsets(conf);
+
+        assertTrue(driver.runBatch());
+        assertEquals(1, driver.getFailedBatches());
+        assertEquals(0, driver.getBatches());
+        assertEquals(0, driver.getBytesRead());
+        // the offsets weren't committed, so the data of the batch is still behind
+        assertEquals(100, driver.getLag());
+        verify(driver).sleep(KafkaMicroBatchDriver.DEFAULT_IDLE_SLEEP_MS);
+    }
+
+    @Test
+    public void testUnknownLag() throws Exception {
+        doThrow(new IOException("zk is down")).when(driver).measureLag(conf);
+        when(job.waitForCompletion(false)).thenReturn(true);
+        doReturn(commits(0)).doReturn(commits(10)).when(driver).getCommittedOffsets(conf);
+
+        // a batch without a byte budget
+        assertTrue(driver.runBatch());
+        assertNull(conf.get("kafka.max.bytes.per.run"));
+        assertEquals(-1, driver.getLag());
+        assertEquals(1, driver.getBatches());
+        assertEquals(10, driver.getBytesRead());
+    }
+
+    @Test
+    public void testUnknownBytesRead() throws Exception {
+        doReturn(100l).when(driver).measureLag(conf);
+        when(job.waitForCompletion(false)).thenReturn(true);
+        doThrow(new IOException("zk is down")).when(driver).getCommittedOffsets(conf);
+
+        // the batch succeeds, but the lag has to be measured again
+        assertTrue(driver.runBatch());
+        assertEquals(1, driver.getBatches());
+        assertEquals(0, driver.getBytesRead());
+        assertEquals(0, driver.getBytesPerSecond(), 0);
+        assertEquals(-1, driver.getLag());
+    }
+
+    @Test
+    public void testMeasureLag() throws Exception {
+        KafkaInputFormat.setTopic(job, "topic");
+        KafkaInputFormat.setConsumerGroup(job, "group");
+        final Broker broker = new Broker("127.0.0.1", 9092, 1);
+        final Partition p1 = new Partition("topic", 0, broker);
+        final Partition p2 = new Partition("topic", 1, broker);
+        final KafkaLagReporter reporter = mock(KafkaLagReporter.class);
+        doReturn(reporter).when(driver).getLagReporter(conf);
+        when(reporter.getLag(zk, Lists.newArrayList("topic"), Lists.newArrayList("group"))).thenReturn(
+                Lists.newArrayList(new PartitionLag("group", p1, 100, 60, 40), new PartitionLag("group", p2, 50, 30,
+                        20)));
+
+        // the lag comes from the offsets alone, read with the client that watches the metadata
+        assertEquals(60, driver.measureLag(conf));
+        verify(driver, times(1)).getZk(conf);
+
+        // a broker that didn't answer leaves the lag unknown
+        when(reporter.getLag(zk, Lists.newArrayList("topic"), Lists.newArrayList("group"))).thenReturn(
+                Lists.newArrayList(new PartitionLag("group", p1, 100, 60, 40), new PartitionLag("group", p2, -1, 30,
+                        -1)));
+        try {
+            driver.measureLag(conf);
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testGetCommittedBytes() throws Exception {
+        final Broker broker = new Broker("127.0.0.1", 9092, 1);
+        final Partition p1 = new Partition("topic", 0, broker);
+        final Partition p2 = new Partition("topic", 1, broker);
+        final Partition p3 = new Partition("topic", 2, broker);
+        final Map<String, Map<Partition, Long>> start = ImmutableMap.<String, Map<Partition, Long>> of("group",
+                ImmutableMap.of(p1, 100l, p2, 200l), "group_2", ImmutableMap.of(p1, 10l));
+        final Map<String, Map<Partition, Long>> end = ImmutableMap.<String, Map<Partition, Long>> of("group",
+                ImmutableMap.of(p1, 150l, p2, 100l, p3, 500l), "group_2", ImmutableMap.of(p1, 20l), "group_3",
+                ImmutableMap.of(p1, 30l));
+        // p2 was reset, and p3 and group_3 have no earlier commit
+        assertEquals(60, KafkaMicroBatchDriver.getCommittedBytes(start, end));
+        assertEquals(0, KafkaMicroBatchDriver.getCommittedBytes(end, end));
+    }
+
+    private static Map<String, Map<Partition, Long>> commits(final long offset) {
+        return ImmutableMap.<String, Map<Partition, Long>> of("group",
+                ImmutableMap.of(new Partition("topic", 0, new Broker("127.0.0.1", 9092, 1)), offset));
+    }
+
+    @Test
+    public void testWatchMetadata() throws Exception {
+        doReturn(100l).when(driver).measureLag(conf);
+        when(job.waitForCompletion(false)).thenReturn(true);
+
+        // one client watches the metadata across batches, until the driver is closed
+        driver.runBatch();
+        driver.runBatch();
+        verify(driver, times(1)).getZk(conf);
+        verify(zk, times(1)).watchMetadata();
+        verify(zk, never()).close();
+        driver.close();
+        verify(zk).close();
+    }
+}
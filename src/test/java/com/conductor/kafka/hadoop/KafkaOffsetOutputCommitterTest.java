@@ -0,0 +1,158 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.Partition;
+import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+
+/**
+ * @author cgreen
+ */
+public class KafkaOffsetOutputCommitterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Configuration conf;
+    private FileSystem fs;
+    private OutputCommitter delegate;
+    private ZkUtils zk;
+    private KafkaOffsetOutputCommitter committer;
+    private JobContext jobContext;
+    private final Partition partition1 = new Partition("topic", 0, new Broker("localhost", 9092, 1));
+    private final Partition partition2 = new Partition("topic", 1, new Broker("localhost", 9092, 1));
+    private final Partition partition3 = new Partition("other_topic", 0, new Broker("localhost", 9092, 2));
+
+    @Before
+    public void setUp() throws Exception {
+        conf = new Configuration(false);
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        conf.set(MRJobConfig.MAPREDUCE_JOB_DIR, new Path(folder.getRoot().toURI()).toString());
+        fs = FileSystem.getLocal(conf);
+        final Job job = Job.getInstance(conf);
+        KafkaOffsetOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+        conf = job.getConfiguration();
+        jobContext = new JobContextImpl(conf, new JobID("jt", 1));
+
+        delegate = mock(OutputCommitter.class);
+        zk = mock(ZkUtils.class);
+        when(zk.setLastCommits(any(Table.class))).thenReturn(true);
+        committer = spy(new KafkaOffsetOutputCommitter(delegate));
+        doReturn(zk).when(committer).getOffsetStore(any(Configuration.class));
+    }
+
+    @Test
+    public void testIsEnabled() throws Exception {
+        assertTrue(KafkaOffsetOutputCommitter.isEnabled(conf));
+        assertFalse(KafkaOffsetOutputCommitter.isEnabled(new Configuration(false)));
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        // the first task reads two partitions, e.g. with the CombineKafkaInputFormat
+        final TaskAttemptContext task1 = createTaskContext(1, 0);
+        assertFalse(committer.needsTaskCommit(task1));
+        KafkaOffsetOutputCommitter.reportOffset(task1, "group", partition1, 100);
+        KafkaOffsetOutputCommitter.reportOffset(task1, "group", partition2, 200);
+        // ... and one of them for two groups, e.g. with the MultipleKafkaInputFormat
+        KafkaOffsetOutputCommitter.reportOffset(task1, "third_group", partition1, 50);
+        assertTrue(committer.needsTaskCommit(task1));
+        committer.commitTask(task1);
+        verify(delegate).commitTask(task1);
+
+        // the first attempt of the second task fails, the second one succeeds
+        final TaskAttemptContext task2attempt0 = createTaskContext(2, 0);
+        KafkaOffsetOutputCommitter.reportOffset(task2attempt0, "other_group", partition3, 1);
+        committer.abortTask(task2attempt0);
+        verify(delegate).abortTask(task2attempt0);
+        final TaskAttemptContext task2attempt1 = createTaskContext(2, 1);
+        KafkaOffsetOutputCommitter.reportOffset(task2attempt1, "other_group", partition3, 300);
+        committer.commitTask(task2attempt1);
+
+        // the third task is still running, e.g. a speculative attempt that lost
+        KafkaOffsetOutputCommitter.reportOffset(createTaskContext(3, 0), "group", partition1, 1000);
+
+        committer.commitJob(jobContext);
+        final Table<String, Partition, Long> offsets = HashBasedTable.create();
+        offsets.put("group", partition1, 100l);
+        offsets.put("group", partition2, 200l);
+        offsets.put("other_group", partition3, 300l);
+        offsets.put("third_group", partition1, 50l);
+
+        // the offsets are committed after the output
+        final InOrder inOrder = inOrder(delegate, zk);
+        inOrder.verify(delegate).commitJob(jobContext);
+        inOrder.verify(zk).setLastCommits(offsets);
+        verify(zk).close();
+        assertFalse(fs.exists(KafkaOffsetOutputCommitter.getOffsetsDir(conf)));
+    }
+
+    @Test
+    public void testCommitNothing() throws Exception {
+        committer.commitJob(jobContext);
+        verify(delegate).commitJob(jobContext);
+        verifyZeroInteractions(zk);
+    }
+
+    @Test(expected = IOException.class)
+    public void testCommitFailure() throws Exception {
+        final TaskAttemptContext task = createTaskContext(1, 0);
+        KafkaOffsetOutputCommitter.reportOffset(task, "group", partition1, 100);
+        committer.commitTask(task);
+        when(zk.setLastCommits(any(Table.class))).thenReturn(false);
+        committer.commitJob(jobContext);
+    }
+
+    @Test
+    public void testAbortJob() throws Exception {
+        final TaskAttemptContext task = createTaskContext(1, 0);
+        KafkaOffsetOutputCommitter.reportOffset(task, "group", partition1, 100);
+        committer.commitTask(task);
+        committer.abortJob(jobContext, JobStatus.State.FAILED);
+        verify(delegate).abortJob(jobContext, JobStatus.State.FAILED);
+        verifyZeroInteractions(zk);
+        assertFalse(fs.exists(KafkaOffsetOutputCommitter.getOffsetsDir(conf)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotSubmitted() throws Exception {
+        KafkaOffsetOutputCommitter.getOffsetsDir(new Configuration(false));
+    }
+
+    private TaskAttemptContext createTaskContext(final int task, final int attempt) {
+        return new TaskAttemptContextImpl(conf, new TaskAttemptID("jt", 1, TaskType.MAP, task, attempt));
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Test;
+
+/**
+ * @author cgreen
+ */
+public class KafkaOffsetOutputFormatTest {
+
+    @Test
+    public void testSetOutputFormatClass() throws Exception {
+        final Job job = Job.getInstance(new Configuration(false));
+        assertNull(KafkaOffsetOutputFormat.getOutputFormatClass(job.getConfiguration()));
+        KafkaOffsetOutputFormat.setOutputFormatClass(job, NullOutputFormat.class);
+        assertEquals(KafkaOffsetOutputFormat.class, job.getOutputFormatClass());
+        assertEquals(NullOutputFormat.class, KafkaOffsetOutputFormat.getOutputFormatClass(job.getConfiguration()));
+    }
+
+    @Test
+    public void testGetOutputCommitter() throws Exception {
+        final Job job = Job.getInstance(new Configuration(false));
+        KafkaOffsetOutputFormat.setOutputFormatClass(job, NullOutputFormat.class);
+        final TaskAttemptContextImpl context = new TaskAttemptContextImpl(job.getConfiguration(), new TaskAttemptID(
+                "jt", 1, TaskType.MAP, 0, 0));
+        final OutputCommitter committer = new KafkaOffsetOutputFormat<Object, Object>().getOutputCommitter(context);
+        assertTrue(committer instanceof KafkaOffsetOutputCommitter);
+        assertEquals(new NullOutputFormat<Object, Object>().getOutputCommitter(context).getClass(),
+                ((KafkaOffsetOutputCommitter) committer).getCommitter().getClass());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoOutputFormat() throws Exception {
+        final Job job = Job.getInstance(new Configuration(false));
+        new KafkaOffsetOutputFormat<Object, Object>().checkOutputSpecs(job);
+    }
+}
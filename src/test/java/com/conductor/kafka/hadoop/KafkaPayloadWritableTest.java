@@ -0,0 +1,110 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.junit.Test;
+
+/**
+ * @author cgreen
+ */
+public class KafkaPayloadWritableTest {
+
+    private static final byte[] DATA = new byte[] { 9, 9, 1, 2, 3, 9 };
+
+    @Test
+    public void testPayload() throws Exception {
+        final KafkaPayloadWritable writable = new KafkaPayloadWritable(slice(2, 5));
+        assertEquals(3, writable.getLength());
+        assertEquals(3, writable.getPayload().remaining());
+        assertSame(DATA, writable.getPayload().array());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, writable.copyBytes());
+        assertEquals("01 02 03", writable.toString());
+
+        // getBytes() copies the payload so that the returned array starts with it
+        final byte[] bytes = writable.getBytes();
+        assertNotSame(DATA, bytes);
+        assertEquals(1, bytes[0]);
+        assertEquals(3, writable.getLength());
+        assertNotSame(DATA, writable.getPayload().array());
+        assertEquals(3, writable.getPayload().remaining());
+    }
+
+    @Test
+    public void testEquals() throws Exception {
+        final BytesWritable expected = new BytesWritable(new byte[] { 1, 2, 3 });
+        assertEquals(expected, new KafkaPayloadWritable(slice(2, 5)));
+        assertEquals(expected.hashCode(), new KafkaPayloadWritable(slice(2, 5)).hashCode());
+        assertEquals(0, expected.compareTo(new KafkaPayloadWritable(slice(2, 5))));
+        assertFalse(expected.equals(new KafkaPayloadWritable(slice(1, 4))));
+    }
+
+    @Test
+    public void testSet() throws Exception {
+        final KafkaPayloadWritable writable = new KafkaPayloadWritable(slice(2, 5));
+        writable.set(new byte[] { 4, 5 }, 0, 2);
+        assertEquals(2, writable.getLength());
+        assertArrayEquals(new byte[] { 4, 5 }, writable.copyBytes());
+
+        writable.set(slice(1, 2));
+        assertEquals(1, writable.getLength());
+        writable.set(new KafkaPayloadWritable(slice(2, 5)));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, writable.copyBytes());
+
+        writable.set(slice(2, 5));
+        writable.setSize(2);
+        assertArrayEquals(new byte[] { 1, 2 }, writable.copyBytes());
+    }
+
+    @Test
+    public void testWritable() throws Exception {
+        final byte[] serialized = serialize(new KafkaPayloadWritable(slice(2, 5)));
+        assertArrayEquals(serialize(new BytesWritable(new byte[] { 1, 2, 3 })), serialized);
+        // direct buffers have no backing array
+        final ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(new byte[] { 1, 2, 3 }).flip();
+        assertArrayEquals(serialized, serialize(new KafkaPayloadWritable(direct)));
+
+        final DataInputBuffer in = new DataInputBuffer();
+        in.reset(serialized, serialized.length);
+        final KafkaPayloadWritable writable = new KafkaPayloadWritable(slice(1, 6));
+        writable.readFields(in);
+        assertEquals(3, writable.getLength());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, writable.copyBytes());
+    }
+
+    private static byte[] serialize(final BytesWritable writable) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writable.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static ByteBuffer slice(final int start, final int end) {
+        final ByteBuffer buffer = ByteBuffer.wrap(DATA);
+        buffer.position(1);
+        // a slice with a non-zero array offset, like a message payload in a fetched message set
+        final ByteBuffer slice = buffer.slice();
+        slice.position(start - 1);
+        slice.limit(end - 1);
+        return slice;
+    }
+}
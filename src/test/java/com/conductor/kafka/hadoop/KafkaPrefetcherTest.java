@@ -0,0 +1,175 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+
+import kafka.message.ByteBufferMessageSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.Partition;
+
+/**
+ * @author cgreen
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class KafkaPrefetcherTest {
+
+    @Mock
+    private KafkaRecordReader reader;
+    @Mock
+    private ByteBufferMessageSet messages;
+
+    private KafkaPrefetcher prefetcher;
+
+    @Before
+    public void setUp() throws Exception {
+        final Partition partition = new Partition("topic", 0, new Broker("localhost", 9092, 1));
+        when(reader.getSplit()).thenReturn(new KafkaInputSplit(partition, 0, 100, false));
+        when(reader.getConf()).thenReturn(new Configuration(false));
+        when(reader.getFetchSize()).thenReturn(10);
+        when(reader.fetch(anyLong(), anyLong())).thenReturn(messages);
+        when(messages.validBytes()).thenReturn(10l);
+        when(messages.sizeInBytes()).thenReturn(10l);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+    }
+
+    @Test
+    public void testQueueDepth() throws Exception {
+        prefetcher = new KafkaPrefetcher(reader, 0, 100, 2, Long.MAX_VALUE);
+        prefetcher.start();
+        awaitBuffered(2);
+        Thread.sleep(50);
+        verify(reader, times(2)).fetch(anyLong(), anyLong());
+        assertEquals(20, prefetcher.getBufferedBytes());
+
+        // consuming a message set frees up a slot for the next fetch
+        assertSame(messages, prefetcher.take());
+        awaitBuffered(2);
+        verify(reader, times(3)).fetch(anyLong(), anyLong());
+        verify(reader).fetch(0, 100);
+        verify(reader).fetch(10, 90);
+        verify(reader).fetch(20, 80);
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        // two message sets (20 bytes) + one more fetch (10 bytes) would exceed 25 bytes
+        prefetcher = new KafkaPrefetcher(reader, 0, 100, 10, 25);
+        prefetcher.start();
+        awaitBuffered(2);
+        Thread.sleep(50);
+        verify(reader, times(2)).fetch(anyLong(), anyLong());
+
+        // a cap below the fetch size still allows one message set at a time
+        prefetcher.close();
+        prefetcher = new KafkaPrefetcher(reader, 0, 100, 10, 1);
+        prefetcher.start();
+        awaitBuffered(1);
+        Thread.sleep(50);
+        assertEquals(1, prefetcher.getBufferedMessageSets());
+    }
+
+    @Test
+    public void testReadsWholeSplit() throws Exception {
+        prefetcher = new KafkaPrefetcher(reader, 0, 100, 3, Long.MAX_VALUE);
+        prefetcher.start();
+        for (int i = 0; i < 10; ++i) {
+            assertSame(messages, prefetcher.take());
+        }
+        assertNull("Should be done with split!", prefetcher.take());
+        assertNull("Should be done with split!", prefetcher.take());
+        verify(reader, times(10)).fetch(anyLong(), anyLong());
+    }
+
+    @Test
+    public void testOffsetOutOfRange() throws Exception {
+        when(reader.fetch(anyLong(), anyLong())).thenReturn(null);
+        prefetcher = new KafkaPrefetcher(reader, 0, 100, 3, Long.MAX_VALUE);
+        prefetcher.start();
+        assertNull("Should be done with split!", prefetcher.take());
+    }
+
+    @Test
+    public void testNoProgress() throws Exception {
+        when(messages.validBytes()).thenReturn(0l);
+        prefetcher = new KafkaPrefetcher(reader, 0, 100, 3, Long.MAX_VALUE);
+        prefetcher.start();
+        assertSame(messages, prefetcher.take());
+        assertNull("Should be done with split!", prefetcher.take());
+        verify(reader, times(1)).fetch(anyLong(), anyLong());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFailure() throws Exception {
+        when(reader.fetch(10, 90)).thenThrow(new IllegalStateException("broker went away"));
+        prefetcher = new KafkaPrefetcher(reader, 0, 100, 3, Long.MAX_VALUE);
+        prefetcher.start();
+        // the message set fetched before the failure is still handed out
+        assertSame(messages, prefetcher.take());
+        prefetcher.take();
+        fail();
+    }
+
+    @Test
+    public void testFetchFailure() throws Exception {
+        when(reader.fetch(0, 100)).thenThrow(new IOException("broker went away"));
+        prefetcher = new KafkaPrefetcher(reader, 0, 100, 3, Long.MAX_VALUE);
+        prefetcher.start();
+        // the reader's callers see the IOException, rather than a RuntimeException
+        try {
+            prefetcher.take();
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            assertEquals("broker went away", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        prefetcher = new KafkaPrefetcher(reader, 0, 100, 2, Long.MAX_VALUE);
+        prefetcher.start();
+        awaitBuffered(2);
+        verify(reader, never()).closeConsumer();
+        // the thread closes the consumer once it's done with it
+        prefetcher.close();
+        verify(reader).closeConsumer();
+    }
+
+    private void awaitBuffered(final int messageSets) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (prefetcher.getBufferedMessageSets() < messageSets && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(messageSets, prefetcher.getBufferedMessageSets());
+    }
+}
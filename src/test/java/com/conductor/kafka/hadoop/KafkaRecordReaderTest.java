@@ -17,16 +17,32 @@ package com.conductor.kafka.hadoop;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
 import kafka.api.FetchRequest;
 import kafka.common.ErrorMapping;
 import kafka.consumer.SimpleConsumer;
 import kafka.message.*;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.OutputFormat;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
@@ -38,6 +54,7 @@ import scala.collection.Iterator;
 import com.conductor.kafka.Broker;
 import com.conductor.kafka.Partition;
 import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.collect.Lists;
 
 /**
  * @author cgreen
@@ -45,6 +62,9 @@ import com.conductor.kafka.zk.ZkUtils;
 @RunWith(MockitoJUnitRunner.class)
 public class KafkaRecordReaderTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Mock
     private TaskAttemptContext context;
     @Mock
@@ -55,6 +75,7 @@ public class KafkaRecordReaderTest {
     private Iterator<MessageAndOffset> mockIterator;
 
     private Configuration conf;
+    private Job job;
     private KafkaInputSplit split;
     private KafkaRecordReader reader;
     private Partition partition;
@@ -63,7 +84,7 @@ public class KafkaRecordReaderTest {
     public void setUp() throws Exception {
         conf = new Configuration(false);
         when(context.getConfiguration()).thenReturn(conf);
-        final Job job = mock(Job.class);
+        job = mock(Job.class);
         when(job.getConfiguration()).thenReturn(conf);
 
         KafkaInputFormat.setConsumerGroup(job, "group");
@@ -201,6 +222,55 @@ public class KafkaRecordReaderTest {
         assertFalse("Should be done with split!", reader.continueItr());
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testContinueItrWithPrefetch() throws Exception {
+        KafkaInputFormat.setKafkaPrefetchQueueDepth(job, 2);
+        doReturn(mockConsumer).when(reader).getConsumer(split, conf);
+
+        final ByteBufferMessageSet mockMessage2 = mock(ByteBufferMessageSet.class);
+        final Iterator<MessageAndOffset> mockIterator2 = mock(Iterator.class);
+        when(mockConsumer.fetch(any(FetchRequest.class))).thenAnswer(new Answer<ByteBufferMessageSet>() {
+            @Override
+            public ByteBufferMessageSet answer(final InvocationOnMock invocation) throws Throwable {
+                final FetchRequest request = (FetchRequest) invocation.getArguments()[0];
+                if (request.offset() == 0) {
+                    assertEquals(100, request.maxSize());
+                    return mockMessage;
+                }
+                assertEquals(60, request.offset());
+                assertEquals(40, request.maxSize());
+                return mockMessage2;
+            }
+        });
+        when(mockMessage.getErrorCode()).thenReturn(ErrorMapping.NoError());
+        when(mockMessage.iterator()).thenReturn(mockIterator);
+        when(mockMessage.validBytes()).thenReturn(60l);
+        when(mockIterator.hasNext()).thenReturn(true);
+        when(mockMessage2.getErrorCode()).thenReturn(ErrorMapping.NoError());
+        when(mockMessage2.iterator()).thenReturn(mockIterator2);
+        when(mockMessage2.validBytes()).thenReturn(40l);
+        when(mockIterator2.hasNext()).thenReturn(true);
+        reader.initialize(split, context);
+
+        assertTrue("Should be able to continue iterator!", reader.continueItr());
+        assertEquals(mockIterator, reader.getCurrentMessageItr());
+        assertEquals(60, reader.getCurrentOffset());
+
+        when(mockIterator.hasNext()).thenReturn(false);
+        assertTrue("Should be able to continue iterator!", reader.continueItr());
+        assertEquals(mockIterator2, reader.getCurrentMessageItr());
+        assertEquals(100, reader.getCurrentOffset());
+
+        when(mockIterator2.hasNext()).thenReturn(false);
+        assertFalse("Should be done with split!", reader.continueItr());
+        verify(mockConsumer, times(2)).fetch(any(FetchRequest.class));
+
+        split.setPartitionCommitter(false);
+        reader.close();
+        verify(mockConsumer, times(1)).close();
+    }
+
     @Test
     public void testGetProgress() throws Exception {
         assertEquals(0f, reader.getProgress(), 0f);
@@ -263,4 +333,437 @@ public class KafkaRecordReaderTest {
         reader.commitOffset();
         verify(mockZk).setLastCommit("group", partition, 0l, true);
     }
+
+    @Test
+    public void testCommitOffsetWithOutput() throws Exception {
+        final File jobDir = folder.getRoot();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        conf.set(MRJobConfig.MAPREDUCE_JOB_DIR, new Path(jobDir.toURI()).toString());
+        conf.setClass(KafkaOffsetOutputFormat.OUTPUT_FORMAT_CONF, NullOutputFormat.class, OutputFormat.class);
+        when(context.getTaskAttemptID()).thenReturn(new TaskAttemptID("jt", 1, TaskType.MAP, 3, 2));
+        final ZkUtils mockZk = mock(ZkUtils.class);
+        doReturn(mockZk).when(reader).getZk();
+
+        // the offset is left to the output committer
+        reader.commitOffset();
+        verifyZeroInteractions(mockZk);
+        assertTrue(new File(jobDir, "kafka-offsets/_temporary/attempt_jt_0001_m_000003_2/group/topic-1-0").exists());
+    }
+
+    @Test
+    public void testFindMessageBoundary() throws Exception {
+        // four 15 byte messages at offsets 0, 15, 30 and 45
+        final ByteBuffer log = createLog(4);
+        assertEquals(0, KafkaRecordReader.findMessageBoundary(log.duplicate(), 2044));
+
+        for (int offset = 1; offset <= 15; ++offset) {
+            assertEquals(15 - offset, KafkaRecordReader.findMessageBoundary(slice(log, offset, 60), 2044));
+        }
+        assertEquals(0, KafkaRecordReader.findMessageBoundary(slice(log, 45, 60), 2044));
+
+        // the last message is cut off, so we can't tell whether it starts at 45 without reading more
+        assertEquals(-(45 - 31 + 1), KafkaRecordReader.findMessageBoundary(slice(log, 31, 55), 2044));
+
+        // messages larger than the fetch size can't be read, so they don't count as boundaries
+        assertTrue(KafkaRecordReader.findMessageBoundary(log.duplicate(), 10) < 0);
+    }
+
+    @Test
+    public void testReadUnalignedSplits() throws Exception {
+        final ByteBuffer log = createLog(4);
+        final List<Long> keys = Lists.newArrayList();
+        final List<Byte> values = Lists.newArrayList();
+        long commitOffset = -1;
+        for (final KafkaInputSplit unaligned : KafkaInputFormat.createSplits(partition, 0, 60, true, 20)) {
+            assertFalse(unaligned.isAligned());
+            commitOffset = readAll(unaligned, log, keys, values);
+        }
+        // each message is read exactly once, by the split it starts in
+        assertEquals(Lists.newArrayList(15l, 30l, 45l, 60l), keys);
+        assertEquals(Lists.newArrayList((byte) 0, (byte) 1, (byte) 2, (byte) 3), values);
+        assertEquals(60, commitOffset);
+
+        // splits with no message starting in them read nothing, and commit the offset of the next message
+        keys.clear();
+        values.clear();
+        assertEquals(15, readAll(new KafkaInputSplit(partition, 3, 14, true, false), log, keys, values));
+        assertTrue(keys.isEmpty());
+        assertEquals(60, readAll(new KafkaInputSplit(partition, 50, 60, true, false), log, keys, values));
+        assertTrue(keys.isEmpty());
+    }
+
+    @Test
+    public void testReadUnalignedSplitWithPrefetch() throws Exception {
+        KafkaInputFormat.setKafkaPrefetchQueueDepth(job, 2);
+        KafkaInputFormat.setKafkaFetchSizeBytes(job, 20);
+        final ByteBuffer log = createLog(4);
+        final List<Long> keys = Lists.newArrayList();
+        final List<Byte> values = Lists.newArrayList();
+        assertEquals(45, readAll(new KafkaInputSplit(partition, 3, 31, true, false), log, keys, values));
+        assertEquals(Lists.newArrayList(30l, 45l), keys);
+        assertEquals(Lists.newArrayList((byte) 1, (byte) 2), values);
+    }
+
+    private long readAll(final KafkaInputSplit unaligned, final ByteBuffer log, final List<Long> keys,
+            final List<Byte> values) throws Exception {
+        final KafkaRecordReader unalignedReader = spy(new KafkaRecordReader());
+        doReturn(createLogConsumer(log)).when(unalignedReader).getConsumer(unaligned, conf);
+        unalignedReader.initialize(unaligned, context);
+        while (unalignedReader.nextKeyValue()) {
+            keys.add(unalignedReader.getCurrentKey().get());
+            values.add(unalignedReader.getCurrentValue().getBytes()[0]);
+        }
+        final long commitOffset = unalignedReader.getCommitOffset();
+        unaligned.setPartitionCommitter(false);
+        unalignedReader.close();
+        return commitOffset;
+    }
+
+    @Test
+    public void testAdaptiveFetchSizeEscalation() throws Exception {
+        final Counters counters = stubCounters();
+        KafkaInputFormat.setKafkaAdaptiveFetchSize(job, true);
+        KafkaInputFormat.setKafkaFetchSizeBytes(job, 10);
+        KafkaInputFormat.setKafkaMinFetchSizeBytes(job, 4);
+        KafkaInputFormat.setKafkaMaxFetchSizeBytes(job, 64);
+        final SimpleConsumer consumer = createLogConsumer(createLog(4));
+        final KafkaInputSplit logSplit = new KafkaInputSplit(partition, 0, 60, false);
+        doReturn(consumer).when(reader).getConsumer(logSplit, conf);
+        reader.initialize(logSplit, context);
+
+        // 15 byte messages don't fit into 10 bytes: retry with 20 bytes, which comes back full
+        final ByteBufferMessageSet messages = reader.fetch(0, 60);
+        assertEquals(15, messages.validBytes());
+        assertEquals(40, reader.getFetchSize());
+        assertEquals(1, counters.findCounter(KafkaCounter.FETCH_SIZE_ESCALATIONS).getValue());
+        assertEquals(1, counters.findCounter(KafkaCounter.FETCH_SIZE_INCREASES).getValue());
+        verify(consumer, times(2)).fetch(any(FetchRequest.class));
+
+        // a fetch capped by the end of the split doesn't change anything
+        reader.fetch(45, 15);
+        assertEquals(40, reader.getFetchSize());
+        assertEquals(1, counters.findCounter(KafkaCounter.FETCH_SIZE_INCREASES).getValue());
+        assertEquals(0, counters.findCounter(KafkaCounter.FETCH_SIZE_DECREASES).getValue());
+
+        // a sparse fetch at the end of the log shrinks the fetch size
+        reader.fetch(60, 64);
+        assertEquals(20, reader.getFetchSize());
+        assertEquals(1, counters.findCounter(KafkaCounter.FETCH_SIZE_DECREASES).getValue());
+    }
+
+    @Test
+    public void testAdaptiveFetchSizeUnalignedSplit() throws Exception {
+        final Counters counters = stubCounters();
+        KafkaInputFormat.setKafkaAdaptiveFetchSize(job, true);
+        KafkaInputFormat.setKafkaFetchSizeBytes(job, 20);
+        KafkaInputFormat.setKafkaMinFetchSizeBytes(job, 20);
+        KafkaInputFormat.setKafkaMaxFetchSizeBytes(job, 64);
+        final List<Long> keys = Lists.newArrayList();
+        final List<Byte> values = Lists.newArrayList();
+
+        // resyncing from the middle of a message doesn't mistake message bytes for a message size
+        assertEquals(60, readAll(new KafkaInputSplit(partition, 7, 60, true, false), createLog(4), keys, values));
+        assertEquals(Lists.newArrayList(30l, 45l, 60l), keys);
+        assertEquals(0, counters.findCounter(KafkaCounter.FETCH_SIZE_ESCALATIONS).getValue());
+    }
+
+    @Test(expected = IOException.class)
+    public void testAdaptiveFetchSizeMessageTooLarge() throws Exception {
+        KafkaInputFormat.setKafkaAdaptiveFetchSize(job, true);
+        KafkaInputFormat.setKafkaFetchSizeBytes(job, 10);
+        KafkaInputFormat.setKafkaMinFetchSizeBytes(job, 4);
+        KafkaInputFormat.setKafkaMaxFetchSizeBytes(job, 12);
+        doReturn(createLogConsumer(createLog(4))).when(reader).getConsumer(split, conf);
+        reader.initialize(split, context);
+        reader.fetch(0, 100);
+        fail();
+    }
+
+    @Test
+    public void testAdaptiveFetchSizeBounds() throws Exception {
+        KafkaInputFormat.setKafkaAdaptiveFetchSize(job, true);
+        KafkaInputFormat.setKafkaMinFetchSizeBytes(job, 4096);
+        reader.initialize(split, context);
+        assertEquals(4096, reader.getFetchSize());
+
+        KafkaInputFormat.setKafkaFetchSizeBytes(job, 1000);
+        KafkaInputFormat.setKafkaMinFetchSizeBytes(job, 4);
+        KafkaInputFormat.setKafkaMaxFetchSizeBytes(job, 512);
+        reader.initialize(split, context);
+        assertEquals(512, reader.getFetchSize());
+
+        // non-adaptive fetch sizes are left alone
+        KafkaInputFormat.setKafkaAdaptiveFetchSize(job, false);
+        reader.initialize(split, context);
+        assertEquals(1000, reader.getFetchSize());
+    }
+
+    @Test
+    public void testFetchRetry() throws Exception {
+        final Counters counters = stubCounters();
+        KafkaInputFormat.setKafkaFetchMaxRetries(job, 2);
+        KafkaInputFormat.setKafkaFetchRetryBackoffMs(job, 100);
+        KafkaInputFormat.setKafkaFetchSizeBytes(job, 15);
+        final KafkaInputSplit logSplit = new KafkaInputSplit(new Partition("topic", 0, new Broker("localhost", 9092,
+                1)), 0, 60, false);
+        final SimpleConsumer logConsumer = createLogConsumer(createLog(4));
+        // the broker fails on the second fetch, then comes back at another address
+        final SimpleConsumer flakyConsumer = mock(SimpleConsumer.class);
+        when(flakyConsumer.fetch(any(FetchRequest.class))).thenAnswer(new Answer<ByteBufferMessageSet>() {
+            private int fetches;
+
+            @Override
+            public ByteBufferMessageSet answer(final InvocationOnMock invocation) throws Throwable {
+                if (++fetches == 2) {
+                    throw new RuntimeException("socket timeout");
+                }
+                return logConsumer.fetch((FetchRequest) invocation.getArguments()[0]);
+            }
+        });
+        final ZkUtils mockZk = mock(ZkUtils.class);
+        final Broker movedBroker = new Broker("otherhost", 9093, 1);
+        when(mockZk.getBroker(1)).thenReturn(movedBroker);
+
+        final KafkaRecordReader retryingReader = spy(new KafkaRecordReader());
+        doReturn(mockZk).when(retryingReader).getZk();
+        doNothing().when(retryingReader).sleep(anyLong());
+        doReturn(flakyConsumer).doReturn(logConsumer).when(retryingReader).getConsumer(logSplit, conf);
+        retryingReader.initialize(logSplit, context);
+        final List<Long> keys = Lists.newArrayList();
+        while (retryingReader.nextKeyValue()) {
+            keys.add(retryingReader.getCurrentKey().get());
+        }
+        // the reader resumes from where it failed
+        assertEquals(Lists.newArrayList(15l, 30l, 45l, 60l), keys);
+        verify(flakyConsumer, times(2)).fetch(any(FetchRequest.class));
+        verify(flakyConsumer).close();
+        verify(retryingReader).sleep(100);
+        assertEquals(movedBroker, logSplit.getPartition().getBroker());
+        assertEquals(1, counters.findCounter(KafkaCounter.FETCH_RETRIES).getValue());
+    }
+
+    @Test
+    public void testFetchRetriesExhausted() throws Exception {
+        final Counters counters = stubCounters();
+        KafkaInputFormat.setKafkaFetchMaxRetries(job, 2);
+        KafkaInputFormat.setKafkaFetchRetryBackoffMs(job, 100);
+        final ZkUtils mockZk = mock(ZkUtils.class);
+        when(mockZk.getBroker(1)).thenThrow(new RuntimeException("zk is down too"));
+        doReturn(mockZk).when(reader).getZk();
+        doNothing().when(reader).sleep(anyLong());
+        doReturn(mockConsumer).when(reader).getConsumer(split, conf);
+        when(mockConsumer.fetch(any(FetchRequest.class))).thenReturn(mockMessage);
+        when(mockMessage.getErrorCode()).thenReturn(ErrorMapping.UnknownCode());
+        reader.initialize(split, context);
+        try {
+            reader.continueItr();
+            fail();
+        } catch (final RuntimeException e) {
+            // expected
+        }
+        // the backoff doubles with every retry, and the broker's address is kept if it can't be looked up
+        verify(mockConsumer, times(3)).fetch(any(FetchRequest.class));
+        verify(reader).sleep(100);
+        verify(reader).sleep(200);
+        assertEquals(new Broker("localhost", 9092, 1), split.getPartition().getBroker());
+        assertEquals(2, counters.findCounter(KafkaCounter.FETCH_RETRIES).getValue());
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() throws Exception {
+        KafkaInputFormat.setCheckpointDir(job, new Path("/checkpoints"));
+        final KafkaCheckpoint checkpoint = mock(KafkaCheckpoint.class);
+        final KafkaInputSplit unaligned = new KafkaInputSplit(partition, 3, 60, true, false);
+        final KafkaRecordReader resumingReader = spy(new KafkaRecordReader());
+        doReturn(checkpoint).when(resumingReader).getCheckpoint(context);
+        doReturn(createLogConsumer(createLog(4))).when(resumingReader).getConsumer(unaligned, conf);
+
+        // nothing committed yet
+        when(checkpoint.getOffset()).thenReturn(-1l);
+        resumingReader.initialize(unaligned, context);
+        assertEquals(15, resumingReader.getCurrentOffset());
+
+        // a previous attempt has flushed the output of the first two messages
+        when(checkpoint.getOffset()).thenReturn(30l);
+        resumingReader.initialize(unaligned, context);
+        final List<Long> keys = Lists.newArrayList();
+        while (resumingReader.nextKeyValue()) {
+            keys.add(resumingReader.getCurrentKey().get());
+        }
+        assertEquals(Lists.newArrayList(45l, 60l), keys);
+        assertEquals(60, resumingReader.getCommitOffset());
+    }
+
+    @Test
+    public void testReadStats() throws Exception {
+        final Counters counters = stubCounters();
+        KafkaInputFormat.setKafkaFetchSizeBytes(job, 30);
+        final KafkaInputSplit logSplit = new KafkaInputSplit(partition, 0, 100, false);
+        final KafkaRecordReader statsReader = spy(new KafkaRecordReader());
+        doReturn(createLogConsumer(createLog(4))).when(statsReader).getConsumer(logSplit, conf);
+        statsReader.initialize(logSplit, context);
+        while (statsReader.nextKeyValue()) {
+            // keep reading
+        }
+        // the split runs past the end of the log, which makes for an empty fetch
+        statsReader.fetch(90, 10);
+        statsReader.close();
+
+        assertEquals(4, counters.findCounter(KafkaCounter.FETCHES).getValue());
+        assertEquals(1, counters.findCounter(KafkaCounter.EMPTY_FETCHES).getValue());
+        assertEquals(1, counters.findCounter(KafkaCounter.OFFSETS_OUT_OF_RANGE).getValue());
+        assertEquals(60, counters.findCounter(KafkaCounter.BYTES_FETCHED).getValue());
+        assertEquals(4, counters.findCounter(KafkaCounter.MESSAGES_READ).getValue());
+        assertTrue(statsReader.getStatus(), statsReader.getStatus().contains("read 4 messages"));
+        // nothing is counted per topic unless the job asks for it
+        assertEquals(0, counters.getGroup(KafkaCounter.getTopicGroup("topic")).size());
+    }
+
+    @Test
+    public void testTopicCounters() throws Exception {
+        final Counters counters = stubCounters();
+        MultipleKafkaInputFormat.setTopicCounters(job, true);
+        final KafkaInputSplit logSplit = new KafkaInputSplit(partition, 0, 60, false);
+        final KafkaRecordReader statsReader = spy(new KafkaRecordReader());
+        doReturn(createLogConsumer(createLog(4))).when(statsReader).getConsumer(logSplit, conf);
+        statsReader.initialize(logSplit, context);
+        while (statsReader.nextKeyValue()) {
+            // keep reading
+        }
+        statsReader.close();
+
+        // only bytes and messages are rolled up per topic
+        final String topicGroup = KafkaCounter.getTopicGroup("topic");
+        assertEquals(60, counters.findCounter(topicGroup, KafkaCounter.BYTES_FETCHED.name()).getValue());
+        assertEquals(4, counters.findCounter(topicGroup, KafkaCounter.MESSAGES_READ.name()).getValue());
+        assertEquals(2, counters.getGroup(topicGroup).size());
+    }
+
+    @Test
+    public void testRecordThroughput() throws Exception {
+        KafkaInputFormat.setThroughputStatsDir(job, new Path("/stats"));
+        KafkaInputFormat.setMinSplitSizeBytes(job, 60);
+        when(context.getTaskAttemptID()).thenReturn(new TaskAttemptID("jt", 1, TaskType.MAP, 3, 2));
+        final KafkaThroughputStats stats = mock(KafkaThroughputStats.class);
+        final KafkaInputSplit logSplit = new KafkaInputSplit(partition, 0, 60, false);
+        final KafkaRecordReader statsReader = spy(new KafkaRecordReader());
+        doReturn(stats).when(statsReader).getThroughputStats();
+        doReturn(createLogConsumer(createLog(4))).when(statsReader).getConsumer(logSplit, conf);
+        statsReader.initialize(logSplit, context);
+        while (statsReader.nextKeyValue()) {
+            // keep reading
+        }
+        statsReader.close();
+        verify(stats).record(eq("topic"), eq(1), eq("attempt_jt_0001_m_000003_2_0_0"), eq(60l), anyLong());
+
+        // failing to record doesn't fail the task
+        doThrow(new IOException("no space left")).when(stats).record(anyString(), anyInt(), anyString(), anyLong(),
+                anyLong());
+        statsReader.initialize(logSplit, context);
+        while (statsReader.nextKeyValue()) {
+            // keep reading
+        }
+        statsReader.close();
+
+        // readers that read less than a minimum split don't record anything
+        reset(stats);
+        KafkaInputFormat.setMinSplitSizeBytes(job, 61);
+        statsReader.initialize(logSplit, context);
+        while (statsReader.nextKeyValue()) {
+            // keep reading
+        }
+        statsReader.close();
+        verifyZeroInteractions(stats);
+    }
+
+    @Test
+    public void testZeroCopyValues() throws Exception {
+        KafkaInputFormat.setKafkaZeroCopyValues(job, true);
+        final ByteBuffer log = createLog(4);
+        final KafkaInputSplit logSplit = new KafkaInputSplit(partition, 0, 60, false);
+        final KafkaRecordReader zeroCopyReader = spy(new KafkaRecordReader());
+        doReturn(createLogConsumer(log)).when(zeroCopyReader).getConsumer(logSplit, conf);
+        zeroCopyReader.initialize(logSplit, context);
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(zeroCopyReader.nextKeyValue());
+            final KafkaPayloadWritable value = (KafkaPayloadWritable) zeroCopyReader.getCurrentValue();
+            final ByteBuffer payload = value.getPayload();
+            // the payload is a view of the fetched log
+            assertSame(log.array(), payload.array());
+            assertEquals(i * 15 + 10, payload.arrayOffset() + payload.position());
+            assertEquals(5, value.getLength());
+            assertEquals(new BytesWritable(new byte[] { (byte) i, 7, 7, 7, 7 }), value);
+        }
+        assertFalse(zeroCopyReader.nextKeyValue());
+        zeroCopyReader.close();
+    }
+
+    @Test
+    public void testGetFirstMessageSize() throws Exception {
+        final ByteBuffer log = createLog(2);
+        assertEquals(15, KafkaRecordReader.getFirstMessageSize(log.duplicate()));
+        assertEquals(15, KafkaRecordReader.getFirstMessageSize(slice(log, 15, 20)));
+        assertEquals(0, KafkaRecordReader.getFirstMessageSize(slice(log, 15, 18)));
+        assertEquals(0, KafkaRecordReader.getFirstMessageSize(ByteBuffer.allocate(0)));
+    }
+
+    private Counters stubCounters() {
+        final Counters counters = new Counters();
+        when(context.getCounter(any(KafkaCounter.class))).thenAnswer(new Answer<Counter>() {
+            @Override
+            public Counter answer(final InvocationOnMock invocation) throws Throwable {
+                return counters.findCounter((KafkaCounter) invocation.getArguments()[0]);
+            }
+        });
+        when(context.getCounter(anyString(), anyString())).thenAnswer(new Answer<Counter>() {
+            @Override
+            public Counter answer(final InvocationOnMock invocation) throws Throwable {
+                return counters.findCounter((String) invocation.getArguments()[0],
+                        (String) invocation.getArguments()[1]);
+            }
+        });
+        return counters;
+    }
+
+    /**
+     * @return a consumer that serves fetches from {@code log}.
+     */
+    private static SimpleConsumer createLogConsumer(final ByteBuffer log) {
+        final SimpleConsumer consumer = mock(SimpleConsumer.class);
+        when(consumer.fetch(any(FetchRequest.class))).thenAnswer(new Answer<ByteBufferMessageSet>() {
+            @Override
+            public ByteBufferMessageSet answer(final InvocationOnMock invocation) throws Throwable {
+                final FetchRequest request = (FetchRequest) invocation.getArguments()[0];
+                final int offset = (int) request.offset();
+                if (offset > log.limit()) {
+                    return new ByteBufferMessageSet(ByteBuffer.allocate(0), offset,
+                            ErrorMapping.OffsetOutOfRangeCode());
+                }
+                final int end = Math.min(log.limit(), offset + request.maxSize());
+                return new ByteBufferMessageSet(slice(log, offset, end), offset, ErrorMapping.NoError());
+            }
+        });
+        return consumer;
+    }
+
+    /**
+     * @return a log of {@code count} messages, each with a 5 byte payload and 15 bytes long.
+     */
+    private static ByteBuffer createLog(final int count) {
+        final ByteBuffer log = ByteBuffer.allocate(count * 15);
+        for (int i = 0; i < count; ++i) {
+            final ByteBuffer message = new Message(new byte[] { (byte) i, 7, 7, 7, 7 }).buffer();
+            log.putInt(message.limit());
+            log.put(message);
+        }
+        log.flip();
+        return log;
+    }
+
+    private static ByteBuffer slice(final ByteBuffer log, final int start, final int end) {
+        final ByteBuffer slice = log.duplicate();
+        slice.position(start);
+        slice.limit(end);
+        return slice.slice();
+    }
 }
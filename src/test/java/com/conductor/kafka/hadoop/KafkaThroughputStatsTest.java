@@ -0,0 +1,150 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * @author cgreen
+ */
+public class KafkaThroughputStatsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Configuration conf;
+    private FileSystem fs;
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        conf = new Configuration(false);
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        fs = FileSystem.getLocal(conf);
+        dir = new Path(folder.getRoot().toURI());
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        assertNull(KafkaThroughputStats.get(conf));
+        final Job job = mock(Job.class);
+        when(job.getConfiguration()).thenReturn(conf);
+        KafkaInputFormat.setThroughputStatsDir(job, dir);
+        assertEquals(new Path(dir.toString()), KafkaThroughputStats.get(conf).getDir());
+    }
+
+    @Test
+    public void testRecordAndLoad() throws Exception {
+        final KafkaThroughputStats stats = new KafkaThroughputStats(fs, dir);
+        assertTrue(stats.load("topic").isEmpty());
+
+        stats.record("topic", 1, "attempt_0", 1000, 10);
+        stats.record("topic", 1, "attempt_1", 3000, 10);
+        stats.record("topic", 2, "attempt_2", 500, 10);
+        stats.record("other_topic", 1, "attempt_3", 1, 10);
+        Map<Integer, Double> throughput = stats.load("topic");
+        assertEquals(2, throughput.size());
+        assertEquals(200, throughput.get(1), 0.001);
+        assertEquals(50, throughput.get(2), 0.001);
+
+        // the observations have been merged into a summary per broker
+        assertEquals(2, fs.listStatus(new Path(dir, "topic")).length);
+        assertEquals(throughput, stats.load("topic"));
+
+        // the previous runs count for half as much as the new one
+        stats.record("topic", 2, "attempt_4", 2000, 10);
+        throughput = stats.load("topic");
+        assertEquals(200, throughput.get(1), 0.001);
+        assertEquals((250 + 2000) / 15.0, throughput.get(2), 0.001);
+        assertEquals(0.1, stats.load("other_topic").get(1), 0.001);
+    }
+
+    @Test
+    public void testRecordWhileMerging() throws Exception {
+        final FileSystem spyFs = spy(fs);
+        final KafkaThroughputStats stats = new KafkaThroughputStats(spyFs, dir);
+        stats.record("topic", 1, "attempt_0", 1000, 10);
+
+        // a task records its observation after the planner has listed the others, while it merges them
+        final Path topicDir = new Path(dir, "topic");
+        doAnswer(new Answer<FSDataOutputStream>() {
+            @Override
+            public FSDataOutputStream answer(final InvocationOnMock invocation) throws Throwable {
+                stats.record("topic", 1, "attempt_1", 3000, 10);
+                return (FSDataOutputStream) invocation.callRealMethod();
+            }
+        }).when(spyFs).create(new Path(topicDir, "_1"), true);
+        assertEquals(100, stats.load("topic").get(1), 0.001);
+
+        // ... which is merged the next time, rather than deleted
+        assertEquals(2, fs.listStatus(topicDir).length);
+        reset(spyFs);
+        assertEquals((500 + 3000) / 15.0, stats.load("topic").get(1), 0.001);
+    }
+
+    @Test
+    public void testRecoverMerge() throws Exception {
+        final FileSystem spyFs = spy(fs);
+        final KafkaThroughputStats stats = new KafkaThroughputStats(spyFs, dir);
+        final Path topicDir = new Path(dir, "topic");
+        stats.record("topic", 1, "attempt_0", 1000, 10);
+        stats.record("topic", 2, "attempt_1", 1000, 10);
+        stats.load("topic");
+
+        // the merge crashes after deleting the old summaries, before renaming the new ones into place
+        stats.record("topic", 1, "attempt_2", 3000, 10);
+        stats.record("topic", 2, "attempt_3", 3000, 10);
+        doThrow(new IOException("crashed")).when(spyFs).rename(any(Path.class), any(Path.class));
+        try {
+            stats.load("topic");
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            // expected
+        }
+        assertFalse(fs.exists(new Path(topicDir, "1")));
+        assertTrue(fs.exists(new Path(topicDir, "_1")));
+
+        // the next load finishes the merge, rather than losing the history
+        reset(spyFs);
+        final Map<Integer, Double> expected = stats.load("topic");
+        assertEquals((500 + 3000) / 15.0, expected.get(1), 0.001);
+        assertEquals((500 + 3000) / 15.0, expected.get(2), 0.001);
+        assertEquals(2, fs.listStatus(topicDir).length);
+
+        // the new summary of a merge that crashed before deleting anything is dropped, as is an incomplete one
+        final FSDataOutputStream out = fs.create(new Path(topicDir, "_1"), true);
+        out.writeLong(1);
+        out.close();
+        fs.create(new Path(topicDir, "_3"), true).close();
+        assertEquals(expected, stats.load("topic"));
+        assertEquals(2, fs.listStatus(topicDir).length);
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.Partition;
+import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+/**
+ * @author cgreen
+ */
+public class LocalKafkaJobRunnerTest {
+
+    private Job job;
+    private Configuration conf;
+    private LocalKafkaJobRunner runner;
+
+    @Before
+    public void setUp() throws Exception {
+        job = Job.getInstance(new Configuration(false));
+        conf = job.getConfiguration();
+        runner = spy(new LocalKafkaJobRunner(4));
+    }
+
+    @Test
+    public void testConfigure() throws Exception {
+        job.setNumReduceTasks(1);
+        assertFalse("local".equals(conf.get("mapreduce.framework.name")));
+        runner.configure(job);
+        assertEquals("local", conf.get("mapreduce.framework.name"));
+        assertEquals(4, conf.getInt("mapreduce.local.map.tasks.maximum", 1));
+        assertEquals(1, job.getNumReduceTasks());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConfigureReducers() throws Exception {
+        job.setNumReduceTasks(10);
+        runner.configure(job);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoThreads() throws Exception {
+        new LocalKafkaJobRunner(0);
+    }
+
+    @Test
+    public void testEstimateInputBytes() throws Exception {
+        final Partition partition = new Partition("topic", 0, new Broker("127.0.0.1", 9092, 1));
+        doReturn(Lists.<InputSplit> newArrayList(new KafkaInputSplit(partition, 0, 10, false), new KafkaInputSplit(
+                partition, 10, 30, true))).when(runner).getInputSplits(conf);
+        assertEquals(30, runner.estimateInputBytes(conf));
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        final Job mockJob = mock(Job.class);
+        when(mockJob.getConfiguration()).thenReturn(conf);
+        when(mockJob.waitForCompletion(true)).thenReturn(true);
+        doReturn(true).when(runner).commitOffsets(conf);
+        assertTrue(runner.run(mockJob));
+        verify(runner).commitOffsets(conf);
+
+        // a run whose offsets can't be committed fails
+        doReturn(false).when(runner).commitOffsets(conf);
+        assertFalse(runner.run(mockJob));
+
+        // the offsets of a failed job aren't committed
+        reset(runner);
+        when(mockJob.waitForCompletion(true)).thenReturn(false);
+        assertFalse(runner.run(mockJob));
+        verify(runner, never()).commitOffsets(conf);
+    }
+
+    @Test
+    public void testCommitOffsets() throws Exception {
+        final ZkUtils zk = mock(ZkUtils.class);
+        doReturn(zk).when(runner).getZk(conf);
+
+        KafkaInputFormat.setTopic(job, "topic");
+        KafkaInputFormat.setConsumerGroup(job, "group");
+        when(zk.commit(ImmutableSetMultimap.of("group", "topic"))).thenReturn(true);
+        assertTrue(runner.commitOffsets(conf));
+        verify(zk).commit(ImmutableSetMultimap.of("group", "topic"));
+        verify(zk).close();
+
+        // every topic of a multiple topic job
+        reset(zk);
+        MultipleKafkaInputFormat.addTopic(job, "topic_1", "group_1", Mapper.class);
+        MultipleKafkaInputFormat.addTopic(job, "topic_2", "group_2", Mapper.class);
+        runner.commitOffsets(conf);
+        // in a single commit
+        verify(zk).commit(ImmutableSetMultimap.of("group_1", "topic_1", "group_2", "topic_2"));
+        verify(zk, times(1)).commit(any(Multimap.class));
+        verify(zk).close();
+
+        // ... including the topics that match its patterns
+        reset(zk);
+        MultipleKafkaInputFormat.addTopicPattern(job, "topic_.*", "group_3", Mapper.class);
+        when(zk.getTopics()).thenReturn(Lists.newArrayList("topic_1", "other_topic"));
+        runner.commitOffsets(conf);
+        verify(zk).commit(ImmutableSetMultimap.of("group_1", "topic_1", "group_2", "topic_2", "group_3", "topic_1"));
+
+        // a failed commit
+        reset(zk);
+        assertFalse(runner.commitOffsets(conf));
+
+        // the output committer has already committed the offsets
+        reset(zk);
+        KafkaOffsetOutputFormat.setOutputFormatClass(job, NullOutputFormat.class);
+        assertTrue(runner.commitOffsets(conf));
+        verify(zk, never()).commit(any(Multimap.class));
+    }
+}
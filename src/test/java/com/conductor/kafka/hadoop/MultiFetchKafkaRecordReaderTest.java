@@ -0,0 +1,342 @@
+/**
+ * Copyright 2014 Conductor, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ * 
+ */
+
+package com.conductor.kafka.hadoop;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import kafka.api.FetchRequest;
+import kafka.api.MultiFetchResponse;
+import kafka.common.ErrorMapping;
+import kafka.consumer.SimpleConsumer;
+import kafka.message.ByteBufferMessageSet;
+import kafka.message.Message;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.conductor.kafka.Broker;
+import com.conductor.kafka.Partition;
+import com.conductor.kafka.zk.ZkUtils;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * @author cgreen
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MultiFetchKafkaRecordReaderTest {
+
+    @Mock
+    private TaskAttemptContext context;
+    @Mock
+    private SimpleConsumer mockConsumer;
+    @Mock
+    private ZkUtils mockZk;
+
+    private Configuration conf;
+    private Job job;
+    private Broker broker;
+    private Partition p0;
+    private Partition p1;
+    private Partition p2;
+    private Map<Integer, ByteBuffer> logs;
+    private List<List<FetchRequest>> requests;
+    private int failures;
+    private MultiFetchKafkaRecordReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        conf = new Configuration(false);
+        when(context.getConfiguration()).thenReturn(conf);
+        job = mock(Job.class);
+        when(job.getConfiguration()).thenReturn(conf);
+        KafkaInputFormat.setConsumerGroup(job, "group");
+        KafkaInputFormat.setKafkaFetchSizeBytes(job, 30);
+
+        broker = new Broker("localhost", 9092, 1);
+        p0 = new Partition("topic", 0, broker);
+        p1 = new Partition("topic", 1, broker);
+        p2 = new Partition("other_topic", 0, broker);
+
+        // each partition has four 15 byte messages, at offsets 0, 15, 30 and 45
+        logs = Maps.newHashMap();
+        logs.put(0, createLog(0, 4));
+        logs.put(1, createLog(10, 4));
+        logs.put(2, createLog(20, 4));
+        requests = Lists.newArrayList();
+        failures = 0;
+
+        reader = spy(new MultiFetchKafkaRecordReader());
+        doReturn(mockConsumer).when(reader).getConsumer(broker, conf);
+        doReturn(mockZk).when(reader).getZk();
+        doNothing().when(reader).sleep(anyLong());
+        doAnswer(new Answer<MultiFetchResponse>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public MultiFetchResponse answer(final InvocationOnMock invocation) throws Throwable {
+                final List<FetchRequest> batch = (List<FetchRequest>) invocation.getArguments()[0];
+                if (failures > 0) {
+                    --failures;
+                    throw new RuntimeException("connection reset");
+                }
+                requests.add(Lists.newArrayList(batch));
+                final List<ByteBufferMessageSet> responses = Lists.newArrayList();
+                for (final FetchRequest request : batch) {
+                    final ByteBuffer log = logs.get(request.topic().equals("topic") ? request.partition() : 2);
+                    final int offset = (int) request.offset();
+                    if (offset > log.limit()) {
+                        responses.add(new ByteBufferMessageSet(ByteBuffer.allocate(0), offset, ErrorMapping
+                                .OffsetOutOfRangeCode()));
+                    } else {
+                        final ByteBuffer slice = log.duplicate();
+                        slice.position(offset);
+                        slice.limit(Math.min(log.limit(), offset + request.maxSize()));
+                        responses.add(new ByteBufferMessageSet(slice.slice(), offset, ErrorMapping.NoError()));
+                    }
+                }
+                return new MultiFetchResponse(responses);
+            }
+        }).when(reader).multifetch(anyListOf(FetchRequest.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInitializeWrongSplit() throws Exception {
+        reader.initialize(new KafkaInputSplit(p0, 0, 60, true), context);
+    }
+
+    @Test
+    public void testCloseUninitialized() throws Exception {
+        // the task closes the reader even if initialize() failed
+        reader.close();
+        doThrow(new RuntimeException("broker is down")).when(reader).getConsumer(broker, conf);
+        try {
+            reader.initialize(new CombinedKafkaInputSplit(Lists.newArrayList(new KafkaInputSplit(p0, 0, 60, true))),
+                    context);
+            fail("Expected a RuntimeException");
+        } catch (final RuntimeException e) {
+            // expected
+        }
+        reader.close();
+        verify(reader, never()).getZk();
+    }
+
+    @Test
+    public void testReadAll() throws Exception {
+        final KafkaInputSplit s0 = new KafkaInputSplit(p0, 0, 60, true);
+        final KafkaInputSplit s1 = new KafkaInputSplit(p1, 15, 45, false);
+        final KafkaInputSplit s2 = new KafkaInputSplit(p2, 20, 40, true, false);
+        reader.initialize(new CombinedKafkaInputSplit(Lists.newArrayList(s0, s1, s2)), context);
+
+        final List<Byte> values = Lists.newArrayList();
+        while (reader.nextKeyValue()) {
+            values.add(reader.getCurrentValue().getBytes()[0]);
+        }
+        assertEquals(1f, reader.getProgress(), 0f);
+
+        // the first round reads two messages of p0 and p1, and resyncs p2 to 30; the partitions are interleaved
+        assertEquals(Lists.newArrayList((byte) 0, (byte) 1, (byte) 11, (byte) 12, (byte) 22, (byte) 2, (byte) 3),
+                values);
+        // p1 and p2 are done after the first round
+        assertEquals(2, requests.size());
+        assertEquals(3, requests.get(0).size());
+        assertEquals(1, requests.get(1).size());
+        verify(mockConsumer, never()).fetch(any(FetchRequest.class));
+
+        reader.close();
+        verify(mockConsumer).close();
+        verify(mockZk).setLastCommit("group", p0, 60l, true);
+        verify(mockZk).setLastCommit("group", p2, 45l, true);
+        verify(mockZk, never()).setLastCommit(eq("group"), eq(p1), anyLong(), anyBoolean());
+        verify(mockZk).close();
+    }
+
+    @Test
+    public void testMaxPartitionsPerMultiFetch() throws Exception {
+        CombineKafkaInputFormat.setMaxPartitionsPerMultiFetch(job, 2);
+        final KafkaInputSplit s0 = new KafkaInputSplit(p0, 0, 30, false);
+        final KafkaInputSplit s1 = new KafkaInputSplit(p1, 0, 30, false);
+        final KafkaInputSplit s2 = new KafkaInputSplit(p2, 0, 30, false);
+        reader.initialize(new CombinedKafkaInputSplit(Lists.newArrayList(s0, s1, s2)), context);
+
+        int count = 0;
+        while (reader.nextKeyValue()) {
+            ++count;
+        }
+        assertEquals(6, count);
+        assertEquals(2, requests.size());
+        assertEquals(2, requests.get(0).size());
+        assertEquals(1, requests.get(1).size());
+
+        reader.close();
+        verify(mockZk, never()).setLastCommit(anyString(), any(Partition.class), anyLong(), anyBoolean());
+        verify(reader, never()).getZk();
+    }
+
+    @Test
+    public void testOffsetOutOfRange() throws Exception {
+        final KafkaInputSplit s0 = new KafkaInputSplit(p0, 100, 200, true);
+        reader.initialize(new CombinedKafkaInputSplit(Lists.newArrayList(s0)), context);
+        assertFalse(reader.nextKeyValue());
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void testMessageLargerThanFetchSize() throws Exception {
+        KafkaInputFormat.setKafkaFetchSizeBytes(job, 10);
+        final KafkaInputSplit s0 = new KafkaInputSplit(p0, 0, 60, true);
+        reader.initialize(new CombinedKafkaInputSplit(Lists.newArrayList(s0)), context);
+        try {
+            reader.nextKeyValue();
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        final Counters counters = stubCounters();
+        final Broker moved = new Broker("otherhost", 9093, 1);
+        final SimpleConsumer movedConsumer = mock(SimpleConsumer.class);
+        doReturn(movedConsumer).when(reader).getConsumer(moved, conf);
+        when(mockZk.getBroker(1)).thenReturn(moved);
+        KafkaInputFormat.setKafkaFetchRetryBackoffMs(job, 100);
+        failures = 2;
+        final KafkaInputSplit s0 = new KafkaInputSplit(p0, 0, 30, true);
+        final KafkaInputSplit s1 = new KafkaInputSplit(p1, 0, 30, true);
+        reader.initialize(new CombinedKafkaInputSplit(Lists.newArrayList(s0, s1)), context);
+
+        int count = 0;
+        while (reader.nextKeyValue()) {
+            ++count;
+        }
+        assertEquals(4, count);
+        // the backoff doubles with every retry, and the partitions follow their broker to its new address
+        verify(reader).sleep(100);
+        verify(reader).sleep(200);
+        verify(mockConsumer).close();
+        assertEquals(moved, p0.getBroker());
+        assertEquals(moved, p1.getBroker());
+        assertEquals(2, counters.findCounter(KafkaCounter.FETCH_RETRIES).getValue());
+
+        // a fetch that keeps failing fails the task
+        failures = 4;
+        reader.initialize(new CombinedKafkaInputSplit(Lists.newArrayList(s0, s1)), context);
+        try {
+            reader.nextKeyValue();
+            fail("Expected a RuntimeException");
+        } catch (final RuntimeException e) {
+            assertEquals("connection reset", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testReadStats() throws Exception {
+        final Counters counters = stubCounters();
+        MultipleKafkaInputFormat.setTopicCounters(job, true);
+        final KafkaInputSplit s0 = new KafkaInputSplit(p0, 0, 60, true);
+        final KafkaInputSplit s1 = new KafkaInputSplit(p1, 100, 200, true);
+        final KafkaInputSplit s2 = new KafkaInputSplit(p2, 0, 30, true);
+        reader.initialize(new CombinedKafkaInputSplit(Lists.newArrayList(s0, s1, s2)), context);
+        while (reader.nextKeyValue()) {
+            // keep reading
+        }
+        reader.close();
+
+        assertEquals(4, counters.findCounter(KafkaCounter.FETCHES).getValue());
+        assertEquals(1, counters.findCounter(KafkaCounter.OFFSETS_OUT_OF_RANGE).getValue());
+        assertEquals(90, counters.findCounter(KafkaCounter.BYTES_FETCHED).getValue());
+        assertEquals(6, counters.findCounter(KafkaCounter.MESSAGES_READ).getValue());
+        final String topicGroup = KafkaCounter.getTopicGroup("topic");
+        assertEquals(60, counters.findCounter(topicGroup, KafkaCounter.BYTES_FETCHED.name()).getValue());
+        assertEquals(4, counters.findCounter(topicGroup, KafkaCounter.MESSAGES_READ.name()).getValue());
+        final String otherGroup = KafkaCounter.getTopicGroup("other_topic");
+        assertEquals(30, counters.findCounter(otherGroup, KafkaCounter.BYTES_FETCHED.name()).getValue());
+        assertEquals(2, counters.findCounter(otherGroup, KafkaCounter.MESSAGES_READ.name()).getValue());
+    }
+
+    @Test
+    public void testRecordThroughput() throws Exception {
+        KafkaInputFormat.setThroughputStatsDir(job, new Path("/stats"));
+        KafkaInputFormat.setMinSplitSizeBytes(job, 60);
+        when(context.getTaskAttemptID()).thenReturn(new TaskAttemptID("jt", 1, TaskType.MAP, 3, 2));
+        final KafkaThroughputStats stats = mock(KafkaThroughputStats.class);
+        doReturn(stats).when(reader).getThroughputStats();
+        final KafkaInputSplit s0 = new KafkaInputSplit(p0, 0, 60, true);
+        final KafkaInputSplit s1 = new KafkaInputSplit(p1, 0, 30, true);
+        final KafkaInputSplit s2 = new KafkaInputSplit(p2, 0, 30, true);
+        reader.initialize(new CombinedKafkaInputSplit(Lists.newArrayList(s0, s1, s2)), context);
+        while (reader.nextKeyValue()) {
+            // keep reading
+        }
+        reader.close();
+
+        // the splits of a topic are read at the same time, so they're recorded together, and too little of the other
+        // topic was read to tell its throughput
+        verify(stats).record(eq("topic"), eq(1), eq("attempt_jt_0001_m_000003_2"), eq(90l), anyLong());
+        verifyNoMoreInteractions(stats);
+    }
+
+    private Counters stubCounters() {
+        final Counters counters = new Counters();
+        when(context.getCounter(any(KafkaCounter.class))).thenAnswer(new Answer<Counter>() {
+            @Override
+            public Counter answer(final InvocationOnMock invocation) throws Throwable {
+                return counters.findCounter((KafkaCounter) invocation.getArguments()[0]);
+            }
+        });
+        when(context.getCounter(anyString(), anyString())).thenAnswer(new Answer<Counter>() {
+            @Override
+            public Counter answer(final InvocationOnMock invocation) throws Throwable {
+                return counters.findCounter((String) invocation.getArguments()[0],
+                        (String) invocation.getArguments()[1]);
+            }
+        });
+        return counters;
+    }
+
+    /**
+     * @return a log of {@code count} messages, each with a 5 byte payload and 15 bytes long.
+     */
+    private static ByteBuffer createLog(final int first, final int count) {
+        final ByteBuffer log = ByteBuffer.allocate(count * 15);
+        for (int i = 0; i < count; ++i) {
+            final ByteBuffer message = new Message(new byte[] { (byte) (first + i), 7, 7, 7, 7 }).buffer();
+            log.putInt(message.limit());
+            log.put(message);
+        }
+        log.flip();
+        return log;
+    }
+}
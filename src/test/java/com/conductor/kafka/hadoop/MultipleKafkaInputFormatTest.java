@@ -15,10 +15,12 @@
 package com.conductor.kafka.hadoop;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 import java.util.List;
+import java.util.Map;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.*;
@@ -26,13 +28,17 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import com.conductor.hadoop.DelegatingMapper;
 import com.conductor.hadoop.TaggedInputSplit;
 import com.conductor.kafka.hadoop.MultipleKafkaInputFormat.TopicConf;
+import com.conductor.kafka.zk.ZkUtils;
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 /**
  * @author cgreen
@@ -44,7 +50,10 @@ public class MultipleKafkaInputFormatTest {
     private JobContext jobContext;
     @Mock
     private Job job;
+    @Mock
+    private ZkUtils zk;
     private Configuration conf = new Configuration(false);
+    private final Map<String, List<InputSplit>> topicSplits = Maps.newHashMap();
 
     @Before
     public void setUp() throws Exception {
@@ -63,12 +72,89 @@ public class MultipleKafkaInputFormatTest {
         assertTrue(result.contains(new TopicConf("topic_2", "group_name", Mapper2.class)));
     }
 
+    @Test
+    public void testTopicWeight() throws Exception {
+        MultipleKafkaInputFormat.setTopicWeight(job, "topic_1", 2.5);
+        assertEquals(2.5, MultipleKafkaInputFormat.getTopicWeight(conf, "topic_1"), 0);
+        assertEquals(1, MultipleKafkaInputFormat.getTopicWeight(conf, "topic_2"), 0);
+    }
+
+    @Test
+    public void testTopicPatterns() throws Exception {
+        MultipleKafkaInputFormat.addTopicPattern(job, "topic_\\d", "group_name", Mapper1.class);
+        MultipleKafkaInputFormat.addTopicPattern(job, "other_(a|b),?", "other_group", Mapper2.class);
+        assertEquals(Lists.newArrayList(new TopicConf("topic_\\d", "group_name", Mapper1.class), new TopicConf(
+                "other_(a|b),?", "other_group", Mapper2.class)), MultipleKafkaInputFormat.getTopicPatterns(conf));
+        assertTrue(MultipleKafkaInputFormat.hasTopics(conf));
+
+        // the topics are listed once, and topic_1 is already read by the group
+        when(zk.getTopics()).thenReturn(Lists.newArrayList("topic_3", "topic_1", "other_b", "other_c", "topic_10"));
+        assertEquals(Lists.newArrayList(new TopicConf("topic_1", "group_name", Mapper1.class), new TopicConf("topic_2",
+                "group_name", Mapper2.class), new TopicConf("topic_3", "group_name", Mapper1.class), new TopicConf(
+                "other_b", "other_group", Mapper2.class)), MultipleKafkaInputFormat.getTopics(conf, zk));
+        verify(zk, times(1)).getTopics();
+
+        // nothing to resolve
+        final Configuration topicsOnly = new Configuration(false);
+        assertFalse(MultipleKafkaInputFormat.hasTopics(topicsOnly));
+        assertTrue(MultipleKafkaInputFormat.getTopics(topicsOnly, zk).isEmpty());
+        verify(zk, times(1)).getTopics();
+    }
+
+    @Test
+    public void testGetSplitsTopicPatterns() throws Exception {
+        MultipleKafkaInputFormat.addTopicPattern(job, "new_topic_.*", "group_name", Mapper2.class);
+        final MultipleKafkaInputFormat format = spy(new MultipleKafkaInputFormat());
+        when(zk.getTopics()).thenReturn(Lists.newArrayList("new_topic_1"));
+        final InputSplit split = mock(KafkaInputSplit.class);
+        stubInputSplits(format, "new_topic_1", Lists.newArrayList(split));
+
+        // the matching topics are planned along with the others
+        List<InputSplit> splits = format.getSplits(jobContext);
+        assertEquals(1, splits.size());
+        assertEquals(split, ((TaggedInputSplit) splits.get(0)).getInputSplit());
+        assertEquals(Mapper2.class, ((TaggedInputSplit) splits.get(0)).getMapperClass());
+        verify(format).getInputSplits(zk, conf, Lists.newArrayList(
+                new TopicConf("topic_1", "group_name", Mapper1.class), new TopicConf("topic_2", "group_name",
+                        Mapper2.class), new TopicConf("new_topic_1", "group_name", Mapper2.class)));
+        // ... with a single Zookeeper client
+        verify(format, times(1)).getZk(conf);
+        verify(zk).close();
+
+        // topics created since the last run are picked up
+        when(zk.getTopics()).thenReturn(Lists.newArrayList("new_topic_1", "new_topic_2"));
+        stubInputSplits(format, "new_topic_2", Lists.newArrayList(split));
+        splits = format.getSplits(jobContext);
+        assertEquals(2, splits.size());
+    }
+
     private static class Mapper1 extends Mapper {
     }
 
     private static class Mapper2 extends Mapper {
     }
 
+    private static class BatchMapper extends KafkaBatchMapper<Object, Object> {
+        @Override
+        protected void mapBatch(final KafkaMessageBatch batch, final Context context) {
+        }
+    }
+
+    @Test
+    public void testGetSplitsBatchMapper() throws Exception {
+        MultipleKafkaInputFormat.addTopic(job, "topic_3", "group_name", BatchMapper.class);
+        final MultipleKafkaInputFormat format = spy(new MultipleKafkaInputFormat());
+        final InputSplit split = mock(KafkaInputSplit.class);
+        stubInputSplits(format, "topic_3", Lists.newArrayList(split));
+
+        final List<InputSplit> splits = format.getSplits(jobContext);
+        assertEquals(1, splits.size());
+        final TaggedInputSplit taggedSplit = (TaggedInputSplit) splits.get(0);
+        assertEquals(KafkaBatchInputFormat.class, taggedSplit.getInputFormatClass());
+        assertEquals(BatchMapper.class, taggedSplit.getMapperClass());
+        assertEquals(split, taggedSplit.getInputSplit());
+    }
+
     @Test
     public void testGetSplits() throws Exception {
         final MultipleKafkaInputFormat format = spy(new MultipleKafkaInputFormat());
@@ -76,8 +162,8 @@ public class MultipleKafkaInputFormatTest {
         final InputSplit split1_2 = mock(KafkaInputSplit.class);
         final InputSplit split2_1 = mock(KafkaInputSplit.class);
         final InputSplit split2_2 = mock(KafkaInputSplit.class);
-        doReturn(Lists.newArrayList(split1_1, split1_2)).when(format).getInputSplits(conf, "group_name", "topic_1");
-        doReturn(Lists.newArrayList(split2_1, split2_2)).when(format).getInputSplits(conf, "group_name", "topic_2");
+        stubInputSplits(format, "topic_1", Lists.newArrayList(split1_1, split1_2));
+        stubInputSplits(format, "topic_2", Lists.newArrayList(split2_1, split2_2));
 
         final List<InputSplit> splits = format.getSplits(jobContext);
         assertEquals(4, splits.size());
@@ -95,4 +181,26 @@ public class MultipleKafkaInputFormatTest {
         assertTrue(untagged.contains(split2_1));
         assertTrue(untagged.contains(split2_2));
     }
+
+    /**
+     * Makes {@code format} plan {@code splits} for {@code topic}, and no splits for any other topic, with {@link #zk}.
+     */
+    private void stubInputSplits(final MultipleKafkaInputFormat format, final String topic,
+            final List<InputSplit> splits) throws Exception {
+        topicSplits.put(topic, splits);
+        doAnswer(new Answer<List<List<InputSplit>>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public List<List<InputSplit>> answer(final InvocationOnMock invocation) throws Throwable {
+                final List<List<InputSplit>> result = Lists.newArrayList();
+                for (final TopicConf topicConf : (List<TopicConf>) invocation.getArguments()[2]) {
+                    assertEquals("group_name", topicConf.getConsumerGroup());
+                    final List<InputSplit> splits = topicSplits.get(topicConf.getTopic());
+                    result.add(splits != null ? splits : Lists.<InputSplit> newArrayList());
+                }
+                return result;
+            }
+        }).when(format).getInputSplits(eq(zk), eq(conf), anyListOf(TopicConf.class));
+        doReturn(zk).when(format).getZk(conf);
+    }
 }
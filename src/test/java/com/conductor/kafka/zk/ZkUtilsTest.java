@@ -18,18 +18,38 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
+import org.I0Itec.zkclient.IZkChildListener;
 import org.I0Itec.zkclient.ZkClient;
+import org.I0Itec.zkclient.exception.ZkException;
+import org.I0Itec.zkclient.exception.ZkNoNodeException;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import com.conductor.kafka.Broker;
 import com.conductor.kafka.Partition;
 import com.conductor.kafka.zk.ZkUtils.StringSerializer;
+import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Table;
+import com.google.common.collect.TreeBasedTable;
 
 /**
  * @author cgreen
@@ -39,12 +59,29 @@ public class ZkUtilsTest {
 
     @Mock
     private ZkClient client;
+    @Mock
+    private ZooKeeper zooKeeper;
 
     private ZkUtils zk;
 
     @Before
     public void setUp() throws Exception {
         zk = spy(new ZkUtils(client, "/"));
+        // retries like the ZkClient does
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) throws Throwable {
+                while (true) {
+                    try {
+                        return ((Callable<?>) invocation.getArguments()[0]).call();
+                    } catch (final KeeperException.ConnectionLossException e) {
+                        continue;
+                    } catch (final KeeperException e) {
+                        throw ZkException.create(e);
+                    }
+                }
+            }
+        }).when(zk).retryUntilConnected(any(Callable.class));
     }
 
     @Test
@@ -113,6 +150,52 @@ public class ZkUtilsTest {
         }
     }
 
+    @Test
+    public void testGetPartitionsOfTopics() throws Exception {
+        doReturn(zooKeeper).when(zk).getZooKeeper();
+        mockGetChildren("/brokers/topics/the_topic", Code.OK, "1", "2");
+        mockGetChildren("/brokers/topics/other_topic", Code.OK, "2");
+        mockGetChildren("/brokers/topics/no_topic", Code.NONODE);
+        mockGetData("/brokers/topics/the_topic/1", Code.OK, "2");
+        // the topic left broker 2 after it was listed
+        mockGetData("/brokers/topics/the_topic/2", Code.NONODE, null);
+        mockGetData("/brokers/topics/other_topic/2", Code.OK, "1");
+        mockGetData("/brokers/ids/1", Code.OK, "localhost-123:localhost:9092");
+        mockGetData("/brokers/ids/2", Code.OK, "otherhost-123:otherhost:9093");
+
+        final Map<String, List<Partition>> partitions = zk.getPartitions(Lists.newArrayList("the_topic", "other_topic",
+                "no_topic", "the_topic"));
+        assertEquals(Lists.newArrayList("the_topic", "other_topic", "no_topic"),
+                Lists.newArrayList(partitions.keySet()));
+        final Broker broker1 = new Broker("localhost", 9092, 1);
+        final Broker broker2 = new Broker("otherhost", 9093, 2);
+        assertEquals(Lists.newArrayList(new Partition("the_topic", 0, broker1), new Partition("the_topic", 1, broker1)),
+                partitions.get("the_topic"));
+        assertEquals(Lists.newArrayList(new Partition("other_topic", 0, broker2)), partitions.get("other_topic"));
+        assertTrue(partitions.get("no_topic").isEmpty());
+
+        // every path is read once, in two round trips
+        verify(zooKeeper, times(3)).getChildren(anyString(), anyBoolean(), any(ChildrenCallback.class), any());
+        verify(zooKeeper, times(5)).getData(anyString(), anyBoolean(), any(DataCallback.class), any());
+        verifyZeroInteractions(client);
+
+        // ... and cached
+        assertEquals(partitions.get("other_topic"), zk.getPartitions("other_topic"));
+        assertEquals(partitions, zk.getPartitions(Lists.newArrayList("the_topic", "other_topic", "no_topic")));
+        verify(zooKeeper, times(3)).getChildren(anyString(), anyBoolean(), any(ChildrenCallback.class), any());
+        verifyZeroInteractions(client);
+    }
+
+    @Test
+    public void testGetTopics() throws Exception {
+        when(client.getChildren("/brokers/topics")).thenReturn(Lists.newArrayList("topic_1", "topic_2"));
+        assertEquals(Lists.newArrayList("topic_1", "topic_2"), zk.getTopics());
+
+        // no topics yet
+        when(client.getChildren("/brokers/topics")).thenThrow(new ZkNoNodeException());
+        assertTrue(zk.getTopics().isEmpty());
+    }
+
     @Test
     public void testPartitionExists() throws Exception {
         final Broker broker = new Broker("localhost", 9092, 1);
@@ -126,6 +209,67 @@ public class ZkUtilsTest {
         assertFalse(zk.partitionExists(broker, "the_topic", 5));
     }
 
+    @Test
+    public void testPartitionsCached() throws Exception {
+        when(client.readData("/brokers/ids/1", true)).thenReturn("localhost-123:localhost:9092");
+        doReturn(Lists.newArrayList("1")).when(zk).getChildrenParentMayNotExist("/brokers/topics/the_topic");
+        doReturn(Lists.newArrayList("1")).when(zk).getChildrenParentMayNotExist("/brokers/topics/other_topic");
+        when(client.readData("/brokers/topics/the_topic/1")).thenReturn("2");
+        when(client.readData("/brokers/topics/other_topic/1")).thenReturn("1");
+
+        final List<Partition> partitions = zk.getPartitions("the_topic");
+        assertEquals(2, partitions.size());
+        assertEquals(partitions, zk.getPartitions("the_topic"));
+        assertEquals(1, zk.getPartitions("other_topic").size());
+
+        // each znode is read once, and the broker shared by both topics is cached as well
+        verify(client, times(1)).readData("/brokers/topics/the_topic/1");
+        verify(client, times(1)).readData("/brokers/ids/1", true);
+
+        // callers get their own copies
+        partitions.get(0).getBroker().setHost("elsewhere");
+        assertEquals("localhost", zk.getPartitions("the_topic").get(0).getBroker().getHost());
+
+        // a TTL of 0 caches nothing
+        zk = spy(new ZkUtils(client, "/", new ZkMetadataCache(0)));
+        doReturn(Lists.newArrayList("1")).when(zk).getChildrenParentMayNotExist("/brokers/topics/the_topic");
+        zk.getPartitions("the_topic");
+        verify(client, times(2)).readData("/brokers/topics/the_topic/1");
+    }
+
+    @Test
+    public void testWatchMetadata() throws Exception {
+        when(client.readData("/brokers/ids/1", true)).thenReturn("localhost-123:localhost:9092");
+        doReturn(Lists.newArrayList("1")).when(zk).getChildrenParentMayNotExist("/brokers/topics/the_topic");
+        when(client.readData("/brokers/topics/the_topic/1")).thenReturn("2");
+
+        zk.watchMetadata();
+        final ArgumentCaptor<IZkChildListener> listener = ArgumentCaptor.forClass(IZkChildListener.class);
+        verify(client).subscribeChildChanges(eq("/brokers/ids"), listener.capture());
+        verify(client).subscribeChildChanges(eq("/brokers/topics"), same(listener.getValue()));
+
+        // topics read while watching are watched as well
+        zk.getPartitions("the_topic");
+        verify(client).subscribeChildChanges(eq("/brokers/topics/the_topic"), same(listener.getValue()));
+
+        // the topic moved to other brokers
+        listener.getValue().handleChildChange("/brokers/topics/the_topic", Lists.newArrayList("1"));
+        zk.getPartitions("the_topic");
+        verify(client, times(2)).readData("/brokers/topics/the_topic/1");
+        verify(client, times(1)).readData("/brokers/ids/1", true);
+
+        // a broker went away
+        listener.getValue().handleChildChange("/brokers/ids", Lists.<String> newArrayList());
+        zk.getPartitions("the_topic");
+        verify(client, times(3)).readData("/brokers/topics/the_topic/1");
+        verify(client, times(2)).readData("/brokers/ids/1", true);
+
+        // a topic was created
+        listener.getValue().handleChildChange("/brokers/topics", Lists.newArrayList("the_topic", "new_topic"));
+        zk.getPartitions("the_topic");
+        verify(client, times(4)).readData("/brokers/topics/the_topic/1");
+    }
+
     @Test
     public void testGetLastCommit() throws Exception {
         final Partition partition = new Partition("topic", 1, null);
@@ -138,6 +282,68 @@ public class ZkUtilsTest {
         assertEquals(-1, zk.getLastCommit("group", partition));
     }
 
+    @Test
+    public void testGetLastCommits() throws Exception {
+        final Broker broker = new Broker("localhost", 9092, 1);
+        final Partition p1 = new Partition("topic", 0, broker);
+        final Partition p2 = new Partition("topic", 1, broker);
+        final Partition p3 = new Partition("other_topic", 0, broker);
+        doReturn(zooKeeper).when(zk).getZooKeeper();
+        mockGetChildren("/consumers/group/offsets/topic", Code.OK, "1-1");
+        mockGetChildren("/consumers/group/offsets/other_topic", Code.NONODE);
+        mockGetData("/consumers/group/offsets/topic/1-1", Code.OK, "1234");
+
+        final Map<Partition, Long> commits = zk.getLastCommits("group", Lists.newArrayList(p1, p2, p3));
+        assertEquals(Lists.newArrayList(p1, p2, p3), Lists.newArrayList(commits.keySet()));
+        assertEquals(-1l, (long) commits.get(p1));
+        assertEquals(1234l, (long) commits.get(p2));
+        assertEquals(-1l, (long) commits.get(p3));
+
+        // every topic is listed once, and only the partitions that have been committed are read
+        verify(zooKeeper, times(1)).getData(anyString(), anyBoolean(), any(DataCallback.class), any());
+        verify(zooKeeper, times(2)).getChildren(anyString(), anyBoolean(), any(ChildrenCallback.class), any());
+        verifyZeroInteractions(client);
+
+        // nothing to read
+        reset(zooKeeper);
+        assertTrue(zk.getLastCommits("group", Lists.<Partition> newArrayList()).isEmpty());
+        verifyZeroInteractions(zooKeeper);
+    }
+
+    @Test(expected = ZkException.class)
+    public void testGetLastCommitsFailure() throws Exception {
+        doReturn(zooKeeper).when(zk).getZooKeeper();
+        mockGetChildren("/consumers/group/offsets/topic", Code.NOAUTH);
+        zk.getLastCommits("group", Lists.newArrayList(new Partition("topic", 0, new Broker("localhost", 9092, 1))));
+    }
+
+    @Test
+    public void testGetLastCommitsConnectionLoss() throws Exception {
+        final Partition partition = new Partition("topic", 1, new Broker("localhost", 9092, 1));
+        doReturn(zooKeeper).when(zk).getZooKeeper();
+        mockGetData("/consumers/group/offsets/topic/1-1", Code.OK, "1234");
+        doAnswer(new Answer<Void>() {
+            private boolean lost;
+
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                // the connection is lost once
+                final Code rc = lost ? Code.OK : Code.CONNECTIONLOSS;
+                lost = true;
+                final Object[] args = invocation.getArguments();
+                ((ChildrenCallback) args[2]).processResult(rc.intValue(), "/consumers/group/offsets/topic", args[3],
+                        rc == Code.OK ? Lists.newArrayList("1-1") : null);
+                return null;
+            }
+        }).when(zooKeeper).getChildren(eq("/consumers/group/offsets/topic"), eq(false), any(ChildrenCallback.class),
+                any());
+
+        assertEquals(1234l, (long) zk.getLastCommits("group", Lists.newArrayList(partition)).get(partition));
+        verify(zooKeeper, times(2)).getChildren(anyString(), anyBoolean(), any(ChildrenCallback.class), any());
+        // the handle is looked up again for the retry, and then once to read the offset
+        verify(zk, times(3)).getZooKeeper();
+    }
+
     @Test
     public void testSetLastCommit() throws Exception {
         final Partition partition = new Partition("topic", 1, null);
@@ -159,40 +365,169 @@ public class ZkUtilsTest {
         verify(client, times(1)).createPersistent("/a/temp-offset/", true);
     }
 
+    @Test
+    public void testClearTempOffsets() throws Exception {
+        final Broker broker = new Broker("localhost", 9092, 1);
+        final Partition partition1 = new Partition("topic", 0, broker);
+        final Partition partition2 = new Partition("topic", 1, broker);
+        zk.clearTempOffsets("group", Lists.newArrayList(partition1, partition2));
+        verify(client).delete(zk.getTempOffsetsPath("group", partition1));
+        verify(client).delete(zk.getTempOffsetsPath("group", partition2));
+        verify(client, never()).delete(zk.getOffsetsPath("group", partition1));
+    }
+
     @Test
     public void testCommit() throws Exception {
         final Broker broker = new Broker("localhost", 9092, 1);
         final Partition partition1 = new Partition("the_topic", 0, broker);
         final Partition partition2 = new Partition("the_topic", 1, broker);
+        final Partition partition3 = new Partition("other_topic", 0, broker);
         final List<String> brokerIds = Lists.newArrayList("1-0", "1-1");
-        final String brokerTopicPath = zk.getTempOffsetsSubPath("the_group", "the_topic");
 
-        doNothing().when(zk).setLastCommit(anyString(), any(Partition.class), anyLong(), anyBoolean());
-        doReturn(brokerIds).when(zk).getChildrenParentMayNotExist(brokerTopicPath);
-        doReturn(broker).when(zk).getBroker(1);
+        final String tempOffsetsPath = zk.getTempOffsetsSubPath("the_group", "the_topic");
+        final String offsetsPath = zk.getOffsetsSubPath("the_group", "the_topic");
+        final String otherTempOffsetsPath = zk.getTempOffsetsSubPath("other_group", "other_topic");
+        final String otherOffsetsPath = zk.getOffsetsSubPath("other_group", "other_topic");
+
+        doReturn(zooKeeper).when(zk).getZooKeeper();
+        doReturn(brokerIds).when(zk).getChildrenParentMayNotExist(tempOffsetsPath);
+        doReturn(Lists.newArrayList("1-1")).when(zk).getChildrenParentMayNotExist(offsetsPath);
+        doReturn(Lists.newArrayList("1-0")).when(zk).getChildrenParentMayNotExist(otherTempOffsetsPath);
+        doReturn(Lists.newArrayList()).when(zk).getChildrenParentMayNotExist(otherOffsetsPath);
+        when(client.exists(otherOffsetsPath)).thenReturn(false);
 
         final String tempOffsetPath1 = zk.getTempOffsetsPath("the_group", partition1);
         final String tempOffsetPath2 = zk.getTempOffsetsPath("the_group", partition2);
+        final String tempOffsetPath3 = zk.getTempOffsetsPath("other_group", partition3);
+        mockGetData(tempOffsetPath1, Code.OK, "1234567");
+        mockGetData(tempOffsetPath2, Code.OK, "12345678");
+        mockGetData(tempOffsetPath3, Code.OK, "42");
+
+        assertTrue(zk.commit(ImmutableMultimap.of("the_group", "the_topic", "other_group", "other_topic")));
+
+        // the topic that has never been committed gets its parent node
+        verify(client).createPersistent(otherOffsetsPath, true);
+
+        // no broker lookups, no synchronous reads or writes
+        verify(zk, never()).getBroker(anyInt());
+        verify(client, never()).readData(anyString());
+        verify(zk, never()).setLastCommit(anyString(), any(Partition.class), anyLong(), anyBoolean());
+        verify(client, never()).delete(anyString());
+
+        // every offset is written and its temp offset deleted in a single transaction
+        final List<Op> ops = Lists.newArrayList(Op.create(zk.getOffsetsPath("the_group", partition1),
+                "1234567".getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT), Op.delete(tempOffsetPath1, -1),
+                Op.setData(zk.getOffsetsPath("the_group", partition2), "12345678".getBytes(), -1),
+                Op.delete(tempOffsetPath2, -1), Op.create(zk.getOffsetsPath("other_group", partition3),
+                        "42".getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT), Op.delete(tempOffsetPath3, -1));
+        verify(zooKeeper).multi(ops);
+        verify(zooKeeper, times(1)).multi(anyListOf(Op.class));
+    }
+
+    @Test
+    public void testCommitNothing() throws Exception {
+        doReturn(Lists.newArrayList()).when(zk).getChildrenParentMayNotExist(anyString());
+        assertTrue(zk.commit("the_group", "the_topic"));
+        verify(zk, never()).getZooKeeper();
+    }
 
-        when(client.readData(tempOffsetPath1)).thenReturn("1234567");
-        when(client.readData(tempOffsetPath2)).thenReturn("12345678");
+    @Test
+    public void testCommitConcurrent() throws Exception {
+        final Broker broker = new Broker("localhost", 9092, 1);
+        final Partition partition1 = new Partition("the_topic", 0, broker);
+        final Partition partition2 = new Partition("the_topic", 1, broker);
+        final String tempOffsetsPath = zk.getTempOffsetsSubPath("the_group", "the_topic");
+        final String offsetsPath = zk.getOffsetsSubPath("the_group", "the_topic");
+        doReturn(zooKeeper).when(zk).getZooKeeper();
+        doReturn(Lists.newArrayList("1-0", "1-1")).when(zk).getChildrenParentMayNotExist(tempOffsetsPath);
+        doReturn(Lists.newArrayList("1-0", "1-1")).when(zk).getChildrenParentMayNotExist(offsetsPath);
+        mockGetData(zk.getTempOffsetsPath("the_group", partition1), Code.NONODE, null);
+        mockGetData(zk.getTempOffsetsPath("the_group", partition2), Code.OK, "100");
+
+        // a temp offset that disappeared in the meantime is skipped
+        assertTrue(zk.commit("the_group", "the_topic"));
+        verify(zooKeeper).multi(
+                Lists.newArrayList(Op.setData(zk.getOffsetsPath("the_group", partition2), "100".getBytes(), -1),
+                        Op.delete(zk.getTempOffsetsPath("the_group", partition2), -1)));
+
+        // a failed transaction fails the commit
+        when(zooKeeper.multi(anyListOf(Op.class))).thenThrow(new KeeperException.BadVersionException());
+        assertFalse(zk.commit("the_group", "the_topic"));
+    }
 
-        zk.commit("the_group", "the_topic");
+    @Test
+    public void testCommitManyPartitions() throws Exception {
+        final int partitions = ZkUtils.MAX_PARTITIONS_PER_TRANSACTION + 1;
+        final List<String> brokerIds = Lists.newArrayList();
+        for (int i = 0; i < partitions; ++i) {
+            brokerIds.add("1-" + i);
+            mockGetData(zk.getTempOffsetsPath("the_group", new Partition("the_topic", i, new Broker("h", 1, 1))),
+                    Code.OK, "1");
+        }
+        final String tempOffsetsPath = zk.getTempOffsetsSubPath("the_group", "the_topic");
+        final String offsetsPath = zk.getOffsetsSubPath("the_group", "the_topic");
+        doReturn(zooKeeper).when(zk).getZooKeeper();
+        doReturn(brokerIds).when(zk).getChildrenParentMayNotExist(tempOffsetsPath);
+        doReturn(brokerIds).when(zk).getChildrenParentMayNotExist(offsetsPath);
+
+        assertTrue(zk.commit("the_group", "the_topic"));
+        final ArgumentCaptor<List> transactions = ArgumentCaptor.forClass(List.class);
+        verify(zooKeeper, times(2)).multi(transactions.capture());
+        assertEquals(2 * ZkUtils.MAX_PARTITIONS_PER_TRANSACTION, transactions.getAllValues().get(0).size());
+        assertEquals(2, transactions.getAllValues().get(1).size());
+    }
 
-        // reads the data from the temp offset
-        verify(client, times(1)).readData(tempOffsetPath1);
-        verify(client, times(1)).readData(tempOffsetPath2);
-        verify(client, times(2)).readData(anyString());
+    @Test
+    public void testSetLastCommits() throws Exception {
+        final Broker broker = new Broker("localhost", 9092, 1);
+        final Partition partition1 = new Partition("the_topic", 0, broker);
+        final Partition partition2 = new Partition("the_topic", 1, broker);
+        final String offsetsPath = zk.getOffsetsSubPath("the_group", "the_topic");
+        doReturn(zooKeeper).when(zk).getZooKeeper();
+        doReturn(Lists.newArrayList("1-1")).when(zk).getChildrenParentMayNotExist(offsetsPath);
+
+        final Table<String, Partition, Long> commits = TreeBasedTable.create(Ordering.natural(),
+                Ordering.usingToString());
+        commits.put("the_group", partition1, 100l);
+        commits.put("the_group", partition2, 200l);
+        assertTrue(zk.setLastCommits(commits));
+
+        // the offsets sub path is listed once, and every offset is written in a single transaction
+        verify(zk, times(1)).getChildrenParentMayNotExist(offsetsPath);
+        verify(zooKeeper).multi(
+                Lists.newArrayList(Op.create(zk.getOffsetsPath("the_group", partition1), "100".getBytes(),
+                        Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT),
+                        Op.setData(zk.getOffsetsPath("the_group", partition2), "200".getBytes(), -1)));
+
+        // nothing to commit
+        reset(zooKeeper);
+        assertTrue(zk.setLastCommits(TreeBasedTable.<String, Partition, Long> create(Ordering.natural(),
+                Ordering.usingToString())));
+        verifyZeroInteractions(zooKeeper);
+    }
 
-        // sets the last commit for each partition
-        verify(zk, times(1)).setLastCommit("the_group", partition1, 1234567l, false);
-        verify(zk, times(1)).setLastCommit("the_group", partition2, 12345678l, false);
-        verify(zk, times(2)).setLastCommit(anyString(), any(Partition.class), anyLong(), anyBoolean());
+    private void mockGetData(final String path, final Code rc, final String data) {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                final Object[] args = invocation.getArguments();
+                ((DataCallback) args[2]).processResult(rc.intValue(), path, args[3],
+                        data != null ? data.getBytes() : null, null);
+                return null;
+            }
+        }).when(zooKeeper).getData(eq(path), eq(false), any(DataCallback.class), any());
+    }
 
-        // deletes the temp offsets
-        verify(client, times(1)).delete(tempOffsetPath1);
-        verify(client, times(1)).delete(tempOffsetPath2);
-        verify(client, times(2)).delete(anyString());
+    private void mockGetChildren(final String path, final Code rc, final String... children) {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                final Object[] args = invocation.getArguments();
+                ((ChildrenCallback) args[2]).processResult(rc.intValue(), path, args[3],
+                        rc == Code.OK ? Lists.newArrayList(children) : null);
+                return null;
+            }
+        }).when(zooKeeper).getChildren(eq(path), eq(false), any(ChildrenCallback.class), any());
     }
 
     @Test
@@ -201,6 +536,7 @@ public class ZkUtilsTest {
         final Partition partition = new Partition("topic_name", 0, broker);
         // consumer
         assertEquals("/consumers/group_name/offsets/topic_name/1-0", zk.getOffsetsPath("group_name", partition));
+        assertEquals("/consumers/group_name/offsets/topic_name", zk.getOffsetsSubPath("group_name", "topic_name"));
         assertEquals("/consumers/group_name/offsets-temp/topic_name/1-0",
                 zk.getTempOffsetsPath("group_name", partition));
         assertEquals("/consumers/group_name/offsets-temp/topic_name",